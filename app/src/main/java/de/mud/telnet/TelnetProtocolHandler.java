@@ -27,6 +27,9 @@ package de.mud.telnet;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * This is a telnet protocol handler. The handler needs implementations
@@ -45,8 +48,42 @@ public abstract class TelnetProtocolHandler {
   /** debug level */
   private final static int debug = 0;
 
-  /** temporary buffer for data-telnetstuff-data transformation */
-  private byte[] tempbuf = new byte[0];
+  /** initial capacity of the input ring buffer, must be a power of two */
+  private final static int INBUF_SIZE = 8192;
+
+  /**
+   * most the input ring grows to while inflating MCCP2; once it is full the
+   * rest of the compressed input waits until negotiate() has made room, so a
+   * small compressed stream cannot expand into an unbounded buffer
+   */
+  private final static int MAX_INFLATED_SIZE = 4 * INBUF_SIZE;
+
+  /**
+   * Ring buffer holding input that has not been negotiated yet. It only
+   * grows when more than its capacity is fed at once, so in steady state
+   * input is processed without any allocation.
+   */
+  private byte[] inbuf = new byte[INBUF_SIZE];
+  /** index of the first unprocessed byte in inbuf */
+  private int inStart = 0;
+  /** number of unprocessed bytes in inbuf */
+  private int inCount = 0;
+
+  /** reusable buffer for three byte IAC replies */
+  private final byte[] sendbuf = new byte[3];
+
+  /** inflates the MCCP2 stream, non-null while the server is compressing */
+  private Inflater inflater;
+  /** set when IAC SB COMPRESS2 IAC SE was seen; the rest of the input is compressed */
+  private boolean compressionStarting = false;
+  /** compressed bytes received while MCCP2 was active */
+  private long compressedBytes = 0;
+  /** bytes produced by inflating the MCCP2 stream */
+  private long inflatedBytes = 0;
+  /** compressed input not inflated yet because the input ring was full */
+  private byte[] deflated = new byte[0];
+  /** number of bytes waiting in deflated */
+  private int deflatedCount = 0;
 
   /** the data sent on pressing <RETURN>  \n */
   private byte[] crlf = new byte[2];
@@ -88,7 +125,8 @@ public abstract class TelnetProtocolHandler {
   protected abstract void notifyEndOfRecord();
 
   /**
-   * Send data to the remote host.
+   * Send data to the remote host. The array may be reused by the handler
+   * after this returns, so implementations must not keep a reference to it.
    * @param b array of bytes to send
    */
   protected abstract void write(byte[] b) throws IOException;
@@ -115,6 +153,14 @@ public abstract class TelnetProtocolHandler {
    */
   public void reset() {
     neg_state = 0;
+    inStart = 0;
+    inCount = 0;
+    sblen = 0;
+    endCompression();
+    compressionStarting = false;
+    compressedBytes = 0;
+    inflatedBytes = 0;
+    deflatedCount = 0;
     receivedDX = new byte[256];
     sentDX = new byte[256];
     receivedWX = new byte[256];
@@ -144,7 +190,9 @@ public abstract class TelnetProtocolHandler {
   private byte current_sb;
 
   /** current SB negotiation buffer */
-  private byte[] sbbuf;
+  private byte[] sbbuf = new byte[64];
+  /** number of valid bytes in sbbuf */
+  private int sblen;
 
   /** IAC - init sequence for telnet negotiation. */
   private final static byte IAC  = (byte)255;
@@ -176,6 +224,8 @@ public abstract class TelnetProtocolHandler {
   private final static byte TELOPT_TTYPE  = (byte)24;  /* terminal type */
   /** Telnet option: CHARSET */
   private final static byte TELOPT_CHARSET= (byte)42;  /* charset */
+  /** Telnet option: MCCP2 compression */
+  private final static byte TELOPT_COMPRESS2= (byte)86;  /* mccp v2 */
 
   private final static byte[] IACWILL  = { IAC, WILL };
   private final static byte[] IACWONT  = { IAC, WONT };
@@ -261,15 +311,16 @@ public abstract class TelnetProtocolHandler {
    * Handle an incoming IAC SB &lt;type&gt; &lt;bytes&gt; IAC SE
    * @param type type of SB
    * @param sbdata byte array as &lt;bytes&gt;
+   * @param sbcount number of valid bytes in sbdata
    */
-  private void handle_sb(byte type, byte[] sbdata)
+  private void handle_sb(byte type, byte[] sbdata, int sbcount)
     throws IOException {
     if (debug > 1)
       System.err.println("TelnetIO.handle_sb("+type+")");
 
     switch(type) {
     case TELOPT_TTYPE: {
-        if(sbdata.length > 0 && sbdata[0]==TELQUAL_SEND) {
+        if(sbcount > 0 && sbdata[0]==TELQUAL_SEND) {
 
           // Use List to hold and send entire sequence at one time.
           ArrayList<Byte> byteArray = new ArrayList<>();
@@ -312,7 +363,7 @@ public abstract class TelnetProtocolHandler {
         byteArray.add(SB);
         byteArray.add(TELOPT_CHARSET);
 
-        String charsetStr = new String(sbdata, "US-ASCII");
+        String charsetStr = new String(sbdata, 0, sbcount, "US-ASCII");
         if(charsetStr.startsWith("TTABLE ")) {
           charsetStr = charsetStr.substring(7);
         }
@@ -439,9 +490,13 @@ public abstract class TelnetProtocolHandler {
   public int negotiate(byte nbuf[], int offset)
   throws IOException
   {
-    int count = tempbuf.length;
-    byte[] buf = tempbuf;
-    byte sendbuf[] = new byte[3];
+    if (deflatedCount > 0 && inCount < inbuf.length)
+      inflateDeferred();
+
+    int count = inCount;
+    byte[] buf = inbuf;
+    int mask = buf.length - 1;
+    int start = inStart;
     byte b,reply;
     int boffset = 0, noffset = offset;
     boolean dobreak = false;
@@ -450,22 +505,18 @@ public abstract class TelnetProtocolHandler {
       return -1;
 
     while(!dobreak && (boffset < count) && (noffset < nbuf.length)) {
-      b=buf[boffset++];
-      // of course, byte is a signed entity (-128 -> 127)
-      // but apparently the SGI Netscape 3.0 doesn't seem
-      // to care and provides happily values up to 255
-      if (b>=128)
-        b=(byte)(b-256);
+      b=buf[(start + boffset++) & mask];
       if(debug > 2) {
         Byte B = b;
         System.err.print("byte: " + B.intValue()+ " ");
       }
       switch (neg_state) {
       case STATE_DATA:
-        if (b==IAC) {
+        // IAC IAC is unescaped in the same pass; only commands that
+        // need the caller to sync (like EOR) leave the loop early.
+        if (b==IAC)
           neg_state = STATE_IAC;
-	  dobreak = true; // leave the loop so we can sync.
-        } else
+        else
           nbuf[noffset++]=b;
         break;
       case STATE_IAC:
@@ -526,6 +577,10 @@ public abstract class TelnetProtocolHandler {
           if(debug > 2) System.err.println("BINARY");
           reply = DO;
           break;
+        case TELOPT_COMPRESS2:
+          if(debug > 2) System.err.println("COMPRESS2");
+          reply = DO;
+          break;
         default:
           if(debug > 2) System.err.println("<UNKNOWN,"+b+">");
           reply = DONT;
@@ -683,7 +738,7 @@ public abstract class TelnetProtocolHandler {
       case STATE_IACSBIAC:
         if(debug > 2) System.err.println(""+b+" ");
         if (b == IAC) {
-	  sbbuf = new byte[0];
+	  sblen = 0;
           current_sb = b;
           neg_state = STATE_IACSBDATA;
         } else {
@@ -699,7 +754,7 @@ public abstract class TelnetProtocolHandler {
           break;
         default:
           current_sb = b;
-	  sbbuf = new byte[0];
+	  sblen = 0;
           neg_state = STATE_IACSBDATA;
           break;
         }
@@ -711,10 +766,7 @@ public abstract class TelnetProtocolHandler {
           neg_state = STATE_IACSBDATAIAC;
           break;
         default:
-	  byte[] xsb = new byte[sbbuf.length+1];
-          System.arraycopy(sbbuf,0,xsb,0,sbbuf.length);
-	  sbbuf = xsb;
-          sbbuf[sbbuf.length-1] = b;
+          appendSubnegotiation(b);
           break;
         }
         break;
@@ -723,18 +775,21 @@ public abstract class TelnetProtocolHandler {
         switch (b) {
         case IAC:
           neg_state = STATE_IACSBDATA;
-	  byte[] xsb = new byte[sbbuf.length+1];
-          System.arraycopy(sbbuf,0,xsb,0,sbbuf.length);
-	  sbbuf = xsb;
-          sbbuf[sbbuf.length-1] = IAC;
+          appendSubnegotiation(IAC);
           break;
         case SE:
-          handle_sb(current_sb,sbbuf);
+          if (current_sb == TELOPT_COMPRESS2) {
+            // everything after this IAC SE is a zlib stream, so stop
+            // here and inflate the rest before parsing any further.
+            compressionStarting = true;
+            dobreak = true;
+          } else
+            handle_sb(current_sb,sbbuf,sblen);
           current_sb = 0;
           neg_state = STATE_DATA;
           break;
         case SB:
-          handle_sb(current_sb,sbbuf);
+          handle_sb(current_sb,sbbuf,sblen);
           neg_state = STATE_IACSB;
           break;
         default:
@@ -749,18 +804,190 @@ public abstract class TelnetProtocolHandler {
         break;
       }
     }
-    // shrink tempbuf to new processed size.
-    byte[] xb = new byte[count-boffset];
-    System.arraycopy(tempbuf,boffset,xb,0,count-boffset);
-    tempbuf = xb;
+    // consume the processed bytes in place.
+    inStart = (start + boffset) & mask;
+    inCount = count - boffset;
+
+    if (compressionStarting)
+      startCompression();
+
     return noffset - offset;
   }
 
-  public void inputfeed(byte[] b, int offset, int len) {
-    byte[] xb = new byte[tempbuf.length+len];
+  /**
+   * Queue received bytes for {@link #negotiate(byte[], int)}. The bytes are
+   * copied into a reusable ring buffer, which only grows if it cannot hold
+   * all unprocessed input. While MCCP2 is active the bytes are inflated
+   * into the ring buffer instead, but only until it reaches a fixed size;
+   * the rest is inflated as {@link #negotiate(byte[], int)} makes room.
+   * @throws IOException if the compressed stream is corrupt
+   */
+  public void inputfeed(byte[] b, int offset, int len) throws IOException {
+    if (deflatedCount > 0)
+      deferInput(b, offset, len);
+    else if (inflater != null)
+      inflate(b, offset, len);
+    else
+      appendInput(b, offset, len);
+  }
+
+  /**
+   * @return true while the server is sending an MCCP2 compressed stream
+   */
+  public boolean isCompressing() {
+    return inflater != null;
+  }
+
+  /**
+   * @return number of compressed bytes received over MCCP2
+   */
+  public long getCompressedBytes() {
+    return compressedBytes;
+  }
+
+  /**
+   * @return number of bytes the MCCP2 stream inflated to
+   */
+  public long getInflatedBytes() {
+    return inflatedBytes;
+  }
+
+  /** copy plain bytes into the input ring */
+  private void appendInput(byte[] b, int offset, int len) {
+    if (inCount + len > inbuf.length)
+      growInput(inCount + len);
+
+    int mask = inbuf.length - 1;
+    int end = (inStart + inCount) & mask;
+    int first = Math.min(len, inbuf.length - end);
+    System.arraycopy(b, offset, inbuf, end, first);
+    System.arraycopy(b, offset + first, inbuf, 0, len - first);
+    inCount += len;
+  }
+
+  /**
+   * Switch to inflating input. Anything still queued arrived after the
+   * IAC SE marker and so is already compressed.
+   */
+  private void startCompression() throws IOException {
+    compressionStarting = false;
+    inflater = new Inflater();
+
+    byte[] pending = new byte[inCount];
+    int first = Math.min(inCount, inbuf.length - inStart);
+    System.arraycopy(inbuf, inStart, pending, 0, first);
+    System.arraycopy(inbuf, 0, pending, first, inCount - first);
+    inStart = 0;
+    inCount = 0;
+
+    if (pending.length > 0)
+      inflate(pending, 0, pending.length);
+  }
+
+  /** stop inflating and release the native zlib state */
+  private void endCompression() {
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
+  }
+
+  /** queue compressed input behind what is already waiting to be inflated */
+  private void deferInput(byte[] b, int offset, int len) {
+    if (inflater != null)
+      compressedBytes += len;
+    if (deflatedCount + len > deflated.length)
+      deflated = Arrays.copyOf(deflated, Math.max(deflatedCount + len, deflated.length * 2));
+    System.arraycopy(b, offset, deflated, deflatedCount, len);
+    deflatedCount += len;
+  }
+
+  /** inflate input that was held back while the input ring was full */
+  private void inflateDeferred() throws IOException {
+    int len = deflatedCount;
+    deflatedCount = 0;
+    inflater.setInput(deflated, 0, len);
+    runInflater(deflated, 0, len);
+  }
+
+  /**
+   * Inflate compressed input straight into the input ring. When the server
+   * ends the zlib stream, the bytes that follow it are queued as plain input.
+   */
+  private void inflate(byte[] b, int offset, int len) throws IOException {
+    compressedBytes += len;
+    inflater.setInput(b, offset, len);
+    runInflater(b, offset, len);
+  }
+
+  /**
+   * Inflate the input already handed to the inflater, which came from
+   * {@code len} bytes of {@code b} at {@code offset}.
+   */
+  private void runInflater(byte[] b, int offset, int len) throws IOException {
+    try {
+      while (true) {
+        if (inCount == inbuf.length) {
+          if (inbuf.length >= MAX_INFLATED_SIZE) {
+            // The inflater may keep a reference to b, which the caller
+            // reuses, so hold on to a copy of what it has not read yet.
+            int remaining = inflater.getRemaining();
+            compressedBytes -= remaining;
+            deferInput(b, offset + len - remaining, remaining);
+            return;
+          }
+          growInput(inbuf.length * 2);
+        }
+
+        int mask = inbuf.length - 1;
+        int end = (inStart + inCount) & mask;
+        int room = Math.min(inbuf.length - end, inbuf.length - inCount);
+        int n = inflater.inflate(inbuf, end, room);
+        inCount += n;
+        inflatedBytes += n;
+
+        if (inflater.finished()) {
+          int remaining = inflater.getRemaining();
+          compressedBytes -= remaining;
+          endCompression();
+          appendInput(b, offset + len - remaining, remaining);
+          return;
+        }
+
+        if (inflater.needsDictionary())
+          throw new IOException("MCCP stream requires a preset dictionary");
 
-    System.arraycopy(tempbuf,0,xb,0,tempbuf.length);
-    System.arraycopy(b,offset,xb,tempbuf.length,len);
-    tempbuf = xb;
+        if (n == 0 && inflater.needsInput())
+          return;
+      }
+    } catch (DataFormatException e) {
+      endCompression();
+      deflatedCount = 0;
+      throw new IOException("Corrupt MCCP stream", e);
+    }
+  }
+
+  /** grow the input ring to hold at least {@code needed} bytes, unwrapping it */
+  private void growInput(int needed) {
+    int size = inbuf.length;
+    while (size < needed)
+      size <<= 1;
+
+    byte[] xb = new byte[size];
+    int first = Math.min(inCount, inbuf.length - inStart);
+    System.arraycopy(inbuf, inStart, xb, 0, first);
+    System.arraycopy(inbuf, 0, xb, first, inCount - first);
+    inbuf = xb;
+    inStart = 0;
+  }
+
+  /** append one byte to the current subnegotiation buffer */
+  private void appendSubnegotiation(byte b) {
+    if (sblen == sbbuf.length) {
+      byte[] xsb = new byte[sbbuf.length * 2];
+      System.arraycopy(sbbuf, 0, xsb, 0, sblen);
+      sbbuf = xsb;
+    }
+    sbbuf[sblen++] = b;
   }
 }
@@ -331,6 +331,15 @@ public void setScreenSize(int c, int r, boolean broadcast) {
     return mouserpt != 0;
   }
 
+  /**
+   * Full-screen programs such as editors and pagers switch the cursor keys
+   * or the keypad to application mode, or ask for mouse reports.
+   * @return whether the host appears to be running one
+   */
+  public boolean isApplicationMode() {
+    return applicationcursor || keypadmode || mouserpt != 0;
+  }
+
   /**
    * Terminal is mouse-aware and requires (x,y) coordinates of
    * on the terminal (character coordinates) and the button clicked.
@@ -670,6 +679,7 @@ public void setScreenSize(int c, int r, boolean broadcast) {
   int statusmode = 0;
   boolean vt52mode = false;
   boolean keypadmode = false; /* false - numeric, true - application */
+  boolean applicationcursor = false;
   boolean output8bit = false;
   int normalcursor = 0;
   boolean moveoutsidemargins = true;
@@ -2261,6 +2271,7 @@ public void setScreenSize(int c, int r, boolean broadcast) {
             for (int i = 0; i <= DCEvar; i++) {
               switch (DCEvars[i]) {
                 case 1:  /* Application cursor keys */
+                  applicationcursor = true;
                   KeyUp[0] = "\u001bOA";
                   KeyDown[0] = "\u001bOB";
                   KeyRight[0] = "\u001bOC";
@@ -2328,6 +2339,7 @@ public void setScreenSize(int c, int r, boolean broadcast) {
             for (int i = 0; i <= DCEvar; i++) {
               switch (DCEvars[i]) {
                 case 1:  /* Application cursor keys */
+                  applicationcursor = false;
                   KeyUp[0] = "\u001b[A";
                   KeyDown[0] = "\u001b[B";
                   KeyRight[0] = "\u001b[C";
@@ -42,6 +42,7 @@ import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
 import android.graphics.Rect;
+import android.graphics.Typeface;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Bundle;
@@ -150,6 +151,8 @@ public class ConsoleActivity extends AppCompatActivity implements BridgeDisconne
 	private MenuItem portForward;
 	private MenuItem resize;
 	private MenuItem urlscan;
+	private MenuItem stats;
+	private MenuItem latency;
 
 	private boolean forcedOrientation;
 
@@ -396,10 +399,8 @@ public class ConsoleActivity extends AppCompatActivity implements BridgeDisconne
 		// If the view is present but the bridge bitmap is missing or mismatched, force a redraw.
 		// This is a low-frequency recovery path (normal resizes go through TerminalView.onSizeChanged()).
 		if (currentTerminalView.bridge != null) {
-			android.graphics.Bitmap bitmap = currentTerminalView.bridge.bitmap;
-			if (bitmap == null
-					|| bitmap.getWidth() != currentTerminalView.getWidth()
-					|| bitmap.getHeight() != currentTerminalView.getHeight()) {
+			if (!currentTerminalView.bridge.isSurfaceSized(
+					currentTerminalView.getWidth(), currentTerminalView.getHeight())) {
 				currentTerminalView.bridge.parentChanged(currentTerminalView);
 				currentTerminalView.invalidate();
 			}
@@ -844,6 +845,8 @@ public class ConsoleActivity extends AppCompatActivity implements BridgeDisconne
 		portForward.setOnMenuItemClickListener(null);
 		resize.setOnMenuItemClickListener(null);
 		urlscan.setOnMenuItemClickListener(null);
+		stats.setOnMenuItemClickListener(null);
+		latency.setOnMenuItemClickListener(null);
 	}
 
 	protected View findCurrentView(int id) {
@@ -1414,9 +1417,99 @@ public class ConsoleActivity extends AppCompatActivity implements BridgeDisconne
 			}
 		});
 
+		stats = menu.add(R.string.console_menu_stats);
+		stats.setIcon(android.R.drawable.ic_menu_info_details);
+		stats.setEnabled(activeTerminal);
+		stats.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			@Override
+			public boolean onMenuItemClick(MenuItem item) {
+				final TerminalView terminalView = adapter.getCurrentTerminalView();
+				if (terminalView == null)
+					return true;
+
+				final TerminalBridge bridge = terminalView.bridge;
+				String text = bridge.getStatistics();
+				if (text == null)
+					text = getString(R.string.stats_none);
+
+				new androidx.appcompat.app.AlertDialog.Builder(
+								ConsoleActivity.this, R.style.AlertDialogTheme)
+						.setTitle(R.string.console_menu_stats)
+						.setMessage(text)
+						.setPositiveButton(android.R.string.ok, null)
+						.setNeutralButton(R.string.stats_share, new DialogInterface.OnClickListener() {
+							@Override
+							public void onClick(DialogInterface dialog, int which) {
+								StringBuilder report = new StringBuilder();
+								String stats = bridge.getStatistics();
+								if (stats != null)
+									report.append(stats).append("\n\n");
+								report.append(bridge.getMetricsDump());
+								String latency = bridge.getInputLatencyReport();
+								if (latency != null)
+									report.append('\n').append(latency).append('\n');
+								shareText(R.string.console_menu_stats, report.toString());
+							}
+						})
+						.create().show();
+
+				return true;
+			}
+		});
+
+		latency = menu.add(R.string.console_menu_latency);
+		latency.setIcon(android.R.drawable.ic_menu_recent_history);
+		latency.setEnabled(activeTerminal);
+		latency.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			@Override
+			public boolean onMenuItemClick(MenuItem item) {
+				final TerminalView terminalView = adapter.getCurrentTerminalView();
+				if (terminalView == null)
+					return true;
+
+				final String report = terminalView.bridge.getInputLatencyReport();
+				androidx.appcompat.app.AlertDialog.Builder builder =
+						new androidx.appcompat.app.AlertDialog.Builder(
+								ConsoleActivity.this, R.style.AlertDialogTheme)
+						.setTitle(R.string.console_menu_latency)
+						.setMessage(report != null ? report : getString(R.string.latency_none))
+						.setPositiveButton(android.R.string.ok, null);
+				if (report != null) {
+					builder.setNeutralButton(R.string.stats_share, new DialogInterface.OnClickListener() {
+						@Override
+						public void onClick(DialogInterface dialog, int which) {
+							shareText(R.string.console_menu_latency, report);
+						}
+					});
+				}
+
+				androidx.appcompat.app.AlertDialog dialog = builder.create();
+				dialog.show();
+
+				// The distributions are tables, so keep their columns lined up.
+				TextView message = dialog.findViewById(android.R.id.message);
+				if (message != null)
+					message.setTypeface(Typeface.MONOSPACE);
+
+				return true;
+			}
+		});
+
 		return true;
 	}
 
+	/**
+	 * Hand a plain text report to whichever app the user picks, so it can be
+	 * attached to a bug report.
+	 */
+	private void shareText(int subject, String text) {
+		Intent send = new Intent(Intent.ACTION_SEND);
+		send.setType("text/plain");
+		send.putExtra(Intent.EXTRA_SUBJECT, getString(subject));
+		send.putExtra(Intent.EXTRA_TEXT, text);
+		startActivity(Intent.createChooser(send, getString(R.string.stats_share)));
+	}
+
 	@Override
 	public boolean onPrepareOptionsMenu(Menu menu) {
 		super.onPrepareOptionsMenu(menu);
@@ -1446,6 +1539,8 @@ public class ConsoleActivity extends AppCompatActivity implements BridgeDisconne
 		portForward.setEnabled(sessionOpen && canForwardPorts);
 		urlscan.setEnabled(activeTerminal);
 		resize.setEnabled(sessionOpen);
+		stats.setEnabled(activeTerminal);
+		latency.setEnabled(activeTerminal);
 
 		return true;
 	}
@@ -0,0 +1,207 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot;
+
+import org.connectbot.service.TerminalKeyListener;
+
+import android.graphics.Bitmap;
+import android.graphics.BlendMode;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+
+/**
+ * Draws the terminal cursor: the cell under it inverted, a pending dead key,
+ * and marks for the modifier keys that are on or locked. The cursor is drawn
+ * on every frame, so everything it needs is set up here once and drawing it
+ * does not allocate.
+ */
+class CursorRenderer {
+	private final Paint paint;
+	private final Paint strokePaint;
+	private final Paint inversionPaint;
+	private final Paint metaInversionPaint;
+	private final Paint differencePaint;
+	private final Paint metaDifferencePaint;
+
+	// Modifier marks on a 1x1 cell, scaled to the character size
+	private final Path ctrlCursor;
+	private final Path altCursor;
+	private final Path shiftCursor;
+	private final RectF unitCell = new RectF(0.0f, 0.0f, 1.0f, 1.0f);
+	private final RectF cell = new RectF();
+	private final Matrix scaleMatrix = new Matrix();
+
+	private final Rect source = new Rect();
+	private final Rect target = new Rect();
+	private final char[] singleDeadKey = new char[1];
+
+	CursorRenderer(int color) {
+		paint = new Paint();
+		paint.setColor(color);
+		paint.setAntiAlias(true);
+
+		inversionPaint = new Paint();
+		inversionPaint.setColorFilter(new ColorMatrixColorFilter(new ColorMatrix(new float[] {
+				-1, 0, 0, 0, 255,
+				0, -1, 0, 0, 255,
+				0, 0, -1, 0, 255,
+				0, 0, 0, 1, 0
+		})));
+		inversionPaint.setAntiAlias(true);
+
+		metaInversionPaint = new Paint();
+		metaInversionPaint.setColorFilter(
+				new ColorMatrixColorFilter(new ColorMatrix(new float[] {
+						-1f, 0, 0, 0, 255,
+						0, -1f, 0, 0, 255,
+						0, 0, -1f, 0, 255,
+						0, 0, 0, 0.5f, 0
+				})));
+		metaInversionPaint.setAntiAlias(true);
+
+		// Inverts whatever is already drawn, for terminals drawn without a bitmap to copy from
+		differencePaint = new Paint();
+		differencePaint.setColor(0xffffffff);
+		metaDifferencePaint = new Paint();
+		metaDifferencePaint.setColor(0x80ffffff);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+			differencePaint.setBlendMode(BlendMode.DIFFERENCE);
+			metaDifferencePaint.setBlendMode(BlendMode.DIFFERENCE);
+		}
+
+		strokePaint = new Paint(inversionPaint);
+		strokePaint.setStrokeWidth(0.1f);
+		strokePaint.setStyle(Paint.Style.STROKE);
+
+		// TODO make this into a resource somehow
+		shiftCursor = new Path();
+		shiftCursor.lineTo(0.5f, 0.33f);
+		shiftCursor.lineTo(1.0f, 0.0f);
+
+		altCursor = new Path();
+		altCursor.moveTo(0.0f, 1.0f);
+		altCursor.lineTo(0.5f, 0.66f);
+		altCursor.lineTo(1.0f, 1.0f);
+
+		ctrlCursor = new Path();
+		ctrlCursor.moveTo(0.0f, 0.25f);
+		ctrlCursor.lineTo(1.0f, 0.5f);
+		ctrlCursor.lineTo(0.0f, 0.75f);
+	}
+
+	/**
+	 * Color of the block drawn where there is no terminal cell to invert.
+	 */
+	void setColor(int color) {
+		paint.setColor(color);
+	}
+
+	void setCellSize(int charWidth, int charHeight) {
+		cell.set(0.0f, 0.0f, charWidth, charHeight);
+		scaleMatrix.setRectToRect(unitCell, cell, Matrix.ScaleToFit.FILL);
+	}
+
+	/**
+	 * @param terminal the terminal as last drawn, at the same scale as {@code canvas}
+	 * @param x left of the cursor cell in {@code terminal}
+	 * @param y top of the cursor cell in {@code terminal}
+	 * @param width width of the cell, two characters on a wide character
+	 * @param metaState modifier state from {@link TerminalKeyListener#getMetaState()}
+	 * @param deadKey accent waiting for the next key, or 0
+	 */
+	void draw(Canvas canvas, Bitmap terminal, int x, int y, int width, int height,
+			int metaState, int deadKey) {
+		canvas.save();
+
+		canvas.translate(x, y);
+		canvas.clipRect(0, 0, width, height);
+
+		if (y + height <= terminal.getHeight()) {
+			// Draw the cell back over itself through the inverting filter.
+			source.set(x, y, x + width, y + height);
+			target.set(0, 0, width, height);
+			canvas.drawBitmap(terminal, source, target,
+					metaState == 0 ? inversionPaint : metaInversionPaint);
+		} else {
+			canvas.drawPaint(paint);
+		}
+
+		drawDecorations(canvas, metaState, deadKey);
+		canvas.restore();
+	}
+
+	/**
+	 * Like {@link #draw}, but for a terminal that is drawn onto the canvas
+	 * without a bitmap behind it: the cell is inverted in place with a
+	 * difference blend. Needs API 29.
+	 *
+	 * @param terminalHeight height of the terminal in pixels
+	 */
+	void drawBlended(Canvas canvas, int terminalHeight, int x, int y, int width, int height,
+			int metaState, int deadKey) {
+		canvas.save();
+
+		canvas.translate(x, y);
+		canvas.clipRect(0, 0, width, height);
+
+		if (y + height <= terminalHeight)
+			canvas.drawRect(0, 0, width, height,
+					metaState == 0 ? differencePaint : metaDifferencePaint);
+		else
+			canvas.drawPaint(paint);
+
+		drawDecorations(canvas, metaState, deadKey);
+		canvas.restore();
+	}
+
+	/**
+	 * Draw the dead key and modifier marks into a cell already translated
+	 * to and clipped.
+	 */
+	private void drawDecorations(Canvas canvas, int metaState, int deadKey) {
+		if (deadKey != 0) {
+			singleDeadKey[0] = (char) deadKey;
+			canvas.drawText(singleDeadKey, 0, 1, 0, 0, strokePaint);
+		}
+
+		// Make sure we scale our decorations to the correct size.
+		canvas.concat(scaleMatrix);
+
+		if ((metaState & TerminalKeyListener.OUR_SHIFT_ON) != 0)
+			canvas.drawPath(shiftCursor, strokePaint);
+		else if ((metaState & TerminalKeyListener.OUR_SHIFT_LOCK) != 0)
+			canvas.drawPath(shiftCursor, inversionPaint);
+
+		if ((metaState & TerminalKeyListener.OUR_ALT_ON) != 0)
+			canvas.drawPath(altCursor, strokePaint);
+		else if ((metaState & TerminalKeyListener.OUR_ALT_LOCK) != 0)
+			canvas.drawPath(altCursor, inversionPaint);
+
+		if ((metaState & TerminalKeyListener.OUR_CTRL_ON) != 0)
+			canvas.drawPath(ctrlCursor, strokePaint);
+		else if ((metaState & TerminalKeyListener.OUR_CTRL_LOCK) != 0)
+			canvas.drawPath(ctrlCursor, inversionPaint);
+	}
+}
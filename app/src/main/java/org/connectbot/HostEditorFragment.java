@@ -18,6 +18,7 @@
 package org.connectbot;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import android.content.ContentValues;
@@ -32,6 +33,7 @@ import androidx.appcompat.widget.PopupMenu;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.LayoutInflater;
+import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
@@ -42,6 +44,8 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 
 import org.connectbot.bean.HostBean;
+import org.connectbot.transport.CipherPreference;
+import org.connectbot.transport.Mosh;
 import org.connectbot.transport.SSH;
 import org.connectbot.transport.Telnet;
 import org.connectbot.transport.TransportFactory;
@@ -91,6 +95,8 @@ public class HostEditorFragment extends Fragment {
 	// Likewise, but for DEL key.
 	private TypedArray mDelKeyNames;
 	private TypedArray mDelKeyValues;
+	private TypedArray mKeepAliveNames;
+	private TypedArray mKeepAliveValues;
 
 	// A map from Charset display name to Charset value (i.e., unique ID for the Charset).
 	private Map<String, String> mCharsetData;
@@ -119,9 +125,16 @@ public class HostEditorFragment extends Fragment {
 	private TextView mDelKeyText;
 	private View mEncodingItem;
 	private TextView mEncodingText;
+	private View mKeepAliveItem;
+	private TextView mKeepAliveText;
+	private View mCipherItem;
+	private TextView mCipherText;
+	private View mJumpHostItem;
+	private TextView mJumpHostText;
 	private CheckableMenuItem mUseSshAuthSwitch;
 	private CheckableMenuItem mUseSshConfirmationSwitch;
 	private CheckableMenuItem mCompressionSwitch;
+	private CheckableMenuItem mAutoCompressionSwitch;
 	private CheckableMenuItem mStartShellSwitch;
 	private CheckableMenuItem mStayConnectedSwitch;
 	private CheckableMenuItem mCloseOnDisconnectSwitch;
@@ -444,6 +457,18 @@ public class HostEditorFragment extends Fragment {
 			}
 		});
 
+		mAutoCompressionSwitch = view.findViewById(R.id.auto_compression_item);
+		mAutoCompressionSwitch.setChecked(mHost.getAutoCompression());
+		mCompressionSwitch.setEnabled(!mHost.getAutoCompression());
+		mAutoCompressionSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+			@Override
+			public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+				mHost.setAutoCompression(isChecked);
+				mCompressionSwitch.setEnabled(!isChecked);
+				handleHostChange();
+			}
+		});
+
 		mStartShellSwitch = view.findViewById(R.id.start_shell_item);
 		mStartShellSwitch.setChecked(mHost.getWantSession());
 		mStartShellSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
@@ -474,6 +499,96 @@ public class HostEditorFragment extends Fragment {
 			}
 		});
 
+		mKeepAliveItem = view.findViewById(R.id.keepalive_item);
+		mKeepAliveItem.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				PopupMenu menu = new PopupMenu(getActivity(), v);
+				for (int i = 0; i < mKeepAliveNames.length(); i++) {
+					menu.getMenu().add(mKeepAliveNames.getText(i));
+				}
+				menu.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
+					@Override
+					public boolean onMenuItemClick(MenuItem item) {
+						for (int i = 0; i < mKeepAliveNames.length(); i++) {
+							if (mKeepAliveNames.getText(i).toString().equals(item.getTitle().toString())) {
+								mHost.setKeepAlive(Integer.parseInt(mKeepAliveValues.getText(i).toString()));
+								mKeepAliveText.setText(mKeepAliveNames.getText(i));
+								handleHostChange();
+								return true;
+							}
+						}
+						return false;
+					}
+				});
+				menu.show();
+			}
+		});
+
+		mKeepAliveText = view.findViewById(R.id.keepalive_text);
+		for (int i = 0; i < mKeepAliveValues.length(); i++) {
+			if (Integer.parseInt(mKeepAliveValues.getText(i).toString()) == mHost.getKeepAlive()) {
+				mKeepAliveText.setText(mKeepAliveNames.getText(i));
+				break;
+			}
+		}
+
+		mCipherItem = view.findViewById(R.id.cipher_item);
+		mCipherItem.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				final String[] ciphers = CipherPreference.getAvailableCiphers();
+				PopupMenu menu = new PopupMenu(getActivity(), v);
+				// Item 0 is automatic; the rest are offset by one into ciphers.
+				menu.getMenu().add(Menu.NONE, 0, Menu.NONE, R.string.hostpref_cipher_automatic);
+				for (int i = 0; i < ciphers.length; i++) {
+					menu.getMenu().add(Menu.NONE, i + 1, Menu.NONE, ciphers[i]);
+				}
+				menu.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
+					@Override
+					public boolean onMenuItemClick(MenuItem item) {
+						mHost.setCipher(item.getItemId() == 0 ? null : ciphers[item.getItemId() - 1]);
+						updateCipherText();
+						handleHostChange();
+						return true;
+					}
+				});
+				menu.show();
+			}
+		});
+
+		mCipherText = view.findViewById(R.id.cipher_text);
+		updateCipherText();
+
+		mJumpHostItem = view.findViewById(R.id.jump_host_item);
+		mJumpHostItem.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				final List<HostBean> jumpHosts = getJumpHostCandidates();
+				PopupMenu menu = new PopupMenu(getActivity(), v);
+				// Item 0 connects directly; the rest are offset by one into jumpHosts.
+				menu.getMenu().add(Menu.NONE, 0, Menu.NONE, R.string.hostpref_jump_host_none);
+				for (int i = 0; i < jumpHosts.size(); i++) {
+					menu.getMenu().add(Menu.NONE, i + 1, Menu.NONE, jumpHosts.get(i).getNickname());
+				}
+				menu.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
+					@Override
+					public boolean onMenuItemClick(MenuItem item) {
+						mHost.setJumpHostId(item.getItemId() == 0
+								? HostDatabase.JUMPHOSTID_NONE
+								: jumpHosts.get(item.getItemId() - 1).getId());
+						updateJumpHostText();
+						handleHostChange();
+						return true;
+					}
+				});
+				menu.show();
+			}
+		});
+
+		mJumpHostText = view.findViewById(R.id.jump_host_text);
+		updateJumpHostText();
+
 		mPostLoginAutomationField = view.findViewById(R.id.post_login_automation_field);
 		mPostLoginAutomationField.setText(mHost.getPostLogin());
 		mPostLoginAutomationField.addTextChangedListener(
@@ -512,7 +627,7 @@ public class HostEditorFragment extends Fragment {
 				TransportFactory.getFormatHint(protocol, getActivity()));
 
 		// Different protocols have different field types, so show only the fields needed.
-		if (SSH.getProtocolName().equals(protocol)) {
+		if (SSH.getProtocolName().equals(protocol) || Mosh.getProtocolName().equals(protocol)) {
 			mUsernameContainer.setVisibility(View.VISIBLE);
 			mHostnameContainer.setVisibility(View.VISIBLE);
 			mPortContainer.setVisibility(View.VISIBLE);
@@ -561,6 +676,36 @@ public class HostEditorFragment extends Fragment {
 		handleHostChange();
 	}
 
+	private void updateCipherText() {
+		if (mHost.getCipher() == null)
+			mCipherText.setText(R.string.hostpref_cipher_automatic);
+		else
+			mCipherText.setText(mHost.getCipher());
+	}
+
+	/**
+	 * @return saved SSH hosts this host could tunnel through
+	 */
+	private List<HostBean> getJumpHostCandidates() {
+		List<HostBean> candidates = new ArrayList<>();
+		for (HostBean host : HostDatabase.get(getActivity()).getHosts(false)) {
+			if (SSH.getProtocolName().equals(host.getProtocol()) && host.getId() != mHost.getId())
+				candidates.add(host);
+		}
+		return candidates;
+	}
+
+	private void updateJumpHostText() {
+		HostBean jumpHost = null;
+		if (mHost.getJumpHostId() != HostDatabase.JUMPHOSTID_NONE)
+			jumpHost = HostDatabase.get(getActivity()).findHostById(mHost.getJumpHostId());
+
+		if (jumpHost == null)
+			mJumpHostText.setText(R.string.hostpref_jump_host_none);
+		else
+			mJumpHostText.setText(jumpHost.getNickname());
+	}
+
 	private void processSshAuthChange() {
 		mUseSshConfirmationSwitch.setVisibility(
 				mUseSshAuthSwitch.isChecked() ? View.VISIBLE : View.GONE);
@@ -593,6 +738,8 @@ public class HostEditorFragment extends Fragment {
 		mColorValues = getResources().obtainTypedArray(R.array.list_color_values);
 		mDelKeyNames = getResources().obtainTypedArray(R.array.list_delkey);
 		mDelKeyValues = getResources().obtainTypedArray(R.array.list_delkey_values);
+		mKeepAliveNames = getResources().obtainTypedArray(R.array.list_keepalive);
+		mKeepAliveValues = getResources().obtainTypedArray(R.array.list_keepalive_values);
 	}
 
 	@Override
@@ -603,6 +750,8 @@ public class HostEditorFragment extends Fragment {
 		mColorValues.recycle();
 		mDelKeyNames.recycle();
 		mDelKeyValues.recycle();
+		mKeepAliveNames.recycle();
+		mKeepAliveValues.recycle();
 	}
 
 	@Override
@@ -59,10 +59,15 @@ import org.connectbot.data.HostStorage;
 import org.connectbot.service.OnHostStatusChangedListener;
 import org.connectbot.service.TerminalBridge;
 import org.connectbot.service.TerminalManager;
+import org.connectbot.transport.DnsCache;
+import org.connectbot.transport.Local;
 import org.connectbot.transport.TransportFactory;
 import org.connectbot.util.HostDatabase;
 import org.connectbot.util.PreferenceConstants;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 public class HostListActivity extends AppCompatListActivity implements OnHostStatusChangedListener {
@@ -71,6 +76,12 @@ public class HostListActivity extends AppCompatListActivity implements OnHostSta
 
 	public final static int REQUEST_EDIT = 1;
 
+	/** Hosts connected to within this many seconds get their names resolved ahead of time. */
+	private static final long RECENT_HOST_SECONDS = 7 * 24 * 60 * 60;
+
+	/** Upper bound on hosts resolved ahead of time per list update. */
+	private static final int MAX_PREFETCH_HOSTS = 5;
+
 	protected TerminalManager bound = null;
 
 	private HostStorage hostdb;
@@ -358,10 +369,36 @@ public class HostListActivity extends AppCompatListActivity implements OnHostSta
 		help.setIcon(android.R.drawable.ic_menu_help);
 		help.setIntent(new Intent(HostListActivity.this, HelpActivity.class));
 
+		if (BuildConfig.DEBUG) {
+			MenuItem threadStats = menu.add(R.string.list_menu_thread_stats);
+			threadStats.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+				@Override
+				public boolean onMenuItemClick(MenuItem item) {
+					showThreadStats();
+					return true;
+				}
+			});
+		}
+
 		return true;
 
 	}
 
+	/**
+	 * Shows thread and queue usage of the shared terminal executors.
+	 */
+	private void showThreadStats() {
+		if (bound == null)
+			return;
+
+		new androidx.appcompat.app.AlertDialog.Builder(
+				HostListActivity.this, R.style.AlertDialogTheme)
+			.setTitle(R.string.list_menu_thread_stats)
+			.setMessage(bound.getExecutors().getStats())
+			.setPositiveButton(android.R.string.ok, null)
+			.create().show();
+	}
+
 	/**
 	 * Disconnects all active connections and closes the activity if appropriate.
 	 */
@@ -442,6 +479,37 @@ public class HostListActivity extends AppCompatListActivity implements OnHostSta
 		mAdapter = new HostAdapter(this, hosts, bound);
 		mListView.setAdapter(mAdapter);
 		adjustViewVisibility();
+
+		prefetchRecentHosts();
+	}
+
+	/**
+	 * Resolve the most recently used network hosts in the background so that
+	 * connecting to one of them does not have to wait for DNS.
+	 */
+	private void prefetchRecentHosts() {
+		if (bound == null)
+			return;
+
+		long cutoff = System.currentTimeMillis() / 1000 - RECENT_HOST_SECONDS;
+		List<HostBean> recent = new ArrayList<>();
+		for (HostBean host : hosts) {
+			if (host.getLastConnect() >= cutoff
+					&& host.getHostname() != null
+					&& !Local.getProtocolName().equals(host.getProtocol()))
+				recent.add(host);
+		}
+
+		Collections.sort(recent, new Comparator<HostBean>() {
+			@Override
+			public int compare(HostBean a, HostBean b) {
+				return Long.compare(b.getLastConnect(), a.getLastConnect());
+			}
+		});
+
+		DnsCache dnsCache = DnsCache.getInstance();
+		for (int i = 0; i < Math.min(recent.size(), MAX_PREFETCH_HOSTS); i++)
+			dnsCache.prefetch(recent.get(i).getHostname(), bound.getExecutors());
 	}
 
 	@Override
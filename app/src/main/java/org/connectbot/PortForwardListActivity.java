@@ -18,7 +18,9 @@
 package org.connectbot;
 
 import java.lang.ref.WeakReference;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.connectbot.bean.HostBean;
 import org.connectbot.bean.PortForwardBean;
@@ -38,9 +40,11 @@ import android.graphics.Paint;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
 import androidx.annotation.VisibleForTesting;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import androidx.recyclerview.widget.LinearLayoutManager;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.LayoutInflater;
@@ -66,6 +70,8 @@ public class PortForwardListActivity extends AppCompatListActivity {
 
 	private static final int LISTENER_CYCLE_TIME = 500;
 
+	private static final int STATS_INTERVAL = 1000;
+
 	protected HostDatabase hostdb;
 
 	private ServiceConnection connection = null;
@@ -77,6 +83,19 @@ public class PortForwardListActivity extends AppCompatListActivity {
 
 	private HostBean host;
 
+	/** last byte counts sampled from each forward: sent, received and when */
+	private final Map<PortForwardBean, long[]> lastSample = new HashMap<>();
+	/** bytes per second from the last two samples: sent and received */
+	private final Map<PortForwardBean, long[]> rates = new HashMap<>();
+
+	private final Runnable statsUpdater = new Runnable() {
+		@Override
+		public void run() {
+			sampleRates();
+			updateHandler.postDelayed(this, STATS_INTERVAL);
+		}
+	};
+
 	@Override
 	public void onStart() {
 		super.onStart();
@@ -84,12 +103,18 @@ public class PortForwardListActivity extends AppCompatListActivity {
 		this.bindService(new Intent(this, TerminalManager.class), connection, Context.BIND_AUTO_CREATE);
 
 		hostdb = HostDatabase.get(this);
+
+		updateHandler.postDelayed(statsUpdater, STATS_INTERVAL);
 	}
 
 	@Override
 	public void onStop() {
 		super.onStop();
 
+		updateHandler.removeCallbacks(statsUpdater);
+		lastSample.clear();
+		rates.clear();
+
 		this.unbindService(connection);
 
 		hostdb = null;
@@ -160,7 +185,7 @@ public class PortForwardListActivity extends AppCompatListActivity {
 					@Override
 					public void onItemSelected(AdapterView<?> value, View view,
 							int position, long id) {
-						destEdit.setEnabled(position != 2);
+						destEdit.setEnabled(position < 2);
 					}
 					@Override
 					public void onNothingSelected(AdapterView<?> arg0) {
@@ -188,6 +213,9 @@ public class PortForwardListActivity extends AppCompatListActivity {
 									case 2:
 										type = HostDatabase.PORTFORWARD_DYNAMIC5;
 										break;
+									case 3:
+										type = HostDatabase.PORTFORWARD_DYNAMIC4;
+										break;
 									}
 
 									// Why length(), not isEmpty(), is used: http://stackoverflow.com/q/10606725
@@ -245,6 +273,28 @@ public class PortForwardListActivity extends AppCompatListActivity {
 		adjustViewVisibility();
 	}
 
+	/**
+	 * Work out each active forward's throughput since the last sample and
+	 * redraw the list with it.
+	 */
+	private void sampleRates() {
+		if (hostBridge == null || mAdapter == null)
+			return;
+
+		long now = SystemClock.elapsedRealtime();
+		for (PortForwardBean portForward : hostBridge.getPortForwards()) {
+			long sent = portForward.getBytesSent();
+			long received = portForward.getBytesReceived();
+			long[] last = lastSample.put(portForward, new long[] { sent, received, now });
+			if (last != null && now > last[2]) {
+				rates.put(portForward, new long[] {
+						(sent - last[0]) * 1000 / (now - last[2]),
+						(received - last[1]) * 1000 / (now - last[2]) });
+			}
+		}
+		mAdapter.notifyDataSetChanged();
+	}
+
 	private class PortForwardViewHolder extends ItemViewHolder {
 		public final TextView nickname;
 		public final TextView caption;
@@ -289,6 +339,8 @@ public class PortForwardListActivity extends AppCompatListActivity {
 						typeSpinner.setSelection(0);
 					else if (HostDatabase.PORTFORWARD_REMOTE.equals(portForward.getType()))
 						typeSpinner.setSelection(1);
+					else if (HostDatabase.PORTFORWARD_DYNAMIC4.equals(portForward.getType()))
+						typeSpinner.setSelection(3);
 					else
 						typeSpinner.setSelection(2);
 
@@ -299,7 +351,8 @@ public class PortForwardListActivity extends AppCompatListActivity {
 					sourcePortEdit.setText(String.valueOf(portForward.getSourcePort()));
 
 					final EditText destEdit = editTunnelView.findViewById(R.id.portforward_destination);
-					if (HostDatabase.PORTFORWARD_DYNAMIC5.equals(portForward.getType())) {
+					if (HostDatabase.PORTFORWARD_DYNAMIC5.equals(portForward.getType())
+							|| HostDatabase.PORTFORWARD_DYNAMIC4.equals(portForward.getType())) {
 						destEdit.setEnabled(false);
 					} else {
 						destEdit.setText(String.format("%s:%d", portForward.getDestAddr(), portForward.getDestPort()));
@@ -309,7 +362,7 @@ public class PortForwardListActivity extends AppCompatListActivity {
 						@Override
 						public void onItemSelected(AdapterView<?> value, View view,
 								int position, long id) {
-							destEdit.setEnabled(position != 2);
+							destEdit.setEnabled(position < 2);
 						}
 
 						@Override
@@ -339,6 +392,9 @@ public class PortForwardListActivity extends AppCompatListActivity {
 										case 2:
 											portForward.setType(HostDatabase.PORTFORWARD_DYNAMIC5);
 											break;
+										case 3:
+											portForward.setType(HostDatabase.PORTFORWARD_DYNAMIC4);
+											break;
 										}
 
 										portForward.setSourcePort(Integer.parseInt(sourcePortEdit.getText().toString()));
@@ -427,11 +483,27 @@ public class PortForwardListActivity extends AppCompatListActivity {
 
 			portForwardHolder.portForward = portForward;
 			portForwardHolder.nickname.setText(portForward.getNickname());
-			portForwardHolder.caption.setText(portForward.getDescription());
+
+			long[] rate = rates.get(portForward);
+			if (hostBridge != null && portForward.isEnabled() && rate != null
+					&& !HostDatabase.PORTFORWARD_REMOTE.equals(portForward.getType())) {
+				portForwardHolder.caption.setText(portForward.getDescription() + "\n"
+						+ getString(R.string.portforward_stats,
+								Formatter.formatShortFileSize(PortForwardListActivity.this, rate[0]),
+								Formatter.formatShortFileSize(PortForwardListActivity.this, rate[1]),
+								portForward.getOpenConnections(),
+								portForward.getTotalConnections()));
+			} else {
+				portForwardHolder.caption.setText(portForward.getDescription());
+			}
 
 			if (hostBridge != null && !portForward.isEnabled()) {
 				portForwardHolder.nickname.setPaintFlags(portForwardHolder.nickname.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
 				portForwardHolder.caption.setPaintFlags(portForwardHolder.caption.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+			} else {
+				// Holders are rebound in place while stats refresh, so clear any old strike.
+				portForwardHolder.nickname.setPaintFlags(portForwardHolder.nickname.getPaintFlags() & ~Paint.STRIKE_THRU_TEXT_FLAG);
+				portForwardHolder.caption.setPaintFlags(portForwardHolder.caption.getPaintFlags() & ~Paint.STRIKE_THRU_TEXT_FLAG);
 			}
 		}
 
@@ -25,7 +25,6 @@ import java.util.regex.Pattern;
 import org.connectbot.bean.SelectionArea;
 import org.connectbot.service.FontSizeChangedListener;
 import org.connectbot.service.TerminalBridge;
-import org.connectbot.service.TerminalKeyListener;
 import org.connectbot.util.PreferenceConstants;
 import org.connectbot.util.TerminalTextViewOverlay;
 import org.connectbot.util.TerminalViewPager;
@@ -37,14 +36,10 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
-import android.graphics.Matrix;
+import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Path;
-import android.graphics.RectF;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Build;
 import android.os.AsyncTask;
@@ -99,18 +94,18 @@ public class TerminalView extends FrameLayout implements FontSizeChangedListener
 
 	private final Paint paint;
 	private final Paint cursorPaint;
-	private final Paint cursorStrokePaint;
-	private final Paint cursorInversionPaint;
-	private final Paint cursorMetaInversionPaint;
-
-	// Cursor paints to distinguish modes
-	private final Path ctrlCursor;
-	private final Path altCursor;
-	private final Path shiftCursor;
-	private final RectF tempSrc;
-	private final RectF tempDst;
-	private final Matrix scaleMatrix;
-	private static final Matrix.ScaleToFit scaleType = Matrix.ScaleToFit.FILL;
+	private final CursorRenderer cursorRenderer;
+
+	// Performance overlay, drawn when the metrics HUD preference is on
+	private static final long HUD_REFRESH_MILLIS = 1000;
+	private final Paint hudPaint;
+	private final Paint hudBackgroundPaint;
+	private final Runnable hudRefreshRunnable = new Runnable() {
+		@Override
+		public void run() {
+			invalidate();
+		}
+	};
 
 	private Toast notification = null;
 	private String lastNotification = null;
@@ -125,7 +120,6 @@ public class TerminalView extends FrameLayout implements FontSizeChangedListener
 	private Matcher mCodeMatcher = null;
 	private AccessibilityEventSender mEventSender = null;
 
-	private final char[] singleDeadKey = new char[1];
 
 	private static final String BACKSPACE_CODE = "\\x08\\x1b\\[K";
 	private static final String CONTROL_CODE_PATTERN = "\\x1b\\[K[^m]+[m|:]";
@@ -162,53 +156,16 @@ public class TerminalView extends FrameLayout implements FontSizeChangedListener
 		cursorPaint.setColor(bridge.color[bridge.defaultFg]);
 		cursorPaint.setAntiAlias(true);
 
-		cursorInversionPaint = new Paint();
-		cursorInversionPaint.setColorFilter(new ColorMatrixColorFilter(new ColorMatrix(new float[] {
-				-1, 0, 0, 0, 255,
-				0, -1, 0, 0, 255,
-				0, 0, -1, 0, 255,
-				0, 0, 0, 1, 0
-		})));
-		cursorInversionPaint.setAntiAlias(true);
-
-		cursorMetaInversionPaint = new Paint();
-		cursorMetaInversionPaint.setColorFilter(
-				new ColorMatrixColorFilter(new ColorMatrix(new float[] {
-						-1f, 0, 0, 0, 255,
-						0, -1f, 0, 0, 255,
-						0, 0, -1f, 0, 255,
-						0, 0, 0, 0.5f, 0
-				})));
-		cursorMetaInversionPaint.setAntiAlias(true);
-
-		cursorStrokePaint = new Paint(cursorInversionPaint);
-		cursorStrokePaint.setStrokeWidth(0.1f);
-		cursorStrokePaint.setStyle(Paint.Style.STROKE);
-
-		/*
-		 * Set up our cursor indicators on a 1x1 Path object which we can later
-		 * transform to our character width and height
-		 */
-		// TODO make this into a resource somehow
-		shiftCursor = new Path();
-		shiftCursor.lineTo(0.5f, 0.33f);
-		shiftCursor.lineTo(1.0f, 0.0f);
-
-		altCursor = new Path();
-		altCursor.moveTo(0.0f, 1.0f);
-		altCursor.lineTo(0.5f, 0.66f);
-		altCursor.lineTo(1.0f, 1.0f);
-
-		ctrlCursor = new Path();
-		ctrlCursor.moveTo(0.0f, 0.25f);
-		ctrlCursor.lineTo(1.0f, 0.5f);
-		ctrlCursor.lineTo(0.0f, 0.75f);
-
-		// For creating the transform when the terminal resizes
-		tempSrc = new RectF();
-		tempSrc.set(0.0f, 0.0f, 1.0f, 1.0f);
-		tempDst = new RectF();
-		scaleMatrix = new Matrix();
+		cursorRenderer = new CursorRenderer(bridge.color[bridge.defaultFg]);
+
+		hudPaint = new Paint();
+		hudPaint.setColor(Color.WHITE);
+		hudPaint.setAntiAlias(true);
+		hudPaint.setTypeface(Typeface.MONOSPACE);
+		hudPaint.setTextSize(11 * getResources().getDisplayMetrics().scaledDensity);
+
+		hudBackgroundPaint = new Paint();
+		hudBackgroundPaint.setColor(0xa0000000);
 
 		// connect our view up to the bridge
 		setOnKeyListener(bridge.getKeyHandler());
@@ -322,6 +279,7 @@ public class TerminalView extends FrameLayout implements FontSizeChangedListener
 	@Override
 	protected void onDetachedFromWindow() {
 		super.onDetachedFromWindow();
+		removeCallbacks(hudRefreshRunnable);
 		bridge.parentDestroyed();
 	}
 
@@ -475,98 +433,37 @@ public class TerminalView extends FrameLayout implements FontSizeChangedListener
 			}
 
 	private void scaleCursors() {
-		// Create a scale matrix to scale our 1x1 representation of the cursor
-		tempDst.set(0.0f, 0.0f, bridge.charWidth, bridge.charHeight);
-		scaleMatrix.setRectToRect(tempSrc, tempDst, scaleType);
+		cursorRenderer.setCellSize(bridge.charWidth, bridge.charHeight);
 	}
 
 	@Override
 	public void onDraw(Canvas canvas) {
-		// Some foldable/IME transitions can drop size-change callbacks. Ensure the bridge bitmap is
+		// Some foldable/IME transitions can drop size-change callbacks. Ensure the bridge surface is
 		// present and matches the current view size before drawing.
-		final Bitmap bitmap = bridge.bitmap;
-		if ((bitmap == null
-				|| bitmap.getWidth() != getWidth()
-				|| bitmap.getHeight() != getHeight())
+		if (!bridge.isSurfaceSized(getWidth(), getHeight())
 				&& getWidth() > 0 && getHeight() > 0) {
 			bridge.parentChanged(this);
 		}
 
-		if (bridge.bitmap != null) {
-			// draw the bitmap
+		if (bridge.hasSurface()) {
+			// bring the bitmap or display lists up to date
 			bridge.onDraw();
 
-			// draw the bridge bitmap if it exists
-			canvas.drawBitmap(bridge.bitmap, 0, 0, paint);
-
-			// also draw cursor if visible
-			if (bridge.buffer.isCursorVisible()) {
-				int cursorColumn = bridge.buffer.getCursorColumn();
-				final int cursorRow = bridge.buffer.getCursorRow();
-
-				final int columns = bridge.buffer.getColumns();
-
-				if (cursorColumn == columns)
-					cursorColumn = columns - 1;
-
-				if (cursorColumn < 0 || cursorRow < 0)
-					return;
-
-				long currentAttribute = bridge.buffer.getAttributes(
-						cursorColumn, cursorRow);
-				boolean onWideCharacter = (currentAttribute & VDUBuffer.FULLWIDTH) != 0;
-
-				int x = cursorColumn * bridge.charWidth;
-				int y = (bridge.buffer.getCursorRow()
-						+ bridge.buffer.screenBase - bridge.buffer.windowBase)
-						* bridge.charHeight;
-
-				// Save the current clip and translation
-				canvas.save();
-
-				canvas.translate(x, y);
-				canvas.clipRect(0, 0,
-						bridge.charWidth * (onWideCharacter ? 2 : 1),
-						bridge.charHeight);
-
-				int metaState = bridge.getKeyHandler().getMetaState();
-				if (y + bridge.charHeight < bridge.bitmap.getHeight()) {
-					Bitmap underCursor = Bitmap.createBitmap(bridge.bitmap, x, y,
-							bridge.charWidth * (onWideCharacter ? 2 : 1), bridge.charHeight);
-					if (metaState == 0)
-						canvas.drawBitmap(underCursor, 0, 0, cursorInversionPaint);
-					else
-						canvas.drawBitmap(underCursor, 0, 0, cursorMetaInversionPaint);
-				} else {
-					canvas.drawPaint(cursorPaint);
-				}
-				final int deadKey = bridge.getKeyHandler().getDeadKey();
-				if (deadKey != 0) {
-					singleDeadKey[0] = (char) deadKey;
-					canvas.drawText(singleDeadKey, 0, 1, 0, 0, cursorStrokePaint);
-				}
-
-				// Make sure we scale our decorations to the correct size.
-				canvas.concat(scaleMatrix);
+			// While a resize settles, stretch the last frame over the view instead of laying
+			// the terminal out again for every size the view passes through.
+			final int surfaceWidth = bridge.getSurfaceWidth();
+			final int surfaceHeight = bridge.getSurfaceHeight();
+			canvas.save();
+			if (surfaceWidth != getWidth() || surfaceHeight != getHeight())
+				canvas.scale((float) getWidth() / surfaceWidth, (float) getHeight() / surfaceHeight);
 
-				if ((metaState & TerminalKeyListener.OUR_SHIFT_ON) != 0)
-					canvas.drawPath(shiftCursor, cursorStrokePaint);
-				else if ((metaState & TerminalKeyListener.OUR_SHIFT_LOCK) != 0)
-					canvas.drawPath(shiftCursor, cursorInversionPaint);
+			// draw the bridge bitmap or display lists
+			bridge.drawSurface(canvas, paint);
+			bridge.onFrameDrawn();
 
-				if ((metaState & TerminalKeyListener.OUR_ALT_ON) != 0)
-					canvas.drawPath(altCursor, cursorStrokePaint);
-				else if ((metaState & TerminalKeyListener.OUR_ALT_LOCK) != 0)
-					canvas.drawPath(altCursor, cursorInversionPaint);
-
-				if ((metaState & TerminalKeyListener.OUR_CTRL_ON) != 0)
-					canvas.drawPath(ctrlCursor, cursorStrokePaint);
-				else if ((metaState & TerminalKeyListener.OUR_CTRL_LOCK) != 0)
-					canvas.drawPath(ctrlCursor, cursorInversionPaint);
-
-				// Restore previous clip region
-				canvas.restore();
-			}
+			// also draw cursor if visible
+			if (bridge.buffer.isCursorVisible())
+				drawCursor(canvas);
 
 			// draw any highlighted area
 			if (terminalTextViewOverlay == null && bridge.isSelectingForCopy()) {
@@ -581,7 +478,65 @@ public class TerminalView extends FrameLayout implements FontSizeChangedListener
 				canvas.drawPaint(cursorPaint);
 				canvas.restore();
 			}
+			canvas.restore();
+
+			if (bridge.isMetricsHudShown())
+				drawHud(canvas);
+		}
+	}
+
+	/**
+	 * Draw the cursor and any modifier keys in effect over the cell it is on.
+	 */
+	private void drawCursor(Canvas canvas) {
+		int cursorColumn = bridge.getDisplayedCursorColumn();
+		final int cursorRow = bridge.buffer.getCursorRow();
+
+		final int columns = bridge.buffer.getColumns();
+
+		if (cursorColumn == columns)
+			cursorColumn = columns - 1;
+
+		if (cursorColumn < 0 || cursorRow < 0)
+			return;
+
+		long currentAttribute = bridge.buffer.getAttributes(
+				cursorColumn, cursorRow);
+		boolean onWideCharacter = (currentAttribute & VDUBuffer.FULLWIDTH) != 0;
+
+		int x = cursorColumn * bridge.charWidth;
+		int y = (bridge.buffer.getCursorRow()
+				+ bridge.buffer.screenBase - bridge.buffer.windowBase)
+				* bridge.charHeight;
+
+		int width = bridge.charWidth * (onWideCharacter ? 2 : 1);
+		int metaState = bridge.getKeyHandler().getMetaState();
+		int deadKey = bridge.getKeyHandler().getDeadKey();
+		if (bridge.bitmap != null)
+			cursorRenderer.draw(canvas, bridge.bitmap, x, y, width, bridge.charHeight,
+					metaState, deadKey);
+		else
+			cursorRenderer.drawBlended(canvas, bridge.getSurfaceHeight(), x, y, width,
+					bridge.charHeight, metaState, deadKey);
+	}
+
+	/**
+	 * Draw this session's performance counters in the top right corner. The
+	 * text only changes once a second, so ask for a frame a second after the
+	 * last one; frames drawn before then push that request back rather than
+	 * adding more.
+	 */
+	private void drawHud(Canvas canvas) {
+		String text = bridge.getMetrics().getHudText(System.nanoTime());
+		if (text.length() > 0) {
+			float width = hudPaint.measureText(text);
+			float height = hudPaint.getTextSize() * 1.3f;
+			float left = getWidth() - width - height / 2;
+			canvas.drawRect(left, 0, getWidth(), height, hudBackgroundPaint);
+			canvas.drawText(text, left + height / 4, hudPaint.getTextSize(), hudPaint);
 		}
+		removeCallbacks(hudRefreshRunnable);
+		postDelayed(hudRefreshRunnable, HUD_REFRESH_MILLIS);
 	}
 
 	public void notifyUser(String message) {
@@ -608,6 +563,7 @@ public class TerminalView extends FrameLayout implements FontSizeChangedListener
 	 */
 	public void onColorsChanged() {
 		cursorPaint.setColor(bridge.color[bridge.defaultFg]);
+		cursorRenderer.setColor(bridge.color[bridge.defaultFg]);
 		postInvalidate();
 	}
 
@@ -18,6 +18,7 @@
 package org.connectbot.bean;
 
 import org.connectbot.transport.Local;
+import org.connectbot.transport.Mosh;
 import org.connectbot.transport.SSH;
 import org.connectbot.transport.Telnet;
 import org.connectbot.transport.TransportFactory;
@@ -57,6 +58,12 @@ public class HostBean extends AbstractBean {
 	private String encoding = HostDatabase.ENCODING_DEFAULT;
 	private boolean stayConnected = false;
 	private boolean quickDisconnect = false;
+	private String authMethods = null;
+	private long lastPubkeyId = -1;
+	private int keepAlive = 0;
+	private String cipher = null;
+	private boolean autoCompression = false;
+	private long jumpHostId = HostDatabase.JUMPHOSTID_NONE;
 
 	public HostBean() {
 
@@ -205,6 +212,78 @@ public class HostBean extends AbstractBean {
 		return quickDisconnect;
 	}
 
+	/**
+	 * @param authMethods comma-separated SSH authentication methods this host
+	 *        accepted, most recent first
+	 */
+	public void setAuthMethods(String authMethods) {
+		this.authMethods = authMethods;
+	}
+
+	public String getAuthMethods() {
+		return authMethods;
+	}
+
+	/**
+	 * @param lastPubkeyId ID of the key this host last accepted when any key
+	 *        may be used, or -1 if none has been
+	 */
+	public void setLastPubkeyId(long lastPubkeyId) {
+		this.lastPubkeyId = lastPubkeyId;
+	}
+
+	public long getLastPubkeyId() {
+		return lastPubkeyId;
+	}
+
+	/**
+	 * @param keepAlive seconds between keep-alive probes, or 0 for none
+	 */
+	public void setKeepAlive(int keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public int getKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * @param cipher SSH cipher to offer before the order measured on this device,
+	 *        or null to choose automatically
+	 */
+	public void setCipher(String cipher) {
+		this.cipher = cipher;
+	}
+
+	public String getCipher() {
+		return cipher;
+	}
+
+	/**
+	 * @param autoCompression whether to decide on compression from the
+	 *        measured link speed instead of {@link #getCompression()}
+	 */
+	public void setAutoCompression(boolean autoCompression) {
+		this.autoCompression = autoCompression;
+	}
+
+	public boolean getAutoCompression() {
+		return autoCompression;
+	}
+
+	/**
+	 * @param jumpHostId ID of the SSH host to tunnel this connection
+	 *        through, or {@link HostDatabase#JUMPHOSTID_NONE} to connect
+	 *        directly
+	 */
+	public void setJumpHostId(long jumpHostId) {
+		this.jumpHostId = jumpHostId;
+	}
+
+	public long getJumpHostId() {
+		return jumpHostId;
+	}
+
 	@SuppressLint("DefaultLocale")
 	public String getDescription() {
 		String description = String.format("%s@%s", username, hostname);
@@ -238,6 +317,12 @@ public class HostBean extends AbstractBean {
 		values.put(HostDatabase.FIELD_HOST_ENCODING, encoding);
 		values.put(HostDatabase.FIELD_HOST_STAYCONNECTED, Boolean.toString(stayConnected));
 		values.put(HostDatabase.FIELD_HOST_QUICKDISCONNECT, Boolean.toString(quickDisconnect));
+		values.put(HostDatabase.FIELD_HOST_AUTHMETHODS, authMethods);
+		values.put(HostDatabase.FIELD_HOST_LASTPUBKEYID, lastPubkeyId);
+		values.put(HostDatabase.FIELD_HOST_KEEPALIVE, keepAlive);
+		values.put(HostDatabase.FIELD_HOST_CIPHER, cipher);
+		values.put(HostDatabase.FIELD_HOST_AUTOCOMPRESSION, Boolean.toString(autoCompression));
+		values.put(HostDatabase.FIELD_HOST_JUMPHOSTID, jumpHostId);
 
 		return values;
 	}
@@ -263,6 +348,18 @@ public class HostBean extends AbstractBean {
 		host.setEncoding(values.getAsString(HostDatabase.FIELD_HOST_ENCODING));
 		host.setStayConnected(values.getAsBoolean(HostDatabase.FIELD_HOST_STAYCONNECTED));
 		host.setQuickDisconnect(values.getAsBoolean(HostDatabase.FIELD_HOST_QUICKDISCONNECT));
+		host.setAuthMethods(values.getAsString(HostDatabase.FIELD_HOST_AUTHMETHODS));
+		Long lastPubkeyId = values.getAsLong(HostDatabase.FIELD_HOST_LASTPUBKEYID);
+		if (lastPubkeyId != null)
+			host.setLastPubkeyId(lastPubkeyId);
+		Integer keepAlive = values.getAsInteger(HostDatabase.FIELD_HOST_KEEPALIVE);
+		if (keepAlive != null)
+			host.setKeepAlive(keepAlive);
+		host.setCipher(values.getAsString(HostDatabase.FIELD_HOST_CIPHER));
+		host.setAutoCompression(Boolean.valueOf(values.getAsString(HostDatabase.FIELD_HOST_AUTOCOMPRESSION)));
+		Long jumpHostId = values.getAsLong(HostDatabase.FIELD_HOST_JUMPHOSTID);
+		if (jumpHostId != null)
+			host.setJumpHostId(jumpHostId);
 		return host;
 	}
 
@@ -349,7 +446,7 @@ public class HostBean extends AbstractBean {
 
 		int defaultPort = TransportFactory.getTransport(protocol).getDefaultPort();
 
-		if (SSH.getProtocolName().equals(protocol)) {
+		if (SSH.getProtocolName().equals(protocol) || Mosh.getProtocolName().equals(protocol)) {
 			if (username == null || hostname == null ||
 					username.equals("") || hostname.equals(""))
 				return "";
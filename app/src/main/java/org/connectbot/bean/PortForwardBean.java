@@ -17,6 +17,9 @@
 
 package org.connectbot.bean;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.connectbot.util.HostDatabase;
 
 import android.annotation.SuppressLint;
@@ -43,6 +46,12 @@ public class PortForwardBean extends AbstractBean {
 	private boolean enabled = false;
 	private Object identifier = null;
 
+	/* Transient statistics, updated by the forwarding engine */
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicLong totalConnections = new AtomicLong();
+
 	/**
 	 * @param id database ID of port forward
 	 * @param nickname Nickname to use to identify port forward
@@ -203,6 +212,59 @@ public class PortForwardBean extends AbstractBean {
 		return identifier;
 	}
 
+	/**
+	 * @param bytes number of bytes just forwarded from the local client
+	 *        towards the destination
+	 */
+	public void addBytesSent(long bytes) {
+		bytesSent.addAndGet(bytes);
+	}
+
+	/**
+	 * @return bytes forwarded towards the destination since creation
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * @param bytes number of bytes just forwarded from the destination back
+	 *        to the local client
+	 */
+	public void addBytesReceived(long bytes) {
+		bytesReceived.addAndGet(bytes);
+	}
+
+	/**
+	 * @return bytes forwarded back to local clients since creation
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public void onConnectionOpened() {
+		openConnections.incrementAndGet();
+		totalConnections.incrementAndGet();
+	}
+
+	public void onConnectionClosed() {
+		openConnections.decrementAndGet();
+	}
+
+	/**
+	 * @return number of client connections currently forwarded
+	 */
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	/**
+	 * @return number of client connections accepted since creation
+	 */
+	public long getTotalConnections() {
+		return totalConnections.get();
+	}
+
 	/**
 	 * @return human readable description of the port forward
 	 */
@@ -216,6 +278,8 @@ public class PortForwardBean extends AbstractBean {
 			description = String.format("Remote port %d to %s:%d", sourcePort, destAddr, destPort);
 		} else if (HostDatabase.PORTFORWARD_DYNAMIC5.equals(type)) {
 			description = String.format("Dynamic port %d (SOCKS)", sourcePort);
+		} else if (HostDatabase.PORTFORWARD_DYNAMIC4.equals(type)) {
+			description = String.format("Dynamic port %d (SOCKS4)", sourcePort);
 		}
 
 		return description;
@@ -65,6 +65,30 @@ public interface HostStorage {
 	 */
 	void touchHost(HostBean host);
 
+	/**
+	 * Saves the authentication methods {@code host} accepted, as returned by
+	 * {@link HostBean#getAuthMethods()}.
+	 */
+	void saveAuthMethods(HostBean host);
+
+	/**
+	 * Saves the public key {@code host} last accepted, as returned by
+	 * {@link HostBean#getLastPubkeyId()}.
+	 */
+	void saveLastPubkeyId(HostBean host);
+
+	/**
+	 * Folds how long each phase of connecting to {@code host} took, in
+	 * milliseconds, into the rolling averages kept for it.
+	 */
+	void saveConnectTimes(HostBean host, Map<String, Long> phaseMillis);
+
+	/**
+	 * Returns the rolling average of each phase of connecting to
+	 * {@code host} in milliseconds, or an empty map if it has none.
+	 */
+	Map<String, Long> getConnectTimes(HostBean host);
+
 	/**
 	 * Finds a {@link HostBean} based on the given {@code hostId}.
 	 */
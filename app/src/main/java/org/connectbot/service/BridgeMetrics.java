@@ -0,0 +1,208 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timers for one {@link TerminalBridge}, cheap enough to
+ * update on every read and every frame: updating one is a few atomic
+ * operations and never allocates. Reading them back for the HUD or a dump
+ * is where the formatting happens.
+ */
+public class BridgeMetrics {
+	private static final long HUD_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** A running total. */
+	public static final class Counter {
+		private final AtomicLong value = new AtomicLong();
+
+		public void add(long n) {
+			value.addAndGet(n);
+		}
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+		void reset() {
+			value.set(0);
+		}
+	}
+
+	/** How many times something happened and how long it took in total and at worst. */
+	public static final class Timer {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		public void record(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max;
+			do {
+				max = maxNanos.get();
+			} while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+		}
+
+		/** Records the time since {@code startNanos} from {@link System#nanoTime()}. */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		void reset() {
+			count.set(0);
+			totalNanos.set(0);
+			maxNanos.set(0);
+		}
+	}
+
+	/** Bytes received from the transport, before decoding. */
+	public final Counter bytesRead = new Counter();
+	/** Bytes written to the transport. */
+	public final Counter bytesWritten = new Counter();
+	/** Calls to {@link TerminalBridge#redraw()}. */
+	public final Counter redrawRequests = new Counter();
+	/** Frames put on screen by the view. */
+	public final Counter framesRendered = new Counter();
+	/** Terminal rows painted into the bitmap. */
+	public final Counter rowsRedrawn = new Counter();
+
+	/** Turning received bytes into characters. */
+	public final Timer decode = new Timer();
+	/** Running characters through the emulator. */
+	public final Timer parse = new Timer();
+	/** Painting dirty rows into the bitmap. */
+	public final Timer draw = new Timer();
+	/** Waiting to lock the terminal buffer. */
+	public final Timer lockWait = new Timer();
+
+	private long startedAt = System.nanoTime();
+
+	// What the HUD showed last, so it can show rates without allocating on every frame.
+	private long hudAt;
+	private long hudFrames;
+	private long hudBytesRead;
+	private long hudDrawCount;
+	private long hudDrawNanos;
+	private long hudLockNanos;
+	private String hudText = "";
+
+	/**
+	 * @return a short line of rates over the last second or so for drawing
+	 *         over the terminal; only rebuilt once a second
+	 */
+	public synchronized String getHudText(long nowNanos) {
+		long elapsed = nowNanos - hudAt;
+		if (elapsed < HUD_INTERVAL_NANOS)
+			return hudText;
+
+		long frames = framesRendered.get();
+		long read = bytesRead.get();
+		long drawCount = draw.getCount();
+		long drawNanos = draw.getTotalNanos();
+		long lockNanos = lockWait.getTotalNanos();
+
+		if (hudAt != 0) {
+			double seconds = elapsed / 1e9;
+			long draws = drawCount - hudDrawCount;
+			hudText = String.format(Locale.US, "%.0f fps  %.1f KiB/s  draw %.2f ms  lock %.2f ms/s",
+					(frames - hudFrames) / seconds,
+					(read - hudBytesRead) / 1024.0 / seconds,
+					draws > 0 ? (drawNanos - hudDrawNanos) / 1e6 / draws : 0.0,
+					(lockNanos - hudLockNanos) / 1e6 / seconds);
+		}
+
+		hudAt = nowNanos;
+		hudFrames = frames;
+		hudBytesRead = read;
+		hudDrawCount = drawCount;
+		hudDrawNanos = drawNanos;
+		hudLockNanos = lockNanos;
+		return hudText;
+	}
+
+	/**
+	 * @param transport name of the transport the bytes went through
+	 * @return every counter and timer since the session started, as plain
+	 *         text for bug reports
+	 */
+	public String dump(String transport) {
+		double seconds = (System.nanoTime() - startedAt) / 1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "Uptime %.1f s, transport %s%n", seconds, transport));
+		appendCounter(sb, "bytes read", bytesRead, seconds);
+		appendCounter(sb, "bytes written", bytesWritten, seconds);
+		appendCounter(sb, "redraw requests", redrawRequests, seconds);
+		appendCounter(sb, "frames rendered", framesRendered, seconds);
+		appendCounter(sb, "rows redrawn", rowsRedrawn, seconds);
+		appendTimer(sb, "decode", decode);
+		appendTimer(sb, "parse", parse);
+		appendTimer(sb, "draw", draw);
+		appendTimer(sb, "buffer lock wait", lockWait);
+		return sb.toString();
+	}
+
+	public synchronized void reset() {
+		bytesRead.reset();
+		bytesWritten.reset();
+		redrawRequests.reset();
+		framesRendered.reset();
+		rowsRedrawn.reset();
+		decode.reset();
+		parse.reset();
+		draw.reset();
+		lockWait.reset();
+		startedAt = System.nanoTime();
+		hudAt = 0;
+		hudText = "";
+	}
+
+	private static void appendCounter(StringBuilder sb, String name, Counter counter, double seconds) {
+		long value = counter.get();
+		sb.append(String.format(Locale.US, "%-16s %12d (%.1f/s)%n", name, value,
+				seconds > 0 ? value / seconds : 0.0));
+	}
+
+	private static void appendTimer(StringBuilder sb, String name, Timer timer) {
+		long count = timer.getCount();
+		sb.append(String.format(Locale.US, "%-16s %12d calls, mean %.3f ms, max %.3f ms, total %.1f ms%n",
+				name, count,
+				count > 0 ? timer.getTotalNanos() / 1e6 / count : 0.0,
+				timer.getMaxNanos() / 1e6,
+				timer.getTotalNanos() / 1e6));
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.util.Arrays;
+
+import de.mud.terminal.VDUBuffer;
+
+/**
+ * How recently drawn character attributes look on screen: the colors after
+ * palette lookup, bold brightening, truecolor and inversion, and whether to
+ * underline. Full-screen programs use only a handful of styles, so nearly
+ * every run of text finds its style here instead of decoding it again.
+ * <p>
+ * Direct-mapped: each style has one slot and replaces whatever was there.
+ * Must be cleared whenever the palette or default colors change. Not
+ * thread-safe; {@link TerminalBridge} uses it under the buffer lock.
+ */
+class CellStyleCache {
+	/** Attribute bits that change how a cell is painted. */
+	static final long STYLE_MASK = VDUBuffer.COLOR_FG | VDUBuffer.COLOR_BG
+			| VDUBuffer.BOLD | VDUBuffer.UNDERLINE | VDUBuffer.INVERT;
+
+	private static final int SLOT_BITS = 6;
+	static final int SLOTS = 1 << SLOT_BITS;
+
+	/** Never a masked attribute, so marks a slot as empty. */
+	private static final long EMPTY = -1L;
+
+	private final long[] styles = new long[SLOTS];
+	private final int[] foregrounds = new int[SLOTS];
+	private final int[] backgrounds = new int[SLOTS];
+	private final boolean[] underlines = new boolean[SLOTS];
+
+	private long misses = 0;
+
+	CellStyleCache() {
+		clear();
+	}
+
+	/**
+	 * Find the slot holding how {@code attr} looks, working it out if it is
+	 * not already there.
+	 *
+	 * @param palette the 256-color palette
+	 * @param defaultFg palette index for text without a foreground color
+	 * @param defaultBg palette index for text without a background color
+	 * @return the slot to read colors from, good until the next call
+	 */
+	int resolve(long attr, int[] palette, int defaultFg, int defaultBg) {
+		long style = attr & STYLE_MASK;
+		int slot = slotOf(style);
+		if (styles[slot] == style)
+			return slot;
+
+		misses++;
+
+		int fgcolor = defaultFg;
+		int bgcolor = defaultBg;
+
+		// check if foreground color attribute is set
+		if ((style & VDUBuffer.COLOR_FG) != 0)
+			fgcolor = (int) ((style & VDUBuffer.COLOR_FG) >> VDUBuffer.COLOR_FG_SHIFT) - 1;
+
+		int fg;
+		if (fgcolor < 8 && (style & VDUBuffer.BOLD) != 0)
+			fg = palette[fgcolor + 8];
+		else if (fgcolor < 256)
+			fg = palette[fgcolor];
+		else
+			fg = 0xff000000 | (fgcolor - 256);
+
+		// check if background color attribute is set
+		if ((style & VDUBuffer.COLOR_BG) != 0)
+			bgcolor = (int) ((style & VDUBuffer.COLOR_BG) >> VDUBuffer.COLOR_BG_SHIFT) - 1;
+
+		int bg;
+		if (bgcolor < 256)
+			bg = palette[bgcolor];
+		else
+			bg = 0xff000000 | (bgcolor - 256);
+
+		// support character inversion by swapping background and foreground color
+		if ((style & VDUBuffer.INVERT) != 0) {
+			int swapc = bg;
+			bg = fg;
+			fg = swapc;
+		}
+
+		styles[slot] = style;
+		foregrounds[slot] = fg;
+		backgrounds[slot] = bg;
+		underlines[slot] = (style & VDUBuffer.UNDERLINE) != 0;
+		return slot;
+	}
+
+	int getForeground(int slot) {
+		return foregrounds[slot];
+	}
+
+	int getBackground(int slot) {
+		return backgrounds[slot];
+	}
+
+	boolean isUnderlined(int slot) {
+		return underlines[slot];
+	}
+
+	/**
+	 * Forget every style, for when the colors they were worked out from
+	 * change.
+	 */
+	void clear() {
+		Arrays.fill(styles, EMPTY);
+	}
+
+	/**
+	 * @return how many times {@link #resolve} had to work a style out
+	 */
+	long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Spread the color bits, which sit in the middle of the attribute, over
+	 * all slots.
+	 */
+	static int slotOf(long style) {
+		return (int) ((style * 0x9E3779B97F4A7C15L) >>> (64 - SLOT_BITS));
+	}
+}
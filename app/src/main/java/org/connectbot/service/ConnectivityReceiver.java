@@ -95,6 +95,9 @@ public class ConnectivityReceiver extends BroadcastReceiver {
 			if (mIsConnected) {
 				mTerminalManager.onConnectivityRestored();
 			}
+		} else if (!noConnectivity) {
+			// Still connected, but possibly over another network.
+			mTerminalManager.onNetworkChanged();
 		}
 	}
 
@@ -0,0 +1,465 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.connectbot.util.PreferenceConstants;
+
+import de.mud.terminal.vt320;
+
+/**
+ * Guesses how the host will echo keystrokes so that typing over a slow link
+ * shows up at once, in the manner of mosh. Guesses are drawn over the screen
+ * rather than written into the buffer, and are checked against the host's
+ * output as it arrives: those it confirms are dropped, and one it
+ * contradicts throws them all away.
+ * <p>
+ * Keystrokes are grouped into epochs; anything we cannot predict, such as
+ * Enter or a control key, starts a new one. The guesses of an epoch stay
+ * hidden until the host has confirmed one of them, so nothing shows at a
+ * prompt that does not echo.
+ * <p>
+ * Callers must hold the buffer's lock.
+ */
+class EchoPredictor {
+	/** Predictions show once the smoothed echo delay rises above this... */
+	private static final long SHOW_ABOVE_MS = 30;
+	/** ...and hide again once it falls below this. */
+	private static final long HIDE_BELOW_MS = 20;
+
+	/** Shortest time we wait for the host to echo before giving up on a guess. */
+	private static final long MIN_ECHO_TIMEOUT_MS = 1000;
+
+	private static final char ESC = 0x1b;
+
+	private static final Pattern PASSWORD_PROMPT = Pattern.compile(
+			"(?i)(password|passphrase|passcode|\\bpin\\b)[^:]*:\\s*$");
+
+	/**
+	 * What we expect a keystroke to do to the screen: put {@link #ch} in
+	 * {@link #column} of {@link #line}, or for a cursor movement only move
+	 * the cursor.
+	 */
+	static final class Prediction {
+		/** The line itself rather than its row, so scrolling cannot fool us. */
+		final char[] line;
+		final int column;
+		final char ch;
+		final char original;
+		final boolean cursorOnly;
+		final int cursorAfter;
+		final long epoch;
+		final long sentAt;
+
+		Prediction(char[] line, int column, char ch, char original, boolean cursorOnly,
+				int cursorAfter, long epoch, long sentAt) {
+			this.line = line;
+			this.column = column;
+			this.ch = ch;
+			this.original = original;
+			this.cursorOnly = cursorOnly;
+			this.cursorAfter = cursorAfter;
+			this.epoch = epoch;
+			this.sentAt = sentAt;
+		}
+	}
+
+	private final vt320 buffer;
+
+	private String mode = PreferenceConstants.ECHO_PREDICTION_ADAPTIVE;
+
+	private final List<Prediction> predictions = new ArrayList<>();
+
+	/** Where the cursor will be once the host has caught up with our guesses. */
+	private char[] cursorLine;
+	private int cursorColumn;
+
+	private long epoch = 0;
+	private long confirmedEpoch = -1;
+
+	/**
+	 * Set after a keystroke we could not predict; we then wait for the host
+	 * to catch up before guessing again.
+	 */
+	private boolean lost = false;
+
+	private boolean showing = false;
+	private long srtt = -1;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	EchoPredictor(vt320 buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @param mode one of the {@code PreferenceConstants.ECHO_PREDICTION_*} values
+	 */
+	void setMode(String mode) {
+		this.mode = mode;
+		if (PreferenceConstants.ECHO_PREDICTION_NEVER.equals(mode))
+			discardAll();
+		updateShowing();
+	}
+
+	/**
+	 * Forget every guess, for instance when a new session starts.
+	 */
+	void reset() {
+		discardAll();
+		lost = false;
+	}
+
+	/**
+	 * Guess at the effect of keystrokes about to be sent to the host.
+	 *
+	 * @return whether anything shown on screen changed
+	 */
+	boolean onInput(byte[] data, int offset, int length, long now) {
+		if (PreferenceConstants.ECHO_PREDICTION_NEVER.equals(mode) || length == 0)
+			return false;
+
+		boolean changed = expire(now);
+
+		if (buffer.isApplicationMode()) {
+			return discardAll() | changed;
+		}
+
+		// Cursor keys arrive as a whole sequence.
+		if (length == 3 && data[offset] == ESC
+				&& (data[offset + 1] == '[' || data[offset + 1] == 'O')) {
+			if (data[offset + 2] == 'C')
+				return predictCursor(1, now) | changed;
+			if (data[offset + 2] == 'D')
+				return predictCursor(-1, now) | changed;
+		}
+
+		for (int i = offset; i < offset + length; i++) {
+			int b = data[i] & 0xff;
+			if (b >= 0x20 && b < 0x7f) {
+				changed |= predictChar((char) b, now);
+			} else if (b == 0x7f || b == 0x08) {
+				changed |= predictBackspace(now);
+			} else {
+				// Enter, control keys, escape sequences and anything
+				// beyond ASCII are up to the host.
+				newEpoch();
+				break;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Check our guesses against the screen after the host's output has been
+	 * put on it. The caller redraws afterwards.
+	 */
+	void onHostOutput(long now) {
+		int cursorRow = buffer.getCursorRow();
+		char[] actualCursorLine = buffer.charArray[buffer.screenBase + cursorRow];
+		int actualCursorColumn = buffer.getCursorColumn();
+
+		// The newest guess the host has confirmed vouches for all before it.
+		int confirmed = -1;
+		for (int i = predictions.size() - 1; i >= 0; i--) {
+			Prediction p = predictions.get(i);
+			if (p.cursorOnly || p.ch == p.original) {
+				// Nothing on screen tells these apart from no echo yet.
+				if (p.line == actualCursorLine && actualCursorColumn == p.cursorAfter) {
+					confirmed = i;
+					break;
+				}
+			} else if (p.line[p.column] == p.ch) {
+				confirmed = i;
+				break;
+			}
+		}
+
+		for (int i = 0; i <= confirmed; i++) {
+			Prediction p = predictions.get(i);
+			markDirty(p);
+			hits++;
+			if (p.epoch > confirmedEpoch)
+				confirmedEpoch = p.epoch;
+			addEchoSample(now - p.sentAt);
+		}
+		if (confirmed >= 0)
+			predictions.subList(0, confirmed + 1).clear();
+
+		for (int i = 0; i < predictions.size(); i++) {
+			Prediction p = predictions.get(i);
+			if (findRow(p.line) < 0) {
+				// Scrolled away or the screen was resized; nothing to check against.
+				discardAll();
+				break;
+			}
+			if (!p.cursorOnly && p.line[p.column] != p.ch && p.line[p.column] != p.original) {
+				misses++;
+				discardAll();
+				newEpoch();
+				break;
+			}
+		}
+
+		expire(now);
+
+		if (predictions.isEmpty())
+			lost = false;
+	}
+
+	/**
+	 * @return whether guesses are being drawn at all right now
+	 */
+	boolean isShowing() {
+		return showing && !predictions.isEmpty();
+	}
+
+	/**
+	 * @return whether {@code p} should be drawn
+	 */
+	boolean isShown(Prediction p) {
+		return showing && !p.cursorOnly && p.epoch <= confirmedEpoch;
+	}
+
+	List<Prediction> getPredictions() {
+		return predictions;
+	}
+
+	/**
+	 * @return the row of the screen holding {@code line}, or -1 if it is no
+	 *         longer on screen
+	 */
+	int findRow(char[] line) {
+		for (int row = 0; row < buffer.height; row++) {
+			if (buffer.charArray[buffer.screenBase + row] == line)
+				return row;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the column to draw the cursor in, or -1 to draw it where the
+	 *         host put it
+	 */
+	int getCursorColumn() {
+		if (!showing || predictions.isEmpty())
+			return -1;
+		if (predictions.get(predictions.size() - 1).epoch > confirmedEpoch)
+			return -1;
+		if (cursorLine != buffer.charArray[buffer.screenBase + buffer.getCursorRow()])
+			return -1;
+		return Math.min(cursorColumn, buffer.width - 1);
+	}
+
+	long getHits() {
+		return hits;
+	}
+
+	long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return smoothed delay between a keystroke and its echo in
+	 *         milliseconds, or -1 if not measured yet
+	 */
+	long getEchoMillis() {
+		return srtt;
+	}
+
+	private boolean predictChar(char c, long now) {
+		if (!startPrediction())
+			return false;
+
+		// Leave wrapping, and inserting before existing text, to the host.
+		if (cursorColumn >= buffer.width - 1 || !isBlankFrom(cursorLine, cursorColumn + 1)) {
+			newEpoch();
+			return false;
+		}
+
+		Prediction p = new Prediction(cursorLine, cursorColumn, c,
+				expectedAt(cursorLine, cursorColumn), false, cursorColumn + 1, epoch, now);
+		predictions.add(p);
+		cursorColumn++;
+		return isShown(p);
+	}
+
+	private boolean predictBackspace(long now) {
+		if (!startPrediction())
+			return false;
+
+		if (cursorColumn == 0 || !isBlankFrom(cursorLine, cursorColumn)) {
+			newEpoch();
+			return false;
+		}
+
+		Prediction p = new Prediction(cursorLine, cursorColumn - 1, ' ',
+				expectedAt(cursorLine, cursorColumn - 1), false, cursorColumn - 1, epoch, now);
+		predictions.add(p);
+		cursorColumn--;
+		return isShown(p);
+	}
+
+	private boolean predictCursor(int delta, long now) {
+		if (!startPrediction())
+			return false;
+
+		int target = cursorColumn + delta;
+		if (target < 0 || target >= buffer.width) {
+			newEpoch();
+			return false;
+		}
+
+		predictions.add(new Prediction(cursorLine, cursorColumn, ' ', ' ', true, target,
+				epoch, now));
+		cursorColumn = target;
+		return showing && epoch <= confirmedEpoch;
+	}
+
+	/**
+	 * Work out where the next guess goes.
+	 *
+	 * @return false if we should not guess now
+	 */
+	private boolean startPrediction() {
+		if (lost)
+			return false;
+
+		if (!predictions.isEmpty()) {
+			if (findRow(cursorLine) >= 0)
+				return true;
+			discardAll();
+		}
+
+		int row = buffer.getCursorRow();
+		cursorLine = buffer.charArray[buffer.screenBase + row];
+		cursorColumn = buffer.getCursorColumn();
+		if (cursorColumn >= buffer.width)
+			return false;
+
+		if (PASSWORD_PROMPT.matcher(new String(cursorLine, 0, cursorColumn)).find()) {
+			lost = true;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Give up on guesses the host should have echoed by now. At a prompt
+	 * that does not echo they never will be.
+	 */
+	private boolean expire(long now) {
+		if (predictions.isEmpty())
+			return false;
+
+		long timeout = Math.max(MIN_ECHO_TIMEOUT_MS, srtt * 4);
+		if (now - predictions.get(0).sentAt <= timeout)
+			return false;
+
+		misses++;
+		boolean changed = discardAll();
+		newEpoch();
+		return changed;
+	}
+
+	private void newEpoch() {
+		epoch++;
+		lost = true;
+	}
+
+	private boolean discardAll() {
+		boolean changed = false;
+		for (int i = 0; i < predictions.size(); i++)
+			changed |= markDirty(predictions.get(i));
+		predictions.clear();
+		return changed;
+	}
+
+	/**
+	 * Have the row under a guess repainted once the guess is gone.
+	 *
+	 * @return whether the guess was on screen
+	 */
+	private boolean markDirty(Prediction p) {
+		if (!isShown(p))
+			return false;
+
+		int row = findRow(p.line);
+		if (row < 0)
+			return false;
+
+		int windowRow = buffer.screenBase + row - buffer.windowBase;
+		if (windowRow >= 0 && windowRow < buffer.height)
+			buffer.update[windowRow + 1] = true;
+		return true;
+	}
+
+	private void addEchoSample(long millis) {
+		if (srtt < 0)
+			srtt = millis;
+		else
+			srtt = (7 * srtt + millis) / 8;
+		updateShowing();
+	}
+
+	private void updateShowing() {
+		boolean show;
+		if (PreferenceConstants.ECHO_PREDICTION_ALWAYS.equals(mode))
+			show = true;
+		else if (PreferenceConstants.ECHO_PREDICTION_NEVER.equals(mode))
+			show = false;
+		else if (showing)
+			show = srtt >= HIDE_BELOW_MS;
+		else
+			show = srtt > SHOW_ABOVE_MS;
+
+		if (show == showing)
+			return;
+
+		if (!show) {
+			for (int i = 0; i < predictions.size(); i++)
+				markDirty(predictions.get(i));
+		}
+		showing = show;
+	}
+
+	/**
+	 * @return what the cell will hold once the host has echoed everything
+	 *         we have guessed so far
+	 */
+	private char expectedAt(char[] line, int column) {
+		for (int i = predictions.size() - 1; i >= 0; i--) {
+			Prediction p = predictions.get(i);
+			if (!p.cursorOnly && p.line == line && p.column == column)
+				return p.ch;
+		}
+		return line[column];
+	}
+
+	private static boolean isBlankFrom(char[] line, int column) {
+		for (int i = column; i < line.length; i++) {
+			if (line[i] != ' ' && line[i] != 0)
+				return false;
+		}
+		return true;
+	}
+}
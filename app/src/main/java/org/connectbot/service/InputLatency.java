@@ -0,0 +1,125 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.connectbot.util.HdrHistogram;
+
+/**
+ * Follows keystrokes from the key event to the pixels that echo them, in
+ * three stages: handling the key until it is written to the transport, the
+ * round trip until the host's first byte comes back, and putting that byte
+ * on screen until the next frame is drawn. Times are from
+ * {@link System#nanoTime()}.
+ * <p>
+ * Only one keystroke is followed at a time; keys typed while waiting for a
+ * reply still count towards the first stage. A reply that takes longer than
+ * {@link #REPLY_TIMEOUT_NANOS} is taken to be output that is not an echo.
+ */
+class InputLatency {
+	private static final long HIGHEST_MICROS = TimeUnit.SECONDS.toMicros(60);
+
+	/** An input event this old is not what caused the next write. */
+	static final long INPUT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	static final long REPLY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	private static final long NONE = Long.MIN_VALUE;
+
+	private final HdrHistogram inputToSend = new HdrHistogram(HIGHEST_MICROS);
+	private final HdrHistogram sendToFirstByte = new HdrHistogram(HIGHEST_MICROS);
+	private final HdrHistogram firstByteToFrame = new HdrHistogram(HIGHEST_MICROS);
+
+	private long inputAt = NONE;
+	private long sentAt = NONE;
+	private long firstByteAt = NONE;
+
+	/**
+	 * A key event arrived; {@code atNanos} may be earlier than now if the
+	 * event waited in the queue.
+	 */
+	synchronized void onInputEvent(long atNanos) {
+		inputAt = atNanos;
+	}
+
+	/**
+	 * Keystrokes finished being written to the transport, which started at
+	 * {@code startNanos}.
+	 */
+	synchronized void onSent(long startNanos, long endNanos) {
+		long from = startNanos;
+		if (inputAt != NONE && startNanos - inputAt < INPUT_TIMEOUT_NANOS)
+			from = inputAt;
+		inputAt = NONE;
+		inputToSend.record(micros(endNanos - from));
+
+		if (sentAt == NONE || endNanos - sentAt > REPLY_TIMEOUT_NANOS)
+			sentAt = endNanos;
+	}
+
+	/**
+	 * Bytes arrived from the host.
+	 */
+	synchronized void onHostBytes(long nowNanos) {
+		if (sentAt == NONE)
+			return;
+
+		if (nowNanos - sentAt <= REPLY_TIMEOUT_NANOS) {
+			sendToFirstByte.record(micros(nowNanos - sentAt));
+			firstByteAt = nowNanos;
+		}
+		sentAt = NONE;
+	}
+
+	/**
+	 * A frame with everything received so far reached the screen.
+	 */
+	synchronized void onFrameDrawn(long nowNanos) {
+		if (firstByteAt == NONE)
+			return;
+
+		firstByteToFrame.record(micros(nowNanos - firstByteAt));
+		firstByteAt = NONE;
+	}
+
+	HdrHistogram getInputToSend() {
+		return inputToSend;
+	}
+
+	HdrHistogram getSendToFirstByte() {
+		return sendToFirstByte;
+	}
+
+	HdrHistogram getFirstByteToFrame() {
+		return firstByteToFrame;
+	}
+
+	synchronized void clear() {
+		inputToSend.clear();
+		sendToFirstByte.clear();
+		firstByteToFrame.clear();
+		inputAt = NONE;
+		sentAt = NONE;
+		firstByteAt = NONE;
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
@@ -24,6 +24,7 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.Executor;
 
 import org.apache.harmony.niochar.charset.additional.IBM437;
 import org.connectbot.transport.AbsTransport;
@@ -40,8 +41,13 @@ public class Relay implements Runnable {
 
 	private static final int BUFFER_SIZE = 4096;
 
+	/** Pushed bytes waiting for the terminal beyond which the transport should stop reading. */
+	private static final int MAX_PENDING = 64 * 1024;
+
 	private TerminalBridge bridge;
 
+	private final BridgeMetrics metrics;
+
 	private Charset currentCharset;
 	private CharsetDecoder decoder;
 
@@ -55,11 +61,45 @@ public class Relay implements Runnable {
 	private byte[] byteArray;
 	private char[] charArray;
 
+	/* for East Asian character widths */
+	private byte[] wideAttribute;
+
+	/*
+	 * Data pushed by the transport waits in pending until the drain task
+	 * swaps it with draining and puts it on the terminal. Everything here is
+	 * guarded by pendingLock except draining, which only the drain task uses.
+	 */
+	private final Object pendingLock = new Object();
+	private byte[] pending = new byte[BUFFER_SIZE];
+	private int pendingCount = 0;
+	private byte[] draining = new byte[BUFFER_SIZE];
+	private boolean drainQueued = false;
+	private boolean throttled = false;
+	private Runnable onDrained;
+	private final Executor drainExecutor;
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drainPending();
+		}
+	};
+
 	public Relay(TerminalBridge bridge, AbsTransport transport, vt320 buffer, String encoding) {
 		setCharset(encoding);
 		this.bridge = bridge;
 		this.transport = transport;
 		this.buffer = buffer;
+		metrics = bridge.getMetrics();
+		drainExecutor = bridge.manager.getExecutors().newSerialExecutor("Relay");
+
+		byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		charBuffer = CharBuffer.allocate(BUFFER_SIZE);
+		wideAttribute = new byte[BUFFER_SIZE];
+
+		byteArray = byteBuffer.array();
+		charArray = charBuffer.array();
+
+		byteBuffer.limit(0);
 	}
 
 	public void setCharset(String encoding) {
@@ -90,21 +130,102 @@ public class Relay implements Runnable {
 		return currentCharset;
 	}
 
-	@Override
-	public void run() {
-		byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-		charBuffer = CharBuffer.allocate(BUFFER_SIZE);
+	/**
+	 * Queue incoming data for the terminal. Used by transports that deliver
+	 * data themselves instead of being polled from {@link #run()}. Only
+	 * copies the data, so it is safe to call from the selector loop; the
+	 * terminal is updated on this bridge's own serial executor.
+	 *
+	 * @return false once the terminal has fallen far enough behind that the
+	 *         caller should stop reading until the {@link #setOnDrained}
+	 *         callback runs
+	 */
+	public boolean onDataReceived(byte[] data, int offset, int length) {
+		boolean queue;
+		boolean keepReading;
+		synchronized (pendingLock) {
+			if (pendingCount + length > pending.length) {
+				byte[] grown = new byte[Math.max(pendingCount + length, pending.length * 2)];
+				System.arraycopy(pending, 0, grown, 0, pendingCount);
+				pending = grown;
+			}
+			System.arraycopy(data, offset, pending, pendingCount, length);
+			pendingCount += length;
 
-		/* for East Asian character widths */
-		byte[] wideAttribute = new byte[BUFFER_SIZE];
+			queue = !drainQueued;
+			drainQueued = true;
+			keepReading = pendingCount < MAX_PENDING;
+			if (!keepReading)
+				throttled = true;
+		}
 
-		byteArray = byteBuffer.array();
-		charArray = charBuffer.array();
+		if (queue)
+			drainExecutor.execute(drain);
+		return keepReading;
+	}
 
-		CoderResult result;
+	/**
+	 * @param onDrained run on the drain thread once the terminal has caught
+	 *        up after {@link #onDataReceived} returned false
+	 */
+	public void setOnDrained(Runnable onDrained) {
+		synchronized (pendingLock) {
+			this.onDrained = onDrained;
+		}
+	}
 
-		int bytesRead = 0;
-		byteBuffer.limit(0);
+	private void drainPending() {
+		Runnable resume = null;
+		while (true) {
+			byte[] chunk;
+			int count;
+			synchronized (pendingLock) {
+				if (pendingCount == 0) {
+					drainQueued = false;
+					if (throttled) {
+						throttled = false;
+						resume = onDrained;
+					}
+					break;
+				}
+				chunk = pending;
+				count = pendingCount;
+				pending = draining;
+				pendingCount = 0;
+			}
+			draining = chunk;
+			display(chunk, 0, count);
+		}
+
+		if (resume != null)
+			resume.run();
+	}
+
+	/**
+	 * Decode and display pushed data, a buffer's worth at a time.
+	 */
+	private void display(byte[] data, int offset, int length) {
+		while (length > 0) {
+			int space = byteBuffer.capacity() - byteBuffer.limit();
+			if (space == 0) {
+				// decoder stopped on a full output buffer; make room for more input
+				byteBuffer.compact();
+				byteBuffer.limit(byteBuffer.position());
+				byteBuffer.position(0);
+				space = byteBuffer.capacity() - byteBuffer.limit();
+			}
+			int count = Math.min(space, length);
+			System.arraycopy(data, offset, byteArray,
+					byteBuffer.arrayOffset() + byteBuffer.limit(), count);
+			decodeAndDisplay(count);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public void run() {
+		int bytesRead;
 		int bytesToRead;
 		int offset;
 
@@ -115,33 +236,50 @@ public class Relay implements Runnable {
 				bytesRead = transport.read(byteArray, offset, bytesToRead);
 
 				if (bytesRead > 0) {
-					byteBuffer.limit(byteBuffer.limit() + bytesRead);
-
-					synchronized (this) {
-						result = decoder.decode(byteBuffer, charBuffer, false);
-					}
-
-					if (result.isUnderflow() &&
-							byteBuffer.limit() == byteBuffer.capacity()) {
-						byteBuffer.compact();
-						byteBuffer.limit(byteBuffer.position());
-						byteBuffer.position(0);
-					}
-
-					offset = charBuffer.position();
-
-					final int charCount = offset;
-					AndroidCharacter.getEastAsianWidths(charArray, 0, charCount, wideAttribute);
-					synchronized (buffer) {
-						buffer.putString(charArray, wideAttribute, 0, charCount);
-					}
-					bridge.propagateConsoleText(charArray, charCount);
-					charBuffer.clear();
-					bridge.redraw();
+					decodeAndDisplay(bytesRead);
 				}
 			}
 		} catch (IOException e) {
 			Log.e(TAG, "Problem while handling incoming data in relay thread", e);
 		}
 	}
+
+	/**
+	 * Decode {@code bytesAdded} new bytes that were placed at the limit of
+	 * {@link #byteBuffer} and put the result on the terminal.
+	 */
+	private void decodeAndDisplay(int bytesAdded) {
+		CoderResult result;
+
+		bridge.onHostBytes();
+		metrics.bytesRead.add(bytesAdded);
+		byteBuffer.limit(byteBuffer.limit() + bytesAdded);
+
+		long start = System.nanoTime();
+		synchronized (this) {
+			result = decoder.decode(byteBuffer, charBuffer, false);
+		}
+		metrics.decode.recordSince(start);
+
+		if (result.isUnderflow() &&
+				byteBuffer.limit() == byteBuffer.capacity()) {
+			byteBuffer.compact();
+			byteBuffer.limit(byteBuffer.position());
+			byteBuffer.position(0);
+		}
+
+		final int charCount = charBuffer.position();
+		AndroidCharacter.getEastAsianWidths(charArray, 0, charCount, wideAttribute);
+		start = System.nanoTime();
+		synchronized (buffer) {
+			long locked = System.nanoTime();
+			metrics.lockWait.record(locked - start);
+			buffer.putString(charArray, wideAttribute, 0, charCount);
+			metrics.parse.recordSince(locked);
+			bridge.onHostOutput();
+		}
+		bridge.propagateConsoleText(charArray, charCount);
+		charBuffer.clear();
+		bridge.redraw();
+	}
 }
@@ -0,0 +1,87 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+/**
+ * Keeps track of a terminal view that is changing size. IME animations and
+ * window drags go through dozens of sizes a second; resizing the buffer and
+ * the remote PTY for each of them costs a scrollback copy and a window-change
+ * request every time, and full-screen programs on the host redraw for each.
+ * <p>
+ * Instead, the latest size is held here until the view has kept it for
+ * {@link #SETTLE_MILLIS}, and the grid last sent to the host is remembered
+ * so the same window change is never sent twice.
+ */
+class ResizeCoordinator {
+	/** How long the view has to keep one size before the terminal follows it. */
+	static final long SETTLE_MILLIS = 150;
+
+	private static final int NONE = -1;
+
+	private int pendingWidth = NONE;
+	private int pendingHeight = NONE;
+
+	private Object sentTransport;
+	private int sentColumns = NONE;
+	private int sentRows = NONE;
+
+	/**
+	 * The view is now {@code width} by {@code height} pixels.
+	 *
+	 * @return true if this differs from the size already waiting to settle,
+	 *         so the wait should start over
+	 */
+	synchronized boolean offer(int width, int height) {
+		if (width == pendingWidth && height == pendingHeight)
+			return false;
+
+		pendingWidth = width;
+		pendingHeight = height;
+		return true;
+	}
+
+	synchronized boolean isPending() {
+		return pendingWidth != NONE;
+	}
+
+	/**
+	 * The terminal caught up with the view, or the pending size no longer
+	 * matters.
+	 */
+	synchronized void clear() {
+		pendingWidth = NONE;
+		pendingHeight = NONE;
+	}
+
+	/**
+	 * @return false if {@code transport} was already told about this grid
+	 */
+	synchronized boolean isWindowChangeNeeded(Object transport, int columns, int rows) {
+		return transport != sentTransport || columns != sentColumns || rows != sentRows;
+	}
+
+	/**
+	 * Remember that {@code transport} now knows the grid is
+	 * {@code columns} by {@code rows}.
+	 */
+	synchronized void windowChanged(Object transport, int columns, int rows) {
+		sentTransport = transport;
+		sentColumns = columns;
+		sentRows = rows;
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.util.Arrays;
+
+import android.annotation.TargetApi;
+import android.graphics.Canvas;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.os.Build;
+import de.mud.terminal.VDUBuffer;
+
+/**
+ * Keeps each terminal row as its own display list instead of painting the
+ * whole terminal into a bitmap. A bitmap has to be uploaded to the GPU in
+ * full whenever any of it changes, which on a large screen is many
+ * megabytes a frame; display lists are only recorded again for rows that
+ * changed.
+ * <p>
+ * Rows remember which buffer line they were recorded from and what it
+ * held, so a row that only moved, as every row does when the terminal
+ * scrolls, keeps its display list and is just drawn further up.
+ * Only used from the UI thread.
+ */
+@TargetApi(Build.VERSION_CODES.Q)
+class RowNodeRenderer {
+	/** Paints one terminal row with its top edge at {@code top}. */
+	interface RowPainter {
+		void paintRow(Canvas canvas, int row, int top);
+	}
+
+	/** A display list and what it was recorded from. */
+	private static class Row {
+		final RenderNode node = new RenderNode("TerminalRow");
+		char[] source;
+		char[] chars;
+		long[] attributes;
+		boolean claimed;
+
+		boolean matches(char[] sourceChars, long[] sourceAttributes) {
+			return Arrays.equals(chars, sourceChars) && Arrays.equals(attributes, sourceAttributes);
+		}
+
+		void remember(char[] sourceChars, long[] sourceAttributes) {
+			source = sourceChars;
+			if (chars == null || chars.length != sourceChars.length)
+				chars = new char[sourceChars.length];
+			if (attributes == null || attributes.length != sourceAttributes.length)
+				attributes = new long[sourceAttributes.length];
+			System.arraycopy(sourceChars, 0, chars, 0, sourceChars.length);
+			System.arraycopy(sourceAttributes, 0, attributes, 0, sourceAttributes.length);
+		}
+
+		void forget() {
+			source = null;
+		}
+	}
+
+	private final RenderNode background = new RenderNode("TerminalBackground");
+	private final RenderNode overlay = new RenderNode("TerminalOverlay");
+
+	private Row[] rows = new Row[0];
+	private Row[] next = new Row[0];
+	private Row[] spare = new Row[0];
+	private int spareCount = 0;
+
+	private int width;
+	private int rowHeight;
+	private int shownRows = 0;
+	private boolean overlayShown = false;
+
+	/**
+	 * Lay rows out for a new size; every row is recorded again on the next
+	 * {@link #update}.
+	 */
+	void setSize(int width, int rowHeight) {
+		this.width = width;
+		this.rowHeight = rowHeight;
+		invalidate();
+	}
+
+	/**
+	 * Record every row again on the next {@link #update}, for when how rows
+	 * are painted has changed rather than what they hold.
+	 */
+	void invalidate() {
+		for (Row row : rows) {
+			if (row != null)
+				row.forget();
+		}
+		for (int i = 0; i < spareCount; i++)
+			spare[i].forget();
+	}
+
+	/**
+	 * @return a canvas to record what lies under all rows into until
+	 *         {@link #endBackground()}
+	 */
+	Canvas beginBackground(int height) {
+		background.setPosition(0, 0, width, height);
+		return background.beginRecording(width, height);
+	}
+
+	void endBackground() {
+		background.endRecording();
+	}
+
+	/**
+	 * @return a canvas to record what is drawn over all rows into until
+	 *         {@link #endOverlay()}
+	 */
+	Canvas beginOverlay(int height) {
+		overlay.setPosition(0, 0, width, height);
+		overlayShown = true;
+		return overlay.beginRecording(width, height);
+	}
+
+	void endOverlay() {
+		overlay.endRecording();
+	}
+
+	void clearOverlay() {
+		if (overlayShown) {
+			overlay.discardDisplayList();
+			overlayShown = false;
+		}
+	}
+
+	/**
+	 * Bring the rows up to date with the buffer. The caller holds the
+	 * buffer lock.
+	 *
+	 * @param entireDirty true if any row may have changed or moved, not
+	 *        only those flagged in {@link VDUBuffer#update}
+	 * @return how many rows had to be recorded again
+	 */
+	int update(VDUBuffer buffer, boolean entireDirty, RowPainter painter) {
+		int height = buffer.height;
+		ensureCapacity(height);
+		Arrays.fill(next, null);
+
+		for (Row row : rows) {
+			if (row != null)
+				row.claimed = false;
+		}
+
+		// Rows that did not change keep their display list where it is.
+		for (int l = 0; l < height; l++) {
+			Row row = rows[l];
+			if (row == null || entireDirty || buffer.update[l + 1])
+				continue;
+			if (row.source == buffer.charArray[buffer.windowBase + l]) {
+				row.claimed = true;
+				next[l] = row;
+			}
+		}
+
+		// Changed rows may just have moved; look for the display list of the line they show.
+		for (int l = 0; l < height; l++) {
+			if (next[l] != null)
+				continue;
+			char[] source = buffer.charArray[buffer.windowBase + l];
+			for (Row row : rows) {
+				if (row != null && !row.claimed && row.source == source) {
+					row.claimed = true;
+					next[l] = row;
+					break;
+				}
+			}
+		}
+
+		// Whatever is left over is recorded again for the rows still without one.
+		for (Row row : rows) {
+			if (row != null && !row.claimed)
+				addSpare(row);
+		}
+		int recorded = 0;
+		for (int l = 0; l < height; l++) {
+			char[] source = buffer.charArray[buffer.windowBase + l];
+			long[] attributes = buffer.charAttributes[buffer.windowBase + l];
+			Row row = next[l];
+			if (row == null)
+				row = next[l] = takeSpare();
+
+			boolean untouched = !entireDirty && !buffer.update[l + 1];
+			if (row.source != source || !(untouched || row.matches(source, attributes))) {
+				row.node.setPosition(0, 0, width, rowHeight);
+				RecordingCanvas canvas = row.node.beginRecording(width, rowHeight);
+				try {
+					painter.paintRow(canvas, l, 0);
+				} finally {
+					row.node.endRecording();
+				}
+				row.remember(source, attributes);
+				recorded++;
+			}
+			row.node.setTranslationY(l * rowHeight);
+		}
+
+		Row[] swap = rows;
+		rows = next;
+		next = swap;
+		shownRows = height;
+		return recorded;
+	}
+
+	/**
+	 * Draw the terminal onto a hardware-accelerated canvas.
+	 */
+	void draw(Canvas canvas) {
+		canvas.drawRenderNode(background);
+		for (int l = 0; l < shownRows; l++)
+			canvas.drawRenderNode(rows[l].node);
+		if (overlayShown)
+			canvas.drawRenderNode(overlay);
+	}
+
+	/**
+	 * Drop every display list; the renderer can still be used and records
+	 * everything again.
+	 */
+	void release() {
+		for (Row row : rows) {
+			if (row != null)
+				row.node.discardDisplayList();
+		}
+		for (int i = 0; i < spareCount; i++)
+			spare[i].node.discardDisplayList();
+		background.discardDisplayList();
+		clearOverlay();
+		rows = new Row[0];
+		next = new Row[0];
+		spare = new Row[0];
+		spareCount = 0;
+		shownRows = 0;
+	}
+
+	private void ensureCapacity(int height) {
+		if (rows.length < height)
+			rows = Arrays.copyOf(rows, height);
+		if (next.length < rows.length)
+			next = new Row[rows.length];
+	}
+
+	private void addSpare(Row row) {
+		if (spareCount == spare.length)
+			spare = Arrays.copyOf(spare, Math.max(8, spare.length * 2));
+		row.forget();
+		spare[spareCount++] = row;
+	}
+
+	private Row takeSpare() {
+		if (spareCount == 0)
+			return new Row();
+		Row row = spare[--spareCount];
+		spare[spareCount] = null;
+		return row;
+	}
+}
@@ -22,6 +22,8 @@ import java.nio.charset.Charset;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,6 +34,7 @@ import org.connectbot.bean.PortForwardBean;
 import org.connectbot.bean.SelectionArea;
 import org.connectbot.transport.AbsTransport;
 import org.connectbot.transport.TransportFactory;
+import org.connectbot.util.HdrHistogram;
 import org.connectbot.util.HostDatabase;
 
 import android.content.Context;
@@ -42,8 +45,10 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.FontMetrics;
 import android.graphics.Typeface;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.text.ClipboardManager;
 import android.util.Log;
@@ -82,6 +87,7 @@ public class TerminalBridge implements VDUDisplay {
 	/* package */ AbsTransport transport;
 
 	final Paint defaultPaint;
+	private final CellStyleCache styleCache = new CellStyleCache();
 
 	private Relay relay;
 
@@ -91,10 +97,36 @@ public class TerminalBridge implements VDUDisplay {
 	public Bitmap bitmap = null;
 	public VDUBuffer buffer = null;
 
+	// Per-row display lists used instead of the bitmap where the hardware renderer allows
+	private RowNodeRenderer rowNodes = null;
+	private boolean rowNodesUnsupported = false;
+	private final RowNodeRenderer.RowPainter rowPainter = new RowNodeRenderer.RowPainter() {
+		@Override
+		public void paintRow(Canvas target, int row, int top) {
+			drawRow(target, row, top);
+		}
+	};
+
+	// Size in pixels of the bitmap or display lists the terminal is drawn into
+	private int surfaceWidth = 0;
+	private int surfaceHeight = 0;
+
 	private TerminalView parent = null;
 	private final Canvas canvas = new Canvas();
 	private boolean resizeDeferred = false;
 
+	private final ResizeCoordinator resizeCoordinator = new ResizeCoordinator();
+	private final Handler resizeHandler = new Handler(Looper.getMainLooper());
+	private final Runnable settleResize = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (TerminalBridge.this) {
+				if (parent != null && resizeCoordinator.isPending())
+					resize(parent);
+			}
+		}
+	};
+
 	private boolean disconnected = false;
 	private boolean awaitingClose = false;
 
@@ -104,6 +136,12 @@ public class TerminalBridge implements VDUDisplay {
 
 	private final TerminalKeyListener keyListener;
 
+	private final EchoPredictor echoPredictor;
+	private final char[] predictedChar = new char[1];
+
+	private final InputLatency inputLatency = new InputLatency();
+	private final BridgeMetrics metrics = new BridgeMetrics();
+
 	private boolean selectingForCopy = false;
 	private final SelectionArea selectionArea;
 
@@ -126,6 +164,9 @@ public class TerminalBridge implements VDUDisplay {
 	private final Object pendingInjectionsLock = new Object();
 	private final ArrayDeque<String> pendingInjections = new ArrayDeque<>();
 
+	/** Keeps injected strings in order even though they are written off-thread. */
+	private final Executor injectExecutor;
+
 	/**
 	 * Flag indicating if we should perform a full-screen redraw during our next
 	 * rendering pass.
@@ -169,6 +210,10 @@ public class TerminalBridge implements VDUDisplay {
 
 		transport = null;
 
+		injectExecutor = null;
+
+		echoPredictor = new EchoPredictor((vt320) buffer);
+
 		keyListener = new TerminalKeyListener(null, this, buffer, null);
 	}
 
@@ -213,8 +258,15 @@ public class TerminalBridge implements VDUDisplay {
 			@Override
 			public void write(byte[] b) {
 				try {
-					if (b != null && transport != null)
+					if (b == null || transport == null)
+						return;
+					// Replies to the host's queries are written while the
+					// relay holds our lock; only keystrokes are worth predicting.
+					if (Thread.holdsLock(this)) {
 						transport.write(b);
+						metrics.bytesWritten.add(b.length);
+					} else
+						sendKeys(b);
 				} catch (IOException e) {
 					Log.e(TAG, "Problem writing outgoing data in vt320() thread", e);
 				}
@@ -223,8 +275,13 @@ public class TerminalBridge implements VDUDisplay {
 			@Override
 			public void write(int b) {
 				try {
-					if (transport != null)
+					if (transport == null)
+						return;
+					if (Thread.holdsLock(this)) {
 						transport.write(b);
+						metrics.bytesWritten.increment();
+					} else
+						sendKey(b);
 				} catch (IOException e) {
 					Log.e(TAG, "Problem writing outgoing data in vt320() thread", e);
 				}
@@ -260,6 +317,10 @@ public class TerminalBridge implements VDUDisplay {
 
 		selectionArea = new SelectionArea();
 
+		injectExecutor = manager.getExecutors().newSerialExecutor("InjectString");
+
+		echoPredictor = new EchoPredictor((vt320) buffer);
+
 		keyListener = new TerminalKeyListener(manager, this, buffer, host.getEncoding());
 	}
 
@@ -268,7 +329,7 @@ public class TerminalBridge implements VDUDisplay {
 	}
 
 	/**
-	 * Spawn thread to open connection and start login process.
+	 * Queue a task to open connection and start login process.
 	 */
 	protected void startConnection() {
 		transport = TransportFactory.getTransport(host.getProtocol());
@@ -293,15 +354,16 @@ public class TerminalBridge implements VDUDisplay {
 
 		outputLine(manager.res.getString(R.string.terminal_connecting, host.getHostname(), host.getPort(), host.getProtocol()));
 
-		Thread connectionThread = new Thread(new Runnable() {
+		boolean started = manager.getExecutors().executeIo("Connection", new Runnable() {
 			@Override
 			public void run() {
 				transport.connect();
 			}
 		});
-		connectionThread.setName("Connection");
-		connectionThread.setDaemon(true);
-		connectionThread.start();
+		if (!started) {
+			outputLine(manager.res.getString(R.string.terminal_workers_busy));
+			dispatchDisconnect(false);
+		}
 	}
 
 	/**
@@ -388,18 +450,18 @@ public class TerminalBridge implements VDUDisplay {
 		if (string == null || string.length() == 0)
 			return;
 
-		Thread injectStringThread = new Thread(new Runnable() {
+		injectExecutor.execute(new Runnable() {
 			@Override
 			public void run() {
 				try {
-					transport.write(string.getBytes(host.getEncoding()));
+					byte[] data = string.getBytes(host.getEncoding());
+					transport.write(data);
+					metrics.bytesWritten.add(data.length);
 				} catch (Exception e) {
 					Log.e(TAG, "Couldn't inject string to remote host: ", e);
 				}
 			}
 		});
-		injectStringThread.setName("InjectString");
-		injectStringThread.start();
 	}
 
 	public void injectStringWhenConnected(final String string) {
@@ -449,18 +511,23 @@ public class TerminalBridge implements VDUDisplay {
 				((vt320) buffer).setBackspace(vt320.DELETE_IS_BACKSPACE);
 			else
 				((vt320) buffer).setBackspace(vt320.DELETE_IS_DEL);
+
+			echoPredictor.reset();
+			echoPredictor.setMode(manager.getEchoPrediction());
 		}
 
 		// We no longer need our local output.
 		localOutput.clear();
 
 		if (isSessionOpen()) {
-			// create thread to relay incoming connection data to buffer
+			// relay incoming connection data to buffer, either pushed by the
+			// transport itself or read on an I/O worker
 			relay = new Relay(this, transport, (vt320) buffer, host.getEncoding());
-			Thread relayThread = new Thread(relay);
-			relayThread.setDaemon(true);
-			relayThread.setName("Relay");
-			relayThread.start();
+			if (!transport.attachRelay(relay) && !manager.getExecutors().executeIo("Relay", relay)) {
+				outputLine(manager.res.getString(R.string.terminal_workers_busy));
+				dispatchDisconnect(false);
+				return;
+			}
 		}
 
 		// force font-size to make sure we resizePTY as needed
@@ -480,6 +547,120 @@ public class TerminalBridge implements VDUDisplay {
 		flushPendingInjections();
 	}
 
+	/**
+	 * Send keystrokes to the host, first letting the echo predictor show
+	 * what they are likely to do.
+	 */
+	void sendKeys(byte[] data) throws IOException {
+		predictEcho(data);
+		long start = System.nanoTime();
+		transport.write(data);
+		inputLatency.onSent(start, System.nanoTime());
+		metrics.bytesWritten.add(data.length);
+	}
+
+	void sendKey(int b) throws IOException {
+		predictEcho(new byte[] { (byte) b });
+		long start = System.nanoTime();
+		transport.write(b);
+		inputLatency.onSent(start, System.nanoTime());
+		metrics.bytesWritten.increment();
+	}
+
+	/**
+	 * Called by the {@link TerminalKeyListener} as a key event arrives, with
+	 * the event's time in the {@link SystemClock#uptimeMillis()} base.
+	 */
+	void onInputEvent(long eventTime) {
+		long queuedMillis = Math.max(0, SystemClock.uptimeMillis() - eventTime);
+		inputLatency.onInputEvent(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(queuedMillis));
+	}
+
+	/**
+	 * Called by the {@link Relay} as soon as bytes arrive from the host.
+	 */
+	void onHostBytes() {
+		inputLatency.onHostBytes(System.nanoTime());
+	}
+
+	/**
+	 * Called by the {@link TerminalView} once it has drawn our bitmap.
+	 */
+	public void onFrameDrawn() {
+		inputLatency.onFrameDrawn(System.nanoTime());
+		metrics.framesRendered.increment();
+	}
+
+	public BridgeMetrics getMetrics() {
+		return metrics;
+	}
+
+	public boolean isMetricsHudShown() {
+		return manager != null && manager.isMetricsHudShown();
+	}
+
+	/**
+	 * @return every performance counter for this session as plain text, for
+	 *         attaching to bug reports
+	 */
+	public String getMetricsDump() {
+		return metrics.dump(host.getProtocol());
+	}
+
+	/**
+	 * @return the keystroke latency of this session broken down by stage, as
+	 *         plain text, or null if nothing has been typed yet
+	 */
+	public String getInputLatencyReport() {
+		if (inputLatency.getInputToSend().getTotalCount() == 0)
+			return null;
+
+		StringBuilder sb = new StringBuilder();
+		appendLatency(sb, R.string.latency_input_to_send, inputLatency.getInputToSend());
+		appendLatency(sb, R.string.latency_send_to_first_byte, inputLatency.getSendToFirstByte());
+		appendLatency(sb, R.string.latency_first_byte_to_frame, inputLatency.getFirstByteToFrame());
+		return sb.toString().trim();
+	}
+
+	private void appendLatency(StringBuilder sb, int label, HdrHistogram histogram) {
+		sb.append(manager.res.getString(label)).append('\n');
+		String summary = histogram.summarize();
+		if (summary == null) {
+			sb.append(manager.res.getString(R.string.latency_no_samples)).append("\n\n");
+			return;
+		}
+		sb.append(summary).append("\n\n");
+		sb.append(histogram.formatDistribution()).append('\n');
+	}
+
+	private void predictEcho(byte[] data) {
+		boolean changed;
+		synchronized (buffer) {
+			changed = echoPredictor.onInput(data, 0, data.length, SystemClock.uptimeMillis());
+		}
+		if (changed)
+			redraw();
+	}
+
+	/**
+	 * Called by the {@link Relay} with the buffer locked, after putting the
+	 * host's output on screen.
+	 */
+	void onHostOutput() {
+		echoPredictor.onHostOutput(SystemClock.uptimeMillis());
+	}
+
+	/**
+	 * @return the column to draw the cursor in, which runs ahead of the
+	 *         host's while predicted keystrokes are on screen
+	 */
+	public int getDisplayedCursorColumn() {
+		synchronized (buffer) {
+			int predicted = echoPredictor.getCursorColumn();
+			return predicted >= 0 ? predicted : buffer.getCursorColumn();
+		}
+	}
+
 	/**
 	 * @return whether a session is open or not
 	 */
@@ -489,6 +670,32 @@ public class TerminalBridge implements VDUDisplay {
 		return false;
 	}
 
+	/**
+	 * @return human readable statistics about this session for the console
+	 *         menu, or null if there are none
+	 */
+	public String getStatistics() {
+		StringBuilder sb = new StringBuilder();
+
+		String transportStats = transport != null ? transport.getStatistics() : null;
+		if (transportStats != null)
+			sb.append(transportStats).append('\n');
+
+		long hits, misses, echoMillis;
+		synchronized (buffer) {
+			hits = echoPredictor.getHits();
+			misses = echoPredictor.getMisses();
+			echoMillis = echoPredictor.getEchoMillis();
+		}
+		if (hits + misses > 0) {
+			sb.append(manager.res.getString(R.string.stats_echo_prediction,
+					(int) (100 * hits / (hits + misses)), hits + misses, echoMillis))
+					.append('\n');
+		}
+
+		return sb.length() > 0 ? sb.toString().trim() : null;
+	}
+
 	public void setOnDisconnectedListener(BridgeDisconnectedListener disconnectListener) {
 		this.disconnectListener = disconnectListener;
 	}
@@ -509,16 +716,19 @@ public class TerminalBridge implements VDUDisplay {
 		promptHelper.cancelPrompt();
 
 		// disconnection request hangs if we havent really connected to a host yet
-		// temporary fix is to just spawn disconnection into a thread
-		Thread disconnectThread = new Thread(new Runnable() {
+		// temporary fix is to just push disconnection onto an I/O worker.
+		// Close even if not connected yet, so a connect in progress (through
+		// a jump host, say) sees it and gives up.
+		Runnable close = new Runnable() {
 			@Override
 			public void run() {
-				if (transport != null && transport.isConnected())
+				if (transport != null)
 					transport.close();
 			}
-		});
-		disconnectThread.setName("Disconnect");
-		disconnectThread.start();
+		};
+		// Closing must happen even when every I/O worker is busy.
+		if (!manager.getExecutors().executeIo("Disconnect", close))
+			manager.getExecutors().executeTask("Disconnect", close);
 
 		if (immediate || (host.getQuickDisconnect() && !host.getStayConnected())) {
 			awaitingClose = true;
@@ -534,7 +744,7 @@ public class TerminalBridge implements VDUDisplay {
 				manager.requestReconnect(this);
 				return;
 			}
-			Thread disconnectPromptThread = new Thread(new Runnable() {
+			boolean prompting = manager.getExecutors().executeIo("DisconnectPrompt", new Runnable() {
 				@Override
 				public void run() {
 					Boolean result = promptHelper.requestBooleanPrompt(null,
@@ -545,9 +755,10 @@ public class TerminalBridge implements VDUDisplay {
 					}
 				}
 			});
-			disconnectPromptThread.setName("DisconnectPrompt");
-			disconnectPromptThread.setDaemon(true);
-			disconnectPromptThread.start();
+			if (!prompting) {
+				awaitingClose = true;
+				triggerDisconnectListener();
+			}
 		}
 	}
 
@@ -650,9 +861,32 @@ public class TerminalBridge implements VDUDisplay {
 	 * Something changed in our parent {@link TerminalView}, maybe it's a new
 	 * parent, or maybe it's an updated font size. We should recalculate
 	 * terminal size information and request a PTY resize.
+	 * <p>
+	 * A new parent, a font change or a forced size takes effect at once. A
+	 * view that is changing size keeps drawing the current bitmap scaled to
+	 * fit until it has held one size for {@link ResizeCoordinator#SETTLE_MILLIS}.
 	 */
 	public final synchronized void parentChanged(TerminalView parent) {
 		this.parent = parent;
+		final int width = parent.getWidth();
+		final int height = parent.getHeight();
+
+		if (!hasSurface() || forcedSize || width <= 0 || height <= 0
+				|| isSurfaceSized(width, height)) {
+			resizeCoordinator.clear();
+			resizeHandler.removeCallbacks(settleResize);
+			resize(parent);
+			return;
+		}
+
+		if (resizeCoordinator.offer(width, height)) {
+			resizeHandler.removeCallbacks(settleResize);
+			resizeHandler.postDelayed(settleResize, ResizeCoordinator.SETTLE_MILLIS);
+		}
+	}
+
+	private void resize(TerminalView parent) {
+		resizeCoordinator.clear();
 		if (manager != null && !manager.isResizeAllowed()) {
 			resizeDeferred = true;
 			Log.d(TAG, "Resize is not allowed now; deferring");
@@ -674,10 +908,9 @@ public class TerminalBridge implements VDUDisplay {
 		// The backing bitmap is sized in pixels (not rows/cols). Even if the computed terminal grid
 		// size doesn't change (integer division), we must still reallocate/redraw the bitmap when
 		// the parent view's pixel size changes (e.g., during IME/insets or fold/unfold transitions).
-		boolean newBitmap = (bitmap == null);
-		if (bitmap != null) {
-			newBitmap = (bitmap.getWidth() != width || bitmap.getHeight() != height);
-		}
+		// The same goes for switching between the bitmap and per-row display lists.
+		final boolean useRowNodes = canUseRowNodes(parent);
+		boolean newSurface = !isSurfaceSized(width, height) || (rowNodes != null) != useRowNodes;
 
 		boolean gridSizeChanged = false;
 		if (!forcedSize) {
@@ -690,7 +923,7 @@ public class TerminalBridge implements VDUDisplay {
 
 			// If nothing has changed in the terminal dimensions (and the backing bitmap still
 			// matches), then don't blow away scroll regions and such.
-			if (!newBitmap && newColumns == columns && newRows == rows)
+			if (!newSurface && newColumns == columns && newRows == rows)
 				return;
 
 			gridSizeChanged = (newColumns != columns || newRows != rows);
@@ -701,28 +934,32 @@ public class TerminalBridge implements VDUDisplay {
 			}
 		}
 
-		// reallocate new bitmap if needed
-		if (newBitmap) {
-			discardBitmap();
-			bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-			canvas.setBitmap(bitmap);
+		// reallocate new bitmap if needed, reusing the old one's memory where possible
+		if (newSurface) {
+			discardSurface();
+			if (useRowNodes) {
+				rowNodes = new RowNodeRenderer();
+			} else {
+				bitmap = manager != null
+						? manager.getBitmapPool().acquire(width, height)
+						: Bitmap.createBitmap(width, height, Config.ARGB_8888);
+				canvas.setBitmap(bitmap);
+			}
+			surfaceWidth = width;
+			surfaceHeight = height;
 		}
 
 		// clear out any old buffer information
-		defaultPaint.setColor(Color.BLACK);
-		canvas.drawPaint(defaultPaint);
-
-		// Stroke the border of the terminal if the size is being forced;
-		if (forcedSize) {
-			int borderX = (columns * charWidth) + 1;
-			int borderY = (rows * charHeight) + 1;
-
-			defaultPaint.setColor(Color.GRAY);
-			defaultPaint.setStrokeWidth(0.0f);
-			if (width >= borderX)
-				canvas.drawLine(borderX, 0, borderX, borderY + 1, defaultPaint);
-			if (height >= borderY)
-				canvas.drawLine(0, borderY, borderX + 1, borderY, defaultPaint);
+		if (rowNodes != null) {
+			rowNodes.setSize(width, charHeight);
+			Canvas background = rowNodes.beginBackground(height);
+			try {
+				drawBackground(background, width, height);
+			} finally {
+				rowNodes.endBackground();
+			}
+		} else {
+			drawBackground(canvas, width, height);
 		}
 
 		try {
@@ -734,8 +971,13 @@ public class TerminalBridge implements VDUDisplay {
 				}
 			}
 
-			if (transport != null)
+			// Hosts redraw full-screen programs on every window change, so only send new grids.
+			// Until the session is open the transport just keeps the size for when it is.
+			if (transport != null && resizeCoordinator.isWindowChangeNeeded(transport, columns, rows)) {
 				transport.setDimensions(columns, rows, width, height);
+				if (transport.isSessionOpen())
+					resizeCoordinator.windowChanged(transport, columns, rows);
+			}
 		} catch (Exception e) {
 			Log.e(TAG, "Problem while trying to resize screen or PTY", e);
 		}
@@ -768,6 +1010,54 @@ public class TerminalBridge implements VDUDisplay {
 		Log.i(TAG, String.format("parentChanged() now width=%d, height=%d", columns, rows));
 	}
 
+	/**
+	 * Clear the area behind the terminal, and stroke its border if the size
+	 * is being forced.
+	 */
+	private void drawBackground(Canvas target, int width, int height) {
+		defaultPaint.setColor(Color.BLACK);
+		target.drawPaint(defaultPaint);
+
+		if (forcedSize) {
+			int borderX = (columns * charWidth) + 1;
+			int borderY = (rows * charHeight) + 1;
+
+			defaultPaint.setColor(Color.GRAY);
+			defaultPaint.setStrokeWidth(0.0f);
+			if (width >= borderX)
+				target.drawLine(borderX, 0, borderX, borderY + 1, defaultPaint);
+			if (height >= borderY)
+				target.drawLine(0, borderY, borderX + 1, borderY, defaultPaint);
+		}
+	}
+
+	/**
+	 * Display lists only pay off, and only draw at all, on a
+	 * hardware-accelerated view.
+	 */
+	private boolean canUseRowNodes(TerminalView parent) {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+				&& manager != null && manager.isRowNodesWanted()
+				&& !rowNodesUnsupported
+				&& parent.isHardwareAccelerated();
+	}
+
+	/**
+	 * The renderer setting changed; lay the terminal out again with the one
+	 * now wanted.
+	 */
+	/* package */ void onRendererChanged() {
+		final TerminalView p;
+		synchronized (this) {
+			p = parent;
+			if (p == null)
+				return;
+			discardSurface();
+		}
+		parentChanged(p);
+		p.postInvalidate();
+	}
+
 	/* package */ void onResizeAllowed() {
 		final TerminalView p;
 		synchronized (this) {
@@ -783,18 +1073,83 @@ public class TerminalBridge implements VDUDisplay {
 
 	/**
 	 * Somehow our parent {@link TerminalView} was destroyed. Now we don't need
-	 * to redraw anywhere, and we can recycle our internal bitmap.
+	 * to redraw anywhere, and we can give our internal bitmap back to the pool.
 	 */
 	public synchronized void parentDestroyed() {
 		parent = null;
 		resizeDeferred = false;
-		discardBitmap();
+		resizeCoordinator.clear();
+		resizeHandler.removeCallbacks(settleResize);
+		discardSurface();
 	}
 
-	private void discardBitmap() {
-		if (bitmap != null)
-			bitmap.recycle();
+	private void discardSurface() {
+		if (bitmap != null) {
+			canvas.setBitmap(null);
+			if (manager != null)
+				manager.getBitmapPool().release(bitmap);
+			else
+				bitmap.recycle();
+		}
 		bitmap = null;
+		if (rowNodes != null) {
+			rowNodes.release();
+			rowNodes = null;
+		}
+		surfaceWidth = 0;
+		surfaceHeight = 0;
+	}
+
+	/**
+	 * @return true once there is a bitmap or display lists to draw the
+	 *         terminal from
+	 */
+	public boolean hasSurface() {
+		return bitmap != null || rowNodes != null;
+	}
+
+	/**
+	 * @return true if the terminal is laid out for a view of exactly this
+	 *         many pixels
+	 */
+	public boolean isSurfaceSized(int width, int height) {
+		return hasSurface() && surfaceWidth == width && surfaceHeight == height;
+	}
+
+	public int getSurfaceWidth() {
+		return surfaceWidth;
+	}
+
+	public int getSurfaceHeight() {
+		return surfaceHeight;
+	}
+
+	/**
+	 * Put the terminal as of the last {@link #onDraw()} on {@code target}.
+	 */
+	public void drawSurface(Canvas target, Paint paint) {
+		if (rowNodes != null) {
+			if (target.isHardwareAccelerated()) {
+				rowNodes.draw(target);
+				return;
+			}
+
+			// Display lists cannot be drawn in software; fall back to the bitmap for good.
+			if (!rowNodesUnsupported) {
+				Log.w(TAG, "Canvas is not hardware accelerated; drawing into a bitmap instead");
+				rowNodesUnsupported = true;
+				resizeHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onRendererChanged();
+					}
+				});
+			}
+			return;
+		}
+
+		if (bitmap != null)
+			target.drawBitmap(bitmap, 0, 0, paint);
 	}
 
 	@Override
@@ -814,106 +1169,50 @@ public class TerminalBridge implements VDUDisplay {
 	}
 
 	public void onDraw() {
-		int fg, bg;
+		int rowsDrawn = 0;
+		long start = System.nanoTime();
 		synchronized (buffer) {
+			long locked = System.nanoTime();
+			metrics.lockWait.record(locked - start);
+			start = locked;
+
 			boolean entireDirty = buffer.update[0] || fullRedraw;
-			boolean isWideCharacter = false;
-
-			// walk through all lines in the buffer
-			for (int l = 0; l < buffer.height; l++) {
-
-				// check if this line is dirty and needs to be repainted
-				// also check for entire-buffer dirty flags
-				if (!entireDirty && !buffer.update[l + 1]) continue;
-
-				// reset dirty flag for this line
-				buffer.update[l + 1] = false;
-
-				// walk through all characters in this line
-				for (int c = 0; c < buffer.width; c++) {
-					int addr = 0;
-					long currAttr = buffer.charAttributes[buffer.windowBase + l][c];
-
-					{
-						int fgcolor = defaultFg;
-						int bgcolor = defaultBg;
-
-						// check if foreground color attribute is set
-						if ((currAttr & VDUBuffer.COLOR_FG) != 0)
-							fgcolor = (int) ((currAttr & VDUBuffer.COLOR_FG) >> VDUBuffer.COLOR_FG_SHIFT) - 1;
-
-						if (fgcolor < 8 && (currAttr & VDUBuffer.BOLD) != 0)
-							fg = color[fgcolor + 8];
-						else if (fgcolor < 256)
-							fg = color[fgcolor];
-						else
-							fg = 0xff000000 | (fgcolor - 256);
-
-						// check if background color attribute is set
-						if ((currAttr & VDUBuffer.COLOR_BG) != 0)
-							bgcolor = (int) ((currAttr & VDUBuffer.COLOR_BG) >> VDUBuffer.COLOR_BG_SHIFT) - 1;
-
-						if (bgcolor < 256)
-							bg = color[bgcolor];
-						else
-							bg = 0xff000000 | (bgcolor - 256);
-					}
 
-					// support character inversion by swapping background and foreground color
-					if ((currAttr & VDUBuffer.INVERT) != 0) {
-						int swapc = bg;
-						bg = fg;
-						fg = swapc;
-					}
+			if (rowNodes != null) {
+				if (fullRedraw)
+					rowNodes.invalidate();
+				rowsDrawn = rowNodes.update(buffer, entireDirty, rowPainter);
+				for (int l = 0; l < buffer.height; l++)
+					buffer.update[l + 1] = false;
+			} else {
+				// walk through all lines in the buffer
+				for (int l = 0; l < buffer.height; l++) {
 
-					// set underlined attributes if requested
-					defaultPaint.setUnderlineText((currAttr & VDUBuffer.UNDERLINE) != 0);
+					// check if this line is dirty and needs to be repainted
+					// also check for entire-buffer dirty flags
+					if (!entireDirty && !buffer.update[l + 1]) continue;
 
-					isWideCharacter = (currAttr & VDUBuffer.FULLWIDTH) != 0;
+					// reset dirty flag for this line
+					buffer.update[l + 1] = false;
+					rowsDrawn++;
 
-					if (isWideCharacter)
-						addr++;
-					else {
-						// determine the amount of continuous characters with the same settings and print them all at once
-						while (c + addr < buffer.width
-								&& buffer.charAttributes[buffer.windowBase + l][c + addr] == currAttr) {
-							addr++;
-						}
-					}
+					drawRow(canvas, l, l * charHeight);
+				}
+			}
 
-					// Save the current clip region
-					canvas.save();
-
-					// clear this dirty area with background color
-					defaultPaint.setColor(bg);
-					if (isWideCharacter) {
-						canvas.clipRect(c * charWidth,
-								l * charHeight,
-								(c + 2) * charWidth,
-								(l + 1) * charHeight);
-					} else {
-						canvas.clipRect(c * charWidth,
-								l * charHeight,
-								(c + addr) * charWidth,
-								(l + 1) * charHeight);
+			if (rowNodes != null) {
+				if (echoPredictor.isShowing()) {
+					Canvas overlay = rowNodes.beginOverlay(surfaceHeight);
+					try {
+						drawPredictions(overlay);
+					} finally {
+						rowNodes.endOverlay();
 					}
-					canvas.drawPaint(defaultPaint);
-
-					// write the text string starting at 'c' for 'addr' number of characters
-					defaultPaint.setColor(fg);
-					if ((currAttr & VDUBuffer.INVISIBLE) == 0)
-						canvas.drawText(buffer.charArray[buffer.windowBase + l], c,
-							addr, c * charWidth, (l * charHeight) - charTop,
-							defaultPaint);
-
-					// Restore the previous clip region
-					canvas.restore();
-
-					// advance to the next text block with different characteristics
-					c += addr - 1;
-					if (isWideCharacter)
-						c++;
+				} else {
+					rowNodes.clearOverlay();
 				}
+			} else if (echoPredictor.isShowing()) {
+				drawPredictions(canvas);
 			}
 
 			// reset entire-buffer flags
@@ -925,6 +1224,124 @@ public class TerminalBridge implements VDUDisplay {
 			lastDrawnScreenBase = buffer.screenBase;
 		}
 		fullRedraw = false;
+
+		if (rowsDrawn > 0) {
+			metrics.rowsRedrawn.add(rowsDrawn);
+			metrics.draw.recordSince(start);
+		}
+	}
+
+	/**
+	 * Paint one row of the window onto {@code target} with its top edge at
+	 * {@code top}. The caller holds the buffer lock.
+	 */
+	private void drawRow(Canvas target, int l, int top) {
+		boolean isWideCharacter;
+		boolean underlined = false;
+		defaultPaint.setUnderlineText(false);
+
+		// walk through all characters in this line
+		for (int c = 0; c < buffer.width; c++) {
+			int addr = 0;
+			long currAttr = buffer.charAttributes[buffer.windowBase + l][c];
+
+			int style = styleCache.resolve(currAttr, color, defaultFg, defaultBg);
+			int fg = styleCache.getForeground(style);
+			int bg = styleCache.getBackground(style);
+
+			// set underlined attributes if requested
+			boolean underline = styleCache.isUnderlined(style);
+			if (underline != underlined) {
+				defaultPaint.setUnderlineText(underline);
+				underlined = underline;
+			}
+
+			isWideCharacter = (currAttr & VDUBuffer.FULLWIDTH) != 0;
+
+			if (isWideCharacter)
+				addr++;
+			else {
+				// determine the amount of continuous characters with the same settings and print them all at once
+				while (c + addr < buffer.width
+						&& buffer.charAttributes[buffer.windowBase + l][c + addr] == currAttr) {
+					addr++;
+				}
+			}
+
+			// Save the current clip region
+			target.save();
+
+			// clear this dirty area with background color
+			defaultPaint.setColor(bg);
+			if (isWideCharacter) {
+				target.clipRect(c * charWidth,
+						top,
+						(c + 2) * charWidth,
+						top + charHeight);
+			} else {
+				target.clipRect(c * charWidth,
+						top,
+						(c + addr) * charWidth,
+						top + charHeight);
+			}
+			target.drawPaint(defaultPaint);
+
+			// write the text string starting at 'c' for 'addr' number of characters
+			defaultPaint.setColor(fg);
+			if ((currAttr & VDUBuffer.INVISIBLE) == 0)
+				target.drawText(buffer.charArray[buffer.windowBase + l], c,
+					addr, c * charWidth, top - charTop,
+					defaultPaint);
+
+			// Restore the previous clip region
+			target.restore();
+
+			// advance to the next text block with different characteristics
+			c += addr - 1;
+			if (isWideCharacter)
+				c++;
+		}
+
+		if (underlined)
+			defaultPaint.setUnderlineText(false);
+	}
+
+	/**
+	 * Draw predicted keystrokes over the cells they will land in,
+	 * underlined to show they are not confirmed yet.
+	 */
+	private void drawPredictions(Canvas target) {
+		List<EchoPredictor.Prediction> predictions = echoPredictor.getPredictions();
+		for (int i = 0; i < predictions.size(); i++) {
+			EchoPredictor.Prediction p = predictions.get(i);
+			if (!echoPredictor.isShown(p))
+				continue;
+
+			int row = echoPredictor.findRow(p.line);
+			if (row < 0)
+				continue;
+			int l = buffer.screenBase + row - buffer.windowBase;
+			if (l < 0 || l >= buffer.height)
+				continue;
+
+			long attr = buffer.charAttributes[buffer.screenBase + row][p.column];
+			int style = styleCache.resolve(attr, color, defaultFg, defaultBg);
+			int fg = styleCache.getForeground(style);
+			int bg = styleCache.getBackground(style);
+
+			target.save();
+			target.clipRect(p.column * charWidth, l * charHeight,
+					(p.column + 1) * charWidth, (l + 1) * charHeight);
+			defaultPaint.setColor(bg);
+			target.drawPaint(defaultPaint);
+			predictedChar[0] = p.ch;
+			defaultPaint.setColor(fg);
+			defaultPaint.setUnderlineText(true);
+			target.drawText(predictedChar, 0, 1, p.column * charWidth,
+					(l * charHeight) - charTop, defaultPaint);
+			target.restore();
+		}
+		defaultPaint.setUnderlineText(false);
 	}
 
 	public int getLastDrawnWindowBase() {
@@ -952,6 +1369,7 @@ public class TerminalBridge implements VDUDisplay {
 
 	@Override
 	public void redraw() {
+		metrics.redrawRequests.increment();
 		if (parent != null)
 			parent.postInvalidate();
 	}
@@ -1122,8 +1540,10 @@ public class TerminalBridge implements VDUDisplay {
 	@Override
 	public void setColor(int index, int red, int green, int blue) {
 		// Don't allow the system colors to be overwritten for now. May violate specs.
-		if (index < color.length && index >= 16)
+		if (index < color.length && index >= 16) {
 			color[index] = 0xff000000 | red << 16 | green << 8 | blue;
+			invalidateStyles();
+		}
 	}
 
 	@Override
@@ -1133,6 +1553,23 @@ public class TerminalBridge implements VDUDisplay {
 		defaultBg = defaults[1];
 
 		color = manager.colordb.getColorsForScheme(HostDatabase.DEFAULT_COLOR_SCHEME);
+		invalidateStyles();
+	}
+
+	/**
+	 * Drop resolved cell colors after the palette changes. Waits for any
+	 * frame being drawn with the old palette, so none of its colors are
+	 * left behind.
+	 */
+	private void invalidateStyles() {
+		final VDUBuffer b = buffer;
+		if (b == null) {
+			styleCache.clear();
+			return;
+		}
+		synchronized (b) {
+			styleCache.clear();
+		}
 	}
 
 	/**
@@ -1212,6 +1649,21 @@ public class TerminalBridge implements VDUDisplay {
 		return transport.usesNetwork();
 	}
 
+	/**
+	 * @return whether the session carries on across network changes
+	 */
+	public boolean canRoam() {
+		return transport != null && transport.canRoam();
+	}
+
+	/**
+	 * Let the transport move to the current network.
+	 */
+	public void roam() {
+		if (transport != null)
+			transport.roam();
+	}
+
 	/**
 	 * @return
 	 */
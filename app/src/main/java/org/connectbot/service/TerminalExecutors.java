@@ -0,0 +1,245 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Shared thread pools for all bridge lifecycle work, owned by
+ * {@link TerminalManager}. There are three pools:
+ * <ul>
+ * <li>I/O workers for tasks that block for a long time, such as the
+ * {@link Relay} read loop, connecting, or waiting on a prompt.</li>
+ * <li>A small pool for short tasks such as injecting strings or reacting to
+ * connectivity changes.</li>
+ * <li>A single scheduler thread for delayed and periodic work.</li>
+ * </ul>
+ * Worker threads are renamed to the task name while a task runs so they are
+ * still recognizable in stack dumps.
+ */
+public class TerminalExecutors {
+	private static final String TAG = "CB.TerminalExecutors";
+
+	/** Upper bound on I/O workers; each open session uses about two. */
+	private static final int IO_MAX_THREADS = 64;
+
+	private static final int TASK_THREADS = 4;
+
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	private final ThreadPoolExecutor ioExecutor;
+	private final ThreadPoolExecutor taskExecutor;
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	private final AtomicLong ioRejected = new AtomicLong();
+
+	public TerminalExecutors() {
+		ioExecutor = new ThreadPoolExecutor(0, IO_MAX_THREADS,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(),
+				new NamedThreadFactory("CB-IO"));
+
+		taskExecutor = new ThreadPoolExecutor(TASK_THREADS, TASK_THREADS,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new NamedThreadFactory("CB-Task"));
+		taskExecutor.allowCoreThreadTimeOut(true);
+
+		scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("CB-Sched"));
+		scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * Run a task that may block for a long time, such as a read loop. The
+	 * pool never queues, so when every worker is busy the task is not run at
+	 * all and the caller has to give up on what it was starting.
+	 *
+	 * @return false if the task was rejected because all workers are busy or
+	 *         the pool has shut down
+	 */
+	public boolean executeIo(String name, Runnable task) {
+		try {
+			ioExecutor.execute(new NamedTask(name, task));
+			return true;
+		} catch (RejectedExecutionException e) {
+			if (!ioExecutor.isShutdown()) {
+				ioRejected.incrementAndGet();
+				Log.w(TAG, "I/O pool saturated; rejected " + name);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Run a short task on the shared task pool.
+	 */
+	public void executeTask(String name, Runnable task) {
+		taskExecutor.execute(new NamedTask(name, task));
+	}
+
+	/**
+	 * Run a task once after {@code delay} has elapsed. The task runs on the
+	 * scheduler thread and so must not block.
+	 */
+	public ScheduledFuture<?> schedule(String name, Runnable task, long delay, TimeUnit unit) {
+		return scheduler.schedule(new NamedTask(name, task), delay, unit);
+	}
+
+	/**
+	 * Run a task periodically on the scheduler thread. The task must not block.
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(String name, Runnable task, long initialDelay,
+			long period, TimeUnit unit) {
+		return scheduler.scheduleAtFixedRate(new NamedTask(name, task), initialDelay, period, unit);
+	}
+
+	/**
+	 * Create an executor that runs its tasks one at a time, in submission
+	 * order, on the short task pool. Used where ordering matters, such as
+	 * writing pasted text to a single bridge.
+	 */
+	public Executor newSerialExecutor(String name) {
+		return new SerialExecutor(name);
+	}
+
+	/**
+	 * Stop accepting new work and interrupt anything still running.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+		taskExecutor.shutdown();
+		ioExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return human readable summary of thread and queue usage for each pool
+	 */
+	public String getStats() {
+		StringBuilder sb = new StringBuilder();
+		appendStats(sb, "I/O", ioExecutor);
+		sb.append(String.format(Locale.US, "  rejected: %d\n", ioRejected.get()));
+		appendStats(sb, "Tasks", taskExecutor);
+		appendStats(sb, "Scheduler", scheduler);
+		return sb.toString();
+	}
+
+	private static void appendStats(StringBuilder sb, String label, ThreadPoolExecutor executor) {
+		sb.append(String.format(Locale.US,
+				"%s: %d active, %d threads (peak %d, max %d), %d queued, %d completed\n",
+				label,
+				executor.getActiveCount(),
+				executor.getPoolSize(),
+				executor.getLargestPoolSize(),
+				executor.getMaximumPoolSize(),
+				executor.getQueue().size(),
+				executor.getCompletedTaskCount()));
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	private static class NamedTask implements Runnable {
+		private final String name;
+		private final Runnable task;
+
+		NamedTask(String name, Runnable task) {
+			this.name = name;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			Thread current = Thread.currentThread();
+			String oldName = current.getName();
+			current.setName(name);
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Uncaught exception in " + name, e);
+			} finally {
+				current.setName(oldName);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private class SerialExecutor implements Executor {
+		private final String name;
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+		private Runnable active;
+
+		SerialExecutor(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public synchronized void execute(final Runnable r) {
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						r.run();
+					} finally {
+						scheduleNext();
+					}
+				}
+			});
+			if (active == null) {
+				scheduleNext();
+			}
+		}
+
+		private synchronized void scheduleNext() {
+			active = tasks.poll();
+			if (active != null) {
+				executeTask(name, active);
+			}
+		}
+	}
+}
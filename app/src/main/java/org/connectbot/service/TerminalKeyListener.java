@@ -341,7 +341,7 @@ public class TerminalKeyListener implements OnKeyListener, OnSharedPreferenceCha
 	}
 
 	private void writeXtermCsi(String sequence) throws IOException {
-		bridge.transport.write(sequence.getBytes(encoding != null ? encoding : "UTF-8"));
+		bridge.sendKeys(sequence.getBytes(encoding != null ? encoding : "UTF-8"));
 	}
 
 	private void writeXtermModifiedCsi(boolean shift, boolean alt, boolean ctrl, char finalChar)
@@ -387,6 +387,8 @@ public class TerminalKeyListener implements OnKeyListener, OnSharedPreferenceCha
 			if (bridge.isDisconnected() || bridge.transport == null)
 				return false;
 
+			bridge.onInputEvent(event.getEventTime());
+
 			final boolean interpretAsHardKeyboard = deviceHasHardKeyboard &&
 					!manager.hardKeyboardHidden;
 			final boolean rightModifiersAreSlashAndTab = interpretAsHardKeyboard &&
@@ -431,24 +433,24 @@ public class TerminalKeyListener implements OnKeyListener, OnSharedPreferenceCha
 					if (keyCode == KeyEvent.KEYCODE_ALT_RIGHT
 							&& (ourMetaState & OUR_SLASH) != 0) {
 						ourMetaState &= ~OUR_TRANSIENT;
-						bridge.transport.write('/');
+						bridge.sendKey('/');
 						return true;
 					} else if (keyCode == KeyEvent.KEYCODE_SHIFT_RIGHT
 							&& (ourMetaState & OUR_TAB) != 0) {
 						ourMetaState &= ~OUR_TRANSIENT;
-						bridge.transport.write(0x09);
+						bridge.sendKey(0x09);
 						return true;
 					}
 				} else if (leftModifiersAreSlashAndTab) {
 					if (keyCode == KeyEvent.KEYCODE_ALT_LEFT
 							&& (ourMetaState & OUR_SLASH) != 0) {
 						ourMetaState &= ~OUR_TRANSIENT;
-						bridge.transport.write('/');
+						bridge.sendKey('/');
 						return true;
 					} else if (keyCode == KeyEvent.KEYCODE_SHIFT_LEFT
 							&& (ourMetaState & OUR_TAB) != 0) {
 						ourMetaState &= ~OUR_TRANSIENT;
-						bridge.transport.write(0x09);
+						bridge.sendKey(0x09);
 						return true;
 					}
 				}
@@ -472,7 +474,7 @@ public class TerminalKeyListener implements OnKeyListener, OnSharedPreferenceCha
 			if (keyCode == KeyEvent.KEYCODE_UNKNOWN &&
 					event.getAction() == KeyEvent.ACTION_MULTIPLE) {
 				byte[] input = event.getCharacters().getBytes(encoding);
-				bridge.transport.write(input);
+				bridge.sendKeys(input);
 				return true;
 			}
 
@@ -668,10 +670,10 @@ public class TerminalKeyListener implements OnKeyListener, OnSharedPreferenceCha
 				if (isAltPressed(derivedMetaState))
 					sendEscape();
 				if (uchar < 0x80)
-					bridge.transport.write(uchar);
+					bridge.sendKey(uchar);
 				else
 					// TODO write encoding routine that doesn't allocate each time
-					bridge.transport.write(new String(Character.toChars(uchar))
+					bridge.sendKeys(new String(Character.toChars(uchar))
 							.getBytes(encoding));
 				return true;
 			}
@@ -685,7 +687,7 @@ public class TerminalKeyListener implements OnKeyListener, OnSharedPreferenceCha
 				if (shiftPressed) {
 					writeXtermCsi("\u001b[Z");
 				} else {
-					bridge.transport.write(0x09);
+					bridge.sendKey(0x09);
 				}
 				return true;
 			case KeyEvent.KEYCODE_CAMERA:
@@ -695,15 +697,15 @@ public class TerminalKeyListener implements OnKeyListener, OnSharedPreferenceCha
 						PreferenceConstants.CAMERA,
 						PreferenceConstants.CAMERA_CTRLA_SPACE);
 				if (PreferenceConstants.CAMERA_CTRLA_SPACE.equals(camera)) {
-					bridge.transport.write(0x01);
-					bridge.transport.write(' ');
+					bridge.sendKey(0x01);
+					bridge.sendKey(' ');
 				} else if (PreferenceConstants.CAMERA_CTRLA.equals(camera)) {
-					bridge.transport.write(0x01);
+					bridge.sendKey(0x01);
 				} else if (PreferenceConstants.CAMERA_ESC.equals(camera)) {
 					((vt320) buffer).keyTyped(vt320.KEY_ESCAPE, ' ', 0);
 				} else if (PreferenceConstants.CAMERA_ESC_A.equals(camera)) {
 					((vt320) buffer).keyTyped(vt320.KEY_ESCAPE, ' ', 0);
-					bridge.transport.write('a');
+					bridge.sendKey('a');
 				}
 
 				break;
@@ -900,7 +902,7 @@ public class TerminalKeyListener implements OnKeyListener, OnSharedPreferenceCha
 
 	public void sendTab() {
 		try {
-			bridge.transport.write(0x09);
+			bridge.sendKey(0x09);
 		} catch (IOException e) {
 			Log.e(TAG, "Problem while trying to send TAB press.", e);
 			try {
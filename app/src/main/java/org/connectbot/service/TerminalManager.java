@@ -28,13 +28,19 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.connectbot.R;
 import org.connectbot.bean.HostBean;
 import org.connectbot.bean.PubkeyBean;
 import org.connectbot.data.ColorStorage;
 import org.connectbot.data.HostStorage;
+import org.connectbot.transport.CipherPreference;
+import org.connectbot.transport.DnsCache;
+import org.connectbot.transport.SSHConnectionRegistry;
+import org.connectbot.transport.SelectorLoop;
 import org.connectbot.transport.TransportFactory;
+import org.connectbot.util.BitmapPool;
 import org.connectbot.util.HostDatabase;
 import org.connectbot.util.PreferenceConstants;
 import org.connectbot.util.ProviderLoader;
@@ -59,6 +65,7 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
+import android.util.DisplayMetrics;
 import android.util.Log;
 
 import androidx.core.content.ContextCompat;
@@ -101,6 +108,17 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 	private ConnectivityReceiver connectivityManager;
 
+	private final TerminalExecutors executors = new TerminalExecutors();
+
+	private BitmapPool bitmapPool;
+
+	private SelectorLoop selectorLoop;
+
+	private final SSHConnectionRegistry sshConnections = new SSHConnectionRegistry();
+
+	/** throughput to each server measured on the current network, in bytes per second */
+	private final Map<String, Long> linkThroughput = new ConcurrentHashMap<>();
+
 	private MediaPlayer mediaPlayer;
 
 	private Timer pubkeyTimer;
@@ -114,6 +132,9 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 	private boolean wantBellVibration;
 
+	private volatile boolean wantMetricsHud;
+	private volatile boolean wantRowNodes;
+
 	private boolean resizeAllowed = true;
 
 	private boolean savingKeys;
@@ -135,9 +156,14 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 		prefs = PreferenceManager.getDefaultSharedPreferences(this);
 		prefs.registerOnSharedPreferenceChangeListener(this);
+		CipherPreference.runIfNeeded(prefs, executors);
 
 		res = getResources();
 
+		// Hold on to about two screens' worth of spare terminal bitmaps.
+		DisplayMetrics metrics = res.getDisplayMetrics();
+		bitmapPool = new BitmapPool(2L * 4 * metrics.widthPixels * metrics.heightPixels);
+
 		pubkeyTimer = new Timer("pubkeyTimer", true);
 
 		hostdb = HostDatabase.get(this);
@@ -161,6 +187,8 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		wantKeyVibration = prefs.getBoolean(PreferenceConstants.BUMPY_ARROWS, true);
 
 		wantBellVibration = prefs.getBoolean(PreferenceConstants.BELL_VIBRATE, true);
+		wantMetricsHud = prefs.getBoolean(PreferenceConstants.METRICS_HUD, false);
+		wantRowNodes = prefs.getBoolean(PreferenceConstants.ROW_NODES, true);
 		enableMediaPlayer();
 
 		hardKeyboardHidden = (res.getConfiguration().hardKeyboardHidden ==
@@ -208,6 +236,33 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		ConnectionNotifier.getInstance().hideRunningNotification(this);
 
 		disableMediaPlayer();
+
+		synchronized (this) {
+			if (selectorLoop != null) {
+				selectorLoop.shutdown();
+				selectorLoop = null;
+			}
+		}
+
+		executors.shutdown();
+
+		bitmapPool.clear();
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+
+		if (level >= TRIM_MEMORY_RUNNING_LOW)
+			bitmapPool.clear();
+		else if (level >= TRIM_MEMORY_RUNNING_MODERATE)
+			bitmapPool.trimToSize(bitmapPool.getMaxBytes() / 2);
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		bitmapPool.clear();
 	}
 
 	private void notifyAllBridgesColorsChanged() {
@@ -225,6 +280,8 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 	/**
 	 * Disconnect all currently connected bridges.
+	 * @param excludeLocal leave alone bridges that do not need the network,
+	 *        or that can roam to the next one
 	 */
 	public void disconnectAll(final boolean immediate, final boolean excludeLocal) {
 		TerminalBridge[] tmpBridges = null;
@@ -238,7 +295,7 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		if (tmpBridges != null) {
 			// disconnect and dispose of any existing bridges
 			for (TerminalBridge tmpBridge : tmpBridges) {
-				if (excludeLocal && !tmpBridge.isUsingNetwork())
+				if (excludeLocal && (!tmpBridge.isUsingNetwork() || tmpBridge.canRoam()))
 					continue;
 				tmpBridge.dispatchDisconnect(immediate);
 			}
@@ -289,6 +346,11 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		return prefs.getString(PreferenceConstants.EMULATION, "xterm-256color");
 	}
 
+	public String getEchoPrediction() {
+		return prefs.getString(PreferenceConstants.ECHO_PREDICTION,
+				PreferenceConstants.ECHO_PREDICTION_ADAPTIVE);
+	}
+
 	public int getScrollback() {
 		int scrollback = 140;
 		try {
@@ -667,6 +729,18 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 			connectivityManager.setWantWifiLock(lockingWifi);
 		} else if (PreferenceConstants.MEMKEYS.equals(key)) {
 			updateSavingKeys();
+		} else if (PreferenceConstants.METRICS_HUD.equals(key)) {
+			wantMetricsHud = sharedPreferences.getBoolean(
+					PreferenceConstants.METRICS_HUD, false);
+		} else if (PreferenceConstants.ROW_NODES.equals(key)) {
+			wantRowNodes = sharedPreferences.getBoolean(
+					PreferenceConstants.ROW_NODES, true);
+			final ArrayList<TerminalBridge> bridgesSnapshot;
+			synchronized (bridges) {
+				bridgesSnapshot = new ArrayList<>(bridges);
+			}
+			for (TerminalBridge bridge : bridgesSnapshot)
+				bridge.onRendererChanged();
 		}
 	}
 
@@ -694,6 +768,75 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		return resizeAllowed;
 	}
 
+	/**
+	 * @return whether consoles should draw performance counters over the
+	 *         terminal
+	 */
+	public boolean isMetricsHudShown() {
+		return wantMetricsHud;
+	}
+
+	/**
+	 * @return whether consoles should draw each terminal row as its own
+	 *         display list where the device supports it, rather than into
+	 *         a bitmap
+	 */
+	public boolean isRowNodesWanted() {
+		return wantRowNodes;
+	}
+
+	/**
+	 * @return spare terminal bitmaps shared by all bridges
+	 */
+	public BitmapPool getBitmapPool() {
+		return bitmapPool;
+	}
+
+	/**
+	 * @return the shared thread pools used for all bridge background work
+	 */
+	public TerminalExecutors getExecutors() {
+		return executors;
+	}
+
+	/**
+	 * @return the event loop shared by all non-blocking transports, started on
+	 *         first use
+	 * @throws IOException if the selector could not be opened
+	 */
+	public synchronized SelectorLoop getSelectorLoop() throws IOException {
+		if (selectorLoop == null) {
+			SelectorLoop loop = new SelectorLoop();
+			if (!executors.executeIo("SelectorLoop", loop)) {
+				loop.shutdown();
+				throw new IOException("No free worker to run the selector loop");
+			}
+			selectorLoop = loop;
+		}
+		return selectorLoop;
+	}
+
+	/**
+	 * @return authenticated SSH connections that new sessions may share
+	 */
+	public SSHConnectionRegistry getSSHConnections() {
+		return sshConnections;
+	}
+
+	/**
+	 * @param server host and port, as in "example.com:22"
+	 * @return throughput last measured to {@code server} on the current
+	 *         network in bytes per second, or 0 if unknown
+	 */
+	public long getLinkThroughput(String server) {
+		Long throughput = linkThroughput.get(server);
+		return throughput != null ? throughput : 0;
+	}
+
+	public void setLinkThroughput(String server, long bytesPerSecond) {
+		linkThroughput.put(server, bytesPerSecond);
+	}
+
 	public static class KeyHolder {
 		public PubkeyBean bean;
 		public KeyPair pair;
@@ -705,28 +848,61 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 	 * we'll be getting a different connection any time soon.
 	 */
 	public void onConnectivityLost() {
-		final Thread t = new Thread() {
+		DnsCache.getInstance().clear();
+		linkThroughput.clear();
+		executors.executeTask("Disconnector", new Runnable() {
 			@Override
 			public void run() {
 				disconnectAll(false, true);
 			}
-		};
-		t.setName("Disconnector");
-		t.start();
+		});
 	}
 
 	/**
 	 * Called when connectivity to the network is restored.
 	 */
 	public void onConnectivityRestored() {
-		final Thread t = new Thread() {
+		// Lookups and measurements made on the previous network may not be
+		// valid on this one.
+		DnsCache.getInstance().clear();
+		linkThroughput.clear();
+		executors.executeTask("Reconnector", new Runnable() {
 			@Override
 			public void run() {
 				reconnectPending();
+				roamAll();
 			}
-		};
-		t.setName("Reconnector");
-		t.start();
+		});
+	}
+
+	/**
+	 * Called when the active network changed without connectivity being
+	 * lost, such as moving from mobile data to Wi-Fi.
+	 */
+	public void onNetworkChanged() {
+		DnsCache.getInstance().clear();
+		linkThroughput.clear();
+		executors.executeTask("Roamer", new Runnable() {
+			@Override
+			public void run() {
+				roamAll();
+			}
+		});
+	}
+
+	/**
+	 * Move sessions that can roam onto the current network.
+	 */
+	private void roamAll() {
+		List<TerminalBridge> bridgesSnapshot;
+		synchronized (bridges) {
+			bridgesSnapshot = new ArrayList<>(bridges);
+		}
+
+		for (TerminalBridge bridge : bridgesSnapshot) {
+			if (bridge.canRoam())
+				bridge.roam();
+		}
 	}
 
 	/**
@@ -21,8 +21,10 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
+import org.connectbot.R;
 import org.connectbot.bean.HostBean;
 import org.connectbot.bean.PortForwardBean;
+import org.connectbot.service.Relay;
 import org.connectbot.service.TerminalBridge;
 import org.connectbot.service.TerminalManager;
 
@@ -64,6 +66,33 @@ public abstract class AbsTransport {
 		return null;
 	}
 
+	/**
+	 * Print how long each phase of connecting took, along with this host's
+	 * usual times, and fold them into the host's rolling statistics.
+	 * @param remember false if this was not a full connection, such as a
+	 *        session on a connection another bridge set up, so it should
+	 *        not count towards the host's statistics
+	 */
+	void reportConnectTimeline(ConnectTimeline timeline, boolean remember) {
+		Map<String, Long> phases = timeline.getPhases();
+		if (phases.isEmpty())
+			return;
+
+		bridge.outputLine(manager.res.getString(R.string.terminal_timeline_connected,
+				ConnectTimeline.sum(phases), ConnectTimeline.format(phases)));
+
+		if (manager.hostdb == null)
+			return;
+
+		Map<String, Long> usual = manager.hostdb.getConnectTimes(host);
+		if (!usual.isEmpty()) {
+			bridge.outputLine(manager.res.getString(R.string.terminal_timeline_usual,
+					ConnectTimeline.sum(usual), ConnectTimeline.format(usual)));
+		}
+		if (remember)
+			manager.hostdb.saveConnectTimes(host, phases);
+	}
+
 	/**
 	 * Causes transport to connect to the target host. After connecting but before a
 	 * session is started, must call back to {@link TerminalBridge#onConnected()}.
@@ -84,6 +113,18 @@ public abstract class AbsTransport {
 	 */
 	public abstract int read(byte[] buffer, int offset, int length) throws IOException;
 
+	/**
+	 * Offers the transport a {@link Relay} to deliver incoming data to directly,
+	 * for transports that are driven by readiness events rather than a blocking
+	 * {@link #read(byte[], int, int)} loop.
+	 * @param relay relay that decodes incoming data onto the terminal
+	 * @return true if the transport will feed the relay itself, false to have
+	 *         the relay poll {@link #read(byte[], int, int)} on its own thread
+	 */
+	public boolean attachRelay(Relay relay) {
+		return false;
+	}
+
 	/**
 	 * Writes to the transport. If the host is not yet connected, simply return without
 	 * doing anything. An {@link IOException} should be thrown if there is an error after
@@ -211,6 +252,14 @@ public abstract class AbsTransport {
 		return null;
 	}
 
+	/**
+	 * @return human readable statistics about this connection, or null if the
+	 *         transport has nothing to report
+	 */
+	public String getStatistics() {
+		return null;
+	}
+
 	public abstract boolean isConnected();
 	public abstract boolean isSessionOpen();
 
@@ -251,4 +300,19 @@ public abstract class AbsTransport {
 	 * @return
 	 */
 	public abstract boolean usesNetwork();
+
+	/**
+	 * Whether the session survives losing the network and carries on over
+	 * whichever network comes back, rather than being disconnected.
+	 */
+	public boolean canRoam() {
+		return false;
+	}
+
+	/**
+	 * Called when the device may have moved to a different network.
+	 */
+	public void roam() {
+		// do nothing
+	}
 }
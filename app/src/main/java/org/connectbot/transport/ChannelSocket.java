@@ -0,0 +1,80 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import com.trilead.ssh2.LocalStreamForwarder;
+
+/**
+ * Presents a direct-tcpip channel on another SSH connection as a socket, so
+ * a {@link com.trilead.ssh2.ProxyData} can hand it to the library and run a
+ * second SSH handshake through a jump host. Socket options have no meaning
+ * on a channel and are ignored.
+ */
+class ChannelSocket extends Socket {
+	private final LocalStreamForwarder channel;
+	private volatile boolean closed = false;
+
+	ChannelSocket(LocalStreamForwarder channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return channel.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return channel.getOutputStream();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) {
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) {
+	}
+
+	@Override
+	public void setKeepAlive(boolean on) {
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		channel.close();
+	}
+}
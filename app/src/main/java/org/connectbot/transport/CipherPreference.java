@@ -0,0 +1,344 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.connectbot.BuildConfig;
+import org.connectbot.service.TerminalExecutors;
+import org.connectbot.util.PreferenceConstants;
+
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.trilead.ssh2.Connection;
+
+/**
+ * The order ciphers are offered in. Whether AES-GCM, ChaCha20-Poly1305 or
+ * AES-CTR is fastest depends on whether the CPU has AES instructions, so
+ * those are timed once on the device, again after each app upgrade, and
+ * offered fastest first. A host's own preferred cipher goes ahead of them
+ * all. Until the measurement has finished the library's order is used.
+ */
+public class CipherPreference {
+	private static final String TAG = "CB.CipherPreference";
+
+	/** Largest SSH packet payload, so we measure bulk throughput. */
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final long MEASURE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	/** What CTR ciphers pay on top of encryption; the library's first choice of MAC. */
+	private static final String CTR_MAC = "HmacSHA256";
+
+	private static class Algorithm {
+		final String sshName;
+		final String jceName;
+		final int keyLength;
+		final int ivLength;
+
+		Algorithm(String sshName, String jceName, int keyLength, int ivLength) {
+			this.sshName = sshName;
+			this.jceName = jceName;
+			this.keyLength = keyLength;
+			this.ivLength = ivLength;
+		}
+
+		boolean isGcm() {
+			return jceName.contains("GCM");
+		}
+
+		/** authenticated encryption needs no separate MAC */
+		boolean isAead() {
+			return isGcm() || jceName.contains("Poly1305");
+		}
+	}
+
+	private static final Algorithm[] CIPHERS = {
+		new Algorithm("chacha20-poly1305@openssh.com", "ChaCha20/Poly1305/NoPadding", 32, 12),
+		new Algorithm("aes256-gcm@openssh.com", "AES/GCM/NoPadding", 32, 12),
+		new Algorithm("aes128-gcm@openssh.com", "AES/GCM/NoPadding", 16, 12),
+		new Algorithm("aes256-ctr", "AES/CTR/NoPadding", 32, 16),
+		new Algorithm("aes192-ctr", "AES/CTR/NoPadding", 24, 16),
+		new Algorithm("aes128-ctr", "AES/CTR/NoPadding", 16, 16),
+	};
+
+	private CipherPreference() {
+	}
+
+	/**
+	 * Measure the ciphers on an I/O worker unless this version of the app
+	 * already has. If every worker is busy we try again on the next start.
+	 */
+	public static void runIfNeeded(final SharedPreferences prefs, TerminalExecutors executors) {
+		if (prefs.getInt(PreferenceConstants.CIPHER_ORDER_VERSION, -1) == BuildConfig.VERSION_CODE)
+			return;
+
+		executors.executeIo("CipherPreference", new Runnable() {
+			@Override
+			public void run() {
+				Thread thread = Thread.currentThread();
+				int priority = thread.getPriority();
+				thread.setPriority(Thread.MIN_PRIORITY);
+				try {
+					long start = System.nanoTime();
+					String[] order = orderByThroughput(Connection.getAvailableCiphers(), measure());
+					Log.i(TAG, String.format(Locale.US, "Measured in %d ms: %s",
+							TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+							Arrays.toString(order)));
+
+					prefs.edit()
+							.putString(PreferenceConstants.CIPHER_ORDER, TextUtils.join(",", order))
+							.putInt(PreferenceConstants.CIPHER_ORDER_VERSION, BuildConfig.VERSION_CODE)
+							.apply();
+				} finally {
+					thread.setPriority(priority);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param preferred cipher to put first, such as a host's override, or
+	 *        null
+	 * @return ciphers to offer in order of preference, or null to keep the
+	 *         library's default
+	 */
+	public static String[] getCipherOrder(SharedPreferences prefs, String preferred) {
+		String[] available = Connection.getAvailableCiphers();
+		String[] measured = filterAvailable(prefs.getString(PreferenceConstants.CIPHER_ORDER, null), available);
+		String[] order = withPreferred(measured != null ? measured : available, preferred);
+		return order != null ? order : measured;
+	}
+
+	/**
+	 * @return every cipher the SSH library can negotiate
+	 */
+	public static String[] getAvailableCiphers() {
+		return Connection.getAvailableCiphers();
+	}
+
+	/**
+	 * @return {@code available} with {@code preferred} moved to the front, or
+	 *         null if there is no preference or it cannot be negotiated
+	 */
+	static String[] withPreferred(String[] available, String preferred) {
+		if (TextUtils.isEmpty(preferred) || !Arrays.asList(available).contains(preferred))
+			return null;
+
+		List<String> order = new ArrayList<>(Arrays.asList(available));
+		order.remove(preferred);
+		order.add(0, preferred);
+		return order.toArray(new String[0]);
+	}
+
+	/**
+	 * @return the ciphers in {@code saved} that the library still offers, or
+	 *         null if there are none
+	 */
+	private static String[] filterAvailable(String saved, String[] available) {
+		if (TextUtils.isEmpty(saved))
+			return null;
+
+		List<String> availableList = Arrays.asList(available);
+		List<String> order = new ArrayList<>();
+		for (String name : saved.split(",")) {
+			if (availableList.contains(name))
+				order.add(name);
+		}
+		// Anything new in this version of the library goes last.
+		for (String name : available) {
+			if (!order.contains(name))
+				order.add(name);
+		}
+		return order.isEmpty() ? null : order.toArray(new String[0]);
+	}
+
+	/**
+	 * Order {@code available} by {@code throughput}, fastest first. Names we
+	 * did not measure keep their relative order after the measured ones.
+	 */
+	static String[] orderByThroughput(String[] available, final Map<String, Double> throughput) {
+		List<String> order = new ArrayList<>(Arrays.asList(available));
+		// Collections.sort is stable, so ties keep the library's order.
+		Collections.sort(order, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				Double ta = throughput.get(a);
+				Double tb = throughput.get(b);
+				if (ta == null || tb == null)
+					return ta != null ? -1 : tb != null ? 1 : 0;
+				return Double.compare(tb, ta);
+			}
+		});
+		return order.toArray(new String[0]);
+	}
+
+	/**
+	 * Charge ciphers that need a separate MAC for it, so they compare fairly
+	 * with authenticated ciphers.
+	 */
+	static Map<String, Double> withMacCost(Map<String, Double> ciphers, double mac) {
+		Map<String, Double> combined = new HashMap<>();
+		for (Algorithm algorithm : CIPHERS) {
+			Double throughput = ciphers.get(algorithm.sshName);
+			if (throughput == null)
+				continue;
+			if (!algorithm.isAead() && mac > 0)
+				throughput = 1 / (1 / throughput + 1 / mac);
+			combined.put(algorithm.sshName, throughput);
+		}
+		return combined;
+	}
+
+	/**
+	 * @return throughput in MB/s, including the MAC where one is needed, of
+	 *         each cipher the library offers and this device can run
+	 */
+	private static Map<String, Double> measure() {
+		List<String> available = Arrays.asList(Connection.getAvailableCiphers());
+		Map<String, Double> results = new HashMap<>();
+		Map<String, Double> byJceName = new HashMap<>();
+		byte[] buffer = new byte[BUFFER_SIZE];
+
+		for (Algorithm algorithm : CIPHERS) {
+			if (!available.contains(algorithm.sshName))
+				continue;
+
+			// The same JCE cipher and key length costs the same under any name.
+			String jceKey = algorithm.jceName + "/" + algorithm.keyLength;
+			Double throughput = byJceName.get(jceKey);
+			if (throughput == null) {
+				try {
+					throughput = measure(algorithm, buffer);
+				} catch (GeneralSecurityException | RuntimeException e) {
+					Log.d(TAG, "Cannot measure " + algorithm.sshName, e);
+					continue;
+				}
+				byJceName.put(jceKey, throughput);
+			}
+
+			Log.d(TAG, String.format(Locale.US, "%s: %.1f MB/s", algorithm.sshName, throughput));
+			results.put(algorithm.sshName, throughput);
+		}
+
+		double mac = 0;
+		try {
+			mac = measureMac(buffer);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			Log.d(TAG, "Cannot measure " + CTR_MAC, e);
+		}
+		return withMacCost(results, mac);
+	}
+
+	private static double measureMac(byte[] buffer) throws GeneralSecurityException {
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) 0x5a);
+		Mac mac = Mac.getInstance(CTR_MAC);
+		mac.init(new SecretKeySpec(key, CTR_MAC));
+		byte[] digest = new byte[mac.getMacLength()];
+
+		runFor(WARMUP_NANOS, mac, buffer, digest);
+		long start = System.nanoTime();
+		long bytes = runFor(MEASURE_NANOS, mac, buffer, digest);
+		return megabytesPerSecond(bytes, System.nanoTime() - start);
+	}
+
+	private static double measure(Algorithm algorithm, byte[] buffer) throws GeneralSecurityException {
+		byte[] key = new byte[algorithm.keyLength];
+		Arrays.fill(key, (byte) 0x5a);
+
+		String keyAlgorithm = algorithm.jceName.substring(0, algorithm.jceName.indexOf('/'));
+		Cipher cipher = getCipher(algorithm.jceName);
+		SecretKeySpec keySpec = new SecretKeySpec(key, keyAlgorithm);
+		byte[] iv = new byte[algorithm.ivLength];
+		byte[] output = new byte[BUFFER_SIZE + 16];
+
+		runFor(WARMUP_NANOS, algorithm, cipher, keySpec, iv, buffer, output);
+		long start = System.nanoTime();
+		long bytes = runFor(MEASURE_NANOS, algorithm, cipher, keySpec, iv, buffer, output);
+		return megabytesPerSecond(bytes, System.nanoTime() - start);
+	}
+
+	private static long runFor(long nanos, Mac mac, byte[] buffer, byte[] digest)
+			throws GeneralSecurityException {
+		long bytes = 0;
+		long end = System.nanoTime() + nanos;
+		do {
+			mac.update(buffer);
+			mac.doFinal(digest, 0);
+			bytes += buffer.length;
+		} while (System.nanoTime() < end);
+		return bytes;
+	}
+
+	/**
+	 * Providers disagree on the name of ChaCha20-Poly1305; Conscrypt uses the
+	 * transformation form while OpenJDK uses the hyphenated one.
+	 */
+	private static Cipher getCipher(String jceName) throws GeneralSecurityException {
+		try {
+			return Cipher.getInstance(jceName);
+		} catch (GeneralSecurityException e) {
+			if (!jceName.startsWith("ChaCha20/"))
+				throw e;
+			return Cipher.getInstance("ChaCha20-Poly1305");
+		}
+	}
+
+	private static long runFor(long nanos, Algorithm algorithm, Cipher cipher, SecretKeySpec keySpec,
+			byte[] iv, byte[] buffer, byte[] output) throws GeneralSecurityException {
+		long bytes = 0;
+		long end = System.nanoTime() + nanos;
+		do {
+			// Authenticated ciphers refuse to reuse a nonce, so every packet gets the next
+			// one as it would on the wire.
+			for (int i = iv.length - 1; i >= 0 && ++iv[i] == 0; i--)
+				;
+
+			if (algorithm.isGcm())
+				cipher.init(Cipher.ENCRYPT_MODE, keySpec, new GCMParameterSpec(128, iv));
+			else
+				cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+			cipher.doFinal(buffer, 0, buffer.length, output, 0);
+			bytes += buffer.length;
+		} while (System.nanoTime() < end);
+		return bytes;
+	}
+
+	private static double megabytesPerSecond(long bytes, long nanos) {
+		return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+	}
+}
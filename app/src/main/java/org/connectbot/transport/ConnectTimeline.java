@@ -0,0 +1,112 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long each phase of setting up a connection took, in the order the
+ * phases happened. Times come from {@link System#nanoTime()} so clock
+ * changes do not skew them. Phases that wait on the user, such as a host
+ * key or password prompt, include that wait.
+ */
+public class ConnectTimeline {
+	public static final String DNS = "DNS";
+	public static final String TCP = "TCP";
+	public static final String TUNNEL = "tunnel";
+	public static final String KEX = "KEX";
+	public static final String HOST_KEY = "host key";
+	public static final String AUTH = "auth";
+	public static final String SESSION = "session";
+	public static final String PTY = "PTY";
+	public static final String SHELL = "shell";
+
+	/**
+	 * Rolling averages weigh the latest connection at least this much, so
+	 * they follow a host that got slower within a handful of connections.
+	 */
+	static final int AVERAGE_WINDOW = 8;
+
+	private final Map<String, Long> phaseMillis = new LinkedHashMap<>();
+
+	/**
+	 * Add the time since {@code startNanos} to {@code phase}.
+	 */
+	public void record(String phase, long startNanos) {
+		add(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+	}
+
+	public synchronized void add(String phase, long millis) {
+		Long total = phaseMillis.get(phase);
+		phaseMillis.put(phase, total == null ? millis : total + millis);
+	}
+
+	/**
+	 * @return milliseconds spent in {@code phase}, or 0 if it never happened
+	 */
+	public synchronized long getMillis(String phase) {
+		Long millis = phaseMillis.get(phase);
+		return millis == null ? 0 : millis;
+	}
+
+	public synchronized long getTotalMillis() {
+		return sum(phaseMillis);
+	}
+
+	public synchronized Map<String, Long> getPhases() {
+		return new LinkedHashMap<>(phaseMillis);
+	}
+
+	/**
+	 * @return the phases so far, such as "DNS 12 ms, TCP 48 ms, KEX 130 ms"
+	 */
+	public synchronized String format() {
+		return format(phaseMillis);
+	}
+
+	public static String format(Map<String, Long> phases) {
+		StringBuilder sb = new StringBuilder();
+		for (Entry<String, Long> phase : phases.entrySet()) {
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(String.format(Locale.US, "%s %d ms", phase.getKey(), phase.getValue()));
+		}
+		return sb.toString();
+	}
+
+	public static long sum(Map<String, Long> phases) {
+		long total = 0;
+		for (long millis : phases.values())
+			total += millis;
+		return total;
+	}
+
+	/**
+	 * Fold one more sample into a rolling average: a plain mean until there
+	 * are {@link #AVERAGE_WINDOW} samples, then an exponential moving average.
+	 * @param samples how many samples {@code average} already covers
+	 */
+	public static double blend(double average, long samples, long millis) {
+		long weight = Math.min(samples + 1, AVERAGE_WINDOW);
+		return average + (millis - average) / weight;
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.connectbot.service.TerminalExecutors;
+
+import android.util.Log;
+
+/**
+ * Process-wide cache of host name lookups shared by all transports, so
+ * reconnects and hosts resolved ahead of time by the host list skip the DNS
+ * round trip.
+ * <p>
+ * {@link InetAddress} does not expose record TTLs, so answers are kept for
+ * the time given by the standard {@code networkaddress.cache.ttl} and
+ * {@code networkaddress.cache.negative.ttl} security properties, falling back
+ * to {@link #DEFAULT_TTL_SECONDS} and {@link #DEFAULT_NEGATIVE_TTL_SECONDS}.
+ * Failed lookups are cached too. The cache is cleared whenever the network
+ * changes since answers may differ between networks.
+ */
+public class DnsCache {
+	private static final String TAG = "CB.DnsCache";
+
+	static final long DEFAULT_TTL_SECONDS = 60;
+	static final long DEFAULT_NEGATIVE_TTL_SECONDS = 10;
+
+	private static DnsCache instance;
+
+	/**
+	 * Looks up addresses; replaced in tests.
+	 */
+	interface Resolver {
+		InetAddress[] resolve(String hostname) throws UnknownHostException;
+	}
+
+	private final Resolver resolver;
+	private final long ttlNanos;
+	private final long negativeTtlNanos;
+
+	private final Map<String, Entry> entries = new HashMap<>();
+
+	private static class Entry {
+		/** resolved addresses, or null while in flight or after a failure */
+		InetAddress[] addresses;
+		UnknownHostException error;
+		long expiresAt;
+		boolean resolving = true;
+	}
+
+	public static synchronized DnsCache getInstance() {
+		if (instance == null) {
+			instance = new DnsCache(new Resolver() {
+				@Override
+				public InetAddress[] resolve(String hostname) throws UnknownHostException {
+					return InetAddress.getAllByName(hostname);
+				}
+			}, ttlFromProperty("networkaddress.cache.ttl", DEFAULT_TTL_SECONDS),
+					ttlFromProperty("networkaddress.cache.negative.ttl", DEFAULT_NEGATIVE_TTL_SECONDS));
+		}
+		return instance;
+	}
+
+	DnsCache(Resolver resolver, long ttlSeconds, long negativeTtlSeconds) {
+		this.resolver = resolver;
+		this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+		this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+	}
+
+	private static long ttlFromProperty(String name, long defaultSeconds) {
+		try {
+			String value = Security.getProperty(name);
+			if (value != null) {
+				long seconds = Long.parseLong(value.trim());
+				if (seconds >= 0)
+					return seconds;
+			}
+		} catch (NumberFormatException | SecurityException e) {
+			Log.d(TAG, "Ignoring bad " + name, e);
+		}
+		return defaultSeconds;
+	}
+
+	private static String key(String hostname) {
+		return hostname.toLowerCase(Locale.US);
+	}
+
+	/**
+	 * Resolve {@code hostname}, answering from the cache when possible. If a
+	 * lookup for the same name is already running, wait for it instead of
+	 * starting another one.
+	 */
+	public InetAddress[] resolve(String hostname) throws UnknownHostException {
+		final String key = key(hostname);
+		Entry entry;
+
+		synchronized (entries) {
+			entry = entries.get(key);
+			while (entry != null && entry.resolving) {
+				try {
+					entries.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new UnknownHostException("Interrupted while resolving " + hostname);
+				}
+				entry = entries.get(key);
+			}
+
+			if (entry != null && System.nanoTime() - entry.expiresAt < 0) {
+				if (entry.error != null)
+					throw entry.error;
+				return entry.addresses.clone();
+			}
+
+			entry = new Entry();
+			entries.put(key, entry);
+		}
+
+		return lookup(hostname, entry);
+	}
+
+	/**
+	 * Start resolving {@code hostname} in the background unless a fresh
+	 * answer is already cached or a lookup is running.
+	 */
+	public void prefetch(final String hostname, TerminalExecutors executors) {
+		synchronized (entries) {
+			Entry existing = entries.get(key(hostname));
+			if (existing != null && (existing.resolving || System.nanoTime() - existing.expiresAt < 0))
+				return;
+		}
+
+		executors.executeIo("DnsPrefetch", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					resolve(hostname);
+				} catch (UnknownHostException e) {
+					Log.d(TAG, "Prefetch of " + hostname + " failed", e);
+				}
+			}
+		});
+	}
+
+	private InetAddress[] lookup(String hostname, Entry entry) throws UnknownHostException {
+		long start = System.nanoTime();
+		InetAddress[] addresses = null;
+		UnknownHostException error = null;
+
+		try {
+			addresses = resolver.resolve(hostname);
+		} catch (UnknownHostException e) {
+			error = e;
+		} finally {
+			long now = System.nanoTime();
+			if (addresses == null && error == null)
+				error = new UnknownHostException("Lookup of " + hostname + " failed");
+
+			Log.d(TAG, String.format(Locale.US, "Resolved %s in %d ms%s", hostname,
+					TimeUnit.NANOSECONDS.toMillis(now - start), error != null ? " (failed)" : ""));
+
+			synchronized (entries) {
+				entry.addresses = addresses;
+				entry.error = error;
+				entry.expiresAt = now + (error != null ? negativeTtlNanos : ttlNanos);
+				entry.resolving = false;
+				entries.notifyAll();
+			}
+		}
+
+		if (error != null)
+			throw error;
+		return addresses.clone();
+	}
+
+	/**
+	 * Forget any answer for {@code hostname}, for example after none of its
+	 * addresses could be reached.
+	 */
+	public void invalidate(String hostname) {
+		synchronized (entries) {
+			Entry entry = entries.get(key(hostname));
+			if (entry != null && !entry.resolving)
+				entries.remove(key(hostname));
+		}
+	}
+
+	/**
+	 * Forget every answer, for example when the active network changes.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			// Keep in-flight lookups so their waiters are still woken up.
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				if (!it.next().resolving)
+					it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,334 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.connectbot.service.TerminalExecutors;
+
+import android.util.Log;
+
+/**
+ * Connects to a host using the "Happy Eyeballs" algorithm from RFC 8305.
+ * Connection attempts to the resolved addresses are started in turn,
+ * alternating between IPv6 and IPv4, each one
+ * {@link #ATTEMPT_DELAY_MS} after the last or as soon as the last one
+ * fails. The first attempt to connect wins and the others are cancelled, so
+ * a broken address family costs a fraction of a second instead of a full
+ * TCP timeout.
+ */
+public final class HappyEyeballs {
+	private static final String TAG = "CB.HappyEyeballs";
+
+	/** Connection Attempt Delay recommended by RFC 8305 section 5. */
+	static final long ATTEMPT_DELAY_MS = 250;
+
+	/**
+	 * Creates and connects one kind of socket.
+	 */
+	public interface Connector<T extends Closeable> {
+		T create() throws IOException;
+		void connect(T socket, InetSocketAddress address, int timeoutMs) throws IOException;
+	}
+
+	/** Blocking {@link Socket}s, as used by the SSH library. */
+	public static final Connector<Socket> SOCKET = new Connector<Socket>() {
+		@Override
+		public Socket create() {
+			return new Socket();
+		}
+
+		@Override
+		public void connect(Socket socket, InetSocketAddress address, int timeoutMs) throws IOException {
+			socket.connect(address, timeoutMs);
+		}
+	};
+
+	/** {@link SocketChannel}s in blocking mode; callers may switch them to non-blocking. */
+	public static final Connector<SocketChannel> SOCKET_CHANNEL = new Connector<SocketChannel>() {
+		@Override
+		public SocketChannel create() throws IOException {
+			return SocketChannel.open();
+		}
+
+		@Override
+		public void connect(SocketChannel channel, InetSocketAddress address, int timeoutMs) throws IOException {
+			channel.socket().connect(address, timeoutMs);
+		}
+	};
+
+	private HappyEyeballs() {
+	}
+
+	/**
+	 * Resolve {@code hostname} through the {@link DnsCache} and connect to the
+	 * first address that answers. Blocks the calling thread; the attempts
+	 * themselves run on I/O workers. If no address answers, the cached
+	 * lookup is dropped so the next try resolves again.
+	 * @param timeoutMs overall time limit, or 0 for none
+	 */
+	public static <T extends Closeable> T connect(TerminalExecutors executors, String hostname,
+			int port, int timeoutMs, Connector<T> connector) throws IOException {
+		return connect(executors, hostname, port, timeoutMs, connector, null);
+	}
+
+	/**
+	 * As {@link #connect(TerminalExecutors, String, int, int, Connector)},
+	 * adding the time spent resolving and connecting to {@code timeline}.
+	 */
+	public static <T extends Closeable> T connect(TerminalExecutors executors, String hostname,
+			int port, int timeoutMs, Connector<T> connector, ConnectTimeline timeline)
+			throws IOException {
+		DnsCache dnsCache = DnsCache.getInstance();
+		long start = System.nanoTime();
+		InetAddress[] addresses = dnsCache.resolve(hostname);
+		if (timeline != null)
+			timeline.record(ConnectTimeline.DNS, start);
+
+		start = System.nanoTime();
+		try {
+			T connection = connect(executors, addresses, port, timeoutMs, connector);
+			if (timeline != null)
+				timeline.record(ConnectTimeline.TCP, start);
+			return connection;
+		} catch (IOException e) {
+			dnsCache.invalidate(hostname);
+			throw e;
+		}
+	}
+
+	/**
+	 * Connect to the first of {@code addresses} that answers.
+	 * @param timeoutMs overall time limit, or 0 for none
+	 */
+	public static <T extends Closeable> T connect(TerminalExecutors executors, InetAddress[] addresses,
+			int port, int timeoutMs, Connector<T> connector) throws IOException {
+		if (addresses.length == 0)
+			throw new IOException("No addresses to connect to");
+
+		return new Race<>(executors, sortAddresses(addresses), port, timeoutMs, connector).run();
+	}
+
+	/**
+	 * Order addresses as described in RFC 8305 section 4: keep the resolver's
+	 * order within each family, start with the family of the first address
+	 * and then alternate between families.
+	 */
+	static List<InetAddress> sortAddresses(InetAddress[] addresses) {
+		List<InetAddress> first = new ArrayList<>();
+		List<InetAddress> second = new ArrayList<>();
+		boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+
+		for (InetAddress address : addresses) {
+			if ((address instanceof Inet6Address) == firstIsV6)
+				first.add(address);
+			else
+				second.add(address);
+		}
+
+		List<InetAddress> sorted = new ArrayList<>(addresses.length);
+		for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+			if (i < first.size())
+				sorted.add(first.get(i));
+			if (i < second.size())
+				sorted.add(second.get(i));
+		}
+		return sorted;
+	}
+
+	private static String describe(InetAddress address) {
+		return (address instanceof Inet6Address ? "IPv6 " : "IPv4 ") + address.getHostAddress();
+	}
+
+	private static void closeQuietly(Closeable socket) {
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * One connection race. Attempts report back through {@link #results}.
+	 */
+	private static class Race<T extends Closeable> {
+		private final TerminalExecutors executors;
+		private final List<InetAddress> addresses;
+		private final int port;
+		private final int timeoutMs;
+		private final Connector<T> connector;
+
+		private final LinkedBlockingQueue<Attempt> results = new LinkedBlockingQueue<>();
+		private final List<Attempt> attempts = new ArrayList<>();
+		private final long startTime = System.nanoTime();
+
+		/** set once a winner is picked; guarded by {@link #attempts} */
+		private boolean finished = false;
+
+		Race(TerminalExecutors executors, List<InetAddress> addresses, int port, int timeoutMs,
+				Connector<T> connector) {
+			this.executors = executors;
+			this.addresses = addresses;
+			this.port = port;
+			this.timeoutMs = timeoutMs;
+			this.connector = connector;
+		}
+
+		T run() throws IOException {
+			IOException lastError = null;
+			int failed = 0;
+
+			try {
+				startNextAttempt();
+
+				while (failed < addresses.size()) {
+					long wait;
+					if (attempts.size() < addresses.size())
+						wait = ATTEMPT_DELAY_MS;
+					else if (timeoutMs > 0)
+						wait = timeoutMs - elapsedMs();
+					else
+						wait = Long.MAX_VALUE;
+
+					if (wait <= 0)
+						break;
+
+					Attempt done = results.poll(wait, TimeUnit.MILLISECONDS);
+					if (done == null) {
+						if (timeoutMs > 0 && elapsedMs() >= timeoutMs)
+							break;
+						startNextAttempt();
+						continue;
+					}
+
+					if (done.error == null) {
+						Log.d(TAG, String.format(Locale.US, "Connected to %s port %d after %d ms (attempt %d of %d)",
+								describe(done.address), port, elapsedMs(), done.index + 1, attempts.size()));
+						cancelOthers(done);
+						return done.socket;
+					}
+
+					failed++;
+					lastError = done.error;
+					startNextAttempt();
+				}
+			} catch (InterruptedException e) {
+				cancelOthers(null);
+				throw new InterruptedIOException("Interrupted while connecting");
+			}
+
+			cancelOthers(null);
+			if (failed < addresses.size() || lastError == null)
+				throw new SocketTimeoutException("Could not connect; timed out after " + elapsedMs() + " ms");
+			throw lastError;
+		}
+
+		private long elapsedMs() {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+		}
+
+		private void startNextAttempt() {
+			final Attempt attempt;
+			synchronized (attempts) {
+				if (attempts.size() >= addresses.size())
+					return;
+				attempt = new Attempt(attempts.size(), addresses.get(attempts.size()));
+				attempts.add(attempt);
+			}
+
+			Log.d(TAG, String.format(Locale.US, "Attempt %d: %s port %d started at %d ms",
+					attempt.index + 1, describe(attempt.address), port, elapsedMs()));
+			if (!executors.executeIo("HappyEyeballs", attempt)) {
+				attempt.error = new IOException("No free worker to connect on");
+				results.add(attempt);
+			}
+		}
+
+		/**
+		 * Close every attempt except {@code winner}. Attempts that connect
+		 * after this close their own socket.
+		 */
+		private void cancelOthers(Attempt winner) {
+			synchronized (attempts) {
+				finished = true;
+				for (Attempt attempt : attempts) {
+					if (attempt != winner && attempt.socket != null)
+						closeQuietly(attempt.socket);
+				}
+			}
+		}
+
+		private class Attempt implements Runnable {
+			final int index;
+			final InetAddress address;
+			volatile T socket;
+			volatile IOException error;
+
+			Attempt(int index, InetAddress address) {
+				this.index = index;
+				this.address = address;
+			}
+
+			@Override
+			public void run() {
+				long attemptStart = System.nanoTime();
+				try {
+					T s = connector.create();
+					synchronized (attempts) {
+						socket = s;
+						if (finished) {
+							closeQuietly(s);
+							return;
+						}
+					}
+
+					connector.connect(s, new InetSocketAddress(address, port),
+							timeoutMs > 0 ? timeoutMs : 0);
+
+					synchronized (attempts) {
+						if (finished) {
+							Log.d(TAG, String.format(Locale.US, "Attempt %d: %s connected too late; closing",
+									index + 1, describe(address)));
+							closeQuietly(s);
+							return;
+						}
+					}
+				} catch (IOException e) {
+					error = e;
+					Log.d(TAG, String.format(Locale.US, "Attempt %d: %s failed after %d ms: %s",
+							index + 1, describe(address),
+							TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - attemptStart),
+							e.getMessage()));
+				}
+				results.add(this);
+			}
+		}
+	}
+}
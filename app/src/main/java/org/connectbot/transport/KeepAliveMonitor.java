@@ -0,0 +1,127 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.connectbot.util.LatencyHistogram;
+
+import android.util.Log;
+
+/**
+ * Sends a keep-alive probe on every {@link #run()} and measures how long the
+ * reply takes. Meant to be run periodically from the shared scheduler; the
+ * probes themselves block and so run on {@code probeExecutor}. A probe still
+ * unanswered when the next one is due counts as missed, and after
+ * {@code maxMissed} of those in a row the peer is reported dead.
+ */
+class KeepAliveMonitor implements Runnable {
+	private static final String TAG = "CB.KeepAlive";
+
+	/**
+	 * The connection being kept alive.
+	 */
+	interface Peer {
+		/**
+		 * Send a probe.
+		 * @return true if this blocked until the peer replied, false if it
+		 *         only sent traffic without waiting
+		 */
+		boolean ping() throws IOException;
+
+		/**
+		 * Called once when {@code missed} probes in a row went unanswered.
+		 */
+		void onPeerDead(int missed);
+	}
+
+	private final Peer peer;
+	private final Executor probeExecutor;
+	private final int maxMissed;
+	private final LatencyHistogram rtt;
+
+	/** start time of the outstanding probe, or 0 if none; guarded by this */
+	private long probeStart = 0;
+	private int missed = 0;
+	private boolean dead = false;
+
+	KeepAliveMonitor(Peer peer, Executor probeExecutor, int maxMissed, LatencyHistogram rtt) {
+		this.peer = peer;
+		this.probeExecutor = probeExecutor;
+		this.maxMissed = maxMissed;
+		this.rtt = rtt;
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			if (dead)
+				return;
+
+			if (probeStart != 0) {
+				missed++;
+				Log.d(TAG, "Keep-alive not answered; " + missed + " missed in a row");
+				if (missed < maxMissed)
+					return;
+				dead = true;
+			} else {
+				probeStart = System.nanoTime();
+			}
+		}
+
+		if (dead) {
+			peer.onPeerDead(maxMissed);
+			return;
+		}
+
+		probeExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				probe();
+			}
+		});
+	}
+
+	private void probe() {
+		boolean replied = false;
+		try {
+			replied = peer.ping();
+		} catch (IOException e) {
+			Log.d(TAG, "Keep-alive failed", e);
+		} catch (IllegalStateException e) {
+			Log.d(TAG, "Keep-alive sent on a closed connection", e);
+		}
+
+		synchronized (this) {
+			if (replied) {
+				rtt.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - probeStart));
+				missed = 0;
+			}
+			probeStart = 0;
+		}
+	}
+
+	/**
+	 * @return number of probes in a row that have gone unanswered so far
+	 */
+	synchronized int getMissed() {
+		return missed;
+	}
+}
@@ -75,7 +75,9 @@ public class Local extends AbsTransport {
 				is.close();
 				is = null;
 			}
-			killer.killProcess(shellPid);
+			// Never started; pid 0 would be our own process group.
+			if (shellPid > 0)
+				killer.killProcess(shellPid);
 		} catch (IOException e) {
 			Log.e(TAG, "Couldn't close shell", e);
 		}
@@ -103,10 +105,12 @@ public class Local extends AbsTransport {
 			}
 		};
 
-		Thread exitWatcherThread = new Thread(exitWatcher);
-		exitWatcherThread.setName("LocalExitWatcher");
-		exitWatcherThread.setDaemon(true);
-		exitWatcherThread.start();
+		if (!manager.getExecutors().executeIo("LocalExitWatcher", exitWatcher)) {
+			bridge.outputLine(manager.res.getString(R.string.terminal_workers_busy));
+			close();
+			bridge.dispatchDisconnect(false);
+			return;
+		}
 
 		is = new FileInputStream(shellFd);
 		os = new FileOutputStream(shellFd);
@@ -0,0 +1,355 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.connectbot.R;
+import org.connectbot.bean.HostBean;
+import org.connectbot.service.Relay;
+import org.connectbot.service.TerminalBridge;
+import org.connectbot.service.TerminalManager;
+import org.connectbot.util.HostDatabase;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Base64;
+import android.util.Log;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Session;
+
+/**
+ * Mosh transport: logs in over SSH to start {@code mosh-server}, then talks
+ * to it over UDP with {@link MoshSession}. The server sends screen updates
+ * rather than a byte stream, so a keystroke never waits behind old output,
+ * and the session survives changes of network and address.
+ */
+public class Mosh extends AbsTransport {
+	private static final String TAG = "CB.Mosh";
+	private static final String PROTOCOL = "mosh";
+
+	/** SSH port used to start the server. */
+	private static final int DEFAULT_PORT = 22;
+
+	private static final String SERVER_COMMAND = "mosh-server new -s -c 256 -l LANG=en_US.UTF-8";
+
+	private static final Pattern CONNECT_LINE = Pattern.compile(
+			"^MOSH CONNECT (\\d+) ([A-Za-z0-9/+]{22})\\s*$", Pattern.MULTILINE);
+
+	private static final long SERVER_START_TIMEOUT_MS = 20000;
+
+	private MoshSession session;
+	private Relay relay;
+
+	private int columns = 80;
+	private int rows = 24;
+
+	private volatile boolean connected = false;
+	private volatile boolean closed = false;
+
+	public Mosh() {
+		super();
+	}
+
+	public Mosh(HostBean host, TerminalBridge bridge, TerminalManager manager) {
+		super(host, bridge, manager);
+	}
+
+	public static String getProtocolName() {
+		return PROTOCOL;
+	}
+
+	@Override
+	public void connect() {
+		// Log in with everything the SSH transport knows, from host key
+		// checks to jump hosts, but stop short of opening a shell.
+		SSH ssh = new SSH(host, bridge, manager);
+		ssh.setCarrierOnly();
+		ssh.connect();
+		if (!ssh.isAuthenticated()) {
+			ssh.close();
+			bridge.dispatchDisconnect(false);
+			return;
+		}
+
+		bridge.outputLine(manager.res.getString(R.string.terminal_mosh_starting));
+		String output;
+		InetAddress address = ssh.getRemoteAddress();
+		try {
+			output = startServer(ssh);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not start mosh-server", e);
+			output = e.getMessage();
+		} finally {
+			ssh.close();
+		}
+
+		Matcher matcher = CONNECT_LINE.matcher(output == null ? "" : output);
+		if (!matcher.find()) {
+			bridge.outputLine(manager.res.getString(R.string.terminal_mosh_failed));
+			if (output != null) {
+				for (String line : output.split("\r?\n"))
+					bridge.outputLine(line);
+			}
+			bridge.dispatchDisconnect(false);
+			return;
+		}
+
+		int port = Integer.parseInt(matcher.group(1));
+		byte[] key = Base64.decode(matcher.group(2) + "==", Base64.DEFAULT);
+
+		try {
+			// Through a jump host we never learned the address; ask DNS.
+			if (address == null)
+				address = InetAddress.getByName(host.getHostname());
+
+			session = new MoshSession(key, new InetSocketAddress(address, port),
+					manager.getSelectorLoop(), manager.getExecutors(), new MoshSession.Listener() {
+				@Override
+				public void onHostBytes(byte[] data) {
+					// The relay only queues this; mosh paces itself on acks, so
+					// there is no read to throttle when the terminal lags.
+					Relay r = relay;
+					if (r != null)
+						r.onDataReceived(data, 0, data.length);
+				}
+
+				@Override
+				public void onEchoAck(long num) {
+				}
+			});
+		} catch (IOException | GeneralSecurityException e) {
+			Log.e(TAG, "Could not set up mosh session", e);
+			bridge.outputLine(manager.res.getString(R.string.terminal_mosh_failed));
+			bridge.dispatchDisconnect(false);
+			return;
+		}
+
+		bridge.outputLine(manager.res.getString(R.string.terminal_mosh_connecting,
+				address.getHostAddress(), port));
+
+		synchronized (this) {
+			if (closed)
+				return;
+			session.resize(columns, rows);
+			connected = true;
+		}
+
+		// Attaches the relay and sends the real window size before we start.
+		bridge.onConnected();
+
+		try {
+			session.start();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not open mosh socket", e);
+			close();
+			bridge.dispatchDisconnect(false);
+		}
+	}
+
+	/**
+	 * Run mosh-server and collect what it prints until it reports the port
+	 * and key to connect with, or gives up.
+	 */
+	private String startServer(SSH ssh) throws IOException {
+		Session exec = ssh.execCommand(SERVER_COMMAND);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] chunk = new byte[1024];
+			long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT_MS;
+
+			while (true) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+
+				int conditions = exec.waitForCondition(ChannelCondition.STDOUT_DATA
+						| ChannelCondition.STDERR_DATA | ChannelCondition.EOF
+						| ChannelCondition.CLOSED, remaining);
+				if ((conditions & ChannelCondition.TIMEOUT) != 0)
+					break;
+
+				boolean data = false;
+				if ((conditions & ChannelCondition.STDOUT_DATA) != 0)
+					data |= drain(exec.getStdout(), chunk, out);
+				if ((conditions & ChannelCondition.STDERR_DATA) != 0)
+					data |= drain(exec.getStderr(), chunk, out);
+
+				if (CONNECT_LINE.matcher(out.toString("UTF-8")).find())
+					break;
+				if (!data && (conditions & (ChannelCondition.EOF | ChannelCondition.CLOSED)) != 0)
+					break;
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			exec.close();
+		}
+	}
+
+	private static boolean drain(InputStream in, byte[] chunk, ByteArrayOutputStream out) throws IOException {
+		boolean read = false;
+		while (in.available() > 0) {
+			int n = in.read(chunk);
+			if (n <= 0)
+				break;
+			out.write(chunk, 0, n);
+			read = true;
+		}
+		return read;
+	}
+
+	@Override
+	public boolean attachRelay(Relay relay) {
+		this.relay = relay;
+		return true;
+	}
+
+	@Override
+	public int read(byte[] buffer, int start, int len) throws IOException {
+		// Incoming data is pushed to the relay from the selector loop.
+		throw new IOException("Mosh data is delivered by the selector loop");
+	}
+
+	@Override
+	public void write(byte[] buffer) throws IOException {
+		MoshSession s = session;
+		if (s != null && connected)
+			s.sendKeys(Arrays.copyOf(buffer, buffer.length));
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		write(new byte[] { (byte) c });
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// Keystrokes are sent by the session as soon as it may.
+	}
+
+	@Override
+	public void close() {
+		MoshSession s;
+		synchronized (this) {
+			closed = true;
+			connected = false;
+			s = session;
+		}
+		if (s != null)
+			s.close();
+	}
+
+	@Override
+	public synchronized void setDimensions(int columns, int rows, int width, int height) {
+		if (columns == this.columns && rows == this.rows)
+			return;
+
+		this.columns = columns;
+		this.rows = rows;
+		if (connected)
+			session.resize(columns, rows);
+	}
+
+	@Override
+	public boolean canRoam() {
+		return true;
+	}
+
+	@Override
+	public void roam() {
+		MoshSession s = session;
+		if (s != null && connected)
+			s.roam();
+	}
+
+	@Override
+	public String getStatistics() {
+		MoshSession s = session;
+		if (s == null || !connected)
+			return null;
+
+		return manager.res.getString(R.string.stats_mosh, s.getRttMillis(),
+				s.getSilenceMillis() / 1000.0);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	@Override
+	public boolean isSessionOpen() {
+		return connected;
+	}
+
+	@Override
+	public int getDefaultPort() {
+		return DEFAULT_PORT;
+	}
+
+	@Override
+	public String getDefaultNickname(String username, String hostname, int port) {
+		if (port == DEFAULT_PORT) {
+			return String.format(Locale.US, "%s@%s", username, hostname);
+		} else {
+			return String.format(Locale.US, "%s@%s:%d", username, hostname, port);
+		}
+	}
+
+	public static Uri getUri(String input) {
+		// Same user@host:port form as SSH, which does the bootstrapping.
+		Uri uri = SSH.getUri(input);
+		if (uri == null)
+			return null;
+		return uri.buildUpon().scheme(PROTOCOL).build();
+	}
+
+	@Override
+	public HostBean createHost(Uri uri) {
+		HostBean host = new SSH().createHost(uri);
+		host.setProtocol(PROTOCOL);
+		return host;
+	}
+
+	@Override
+	public void getSelectionArgs(Uri uri, Map<String, String> selection) {
+		new SSH().getSelectionArgs(uri, selection);
+		selection.put(HostDatabase.FIELD_HOST_PROTOCOL, PROTOCOL);
+	}
+
+	public static String getFormatHint(Context context) {
+		return SSH.getFormatHint(context);
+	}
+
+	@Override
+	public boolean usesNetwork() {
+		return true;
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-128 in OCB mode (RFC 7253) with a 96-bit nonce and 128-bit tag, as
+ * mosh uses to seal its datagrams. The platform has no OCB provider, so it
+ * is built here on raw AES blocks. Not thread-safe.
+ */
+class MoshCrypto {
+	static final int KEY_LENGTH = 16;
+	static final int NONCE_LENGTH = 12;
+	static final int TAG_LENGTH = 16;
+
+	private static final int BLOCK = 16;
+
+	private final Cipher encipher;
+	private final Cipher decipher;
+
+	/** L_*, L_$ and L_0, L_1, ... as in the RFC */
+	private final byte[] lStar;
+	private final byte[] lDollar;
+	private final byte[][] l = new byte[32][];
+
+	private final byte[] offset = new byte[BLOCK];
+	private final byte[] checksum = new byte[BLOCK];
+	private final byte[] block = new byte[BLOCK];
+
+	MoshCrypto(byte[] key) throws GeneralSecurityException {
+		if (key.length != KEY_LENGTH)
+			throw new GeneralSecurityException("OCB key must be 128 bits");
+
+		SecretKeySpec spec = new SecretKeySpec(key, "AES");
+		encipher = Cipher.getInstance("AES/ECB/NoPadding");
+		encipher.init(Cipher.ENCRYPT_MODE, spec);
+		decipher = Cipher.getInstance("AES/ECB/NoPadding");
+		decipher.init(Cipher.DECRYPT_MODE, spec);
+
+		lStar = aes(new byte[BLOCK]);
+		lDollar = twice(lStar);
+		l[0] = twice(lDollar);
+		for (int i = 1; i < l.length; i++)
+			l[i] = twice(l[i - 1]);
+	}
+
+	/**
+	 * @return ciphertext followed by the tag
+	 */
+	byte[] encrypt(byte[] nonce, byte[] plaintext, int start, int length) throws GeneralSecurityException {
+		byte[] out = new byte[length + TAG_LENGTH];
+		initOffset(nonce);
+		Arrays.fill(checksum, (byte) 0);
+
+		int full = length / BLOCK;
+		for (int i = 0; i < full; i++) {
+			xorInto(offset, l[Integer.numberOfTrailingZeros(i + 1)], 0);
+			int at = start + i * BLOCK;
+			for (int j = 0; j < BLOCK; j++) {
+				checksum[j] ^= plaintext[at + j];
+				block[j] = (byte) (plaintext[at + j] ^ offset[j]);
+			}
+			encipher.doFinal(block, 0, BLOCK, block, 0);
+			for (int j = 0; j < BLOCK; j++)
+				out[i * BLOCK + j] = (byte) (block[j] ^ offset[j]);
+		}
+
+		int tail = length - full * BLOCK;
+		if (tail > 0) {
+			xorInto(offset, lStar, 0);
+			byte[] pad = aes(offset);
+			int at = start + full * BLOCK;
+			for (int j = 0; j < tail; j++) {
+				checksum[j] ^= plaintext[at + j];
+				out[full * BLOCK + j] = (byte) (plaintext[at + j] ^ pad[j]);
+			}
+			checksum[tail] ^= (byte) 0x80;
+		}
+
+		byte[] tag = computeTag();
+		System.arraycopy(tag, 0, out, length, TAG_LENGTH);
+		return out;
+	}
+
+	/**
+	 * @return the plaintext
+	 * @throws BadPaddingException if the ciphertext is not authentic
+	 */
+	byte[] decrypt(byte[] nonce, byte[] sealed, int start, int length) throws GeneralSecurityException {
+		if (length < TAG_LENGTH)
+			throw new BadPaddingException("Ciphertext shorter than tag");
+
+		int textLength = length - TAG_LENGTH;
+		byte[] out = new byte[textLength];
+		initOffset(nonce);
+		Arrays.fill(checksum, (byte) 0);
+
+		int full = textLength / BLOCK;
+		for (int i = 0; i < full; i++) {
+			xorInto(offset, l[Integer.numberOfTrailingZeros(i + 1)], 0);
+			int at = start + i * BLOCK;
+			for (int j = 0; j < BLOCK; j++)
+				block[j] = (byte) (sealed[at + j] ^ offset[j]);
+			decipher.doFinal(block, 0, BLOCK, block, 0);
+			for (int j = 0; j < BLOCK; j++) {
+				byte p = (byte) (block[j] ^ offset[j]);
+				out[i * BLOCK + j] = p;
+				checksum[j] ^= p;
+			}
+		}
+
+		int tail = textLength - full * BLOCK;
+		if (tail > 0) {
+			xorInto(offset, lStar, 0);
+			byte[] pad = aes(offset);
+			int at = start + full * BLOCK;
+			for (int j = 0; j < tail; j++) {
+				byte p = (byte) (sealed[at + j] ^ pad[j]);
+				out[full * BLOCK + j] = p;
+				checksum[j] ^= p;
+			}
+			checksum[tail] ^= (byte) 0x80;
+		}
+
+		byte[] tag = computeTag();
+		byte[] received = Arrays.copyOfRange(sealed, start + textLength, start + length);
+		if (!MessageDigest.isEqual(tag, received))
+			throw new BadPaddingException("OCB tag mismatch");
+		return out;
+	}
+
+	/**
+	 * Offset_0 from the nonce. Only the 96-bit nonce and 128-bit tag mosh
+	 * uses are supported, which fixes the leading bits of the nonce block.
+	 */
+	private void initOffset(byte[] nonce) throws GeneralSecurityException {
+		if (nonce.length != NONCE_LENGTH)
+			throw new GeneralSecurityException("OCB nonce must be 96 bits");
+
+		byte[] n = new byte[BLOCK];
+		n[3] = 1;
+		System.arraycopy(nonce, 0, n, BLOCK - NONCE_LENGTH, NONCE_LENGTH);
+		int bottom = n[BLOCK - 1] & 0x3f;
+		n[BLOCK - 1] &= (byte) 0xc0;
+
+		byte[] ktop = aes(n);
+		byte[] stretch = new byte[BLOCK + 8];
+		System.arraycopy(ktop, 0, stretch, 0, BLOCK);
+		for (int i = 0; i < 8; i++)
+			stretch[BLOCK + i] = (byte) (ktop[i] ^ ktop[i + 1]);
+
+		// Offset_0 is bits bottom .. bottom + 127 of the stretch.
+		int byteShift = bottom / 8;
+		int bitShift = bottom % 8;
+		for (int i = 0; i < BLOCK; i++) {
+			int hi = (stretch[i + byteShift] & 0xff) << bitShift;
+			int lo = bitShift == 0 ? 0 : (stretch[i + byteShift + 1] & 0xff) >>> (8 - bitShift);
+			offset[i] = (byte) (hi | lo);
+		}
+	}
+
+	/** Tag for a message without associated data, as mosh sends. */
+	private byte[] computeTag() throws GeneralSecurityException {
+		for (int j = 0; j < BLOCK; j++)
+			block[j] = (byte) (checksum[j] ^ offset[j] ^ lDollar[j]);
+		return aes(block);
+	}
+
+	private byte[] aes(byte[] in) throws GeneralSecurityException {
+		return encipher.doFinal(in, 0, BLOCK);
+	}
+
+	/** Multiply by x in GF(2^128), the RFC's double(). */
+	private static byte[] twice(byte[] s) {
+		byte[] out = new byte[BLOCK];
+		for (int i = 0; i < BLOCK - 1; i++)
+			out[i] = (byte) ((s[i] << 1) | ((s[i + 1] & 0xff) >>> 7));
+		out[BLOCK - 1] = (byte) (s[BLOCK - 1] << 1);
+		if ((s[0] & 0x80) != 0)
+			out[BLOCK - 1] ^= (byte) 0x87;
+		return out;
+	}
+
+	private static void xorInto(byte[] target, byte[] source, int sourceOffset) {
+		for (int i = 0; i < target.length; i++)
+			target[i] ^= source[sourceOffset + i];
+	}
+}
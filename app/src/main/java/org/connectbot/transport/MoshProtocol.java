@@ -0,0 +1,548 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire format of mosh's State Synchronization Protocol: the protobuf
+ * messages, zlib compression, fragmentation and sealed datagrams. Only the
+ * handful of protobuf fields mosh uses are understood, so there is no need
+ * for a protobuf runtime.
+ * <p>
+ * A datagram is an 8-byte sequence number (whose top bit gives the
+ * direction) followed by the OCB-sealed timestamps and one fragment. The
+ * fragments of one {@link Instruction} carry its compressed encoding.
+ */
+final class MoshProtocol {
+	static final int PROTOCOL_VERSION = 2;
+
+	/** Marks a timestamp field that carries no timestamp. */
+	static final int TIMESTAMP_NONE = 0xffff;
+
+	/** State number announcing that the sender is shutting down. */
+	static final long SHUTDOWN_NUM = -1L;
+
+	private static final long DIRECTION_TO_CLIENT = 1L << 63;
+
+	private static final int SEQUENCE_LENGTH = 8;
+	private static final int TIMESTAMPS_LENGTH = 4;
+	private static final int FRAGMENT_HEADER_LENGTH = 10;
+	private static final int FINAL_FRAGMENT = 0x8000;
+
+	/** Bytes a datagram adds around its fragment's contents. */
+	static final int OVERHEAD = SEQUENCE_LENGTH + MoshCrypto.TAG_LENGTH + TIMESTAMPS_LENGTH
+			+ FRAGMENT_HEADER_LENGTH;
+
+	/** Refuse to inflate instructions larger than this. */
+	private static final int MAX_INSTRUCTION = 1024 * 1024;
+
+	private static final int WIRE_VARINT = 0;
+	private static final int WIRE_FIXED64 = 1;
+	private static final int WIRE_BYTES = 2;
+	private static final int WIRE_FIXED32 = 5;
+
+	// Fields of the user and host message extensions; both sides use the
+	// same numbers for the same shapes.
+	private static final int MESSAGE_INSTRUCTION = 1;
+	private static final int EXT_BYTES = 2;
+	private static final int EXT_RESIZE = 3;
+	private static final int EXT_ECHO_ACK = 7;
+	private static final int BYTES_DATA = 4;
+	private static final int RESIZE_WIDTH = 5;
+	private static final int RESIZE_HEIGHT = 6;
+	private static final int ECHO_ACK_NUM = 8;
+
+	private MoshProtocol() {
+	}
+
+	/**
+	 * One transport instruction: "apply {@link #diff} to state
+	 * {@link #oldNum} to get state {@link #newNum}", plus the sender's
+	 * acknowledgement of the other direction.
+	 */
+	static final class Instruction {
+		int protocolVersion = PROTOCOL_VERSION;
+		long oldNum;
+		long newNum;
+		long ackNum;
+		long throwawayNum;
+		byte[] diff = new byte[0];
+		byte[] chaff;
+
+		byte[] encode() {
+			Writer w = new Writer();
+			w.varintField(1, protocolVersion);
+			w.varintField(2, oldNum);
+			w.varintField(3, newNum);
+			w.varintField(4, ackNum);
+			w.varintField(5, throwawayNum);
+			if (diff.length > 0)
+				w.bytesField(6, diff);
+			if (chaff != null)
+				w.bytesField(7, chaff);
+			return w.toByteArray();
+		}
+
+		static Instruction decode(byte[] data) throws IOException {
+			Instruction inst = new Instruction();
+			inst.protocolVersion = -1;
+			Reader r = new Reader(data, 0, data.length);
+			while (r.hasMore()) {
+				int tag = r.readTag();
+				switch (tag >>> 3) {
+				case 1:
+					inst.protocolVersion = (int) r.readVarint();
+					break;
+				case 2:
+					inst.oldNum = r.readVarint();
+					break;
+				case 3:
+					inst.newNum = r.readVarint();
+					break;
+				case 4:
+					inst.ackNum = r.readVarint();
+					break;
+				case 5:
+					inst.throwawayNum = r.readVarint();
+					break;
+				case 6:
+					inst.diff = r.readBytes();
+					break;
+				default:
+					r.skip(tag & 7);
+				}
+			}
+			return inst;
+		}
+	}
+
+	/**
+	 * Receives the events of a user or host message diff.
+	 */
+	interface EventHandler {
+		/** Keystrokes from the user, or terminal output from the host. */
+		void onBytes(byte[] data);
+
+		void onResize(int columns, int rows);
+
+		/** Host only: the last user state whose echo is on screen. */
+		void onEchoAck(long num);
+	}
+
+	/** @return a diff event carrying keystrokes or terminal output */
+	static byte[] bytesEvent(byte[] data) {
+		Writer inner = new Writer();
+		inner.bytesField(BYTES_DATA, data);
+		return event(EXT_BYTES, inner);
+	}
+
+	static byte[] resizeEvent(int columns, int rows) {
+		Writer inner = new Writer();
+		inner.varintField(RESIZE_WIDTH, columns);
+		inner.varintField(RESIZE_HEIGHT, rows);
+		return event(EXT_RESIZE, inner);
+	}
+
+	static byte[] echoAckEvent(long num) {
+		Writer inner = new Writer();
+		inner.varintField(ECHO_ACK_NUM, num);
+		return event(EXT_ECHO_ACK, inner);
+	}
+
+	/**
+	 * Wrap an extension as one repeated instruction of a user or host
+	 * message. Events concatenate into a valid message.
+	 */
+	private static byte[] event(int extension, Writer inner) {
+		Writer instruction = new Writer();
+		instruction.bytesField(extension, inner.toByteArray());
+		Writer message = new Writer();
+		message.bytesField(MESSAGE_INSTRUCTION, instruction.toByteArray());
+		return message.toByteArray();
+	}
+
+	static void parseEvents(byte[] diff, EventHandler handler) throws IOException {
+		Reader message = new Reader(diff, 0, diff.length);
+		while (message.hasMore()) {
+			int tag = message.readTag();
+			if (tag >>> 3 != MESSAGE_INSTRUCTION || (tag & 7) != WIRE_BYTES) {
+				message.skip(tag & 7);
+				continue;
+			}
+
+			Reader instruction = message.readMessage();
+			while (instruction.hasMore()) {
+				int extTag = instruction.readTag();
+				if ((extTag & 7) != WIRE_BYTES) {
+					instruction.skip(extTag & 7);
+					continue;
+				}
+
+				Reader ext = instruction.readMessage();
+				switch (extTag >>> 3) {
+				case EXT_BYTES:
+					byte[] data = new byte[0];
+					while (ext.hasMore()) {
+						int t = ext.readTag();
+						if (t >>> 3 == BYTES_DATA && (t & 7) == WIRE_BYTES)
+							data = ext.readBytes();
+						else
+							ext.skip(t & 7);
+					}
+					handler.onBytes(data);
+					break;
+				case EXT_RESIZE:
+					int columns = 0, rows = 0;
+					while (ext.hasMore()) {
+						int t = ext.readTag();
+						if (t >>> 3 == RESIZE_WIDTH && (t & 7) == WIRE_VARINT)
+							columns = (int) ext.readVarint();
+						else if (t >>> 3 == RESIZE_HEIGHT && (t & 7) == WIRE_VARINT)
+							rows = (int) ext.readVarint();
+						else
+							ext.skip(t & 7);
+					}
+					handler.onResize(columns, rows);
+					break;
+				case EXT_ECHO_ACK:
+					long num = 0;
+					while (ext.hasMore()) {
+						int t = ext.readTag();
+						if (t >>> 3 == ECHO_ACK_NUM && (t & 7) == WIRE_VARINT)
+							num = ext.readVarint();
+						else
+							ext.skip(t & 7);
+					}
+					handler.onEchoAck(num);
+					break;
+				default:
+					break;
+				}
+			}
+		}
+	}
+
+	static byte[] compress(byte[] data) {
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+			byte[] chunk = new byte[1024];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(chunk);
+				out.write(chunk, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	static byte[] decompress(byte[] data) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2 + 16);
+			byte[] chunk = new byte[1024];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(chunk);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Truncated instruction");
+				out.write(chunk, 0, n);
+				if (out.size() > MAX_INSTRUCTION)
+					throw new IOException("Instruction too large");
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt instruction", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Split a compressed instruction into datagram payloads.
+	 * @param maxContents most instruction bytes per fragment
+	 */
+	static List<byte[]> fragment(long instructionId, byte[] data, int maxContents) {
+		List<byte[]> fragments = new ArrayList<>();
+		int offset = 0;
+		int num = 0;
+		do {
+			int length = Math.min(maxContents, data.length - offset);
+			boolean last = offset + length == data.length;
+			byte[] fragment = new byte[FRAGMENT_HEADER_LENGTH + length];
+			putLong(fragment, 0, instructionId);
+			int header = num | (last ? FINAL_FRAGMENT : 0);
+			fragment[8] = (byte) (header >>> 8);
+			fragment[9] = (byte) header;
+			System.arraycopy(data, offset, fragment, FRAGMENT_HEADER_LENGTH, length);
+			fragments.add(fragment);
+			offset += length;
+			num++;
+		} while (offset < data.length);
+		return fragments;
+	}
+
+	/**
+	 * Collects fragments until an instruction is complete. Fragments of an
+	 * older instruction than the one being assembled are dropped, and a
+	 * newer one replaces it, since only the latest instruction matters.
+	 */
+	static final class FragmentAssembly {
+		private long currentId = -1;
+		private final List<byte[]> parts = new ArrayList<>();
+		private int finalNum = -1;
+		private int received = 0;
+
+		/** @return the complete compressed instruction, or null if more is needed */
+		byte[] add(byte[] fragment) throws IOException {
+			if (fragment.length < FRAGMENT_HEADER_LENGTH)
+				throw new IOException("Short fragment");
+
+			long id = getLong(fragment, 0);
+			int header = ((fragment[8] & 0xff) << 8) | (fragment[9] & 0xff);
+			int num = header & ~FINAL_FRAGMENT;
+			boolean last = (header & FINAL_FRAGMENT) != 0;
+
+			if (id != currentId) {
+				if (currentId != -1 && id < currentId)
+					return null;
+				currentId = id;
+				parts.clear();
+				finalNum = -1;
+				received = 0;
+			}
+
+			while (parts.size() <= num)
+				parts.add(null);
+			if (parts.get(num) == null) {
+				parts.set(num, Arrays.copyOfRange(fragment, FRAGMENT_HEADER_LENGTH, fragment.length));
+				received++;
+			}
+			if (last)
+				finalNum = num;
+
+			if (finalNum < 0 || received != finalNum + 1)
+				return null;
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (int i = 0; i <= finalNum; i++) {
+				byte[] part = parts.get(i);
+				out.write(part, 0, part.length);
+			}
+			parts.clear();
+			finalNum = -1;
+			received = 0;
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * A datagram after it has been opened.
+	 */
+	static final class Packet {
+		final long seq;
+		final int timestamp;
+		final int timestampReply;
+		final byte[] payload;
+
+		Packet(long seq, int timestamp, int timestampReply, byte[] payload) {
+			this.seq = seq;
+			this.timestamp = timestamp;
+			this.timestampReply = timestampReply;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * @param toClient direction of the datagram; each side only accepts the
+	 *        other's, so a reflected datagram is never mistaken for a reply
+	 */
+	static byte[] seal(MoshCrypto crypto, long seq, boolean toClient, int timestamp,
+			int timestampReply, byte[] payload) throws GeneralSecurityException {
+		byte[] plain = new byte[TIMESTAMPS_LENGTH + payload.length];
+		plain[0] = (byte) (timestamp >>> 8);
+		plain[1] = (byte) timestamp;
+		plain[2] = (byte) (timestampReply >>> 8);
+		plain[3] = (byte) timestampReply;
+		System.arraycopy(payload, 0, plain, TIMESTAMPS_LENGTH, payload.length);
+
+		byte[] nonce = nonce(seq, toClient);
+		byte[] sealed = crypto.encrypt(nonce, plain, 0, plain.length);
+		byte[] datagram = new byte[SEQUENCE_LENGTH + sealed.length];
+		System.arraycopy(nonce, MoshCrypto.NONCE_LENGTH - SEQUENCE_LENGTH, datagram, 0, SEQUENCE_LENGTH);
+		System.arraycopy(sealed, 0, datagram, SEQUENCE_LENGTH, sealed.length);
+		return datagram;
+	}
+
+	/**
+	 * @param toClient direction the datagram must have been sent in
+	 * @throws GeneralSecurityException if it is not authentic or is going
+	 *         the wrong way
+	 */
+	static Packet open(MoshCrypto crypto, byte[] datagram, int length, boolean toClient)
+			throws GeneralSecurityException {
+		if (length < SEQUENCE_LENGTH + MoshCrypto.TAG_LENGTH + TIMESTAMPS_LENGTH)
+			throw new GeneralSecurityException("Datagram too short");
+
+		long directionSeq = getLong(datagram, 0);
+		if (((directionSeq & DIRECTION_TO_CLIENT) != 0) != toClient)
+			throw new GeneralSecurityException("Datagram going the wrong way");
+
+		byte[] nonce = new byte[MoshCrypto.NONCE_LENGTH];
+		System.arraycopy(datagram, 0, nonce, MoshCrypto.NONCE_LENGTH - SEQUENCE_LENGTH, SEQUENCE_LENGTH);
+		byte[] plain = crypto.decrypt(nonce, datagram, SEQUENCE_LENGTH, length - SEQUENCE_LENGTH);
+
+		int timestamp = ((plain[0] & 0xff) << 8) | (plain[1] & 0xff);
+		int timestampReply = ((plain[2] & 0xff) << 8) | (plain[3] & 0xff);
+		return new Packet(directionSeq & ~DIRECTION_TO_CLIENT, timestamp, timestampReply,
+				Arrays.copyOfRange(plain, TIMESTAMPS_LENGTH, plain.length));
+	}
+
+	private static byte[] nonce(long seq, boolean toClient) {
+		byte[] nonce = new byte[MoshCrypto.NONCE_LENGTH];
+		putLong(nonce, MoshCrypto.NONCE_LENGTH - SEQUENCE_LENGTH,
+				(seq & ~DIRECTION_TO_CLIENT) | (toClient ? DIRECTION_TO_CLIENT : 0));
+		return nonce;
+	}
+
+	private static void putLong(byte[] b, int offset, long v) {
+		for (int i = 7; i >= 0; i--) {
+			b[offset + i] = (byte) v;
+			v >>>= 8;
+		}
+	}
+
+	private static long getLong(byte[] b, int offset) {
+		long v = 0;
+		for (int i = 0; i < 8; i++)
+			v = (v << 8) | (b[offset + i] & 0xff);
+		return v;
+	}
+
+	private static final class Writer extends ByteArrayOutputStream {
+		void varint(long v) {
+			while ((v & ~0x7fL) != 0) {
+				write((int) ((v & 0x7f) | 0x80));
+				v >>>= 7;
+			}
+			write((int) v);
+		}
+
+		void varintField(int field, long v) {
+			varint((field << 3) | WIRE_VARINT);
+			varint(v);
+		}
+
+		void bytesField(int field, byte[] data) {
+			varint((field << 3) | WIRE_BYTES);
+			varint(data.length);
+			write(data, 0, data.length);
+		}
+	}
+
+	private static final class Reader {
+		private final byte[] data;
+		private int pos;
+		private final int end;
+
+		Reader(byte[] data, int start, int end) {
+			this.data = data;
+			this.pos = start;
+			this.end = end;
+		}
+
+		boolean hasMore() {
+			return pos < end;
+		}
+
+		int readTag() throws IOException {
+			return (int) readVarint();
+		}
+
+		long readVarint() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (pos >= end)
+					throw new IOException("Truncated varint");
+				int b = data[pos++] & 0xff;
+				v |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return v;
+			}
+			throw new IOException("Varint too long");
+		}
+
+		private int readLength() throws IOException {
+			long length = readVarint();
+			if (length < 0 || length > end - pos)
+				throw new IOException("Truncated field");
+			return (int) length;
+		}
+
+		byte[] readBytes() throws IOException {
+			int length = readLength();
+			byte[] out = Arrays.copyOfRange(data, pos, pos + length);
+			pos += length;
+			return out;
+		}
+
+		Reader readMessage() throws IOException {
+			int length = readLength();
+			Reader inner = new Reader(data, pos, pos + length);
+			pos += length;
+			return inner;
+		}
+
+		void skip(int wireType) throws IOException {
+			switch (wireType) {
+			case WIRE_VARINT:
+				readVarint();
+				break;
+			case WIRE_FIXED64:
+				advance(8);
+				break;
+			case WIRE_BYTES:
+				advance(readLength());
+				break;
+			case WIRE_FIXED32:
+				advance(4);
+				break;
+			default:
+				throw new IOException("Unsupported wire type " + wireType);
+			}
+		}
+
+		private void advance(int n) throws IOException {
+			if (n > end - pos)
+				throw new IOException("Truncated field");
+			pos += n;
+		}
+	}
+}
@@ -0,0 +1,577 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.connectbot.service.TerminalExecutors;
+
+import android.util.Log;
+
+/**
+ * Client end of a mosh State Synchronization Protocol session over UDP.
+ * <p>
+ * Our side of the state is the list of keystroke and resize events. Each
+ * datagram carries every event since the last state the server
+ * acknowledged, so a lost datagram costs nothing but the next one. The
+ * server's side is the screen; it sends the output that takes our screen
+ * from the last state we acknowledged to its current one, which we pass
+ * to {@link Listener#onHostBytes}. A diff against any other state than the
+ * one on screen is dropped, and the server falls back to the acknowledged
+ * state once it notices.
+ * <p>
+ * Reads are served by the shared {@link SelectorLoop} and timers by the
+ * shared scheduler; an idle session costs no thread. Because the server
+ * accepts authentic datagrams from any address, roaming to a new network is
+ * just sending from a new socket.
+ */
+class MoshSession implements SelectorLoop.Handler {
+	private static final String TAG = "CB.MoshSession";
+
+	/** Largest datagram we send, small enough to avoid fragmentation on any path. */
+	static final int SEND_MTU = 500;
+
+	private static final int RECEIVE_BUFFER = 65536;
+
+	private static final long ACK_DELAY_MS = 100;
+	private static final long ACK_INTERVAL_MS = 3000;
+	private static final long SEND_INTERVAL_MIN_MS = 20;
+	private static final long SEND_INTERVAL_MAX_MS = 250;
+	private static final long MIN_RTO_MS = 50;
+	private static final long MAX_RTO_MS = 1000;
+	private static final long MAX_RTT_SAMPLE_MS = 5000;
+	private static final long TIMESTAMP_HOLD_MS = 1000;
+	/** Switch to a fresh source port after hearing nothing for this long, in case a NAT forgot us. */
+	private static final long PORT_HOP_MS = 10000;
+
+	private static final int MAX_CHAFF = 16;
+
+	interface Listener {
+		/**
+		 * Terminal output taking the screen to the server's latest state.
+		 * Always called from the selector loop.
+		 */
+		void onHostBytes(byte[] data);
+
+		/**
+		 * The server's screen reflects keystrokes up to and including user
+		 * state {@code num}.
+		 */
+		void onEchoAck(long num);
+	}
+
+	private final MoshCrypto crypto;
+	private final InetSocketAddress server;
+	private final SelectorLoop loop;
+	private final TerminalExecutors executors;
+	private final Listener listener;
+	private final SecureRandom random = new SecureRandom();
+
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER);
+	private final MoshProtocol.FragmentAssembly assembly = new MoshProtocol.FragmentAssembly();
+
+	// Everything below is guarded by this.
+
+	private DatagramChannel channel;
+	private boolean closed = false;
+
+	/** Events since the acknowledged state; index 0 is the first after it. */
+	private final List<byte[]> events = new ArrayList<>();
+	/** {num, event count} of states sent, starting with the acknowledged one. */
+	private final ArrayDeque<long[]> sentStates = new ArrayDeque<>();
+
+	/** The server's state currently on screen. */
+	private long hostNum = 0;
+	private boolean ackPending = false;
+	private long ackDue = 0;
+
+	private long nextSeq = 0;
+	private long expectedSeq = 0;
+	private long instructionId = 0;
+
+	private int savedTimestamp = -1;
+	private long savedTimestampAt = 0;
+	private double srtt = 1000;
+	private double rttvar = 500;
+	private boolean haveRtt = false;
+
+	private long lastSend = 0;
+	private long lastHeard = 0;
+	private long lastHop = 0;
+
+	private ScheduledFuture<?> timer;
+	private long timerDue = Long.MAX_VALUE;
+
+	MoshSession(byte[] key, InetSocketAddress server, SelectorLoop loop, TerminalExecutors executors,
+			Listener listener) throws GeneralSecurityException {
+		this.crypto = new MoshCrypto(key);
+		this.server = server;
+		this.loop = loop;
+		this.executors = executors;
+		this.listener = listener;
+		sentStates.add(new long[] { 0, 0 });
+	}
+
+	/**
+	 * Open the socket and announce ourselves with whatever events are
+	 * already queued, such as the initial window size.
+	 */
+	synchronized void start() throws IOException {
+		lastHeard = lastHop = now();
+		openChannel();
+		send(now());
+	}
+
+	/**
+	 * Queue keystrokes for the server. They go out immediately unless we
+	 * sent very recently, in which case they are batched with what follows.
+	 */
+	synchronized void sendKeys(byte[] keys) {
+		events.add(MoshProtocol.bytesEvent(keys));
+		sendSoon();
+	}
+
+	synchronized void resize(int columns, int rows) {
+		events.add(MoshProtocol.resizeEvent(columns, rows));
+		sendSoon();
+	}
+
+	/**
+	 * Move to a new socket, for instance after the network changed. The
+	 * server follows us as soon as our next datagram arrives.
+	 */
+	synchronized void roam() {
+		if (closed || channel == null)
+			return;
+
+		Log.d(TAG, "Roaming to a new socket");
+		lastHop = now();
+		try {
+			openChannel();
+			send(now());
+		} catch (IOException e) {
+			Log.d(TAG, "Could not open a new socket; will retry", e);
+		}
+	}
+
+	/**
+	 * Tell the server we are leaving, best effort, and release the socket.
+	 */
+	void close() {
+		DatagramChannel old;
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+
+			if (channel != null) {
+				try {
+					MoshProtocol.Instruction inst = newInstruction();
+					inst.oldNum = getAckedNum();
+					inst.newNum = MoshProtocol.SHUTDOWN_NUM;
+					transmit(inst, now());
+				} catch (IOException | GeneralSecurityException e) {
+					Log.d(TAG, "Could not send shutdown", e);
+				}
+			}
+
+			if (timer != null)
+				timer.cancel(false);
+			old = channel;
+			channel = null;
+		}
+		closeQuietly(old);
+	}
+
+	/** @return milliseconds since we last heard from the server */
+	synchronized long getSilenceMillis() {
+		return now() - lastHeard;
+	}
+
+	/** @return smoothed round-trip time in milliseconds, or -1 if not measured yet */
+	synchronized long getRttMillis() {
+		return haveRtt ? Math.round(srtt) : -1;
+	}
+
+	/** @return the newest user state the server has acknowledged */
+	synchronized long getAckedNum() {
+		return sentStates.peekFirst()[0];
+	}
+
+	/** @return the newest user state we have sent */
+	synchronized long getSentNum() {
+		return sentStates.peekLast()[0];
+	}
+
+	private void openChannel() throws IOException {
+		final DatagramChannel fresh = DatagramChannel.open();
+		try {
+			fresh.configureBlocking(false);
+			fresh.connect(server);
+		} catch (IOException e) {
+			closeQuietly(fresh);
+			throw e;
+		}
+
+		final DatagramChannel old = channel;
+		channel = fresh;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					loop.register(fresh, SelectionKey.OP_READ, MoshSession.this);
+				} catch (ClosedChannelException e) {
+					Log.d(TAG, "Socket closed before it could be registered", e);
+				}
+				// Closing also cancels the old socket's key.
+				closeQuietly(old);
+			}
+		});
+	}
+
+	private static void closeQuietly(DatagramChannel ch) {
+		if (ch == null)
+			return;
+		try {
+			ch.close();
+		} catch (IOException e) {
+			Log.d(TAG, "Error closing socket", e);
+		}
+	}
+
+	private void sendSoon() {
+		if (closed || channel == null)
+			return;
+
+		long now = now();
+		long due = lastSend + sendInterval();
+		if (now >= due)
+			send(now);
+		else
+			arm(due);
+	}
+
+	/**
+	 * Send an instruction carrying everything the server has not
+	 * acknowledged, creating a new user state if events were added since
+	 * the last one we sent.
+	 */
+	private void send(long now) {
+		long[] newest = sentStates.peekLast();
+		if (newest[1] != events.size())
+			sentStates.add(new long[] { newest[0] + 1, events.size() });
+
+		MoshProtocol.Instruction inst = newInstruction();
+		long[] acked = sentStates.peekFirst();
+		inst.oldNum = acked[0];
+		inst.newNum = sentStates.peekLast()[0];
+		inst.throwawayNum = acked[0];
+		if (inst.newNum != inst.oldNum) {
+			int total = 0;
+			for (byte[] event : events)
+				total += event.length;
+			byte[] diff = new byte[total];
+			int at = 0;
+			for (byte[] event : events) {
+				System.arraycopy(event, 0, diff, at, event.length);
+				at += event.length;
+			}
+			inst.diff = diff;
+		}
+
+		try {
+			transmit(inst, now);
+		} catch (IOException e) {
+			// Most likely no network right now; the timer will try again.
+			Log.d(TAG, "Could not send datagram", e);
+		} catch (GeneralSecurityException e) {
+			Log.e(TAG, "Could not seal datagram", e);
+		}
+
+		lastSend = now;
+		ackPending = false;
+		rearm(now);
+	}
+
+	private MoshProtocol.Instruction newInstruction() {
+		MoshProtocol.Instruction inst = new MoshProtocol.Instruction();
+		inst.ackNum = hostNum;
+		inst.chaff = new byte[random.nextInt(MAX_CHAFF + 1)];
+		random.nextBytes(inst.chaff);
+		return inst;
+	}
+
+	private void transmit(MoshProtocol.Instruction inst, long now)
+			throws IOException, GeneralSecurityException {
+		byte[] compressed = MoshProtocol.compress(inst.encode());
+		List<byte[]> fragments = MoshProtocol.fragment(instructionId++, compressed,
+				SEND_MTU - MoshProtocol.OVERHEAD);
+
+		for (byte[] fragment : fragments) {
+			int timestampReply = MoshProtocol.TIMESTAMP_NONE;
+			if (savedTimestamp >= 0 && now - savedTimestampAt < TIMESTAMP_HOLD_MS) {
+				// Report how long we held it so the server's RTT excludes our delay.
+				timestampReply = (int) ((savedTimestamp + now - savedTimestampAt) & 0xffff);
+				savedTimestamp = -1;
+			}
+			byte[] datagram = MoshProtocol.seal(crypto, nextSeq++, false, timestamp16(now),
+					timestampReply, fragment);
+			channel.write(ByteBuffer.wrap(datagram));
+		}
+	}
+
+	@Override
+	public void onConnectable(SelectionKey key) {
+	}
+
+	@Override
+	public void onWritable(SelectionKey key) {
+	}
+
+	@Override
+	public void onReadable(SelectionKey key) {
+		DatagramChannel ch = (DatagramChannel) key.channel();
+		while (true) {
+			receiveBuffer.clear();
+			try {
+				if (ch.receive(receiveBuffer) == null)
+					return;
+			} catch (IOException e) {
+				// ICMP port unreachable and the like; keep listening.
+				Log.d(TAG, "Error receiving datagram", e);
+				return;
+			}
+			receiveBuffer.flip();
+
+			List<byte[]> output = new ArrayList<>(1);
+			long[] echoAck = new long[] { -1 };
+			synchronized (this) {
+				if (closed)
+					return;
+				onDatagram(receiveBuffer, output, echoAck);
+			}
+
+			// Deliver outside the lock so a slow terminal does not hold up keystrokes.
+			for (byte[] data : output)
+				listener.onHostBytes(data);
+			if (echoAck[0] >= 0)
+				listener.onEchoAck(echoAck[0]);
+		}
+	}
+
+	private void onDatagram(ByteBuffer buffer, final List<byte[]> output, final long[] echoAck) {
+		long now = now();
+		MoshProtocol.Packet packet;
+		try {
+			packet = MoshProtocol.open(crypto, buffer.array(), buffer.limit(), true);
+		} catch (GeneralSecurityException e) {
+			Log.d(TAG, "Dropping datagram that is not authentic");
+			return;
+		}
+
+		lastHeard = now;
+		if (packet.seq >= expectedSeq) {
+			expectedSeq = packet.seq + 1;
+			if (packet.timestamp != MoshProtocol.TIMESTAMP_NONE) {
+				savedTimestamp = packet.timestamp;
+				savedTimestampAt = now;
+			}
+			if (packet.timestampReply != MoshProtocol.TIMESTAMP_NONE)
+				addRttSample((timestamp16(now) - packet.timestampReply) & 0xffff);
+		}
+
+		MoshProtocol.Instruction inst;
+		try {
+			byte[] compressed = assembly.add(packet.payload);
+			if (compressed == null)
+				return;
+			inst = MoshProtocol.Instruction.decode(MoshProtocol.decompress(compressed));
+		} catch (IOException e) {
+			Log.d(TAG, "Dropping malformed instruction", e);
+			return;
+		}
+
+		if (inst.protocolVersion != MoshProtocol.PROTOCOL_VERSION) {
+			Log.w(TAG, "Server speaks protocol version " + inst.protocolVersion);
+			return;
+		}
+
+		processAck(inst.ackNum);
+
+		if (inst.newNum != inst.oldNum && !ackPending) {
+			ackPending = true;
+			ackDue = now + ACK_DELAY_MS;
+			arm(ackDue);
+		}
+
+		if (inst.newNum == hostNum)
+			return;
+		if (inst.oldNum != hostNum) {
+			Log.d(TAG, "Dropping diff from state " + inst.oldNum + "; showing " + hostNum);
+			return;
+		}
+
+		try {
+			MoshProtocol.parseEvents(inst.diff, new MoshProtocol.EventHandler() {
+				@Override
+				public void onBytes(byte[] data) {
+					output.add(data);
+				}
+
+				@Override
+				public void onResize(int columns, int rows) {
+					// The server echoes our own size back; we already have it.
+				}
+
+				@Override
+				public void onEchoAck(long num) {
+					echoAck[0] = num;
+				}
+			});
+		} catch (IOException e) {
+			Log.d(TAG, "Dropping malformed host message", e);
+			output.clear();
+			echoAck[0] = -1;
+			return;
+		}
+		hostNum = inst.newNum;
+	}
+
+	private void processAck(long ackNum) {
+		if (sentStates.size() < 2 || ackNum <= sentStates.peekFirst()[0])
+			return;
+
+		long[] acked = null;
+		for (long[] state : sentStates) {
+			if (state[0] == ackNum) {
+				acked = state;
+				break;
+			}
+		}
+		if (acked == null)
+			return;
+
+		while (sentStates.peekFirst() != acked)
+			sentStates.removeFirst();
+		int drop = (int) acked[1];
+		events.subList(0, drop).clear();
+		for (long[] state : sentStates)
+			state[1] -= drop;
+	}
+
+	private void addRttSample(long rtt) {
+		if (rtt >= MAX_RTT_SAMPLE_MS)
+			return;
+
+		// RFC 6298
+		if (!haveRtt) {
+			srtt = rtt;
+			rttvar = rtt / 2.0;
+			haveRtt = true;
+		} else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+			srtt = 0.875 * srtt + 0.125 * rtt;
+		}
+	}
+
+	private long rto() {
+		long rto = (long) Math.ceil(srtt + 4 * rttvar);
+		return Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, rto));
+	}
+
+	private long sendInterval() {
+		long interval = (long) Math.ceil(srtt / 2);
+		return Math.max(SEND_INTERVAL_MIN_MS, Math.min(SEND_INTERVAL_MAX_MS, interval));
+	}
+
+	/**
+	 * @return when we next have to send: a delayed ack, a retransmission of
+	 *         unacknowledged events, or a heartbeat
+	 */
+	private long nextSendDue() {
+		long due = lastSend + ACK_INTERVAL_MS;
+		if (ackPending)
+			due = Math.min(due, ackDue);
+		if (sentStates.size() > 1)
+			due = Math.min(due, lastSend + rto());
+		if (sentStates.peekLast()[1] != events.size())
+			due = Math.min(due, lastSend + sendInterval());
+		return due;
+	}
+
+	private void onTimer() {
+		long now;
+		synchronized (this) {
+			timer = null;
+			timerDue = Long.MAX_VALUE;
+			if (closed)
+				return;
+
+			now = now();
+			if (now >= nextSendDue())
+				send(now);
+			if (now - lastHeard > PORT_HOP_MS && now - lastHop > PORT_HOP_MS)
+				roam();
+			rearm(now);
+		}
+	}
+
+	private void rearm(long now) {
+		long due = nextSendDue();
+		if (now - lastHeard > PORT_HOP_MS)
+			due = Math.min(due, lastHop + PORT_HOP_MS);
+		arm(due);
+	}
+
+	/** Make sure the timer fires no later than {@code due}. */
+	private void arm(long due) {
+		if (closed || due >= timerDue)
+			return;
+
+		if (timer != null)
+			timer.cancel(false);
+		timerDue = due;
+		timer = executors.schedule("Mosh", new Runnable() {
+			@Override
+			public void run() {
+				onTimer();
+			}
+		}, Math.max(0, due - now()), TimeUnit.MILLISECONDS);
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	private static int timestamp16(long now) {
+		int timestamp = (int) (now & 0xffff);
+		return timestamp == MoshProtocol.TIMESTAMP_NONE ? 0 : timestamp;
+	}
+}
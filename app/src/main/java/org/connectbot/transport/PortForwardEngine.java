@@ -0,0 +1,652 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.connectbot.bean.PortForwardBean;
+import org.connectbot.util.ByteBufferPool;
+
+import android.util.Log;
+
+/**
+ * Local and dynamic (SOCKS) port forwarding over tunnels opened by the SSH
+ * connection. Listening sockets and reads from local clients are served by
+ * the shared {@link SelectorLoop}, so idle forwards cost no threads. Each
+ * open tunnel needs one worker parked in a blocking read of the SSH channel,
+ * since the library offers nothing else, and writes into the channel run
+ * briefly on a worker as well. The number of open tunnels is capped; at the
+ * cap, listeners stop accepting until one closes, and waiting clients queue
+ * in the listen backlog instead of each getting a thread.
+ */
+class PortForwardEngine {
+	private static final String TAG = "CB.PortForwardEngine";
+
+	/** Matches the largest SSH channel packet. */
+	static final int BUFFER_SIZE = 32 * 1024;
+
+	/** Most tunnels open at once for one engine. */
+	static final int MAX_CONNECTIONS = 16;
+
+	/** Idle buffers to keep between bursts of traffic. */
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	/**
+	 * A bidirectional stream to a destination through the SSH server.
+	 */
+	interface Tunnel extends Closeable {
+		InputStream getInputStream() throws IOException;
+		OutputStream getOutputStream() throws IOException;
+	}
+
+	interface TunnelFactory {
+		/**
+		 * Open a tunnel to {@code host}:{@code port}. Blocks for a round trip
+		 * to the server.
+		 */
+		Tunnel open(String host, int port) throws IOException;
+	}
+
+	private final SelectorLoop loop;
+	private final Executor workers;
+	private final TunnelFactory tunnels;
+
+	private final ByteBufferPool buffers = new ByteBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+	/** guarded by this */
+	private final Set<Listener> listeners = new HashSet<>();
+	/** guarded by this */
+	private final Set<Forward> forwards = new HashSet<>();
+
+	/**
+	 * @param workers runs blocking work; must not queue tasks behind each
+	 *        other, since tunnel readers run until their tunnel closes, and
+	 *        throws {@link RejectedExecutionException} when it has no room
+	 */
+	PortForwardEngine(SelectorLoop loop, Executor workers, TunnelFactory tunnels) {
+		this.loop = loop;
+		this.workers = workers;
+		this.tunnels = tunnels;
+	}
+
+	/**
+	 * Forward connections on {@code address} to the port forward's
+	 * destination.
+	 *
+	 * @throws IOException if {@code address} could not be bound
+	 */
+	Listener listenLocal(PortForwardBean portForward, InetSocketAddress address) throws IOException {
+		return listen(portForward, address, false, false);
+	}
+
+	/**
+	 * Accept SOCKS clients on {@code address} and forward each to the
+	 * destination it asks for.
+	 *
+	 * @param allowSocks5 whether to accept SOCKS5 as well as SOCKS4
+	 * @throws IOException if {@code address} could not be bound
+	 */
+	Listener listenSocks(PortForwardBean portForward, InetSocketAddress address, boolean allowSocks5)
+			throws IOException {
+		return listen(portForward, address, true, allowSocks5);
+	}
+
+	private Listener listen(PortForwardBean portForward, InetSocketAddress address, boolean socks,
+			boolean allowSocks5) throws IOException {
+		final Listener listener = new Listener(portForward, socks, allowSocks5);
+		listener.server.socket().setReuseAddress(true);
+		try {
+			listener.server.socket().bind(address);
+			listener.server.configureBlocking(false);
+		} catch (IOException e) {
+			listener.server.close();
+			throw e;
+		}
+
+		synchronized (this) {
+			listeners.add(listener);
+		}
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.register();
+			}
+		});
+		return listener;
+	}
+
+	/**
+	 * Stop all listeners and close every open tunnel.
+	 */
+	void close() {
+		List<Closeable> all;
+		synchronized (this) {
+			all = new ArrayList<Closeable>(listeners);
+			all.addAll(forwards);
+		}
+		for (Closeable closeable : all) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				Log.d(TAG, "Error closing port forward", e);
+			}
+		}
+	}
+
+	/**
+	 * @return number of tunnels open or being opened
+	 */
+	synchronized int getConnectionCount() {
+		return forwards.size();
+	}
+
+	ByteBufferPool getBuffers() {
+		return buffers;
+	}
+
+	private synchronized boolean hasRoom() {
+		return forwards.size() < MAX_CONNECTIONS;
+	}
+
+	/**
+	 * Called on the loop thread after a tunnel closes to let waiting clients
+	 * in again.
+	 */
+	private void resumeAccepting() {
+		List<Listener> paused;
+		synchronized (this) {
+			paused = new ArrayList<>(listeners);
+		}
+		for (Listener listener : paused)
+			listener.updateInterest();
+	}
+
+	/**
+	 * A listening socket for one port forward.
+	 */
+	class Listener implements SelectorLoop.Handler, Closeable {
+		private final PortForwardBean portForward;
+		private final boolean socks;
+		private final boolean allowSocks5;
+		private final ServerSocketChannel server;
+		private SelectionKey key;
+
+		Listener(PortForwardBean portForward, boolean socks, boolean allowSocks5) throws IOException {
+			this.portForward = portForward;
+			this.socks = socks;
+			this.allowSocks5 = allowSocks5;
+			server = ServerSocketChannel.open();
+		}
+
+		/**
+		 * @return the bound port, which differs from the requested one if
+		 *         that was 0
+		 */
+		int getLocalPort() {
+			return server.socket().getLocalPort();
+		}
+
+		private void register() {
+			if (!server.isOpen())
+				return;
+
+			try {
+				key = loop.register(server, hasRoom() ? SelectionKey.OP_ACCEPT : 0, this);
+			} catch (ClosedChannelException e) {
+				Log.d(TAG, "Listener closed before it was registered", e);
+			}
+		}
+
+		private void updateInterest() {
+			if (key != null && key.isValid())
+				key.interestOps(hasRoom() ? SelectionKey.OP_ACCEPT : 0);
+		}
+
+		@Override
+		public void onConnectable(SelectionKey key) {
+		}
+
+		@Override
+		public void onReadable(SelectionKey key) {
+			// A listening channel is readable when a client is waiting.
+			while (hasRoom()) {
+				SocketChannel client;
+				try {
+					client = server.accept();
+				} catch (IOException e) {
+					Log.e(TAG, "Could not accept port forward client", e);
+					return;
+				}
+				if (client == null)
+					return;
+
+				Forward forward = new Forward(this, client);
+				synchronized (PortForwardEngine.this) {
+					forwards.add(forward);
+				}
+				forward.start();
+			}
+			updateInterest();
+		}
+
+		@Override
+		public void onWritable(SelectionKey key) {
+		}
+
+		@Override
+		public void close() {
+			synchronized (PortForwardEngine.this) {
+				listeners.remove(this);
+			}
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (key != null)
+						key.cancel();
+					try {
+						server.close();
+					} catch (IOException e) {
+						Log.d(TAG, "Error closing listener", e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * One client connection and the tunnel it is forwarded through.
+	 */
+	private class Forward implements SelectorLoop.Handler, Closeable {
+		private final PortForwardBean portForward;
+		private final SocketChannel client;
+		private final SocksHandshake socks;
+		private ByteBuffer handshake;
+
+		private SelectionKey key;
+		private Tunnel tunnel;
+		private OutputStream toRemote;
+
+		/** guarded by this */
+		private boolean reading = false;
+		private boolean waitingToWrite = false;
+		private boolean localEof = false;
+		private boolean remoteEof = false;
+		private boolean closed = false;
+
+		Forward(Listener listener, SocketChannel client) {
+			this.portForward = listener.portForward;
+			this.client = client;
+			if (listener.socks) {
+				socks = new SocksHandshake(listener.allowSocks5);
+				handshake = ByteBuffer.allocate(512);
+				reading = true;
+			} else {
+				socks = null;
+			}
+		}
+
+		/** Called on the loop thread. */
+		void start() {
+			portForward.onConnectionOpened();
+			try {
+				client.configureBlocking(false);
+				client.socket().setTcpNoDelay(true);
+				key = loop.register(client, interestOps(), this);
+			} catch (IOException e) {
+				Log.d(TAG, "Could not set up port forward client", e);
+				close();
+				return;
+			}
+
+			if (socks == null)
+				openTunnel(portForward.getDestAddr(), portForward.getDestPort(), null);
+		}
+
+		private synchronized int interestOps() {
+			return (reading ? SelectionKey.OP_READ : 0) | (waitingToWrite ? SelectionKey.OP_WRITE : 0);
+		}
+
+		/** Update the selection key from any thread. */
+		private void updateInterest() {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (key != null && key.isValid())
+						key.interestOps(interestOps());
+				}
+			});
+		}
+
+		private synchronized void setReading(boolean reading) {
+			this.reading = reading;
+		}
+
+		@Override
+		public void onConnectable(SelectionKey key) {
+		}
+
+		@Override
+		public void onReadable(SelectionKey key) {
+			if (tunnel == null && socks != null) {
+				readHandshake();
+				return;
+			}
+
+			ByteBuffer buffer = buffers.acquire();
+			int read;
+			try {
+				read = client.read(buffer);
+			} catch (IOException e) {
+				buffers.release(buffer);
+				close();
+				return;
+			}
+
+			if (read == 0) {
+				buffers.release(buffer);
+				return;
+			}
+
+			// Stop reading until this buffer is in the tunnel, so a slow
+			// server pushes back on the client instead of filling memory.
+			setReading(false);
+			key.interestOps(interestOps());
+
+			if (read < 0) {
+				buffers.release(buffer);
+				dispatch(new Runnable() {
+					@Override
+					public void run() {
+						onLocalEof();
+					}
+				});
+				return;
+			}
+
+			buffer.flip();
+			final ByteBuffer data = buffer;
+			boolean started = dispatch(new Runnable() {
+				@Override
+				public void run() {
+					writeToRemote(data);
+				}
+			});
+			if (!started)
+				buffers.release(data);
+		}
+
+		/**
+		 * Run {@code task} on a worker, closing this forward if none is free.
+		 * @return false if the task was not run
+		 */
+		private boolean dispatch(Runnable task) {
+			try {
+				workers.execute(task);
+				return true;
+			} catch (RejectedExecutionException e) {
+				Log.w(TAG, "No worker free for port forward; closing it", e);
+				close();
+				return false;
+			}
+		}
+
+		private void readHandshake() {
+			try {
+				if (client.read(handshake) < 0) {
+					close();
+					return;
+				}
+
+				handshake.flip();
+				boolean complete;
+				try {
+					complete = socks.feed(handshake);
+				} finally {
+					byte[] reply = socks.takeReply();
+					if (reply != null)
+						client.write(ByteBuffer.wrap(reply));
+				}
+				handshake.compact();
+
+				if (complete) {
+					setReading(false);
+					key.interestOps(interestOps());
+					handshake.flip();
+					openTunnel(socks.getHost(), socks.getPort(), handshake);
+				} else if (!handshake.hasRemaining()) {
+					// Nothing more could be read, so the loop would spin.
+					throw new IOException("SOCKS request does not fit");
+				}
+			} catch (IOException e) {
+				Log.d(TAG, "SOCKS handshake failed", e);
+				close();
+			}
+		}
+
+		/**
+		 * Open the tunnel on a worker, which then stays to copy from the
+		 * tunnel to the client.
+		 *
+		 * @param early bytes the client sent after its SOCKS request, or null
+		 */
+		private void openTunnel(final String host, final int port, final ByteBuffer early) {
+			dispatch(new Runnable() {
+				@Override
+				public void run() {
+					InputStream fromRemote;
+					try {
+						Tunnel opened = tunnels.open(host, port);
+						boolean alreadyClosed;
+						synchronized (Forward.this) {
+							tunnel = opened;
+							alreadyClosed = closed;
+						}
+						if (alreadyClosed) {
+							opened.close();
+							return;
+						}
+						toRemote = tunnel.getOutputStream();
+						fromRemote = tunnel.getInputStream();
+
+						if (socks != null) {
+							writeToLocal(ByteBuffer.wrap(socks.getConnectReply(true)));
+							if (early != null && early.hasRemaining()) {
+								writeBytesToRemote(early);
+							}
+							handshake = null;
+						}
+					} catch (IOException e) {
+						Log.d(TAG, String.format("Could not open tunnel to %s:%d", host, port), e);
+						if (socks != null) {
+							try {
+								writeToLocal(ByteBuffer.wrap(socks.getConnectReply(false)));
+							} catch (IOException ignored) {
+							}
+						}
+						close();
+						return;
+					}
+
+					setReading(true);
+					updateInterest();
+					readFromRemote(fromRemote);
+				}
+			});
+		}
+
+		private void writeToRemote(ByteBuffer data) {
+			try {
+				writeBytesToRemote(data);
+			} catch (IOException e) {
+				Log.d(TAG, "Could not write to tunnel", e);
+				close();
+				return;
+			} finally {
+				buffers.release(data);
+			}
+
+			setReading(true);
+			updateInterest();
+		}
+
+		/** @param data a heap buffer, written straight from its array */
+		private void writeBytesToRemote(ByteBuffer data) throws IOException {
+			int total = data.remaining();
+			toRemote.write(data.array(), data.arrayOffset() + data.position(), total);
+			data.position(data.limit());
+			toRemote.flush();
+			portForward.addBytesSent(total);
+		}
+
+		private void readFromRemote(InputStream fromRemote) {
+			ByteBuffer buffer = buffers.acquire();
+			try {
+				int read;
+				while ((read = fromRemote.read(buffer.array(), buffer.arrayOffset(), buffer.capacity())) >= 0) {
+					buffer.clear();
+					buffer.limit(read);
+					writeToLocal(buffer);
+					portForward.addBytesReceived(read);
+				}
+
+				boolean done;
+				synchronized (this) {
+					remoteEof = true;
+					done = localEof;
+				}
+				if (done)
+					close();
+				else
+					client.socket().shutdownOutput();
+			} catch (IOException e) {
+				close();
+			} finally {
+				buffers.release(buffer);
+			}
+		}
+
+		/**
+		 * Write all of {@code buffer} to the non-blocking client socket from
+		 * a worker, waiting for the loop to report room when it is full.
+		 */
+		private void writeToLocal(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (client.write(buffer) > 0)
+					continue;
+
+				synchronized (this) {
+					waitingToWrite = true;
+				}
+				updateInterest();
+				synchronized (this) {
+					while (waitingToWrite && !closed) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new IOException("Interrupted while writing to client");
+						}
+					}
+					if (closed)
+						throw new IOException("Port forward closed");
+				}
+			}
+		}
+
+		@Override
+		public void onWritable(SelectionKey key) {
+			synchronized (this) {
+				waitingToWrite = false;
+				notifyAll();
+			}
+			key.interestOps(interestOps());
+		}
+
+		private void onLocalEof() {
+			boolean done;
+			synchronized (this) {
+				localEof = true;
+				done = remoteEof;
+			}
+			try {
+				// Tells the server's end the client has finished sending.
+				if (toRemote != null)
+					toRemote.close();
+			} catch (IOException e) {
+				Log.d(TAG, "Could not send EOF through tunnel", e);
+			}
+			if (done)
+				close();
+		}
+
+		@Override
+		public void close() {
+			Tunnel toClose;
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				toClose = tunnel;
+				notifyAll();
+			}
+
+			if (toClose != null) {
+				try {
+					toClose.close();
+				} catch (IOException e) {
+					Log.d(TAG, "Error closing tunnel", e);
+				}
+			}
+
+			synchronized (PortForwardEngine.this) {
+				forwards.remove(this);
+			}
+			portForward.onConnectionClosed();
+
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (key != null)
+						key.cancel();
+					try {
+						client.close();
+					} catch (IOException e) {
+						Log.d(TAG, "Error closing port forward client", e);
+					}
+					resumeAccepting();
+				}
+			});
+		}
+
+	}
+}
@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
@@ -36,11 +37,20 @@ import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -52,14 +62,19 @@ import org.connectbot.bean.HostBean;
 import org.connectbot.bean.PortForwardBean;
 import org.connectbot.bean.PubkeyBean;
 import org.connectbot.service.TerminalBridge;
+import org.connectbot.service.TerminalExecutors;
 import org.connectbot.service.TerminalManager;
 import org.connectbot.service.TerminalManager.KeyHolder;
 import org.connectbot.util.HostDatabase;
+import org.connectbot.util.LatencyHistogram;
 import org.connectbot.util.PubkeyDatabase;
 import org.connectbot.util.PubkeyUtils;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.trilead.ssh2.AuthAgentCallback;
@@ -67,11 +82,11 @@ import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.ConnectionInfo;
 import com.trilead.ssh2.ConnectionMonitor;
-import com.trilead.ssh2.DynamicPortForwarder;
 import com.trilead.ssh2.ExtendedServerHostKeyVerifier;
 import com.trilead.ssh2.InteractiveCallback;
 import com.trilead.ssh2.KnownHosts;
-import com.trilead.ssh2.LocalPortForwarder;
+import com.trilead.ssh2.LocalStreamForwarder;
+import com.trilead.ssh2.ProxyData;
 import com.trilead.ssh2.Session;
 import com.trilead.ssh2.crypto.PEMDecoder;
 import com.trilead.ssh2.signature.DSASHA1Verify;
@@ -101,12 +116,28 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	private static final String TAG = "CB.SSH";
 	private static final int DEFAULT_PORT = 22;
 
-	private static final String AUTH_PUBLICKEY = "publickey",
+	private static final String AUTH_NONE = "none",
+		AUTH_PUBLICKEY = "publickey",
 		AUTH_PASSWORD = "password",
 		AUTH_KEYBOARDINTERACTIVE = "keyboard-interactive";
 
+	/** Methods we support, in the order tried on a host we know nothing about. */
+	private static final String[] DEFAULT_AUTH_ORDER = {
+		AUTH_PUBLICKEY, AUTH_KEYBOARDINTERACTIVE, AUTH_PASSWORD,
+	};
+
 	private final static int AUTH_TRIES = 20;
 
+	/** Keep-alives in a row that may go unanswered before we give up on the server. */
+	private static final int KEEPALIVE_MAX_MISSED = 3;
+	private static final int KEEPALIVE_RTT_SAMPLES = 64;
+
+	/** Most jump hosts to chain through, which also stops hosts that refer to each other. */
+	static final int MAX_JUMP_DEPTH = 4;
+
+	/** Below this many bytes per second, automatic compression turns zlib on. */
+	static final long AUTO_COMPRESSION_THRESHOLD = 256 * 1024;
+
 	private static final Pattern hostmask = Pattern.compile(
 			"^(.+)@((?:[0-9a-z._-]+)|(?:\\[[a-f:0-9]+(?:%[-_.a-z0-9]+)?\\]))(?::(\\d+))?$", Pattern.CASE_INSENSITIVE);
 
@@ -114,13 +145,43 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	private volatile boolean authenticated = false;
 	private volatile boolean connected = false;
 	private volatile boolean sessionOpen = false;
+	/** Set once we let go of the connection, which others may keep open. */
+	private volatile boolean closed = false;
 
-	private boolean pubkeysExhausted = false;
 	private boolean interactiveCanContinue = true;
 
+	/** time spent in each authentication method, in the order first tried */
+	private final Map<String, Long> authPhaseMillis = new LinkedHashMap<>();
+	/** how long each phase of connecting took, for the banner and host statistics */
+	private final ConnectTimeline timeline = new ConnectTimeline();
+	/** Whether we are riding on a connection another bridge set up. */
+	private boolean reusedConnection = false;
+
+	private final LatencyHistogram keepAliveRtt = new LatencyHistogram(KEEPALIVE_RTT_SAMPLES);
+	private ScheduledFuture<?> keepAliveTask;
+
+	private final ThroughputMeter throughputMeter = new ThroughputMeter();
+
 	private Connection connection;
 	private Session session;
 
+	/** set while {@link #connection} is held through the shared registry */
+	private String sharedKey;
+	/** global requests go out under this while the connection is not shared */
+	private final Object globalRequests = new Object();
+
+	/** serves local and dynamic forwards; created on first use, guarded by this */
+	private PortForwardEngine forwardEngine;
+
+	/** Transport to the jump host we tunnel through, or null if connected directly. */
+	private SSH jump;
+	/** How many hosts down a jump chain this transport is; 0 for the one the user opened. */
+	private int jumpDepth = 0;
+	/** Only authenticate, without a session, for a jump host or mosh to use. */
+	private boolean carrierOnly = false;
+	/** Address the connection went to, when it was made directly. */
+	private volatile InetAddress remoteAddress;
+
 	private OutputStream stdin;
 	private InputStream stdout;
 	private InputStream stderr;
@@ -145,6 +206,16 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		@Override
 		public boolean verifyServerHostKey(String hostname, int port,
 				String serverHostKeyAlgorithm, byte[] serverHostKey) throws IOException {
+			long start = System.nanoTime();
+			try {
+				return verify(hostname, port, serverHostKeyAlgorithm, serverHostKey);
+			} finally {
+				timeline.record(ConnectTimeline.HOST_KEY, start);
+			}
+		}
+
+		private boolean verify(String hostname, int port,
+				String serverHostKeyAlgorithm, byte[] serverHostKey) throws IOException {
 
 			// read in all known hosts from hostdb
 			KnownHosts hosts = manager.hostdb.getKnownHosts();
@@ -235,86 +306,266 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		}
 	}
 
+	/**
+	 * Authenticate as {@link HostBean#getUsername()}. Each step picks the next
+	 * method from those the server still accepts, starting with the ones this
+	 * host accepted before, so a failed method moves straight on to the next
+	 * one instead of waiting and probing the server again.
+	 */
 	private void authenticate() {
+		long authStart = System.nanoTime();
+		long phaseStart = authStart;
+		boolean noneAccepted = false;
 		try {
-			if (connection.authenticateWithNone(host.getUsername())) {
-				finishConnection();
-				return;
-			}
+			noneAccepted = connection.authenticateWithNone(host.getUsername());
 		} catch (Exception e) {
 			Log.d(TAG, "Host does not support 'none' authentication.");
 		}
+		recordAuthPhase(AUTH_NONE, phaseStart);
+
+		if (noneAccepted) {
+			timeline.record(ConnectTimeline.AUTH, authStart);
+			finishConnection();
+			return;
+		}
 
 		bridge.outputLine(manager.res.getString(R.string.terminal_auth));
 
-		try {
-			long pubkeyId = host.getPubkeyId();
+		List<String> order = getAuthMethodOrder(host.getAuthMethods());
+		Set<String> exhausted = new HashSet<>();
+		if (host.getPubkeyId() == HostDatabase.PUBKEYID_NEVER)
+			exhausted.add(AUTH_PUBLICKEY);
 
-			if (!pubkeysExhausted &&
-					pubkeyId != HostDatabase.PUBKEYID_NEVER &&
-					connection.isAuthMethodAvailable(host.getUsername(), AUTH_PUBLICKEY)) {
-
-				// if explicit pubkey defined for this host, then prompt for password as needed
-				// otherwise just try all in-memory keys held in terminalmanager
-
-				if (pubkeyId == HostDatabase.PUBKEYID_ANY) {
-					// try each of the in-memory keys
-					bridge.outputLine(manager.res
-							.getString(R.string.terminal_auth_pubkey_any));
-					for (Entry<String, KeyHolder> entry : manager.loadedKeypairs.entrySet()) {
-						if (entry.getValue().bean.isConfirmUse()
-								&& !promptForPubkeyUse(entry.getKey()))
-							continue;
-
-						if (this.tryPublicKey(host.getUsername(), entry.getKey(),
-								entry.getValue().pair)) {
-							finishConnection();
-							break;
-						}
-					}
-				} else {
-					bridge.outputLine(manager.res.getString(R.string.terminal_auth_pubkey_specific));
-					// use a specific key for this host, as requested
-					PubkeyBean pubkey = manager.pubkeydb.findPubkeyById(pubkeyId);
-
-					if (pubkey == null)
-						bridge.outputLine(manager.res.getString(R.string.terminal_auth_pubkey_invalid));
-					else
-						if (tryPublicKey(pubkey))
-							finishConnection();
+		try {
+			for (int tries = 0; connected && tries < AUTH_TRIES; tries++) {
+				String method = nextAuthMethod(order,
+						connection.getRemainingAuthMethods(host.getUsername()), exhausted);
+				if (method == null)
+					break;
+
+				phaseStart = System.nanoTime();
+				boolean success;
+				try {
+					success = tryAuthMethod(method, exhausted);
+				} catch (IllegalStateException e) {
+					throw e;
+				} catch (Exception e) {
+					Log.e(TAG, "Problem during " + method + " authentication", e);
+					exhausted.add(method);
+					success = false;
 				}
+				recordAuthPhase(method, phaseStart);
 
-				pubkeysExhausted = true;
-			} else if (interactiveCanContinue &&
-					connection.isAuthMethodAvailable(host.getUsername(), AUTH_KEYBOARDINTERACTIVE)) {
-				// this auth method will talk with us using InteractiveCallback interface
-				// it blocks until authentication finishes
-				bridge.outputLine(manager.res.getString(R.string.terminal_auth_ki));
-				interactiveCanContinue = false;
-				if (connection.authenticateWithKeyboardInteractive(host.getUsername(), this)) {
+				if (success) {
+					timeline.record(ConnectTimeline.AUTH, authStart);
+					rememberAuthMethod(method);
 					finishConnection();
-				} else {
-					bridge.outputLine(manager.res.getString(R.string.terminal_auth_ki_fail));
-				}
-			} else if (connection.isAuthMethodAvailable(host.getUsername(), AUTH_PASSWORD)) {
-				bridge.outputLine(manager.res.getString(R.string.terminal_auth_pass));
-				String password = bridge.getPromptHelper().requestStringPrompt(null,
-						manager.res.getString(R.string.prompt_password));
-				if (password != null
-						&& connection.authenticateWithPassword(host.getUsername(), password)) {
-					finishConnection();
-				} else {
-					bridge.outputLine(manager.res.getString(R.string.terminal_auth_pass_fail));
+					return;
 				}
-			} else {
-				bridge.outputLine(manager.res.getString(R.string.terminal_auth_fail));
 			}
 		} catch (IllegalStateException e) {
 			Log.e(TAG, "Connection went away while we were trying to authenticate", e);
 			return;
-		} catch (Exception e) {
+		} catch (IOException e) {
 			Log.e(TAG, "Problem during handleAuthentication()", e);
 		}
+
+		if (connected) {
+			bridge.outputLine(manager.res.getString(R.string.terminal_auth_fail));
+			close();
+			onDisconnect();
+		}
+	}
+
+	/**
+	 * @param remembered value of {@link HostBean#getAuthMethods()}
+	 * @return the methods we support, those in {@code remembered} first
+	 */
+	static List<String> getAuthMethodOrder(String remembered) {
+		List<String> order = new ArrayList<>(DEFAULT_AUTH_ORDER.length);
+		if (remembered != null) {
+			for (String method : remembered.split(",")) {
+				if (Arrays.asList(DEFAULT_AUTH_ORDER).contains(method) && !order.contains(method))
+					order.add(method);
+			}
+		}
+		for (String method : DEFAULT_AUTH_ORDER) {
+			if (!order.contains(method))
+				order.add(method);
+		}
+		return order;
+	}
+
+	/**
+	 * @param remaining methods the server will still accept
+	 * @return the first method in {@code order} that the server accepts and
+	 *         has not been exhausted, or null if there is none
+	 */
+	static String nextAuthMethod(List<String> order, String[] remaining, Set<String> exhausted) {
+		List<String> accepted = Arrays.asList(remaining);
+		for (String method : order) {
+			if (accepted.contains(method) && !exhausted.contains(method))
+				return method;
+		}
+		return null;
+	}
+
+	/**
+	 * Make one attempt with {@code method}, adding it to {@code exhausted}
+	 * once it is not worth trying again.
+	 * @return true if the server accepted it
+	 */
+	private boolean tryAuthMethod(String method, Set<String> exhausted) throws IOException,
+			NoSuchAlgorithmException, InvalidKeySpecException {
+		if (AUTH_PUBLICKEY.equals(method)) {
+			exhausted.add(AUTH_PUBLICKEY);
+			long pubkeyId = host.getPubkeyId();
+
+			// if explicit pubkey defined for this host, then prompt for password as needed
+			// otherwise just try all in-memory keys held in terminalmanager
+
+			if (pubkeyId == HostDatabase.PUBKEYID_ANY) {
+				// try each of the in-memory keys
+				bridge.outputLine(manager.res
+						.getString(R.string.terminal_auth_pubkey_any));
+				return tryAnyPublicKey();
+			}
+
+			bridge.outputLine(manager.res.getString(R.string.terminal_auth_pubkey_specific));
+			// use a specific key for this host, as requested
+			PubkeyBean pubkey = manager.pubkeydb.findPubkeyById(pubkeyId);
+
+			if (pubkey == null) {
+				bridge.outputLine(manager.res.getString(R.string.terminal_auth_pubkey_invalid));
+				return false;
+			}
+			return tryPublicKey(pubkey);
+		} else if (AUTH_KEYBOARDINTERACTIVE.equals(method)) {
+			// this auth method will talk with us using InteractiveCallback interface
+			// it blocks until authentication finishes
+			bridge.outputLine(manager.res.getString(R.string.terminal_auth_ki));
+			interactiveCanContinue = false;
+			if (connection.authenticateWithKeyboardInteractive(host.getUsername(), this))
+				return true;
+
+			bridge.outputLine(manager.res.getString(R.string.terminal_auth_ki_fail));
+			// Only try again if the server actually asked us something.
+			if (!interactiveCanContinue)
+				exhausted.add(AUTH_KEYBOARDINTERACTIVE);
+			return false;
+		} else if (AUTH_PASSWORD.equals(method)) {
+			bridge.outputLine(manager.res.getString(R.string.terminal_auth_pass));
+			String password = bridge.getPromptHelper().requestStringPrompt(null,
+					manager.res.getString(R.string.prompt_password));
+			if (password == null) {
+				exhausted.add(AUTH_PASSWORD);
+				return false;
+			}
+			if (connection.authenticateWithPassword(host.getUsername(), password))
+				return true;
+
+			bridge.outputLine(manager.res.getString(R.string.terminal_auth_pass_fail));
+			return false;
+		}
+
+		exhausted.add(method);
+		return false;
+	}
+
+	private void recordAuthPhase(String method, long startNanos) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		Log.d(TAG, String.format(Locale.US, "Authentication phase '%s' took %d ms", method, millis));
+
+		synchronized (authPhaseMillis) {
+			Long total = authPhaseMillis.get(method);
+			authPhaseMillis.put(method, total == null ? millis : total + millis);
+		}
+	}
+
+	/**
+	 * Move {@code method} to the front of the host's remembered methods so
+	 * it is tried first next time.
+	 */
+	private void rememberAuthMethod(String method) {
+		String remembered = host.getAuthMethods();
+
+		StringBuilder sb = new StringBuilder(method);
+		if (remembered != null) {
+			for (String previous : remembered.split(",")) {
+				if (!previous.isEmpty() && !previous.equals(method))
+					sb.append(',').append(previous);
+			}
+		}
+
+		String methods = sb.toString();
+		if (methods.equals(remembered) || manager.hostdb == null)
+			return;
+
+		host.setAuthMethods(methods);
+		manager.hostdb.saveAuthMethods(host);
+	}
+
+	/**
+	 * Try the in-memory keys, starting with the one this host accepted last
+	 * time if it is still loaded. Stops as soon as the server no longer
+	 * offers public key authentication, so hosts with a low MaxAuthTries do
+	 * not drop us before we get to other methods.
+	 * @return {@code true} for successful authentication
+	 */
+	private boolean tryAnyPublicKey() throws IOException {
+		List<KeyHolder> candidates = orderPubkeyCandidates(
+				new ArrayList<>(manager.loadedKeypairs.values()), host.getLastPubkeyId());
+
+		for (KeyHolder candidate : candidates) {
+			String nickname = candidate.bean.getNickname();
+			if (candidate.bean.isConfirmUse() && !promptForPubkeyUse(nickname))
+				continue;
+
+			if (tryPublicKey(host.getUsername(), nickname, candidate.pair)) {
+				rememberPubkey(candidate.bean);
+				return true;
+			}
+
+			if (!isAuthMethodRemaining(AUTH_PUBLICKEY))
+				break;
+		}
+		return false;
+	}
+
+	/**
+	 * Order keys for "any key" authentication: the one with ID
+	 * {@code lastPubkeyId} first, then the rest by nickname so the order is
+	 * the same on every connection.
+	 */
+	static List<KeyHolder> orderPubkeyCandidates(List<KeyHolder> loaded, final long lastPubkeyId) {
+		List<KeyHolder> candidates = new ArrayList<>(loaded);
+		Collections.sort(candidates, new Comparator<KeyHolder>() {
+			@Override
+			public int compare(KeyHolder a, KeyHolder b) {
+				boolean aLast = a.bean.getId() == lastPubkeyId;
+				boolean bLast = b.bean.getId() == lastPubkeyId;
+				if (aLast != bLast)
+					return aLast ? -1 : 1;
+				return a.bean.getNickname().compareTo(b.bean.getNickname());
+			}
+		});
+		return candidates;
+	}
+
+	/**
+	 * @return whether the server still accepts {@code method}; answered from
+	 *         the last server reply without another round trip
+	 */
+	private boolean isAuthMethodRemaining(String method) throws IOException {
+		return Arrays.asList(connection.getRemainingAuthMethods(host.getUsername())).contains(method);
+	}
+
+	private void rememberPubkey(PubkeyBean pubkey) {
+		if (host.getLastPubkeyId() == pubkey.getId() || manager.hostdb == null)
+			return;
+
+		host.setLastPubkeyId(pubkey.getId());
+		manager.hostdb.saveLastPubkeyId(host);
 	}
 
 	/**
@@ -396,29 +647,35 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	private void finishConnection() {
 		authenticated = true;
 
-		for (PortForwardBean portForward : portForwards) {
-			try {
-				enablePortForward(portForward);
-				bridge.outputLine(manager.res.getString(R.string.terminal_enable_portfoward, portForward.getDescription()));
-			} catch (Exception e) {
-				Log.e(TAG, "Error setting up port forward during connect", e);
-			}
-		}
+		// A jump host only carries the tunnel; the host behind it gets the session.
+		if (carrierOnly)
+			return;
+
+		startPortForwards();
 
 		if (!host.getWantSession()) {
 			bridge.outputLine(manager.res.getString(R.string.terminal_no_session));
+			reportConnectTimeline(timeline, !reusedConnection);
 			bridge.onConnected();
+			startKeepAlive();
 			return;
 		}
 
 		try {
+			long start = System.nanoTime();
 			session = connection.openSession();
 
 			if (!useAuthAgent.equals(HostDatabase.AUTHAGENT_NO))
 				session.requestAuthAgentForwarding(this);
+			timeline.record(ConnectTimeline.SESSION, start);
 
+			start = System.nanoTime();
 			session.requestPTY(getEmulation(), columns, rows, width, height, null);
+			timeline.record(ConnectTimeline.PTY, start);
+
+			start = System.nanoTime();
 			session.startShell();
+			timeline.record(ConnectTimeline.SHELL, start);
 
 			stdin = session.getStdin();
 			stdout = session.getStdout();
@@ -426,17 +683,120 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 
 			sessionOpen = true;
 
+			reportConnectTimeline(timeline, !reusedConnection);
 			bridge.onConnected();
+			startKeepAlive();
 		} catch (IOException e1) {
 			Log.e(TAG, "Problem while trying to create PTY in finishConnection()", e1);
 		}
 
 	}
 
+	/**
+	 * Enable the configured port forwards in the background so the shell
+	 * opens without waiting on them, reporting each one as it completes.
+	 * Local and dynamic forwards only bind a local socket and go first.
+	 * Remote forwards each wait for the server's reply to a global request
+	 * and are sent one at a time under {@link #getGlobalRequestLock()},
+	 * since the library matches replies to requests only by counting them.
+	 */
+	private void startPortForwards() {
+		final List<PortForwardBean> pending = new ArrayList<>(portForwards);
+		if (pending.isEmpty())
+			return;
+
+		Collections.sort(pending, new Comparator<PortForwardBean>() {
+			@Override
+			public int compare(PortForwardBean a, PortForwardBean b) {
+				boolean aRemote = HostDatabase.PORTFORWARD_REMOTE.equals(a.getType());
+				boolean bRemote = HostDatabase.PORTFORWARD_REMOTE.equals(b.getType());
+				return aRemote == bRemote ? 0 : aRemote ? 1 : -1;
+			}
+		});
+
+		boolean started = manager.getExecutors().executeIo("PortForwards " + host.getNickname(), new Runnable() {
+			@Override
+			public void run() {
+				for (PortForwardBean portForward : pending) {
+					if (closed)
+						return;
+
+					boolean enabled = false;
+					try {
+						enabled = enablePortForward(portForward);
+					} catch (RuntimeException e) {
+						Log.e(TAG, "Error setting up port forward during connect", e);
+					}
+					if (closed)
+						return;
+					bridge.outputLine(manager.res.getString(enabled
+							? R.string.terminal_enable_portfoward
+							: R.string.terminal_enable_portforward_failed,
+							portForward.getDescription()));
+				}
+			}
+		});
+		if (!started) {
+			for (PortForwardBean portForward : pending)
+				bridge.outputLine(manager.res.getString(R.string.terminal_enable_portforward_failed,
+						portForward.getDescription()));
+		}
+	}
+
 	@Override
 	public void connect() {
+		if (connectShared())
+			return;
+
+		Connection tunnel = null;
+		if (host.getJumpHostId() != HostDatabase.JUMPHOSTID_NONE) {
+			tunnel = connectJumpHost();
+			if (tunnel == null)
+				return;
+		}
+
 		connection = new Connection(host.getHostname(), host.getPort());
-		connection.addConnectionMonitor(this);
+
+		// Offered for sharing now, though only handed out once authenticated,
+		// so the registry is the one monitor on it.
+		String key = SSHConnectionRegistry.keyFor(host, manager.hostdb);
+		if (manager.getSSHConnections().register(key, connection, this))
+			sharedKey = key;
+		else
+			connection.addConnectionMonitor(this);
+
+		if (tunnel != null) {
+			// Run our handshake over a channel through the jump host, which
+			// never sees the plaintext of this connection.
+			final Connection via = tunnel;
+			connection.setProxyData(new ProxyData() {
+				@Override
+				public Socket openConnection(String hostname, int port, int connectTimeout) throws IOException {
+					long start = System.nanoTime();
+					Socket socket = new ChannelSocket(via.createLocalStreamForwarder(hostname, port));
+					timeline.record(ConnectTimeline.TUNNEL, start);
+					bridge.outputLine(manager.res.getString(R.string.terminal_tunnel_open,
+							hostname + ":" + port));
+					return socket;
+				}
+			});
+		} else {
+			// Race the resolved addresses rather than letting the library try them
+			// one at a time; see HappyEyeballs.
+			connection.setProxyData(new ProxyData() {
+				@Override
+				public Socket openConnection(String hostname, int port, int connectTimeout) throws IOException {
+					Socket socket = HappyEyeballs.connect(manager.getExecutors(), hostname, port,
+							connectTimeout, HappyEyeballs.SOCKET, timeline);
+					socket.setTcpNoDelay(true);
+					remoteAddress = socket.getInetAddress();
+					return socket;
+				}
+			});
+		}
+
+		if (host.getAutoCompression())
+			compression = chooseCompression();
 
 		try {
 			connection.setCompression(compression);
@@ -444,6 +804,19 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			Log.e(TAG, "Could not enable compression!", e);
 		}
 
+		// Offer the host's preferred cipher first, then whatever this device
+		// encrypts fastest; see CipherPreference.
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(manager);
+		try {
+			String[] ciphers = CipherPreference.getCipherOrder(prefs, host.getCipher());
+			if (ciphers != null) {
+				connection.setClient2ServerCiphers(ciphers);
+				connection.setServer2ClientCiphers(ciphers);
+			}
+		} catch (IllegalArgumentException e) {
+			Log.w(TAG, "Could not set cipher preference", e);
+		}
+
 		try {
 			/* Uncomment when debugging SSH protocol:
 			DebugLogger logger = new DebugLogger() {
@@ -456,11 +829,20 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			Logger.enabled = true;
 			Logger.logger = logger;
 			*/
+			long start = System.nanoTime();
 			ConnectionInfo connectionInfo = connection.connect(new HostKeyVerifier());
 			connected = true;
 
+			// Everything else connect() did counts as the key exchange.
+			long handshake = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			timeline.add(ConnectTimeline.KEX, Math.max(0, handshake - timeline.getMillis(ConnectTimeline.DNS)
+					- timeline.getMillis(ConnectTimeline.TCP) - timeline.getMillis(ConnectTimeline.TUNNEL)
+					- timeline.getMillis(ConnectTimeline.HOST_KEY)));
+
 			bridge.outputLine(manager.res.getString(R.string.terminal_kex_algorithm,
 					connectionInfo.keyExchangeAlgorithm));
+			bridge.outputLine(manager.res.getString(R.string.terminal_timeline_handshake,
+					timeline.format()));
 			if (connectionInfo.clientToServerCryptoAlgorithm
 					.equals(connectionInfo.serverToClientCryptoAlgorithm)
 					&& connectionInfo.clientToServerMACAlgorithm
@@ -494,23 +876,236 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			return;
 		}
 
-		try {
-			// enter a loop to keep trying until authentication
-			int tries = 0;
-			while (connected && !connection.isAuthenticationComplete() && tries++ < AUTH_TRIES) {
-				authenticate();
+		authenticate();
+	}
+
+	/**
+	 * Start probing the server every {@link HostBean#getKeepAlive()} seconds
+	 * from the shared scheduler. With a session open each probe is a channel
+	 * ping whose round trip is recorded; without one we can only send an
+	 * ignore packet to keep NAT mappings alive. When the server stops
+	 * answering we disconnect, which reconnects if the host is set to stay
+	 * connected.
+	 */
+	private void startKeepAlive() {
+		int interval = host.getKeepAlive();
+		if (interval <= 0)
+			return;
+
+		KeepAliveMonitor monitor = new KeepAliveMonitor(new KeepAliveMonitor.Peer() {
+			@Override
+			public boolean ping() throws IOException {
+				Session currentSession = session;
+				if (currentSession != null) {
+					currentSession.ping();
+					return true;
+				}
+
+				Connection currentConnection = connection;
+				if (currentConnection != null)
+					currentConnection.sendIgnorePacket();
+				return false;
+			}
 
-				// sleep to make sure we dont kill system
-				Thread.sleep(1000);
+			@Override
+			public void onPeerDead(int missed) {
+				Log.i(TAG, "No reply to " + missed + " keep-alives; disconnecting");
+				bridge.outputLine(manager.res.getString(R.string.terminal_keepalive_timeout, missed));
+				onDisconnect();
 			}
-		} catch (Exception e) {
-			Log.e(TAG, "Problem in SSH connection thread during authentication", e);
+		}, new Executor() {
+			@Override
+			public void execute(Runnable probe) {
+				if (!manager.getExecutors().executeIo("KeepAlive", probe))
+					throw new RejectedExecutionException("No free worker for a keep-alive probe");
+			}
+		}, KEEPALIVE_MAX_MISSED, keepAliveRtt);
+
+		synchronized (keepAliveRtt) {
+			stopKeepAlive();
+			keepAliveTask = manager.getExecutors().scheduleAtFixedRate("KeepAlive", monitor,
+					interval, interval, TimeUnit.SECONDS);
+		}
+	}
+
+	private void stopKeepAlive() {
+		synchronized (keepAliveRtt) {
+			if (keepAliveTask != null) {
+				keepAliveTask.cancel(false);
+				keepAliveTask = null;
+			}
+		}
+	}
+
+	/**
+	 * Open our session over an authenticated connection to the same host,
+	 * set up the same way, held by another bridge, skipping the handshake
+	 * and authentication entirely.
+	 * @return true if a shared connection was used
+	 */
+	private boolean connectShared() {
+		String key = SSHConnectionRegistry.keyFor(host, manager.hostdb);
+		Connection shared = manager.getSSHConnections().acquire(key, this);
+		if (shared == null)
+			return false;
+
+		connection = shared;
+		sharedKey = key;
+		reusedConnection = true;
+		connected = true;
+
+		bridge.outputLine(manager.res.getString(R.string.terminal_reusing_connection,
+				String.format(Locale.US, "%s@%s:%d", host.getUsername(), host.getHostname(), host.getPort())));
+		finishConnection();
+		return true;
+	}
+
+	/**
+	 * Connect and authenticate to this host's jump host, which may itself be
+	 * behind another. The jump host's connection goes through
+	 * {@link SSHConnectionRegistry} like any other, so every host behind the
+	 * same jump host shares one authenticated connection to it.
+	 * @return the connection to open our tunnel over, or null if there is
+	 *         none or we were closed while getting it
+	 */
+	private Connection connectJumpHost() {
+		if (jumpDepth >= MAX_JUMP_DEPTH) {
+			bridge.outputLine(manager.res.getString(R.string.terminal_jump_host_loop));
+			onDisconnect();
+			return null;
+		}
+
+		HostBean jumpHost = manager.hostdb.findHostById(host.getJumpHostId());
+		if (jumpHost == null || !PROTOCOL.equals(jumpHost.getProtocol())) {
+			bridge.outputLine(manager.res.getString(R.string.terminal_jump_host_missing));
+			onDisconnect();
+			return null;
+		}
+
+		bridge.outputLine(manager.res.getString(R.string.terminal_connecting_via,
+				jumpHost.getNickname()));
+
+		SSH via = new SSH(jumpHost, bridge, manager);
+		via.jumpDepth = jumpDepth + 1;
+		via.carrierOnly = true;
+		via.connect();
+		if (!via.authenticated) {
+			// The jump host has already said why in the banner.
+			via.close();
+			onDisconnect();
+			return null;
+		}
+
+		synchronized (this) {
+			// We may have been closed while the jump host was connecting,
+			// when there was no jump host yet for close() to take down.
+			if (closed) {
+				via.close();
+				return null;
+			}
+			jump = via;
+			return via.connection;
+		}
+	}
+
+	/**
+	 * Have {@link #connect()} stop once authenticated, without opening a
+	 * shell or port forwards, so another transport can use the connection.
+	 */
+	void setCarrierOnly() {
+		carrierOnly = true;
+	}
+
+	boolean isAuthenticated() {
+		return authenticated;
+	}
+
+	/**
+	 * @return the address connected to, or null if it went through a jump
+	 *         host or has not been made yet
+	 */
+	InetAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * Run a command without a terminal on the authenticated connection.
+	 */
+	Session execCommand(String command) throws IOException {
+		Connection conn = connection;
+		if (conn == null || !authenticated)
+			throw new IOException("Not connected");
+
+		Session exec = conn.openSession();
+		try {
+			exec.execCommand(command);
+		} catch (IOException e) {
+			exec.close();
+			throw e;
+		}
+		return exec;
+	}
+
+	/**
+	 * Decide whether compression is worth it from the throughput measured
+	 * to this server earlier on the current network, or failing that from
+	 * whether the network is metered, and say which in the banner.
+	 */
+	private boolean chooseCompression() {
+		long throughput = manager.getLinkThroughput(getServerKey());
+		boolean metered = false;
+		ConnectivityManager cm = (ConnectivityManager) manager.getSystemService(Context.CONNECTIVITY_SERVICE);
+		if (cm != null)
+			metered = cm.isActiveNetworkMetered();
+
+		boolean compress = shouldCompress(throughput, metered);
+		if (throughput > 0) {
+			bridge.outputLine(manager.res.getString(compress
+					? R.string.terminal_compression_auto_slow
+					: R.string.terminal_compression_auto_fast, throughput / 1024));
+		} else {
+			bridge.outputLine(manager.res.getString(compress
+					? R.string.terminal_compression_auto_metered
+					: R.string.terminal_compression_auto_unmetered));
 		}
+		return compress;
+	}
+
+	/**
+	 * @param throughput bytes per second measured on this network, or 0 if
+	 *        unknown
+	 * @param metered whether the active network is metered
+	 */
+	static boolean shouldCompress(long throughput, boolean metered) {
+		if (throughput > 0)
+			return throughput < AUTO_COMPRESSION_THRESHOLD;
+		return metered;
+	}
+
+	private String getServerKey() {
+		return host.getHostname().toLowerCase(Locale.US) + ":" + host.getPort();
 	}
 
 	@Override
 	public void close() {
 		connected = false;
+		closed = true;
+
+		stopKeepAlive();
+
+		PortForwardEngine engine;
+		synchronized (this) {
+			engine = forwardEngine;
+			forwardEngine = null;
+		}
+		if (engine != null)
+			engine.close();
+
+		// Compressed output arrives faster than the link carries it, so only
+		// uncompressed sessions say anything about the link.
+		long throughput = throughputMeter.getBytesPerSecond();
+		if (throughput > 0 && !compression)
+			manager.setLinkThroughput(getServerKey(), throughput);
 
 		if (session != null) {
 			session.close();
@@ -518,9 +1113,30 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		}
 
 		if (connection != null) {
-			connection.close();
+			if (sharedKey != null) {
+				// Other sessions may keep the connection open, so take our
+				// forwards down ourselves. Holding the lock means a forward
+				// still being set up either finishes first or sees we closed.
+				synchronized (getGlobalRequestLock()) {
+					for (PortForwardBean portForward : portForwards) {
+						if (portForward.isEnabled())
+							disablePortForward(portForward);
+					}
+				}
+				manager.getSSHConnections().release(sharedKey, connection, this);
+			} else {
+				connection.close();
+			}
 			connection = null;
 		}
+
+		SSH via;
+		synchronized (this) {
+			via = jump;
+			jump = null;
+		}
+		if (via != null)
+			via.close();
 	}
 
 	private void onDisconnect() {
@@ -544,6 +1160,7 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 
 		if ((newConditions & ChannelCondition.STDOUT_DATA) != 0) {
 			bytesRead = stdout.read(buffer, start, len);
+			throughputMeter.onRead(bytesRead, System.nanoTime());
 		}
 
 		if ((newConditions & ChannelCondition.STDERR_DATA) != 0) {
@@ -603,8 +1220,48 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		return connected;
 	}
 
+	@Override
+	public String getStatistics() {
+		StringBuilder sb = new StringBuilder();
+
+		synchronized (authPhaseMillis) {
+			if (!authPhaseMillis.isEmpty()) {
+				StringBuilder phases = new StringBuilder();
+				for (Entry<String, Long> phase : authPhaseMillis.entrySet()) {
+					if (phases.length() > 0)
+						phases.append(", ");
+					phases.append(String.format(Locale.US, "%s %d ms", phase.getKey(), phase.getValue()));
+				}
+				sb.append(manager.res.getString(R.string.stats_ssh_auth, phases));
+			}
+		}
+
+		String rtt = keepAliveRtt.summarize();
+		if (rtt != null) {
+			if (sb.length() > 0)
+				sb.append('\n');
+			sb.append(manager.res.getString(R.string.stats_keepalive_rtt, rtt))
+				.append('\n')
+				.append(keepAliveRtt.formatBuckets());
+		}
+
+		if (sharedKey != null) {
+			int sessions = manager.getSSHConnections().getReferences(sharedKey);
+			if (sessions > 1) {
+				if (sb.length() > 0)
+					sb.append('\n');
+				sb.append(manager.res.getString(R.string.stats_ssh_shared, sessions));
+			}
+		}
+
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
 	@Override
 	public void connectionLost(Throwable reason) {
+		// Closing our own connection reports it lost too.
+		if (closed)
+			return;
 		onDisconnect();
 	}
 
@@ -638,50 +1295,50 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			return false;
 		}
 
-		if (!authenticated)
+		if (!authenticated || closed)
 			return false;
 
 		if (HostDatabase.PORTFORWARD_LOCAL.equals(portForward.getType())) {
-			LocalPortForwarder lpf = null;
+			PortForwardEngine.Listener listener;
 			try {
-				lpf = connection.createLocalPortForwarder(
-						new InetSocketAddress(InetAddress.getLocalHost(), portForward.getSourcePort()),
-						portForward.getDestAddr(), portForward.getDestPort());
+				listener = getForwardEngine().listenLocal(portForward,
+						new InetSocketAddress(InetAddress.getLocalHost(), portForward.getSourcePort()));
 			} catch (Exception e) {
 				Log.e(TAG, "Could not create local port forward", e);
 				return false;
 			}
 
-			if (lpf == null) {
-				Log.e(TAG, "returned LocalPortForwarder object is null");
-				return false;
-			}
-
-			portForward.setIdentifier(lpf);
+			portForward.setIdentifier(listener);
 			portForward.setEnabled(true);
 			return true;
 		} else if (HostDatabase.PORTFORWARD_REMOTE.equals(portForward.getType())) {
-			try {
-				connection.requestRemotePortForwarding("", portForward.getSourcePort(), portForward.getDestAddr(), portForward.getDestPort());
-			} catch (Exception e) {
-				Log.e(TAG, "Could not create remote port forward", e);
-				return false;
-			}
+			synchronized (getGlobalRequestLock()) {
+				if (closed)
+					return false;
 
-			portForward.setEnabled(true);
-			return true;
-		} else if (HostDatabase.PORTFORWARD_DYNAMIC5.equals(portForward.getType())) {
-			DynamicPortForwarder dpf = null;
+				try {
+					connection.requestRemotePortForwarding("", portForward.getSourcePort(), portForward.getDestAddr(), portForward.getDestPort());
+				} catch (Exception e) {
+					Log.e(TAG, "Could not create remote port forward", e);
+					return false;
+				}
 
+				portForward.setEnabled(true);
+			}
+			return true;
+		} else if (HostDatabase.PORTFORWARD_DYNAMIC5.equals(portForward.getType())
+				|| HostDatabase.PORTFORWARD_DYNAMIC4.equals(portForward.getType())) {
+			PortForwardEngine.Listener listener;
 			try {
-				dpf = connection.createDynamicPortForwarder(
-						new InetSocketAddress(InetAddress.getLocalHost(), portForward.getSourcePort()));
+				listener = getForwardEngine().listenSocks(portForward,
+						new InetSocketAddress(InetAddress.getLocalHost(), portForward.getSourcePort()),
+						HostDatabase.PORTFORWARD_DYNAMIC5.equals(portForward.getType()));
 			} catch (Exception e) {
 				Log.e(TAG, "Could not create dynamic port forward", e);
 				return false;
 			}
 
-			portForward.setIdentifier(dpf);
+			portForward.setIdentifier(listener);
 			portForward.setEnabled(true);
 			return true;
 		} else {
@@ -691,6 +1348,61 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		}
 	}
 
+	/**
+	 * @return the engine serving local and dynamic forwards over this
+	 *         connection
+	 */
+	private synchronized PortForwardEngine getForwardEngine() throws IOException {
+		if (forwardEngine == null) {
+			final TerminalExecutors executors = manager.getExecutors();
+			final String name = "PortForward " + host.getNickname();
+			forwardEngine = new PortForwardEngine(manager.getSelectorLoop(), new Executor() {
+				@Override
+				public void execute(Runnable task) {
+					if (!executors.executeIo(name, task))
+						throw new RejectedExecutionException("No free worker for " + name);
+				}
+			}, new PortForwardEngine.TunnelFactory() {
+				@Override
+				public PortForwardEngine.Tunnel open(String destHost, int destPort) throws IOException {
+					Connection conn = connection;
+					if (conn == null)
+						throw new IOException("Not connected");
+
+					final LocalStreamForwarder forwarder = conn.createLocalStreamForwarder(destHost, destPort);
+					return new PortForwardEngine.Tunnel() {
+						@Override
+						public InputStream getInputStream() throws IOException {
+							return forwarder.getInputStream();
+						}
+
+						@Override
+						public OutputStream getOutputStream() throws IOException {
+							return forwarder.getOutputStream();
+						}
+
+						@Override
+						public void close() throws IOException {
+							forwarder.close();
+						}
+					};
+				}
+			});
+		}
+		return forwardEngine;
+	}
+
+	/**
+	 * @return the lock to send global requests under: the one shared by all
+	 *         sessions on a shared connection, otherwise our own
+	 */
+	private Object getGlobalRequestLock() {
+		Object lock = null;
+		if (sharedKey != null)
+			lock = manager.getSSHConnections().getRequestLock(sharedKey, connection);
+		return lock != null ? lock : globalRequests;
+	}
+
 	@Override
 	public boolean disablePortForward(PortForwardBean portForward) {
 		if (!portForwards.contains(portForward)) {
@@ -701,44 +1413,33 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		if (!authenticated)
 			return false;
 
-		if (HostDatabase.PORTFORWARD_LOCAL.equals(portForward.getType())) {
-			LocalPortForwarder lpf = null;
-			lpf = (LocalPortForwarder) portForward.getIdentifier();
+		if (HostDatabase.PORTFORWARD_LOCAL.equals(portForward.getType())
+				|| HostDatabase.PORTFORWARD_DYNAMIC5.equals(portForward.getType())
+				|| HostDatabase.PORTFORWARD_DYNAMIC4.equals(portForward.getType())) {
+			PortForwardEngine.Listener listener = (PortForwardEngine.Listener) portForward.getIdentifier();
 
-			if (!portForward.isEnabled() || lpf == null) {
+			if (!portForward.isEnabled() || listener == null) {
 				Log.d(TAG, String.format("Could not disable %s; it appears to be not enabled or have no handler", portForward.getNickname()));
 				return false;
 			}
 
 			portForward.setEnabled(false);
 
-			lpf.close();
+			listener.close();
 
 			return true;
 		} else if (HostDatabase.PORTFORWARD_REMOTE.equals(portForward.getType())) {
 			portForward.setEnabled(false);
 
-			try {
-				connection.cancelRemotePortForwarding(portForward.getSourcePort());
-			} catch (IOException e) {
-				Log.e(TAG, "Could not stop remote port forwarding, setting enabled to false", e);
-				return false;
-			}
-
-			return true;
-		} else if (HostDatabase.PORTFORWARD_DYNAMIC5.equals(portForward.getType())) {
-			DynamicPortForwarder dpf;
-			dpf = (DynamicPortForwarder) portForward.getIdentifier();
-
-			if (!portForward.isEnabled() || dpf == null) {
-				Log.d(TAG, String.format("Could not disable %s; it appears to be not enabled or have no handler", portForward.getNickname()));
-				return false;
+			synchronized (getGlobalRequestLock()) {
+				try {
+					connection.cancelRemotePortForwarding(portForward.getSourcePort());
+				} catch (IOException e) {
+					Log.e(TAG, "Could not stop remote port forwarding, setting enabled to false", e);
+					return false;
+				}
 			}
 
-			portForward.setEnabled(false);
-
-			dpf.close();
-
 			return true;
 		} else {
 			// Unsupported type
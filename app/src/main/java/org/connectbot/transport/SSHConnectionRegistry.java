@@ -0,0 +1,193 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.connectbot.bean.HostBean;
+import org.connectbot.data.HostStorage;
+import org.connectbot.util.HostDatabase;
+
+import android.util.Log;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+
+/**
+ * Authenticated SSH connections that new sessions to the same host, set up
+ * the same way, can share, much like OpenSSH's ControlMaster. Each
+ * {@link SSH} transport using a connection holds a reference to it and the
+ * connection is closed when the last one is released.
+ * <p>
+ * The registry is the only monitor on a connection it holds and tells the
+ * current holders when it is lost, so a released transport is not kept
+ * alive by a connection it no longer uses.
+ * <p>
+ * The library pairs replies to global requests, such as remote port
+ * forwards, with the requests only by their order. Sessions sharing a
+ * connection send them under its {@link #getRequestLock request lock} so
+ * they never have two outstanding at once.
+ */
+public class SSHConnectionRegistry {
+	private static final String TAG = "CB.SSHConnections";
+
+	private final Map<String, Shared> connections = new HashMap<>();
+
+	private static class Shared {
+		final Connection connection;
+		final Object requests = new Object();
+		final List<ConnectionMonitor> holders = new ArrayList<>();
+
+		Shared(Connection connection, ConnectionMonitor holder) {
+			this.connection = connection;
+			holders.add(holder);
+		}
+	}
+
+	/**
+	 * @return the key connections to {@code host} are shared under, made up
+	 *         of everything in the host that changes how the connection is
+	 *         set up or authenticated, followed by the same for each host in
+	 *         its jump chain as found in {@code hosts}
+	 */
+	public static String keyFor(HostBean host, HostStorage hosts) {
+		StringBuilder key = new StringBuilder(keyForHop(host));
+		for (int depth = 0; host.getJumpHostId() != HostDatabase.JUMPHOSTID_NONE; depth++) {
+			long jumpHostId = host.getJumpHostId();
+			host = depth < SSH.MAX_JUMP_DEPTH ? hosts.findHostById(jumpHostId) : null;
+			if (host == null) {
+				// Such a chain never connects; keep it apart all the same.
+				key.append(" via #").append(jumpHostId);
+				break;
+			}
+			key.append(" via ").append(keyForHop(host));
+		}
+		return key.toString();
+	}
+
+	private static String keyForHop(HostBean host) {
+		return String.format(Locale.US, "%s@%s:%d/keys=%b,%d/agent=%s/auth=%s/z=%b,%b/cipher=%s",
+				host.getUsername(), host.getHostname().toLowerCase(Locale.US), host.getPort(),
+				host.getUseKeys(), host.getPubkeyId(), host.getUseAuthAgent(),
+				host.getAuthMethods(), host.getCompression(), host.getAutoCompression(),
+				host.getCipher());
+	}
+
+	/**
+	 * Take a reference to the authenticated connection registered under
+	 * {@code key}. {@code holder} is told if the connection is lost until it
+	 * is {@link #release released}.
+	 * @return the connection, or null if there is none to share
+	 */
+	public Connection acquire(String key, ConnectionMonitor holder) {
+		synchronized (connections) {
+			Shared shared = connections.get(key);
+			if (shared == null || !shared.connection.isAuthenticationComplete())
+				return null;
+
+			shared.holders.add(holder);
+			Log.d(TAG, String.format(Locale.US, "Sharing connection to %s with %d sessions",
+					key, shared.holders.size()));
+			return shared.connection;
+		}
+	}
+
+	/**
+	 * Offer a new connection for sharing once it has authenticated. The
+	 * caller holds the first reference and must {@link #release} it instead of
+	 * closing the connection itself, and must not add its own monitor.
+	 * @return false if another connection is already registered under
+	 *         {@code key}; the caller keeps sole ownership of its connection
+	 */
+	public boolean register(final String key, final Connection connection, ConnectionMonitor holder) {
+		synchronized (connections) {
+			if (connections.containsKey(key))
+				return false;
+
+			connections.put(key, new Shared(connection, holder));
+		}
+
+		connection.addConnectionMonitor(new ConnectionMonitor() {
+			@Override
+			public void connectionLost(Throwable reason) {
+				for (ConnectionMonitor holder : forget(key, connection))
+					holder.connectionLost(reason);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Drop {@code holder}'s reference to {@code connection}, closing it if
+	 * that was the last.
+	 */
+	public void release(String key, Connection connection, ConnectionMonitor holder) {
+		synchronized (connections) {
+			Shared shared = connections.get(key);
+			if (shared != null && shared.connection == connection) {
+				shared.holders.remove(holder);
+				if (!shared.holders.isEmpty())
+					return;
+				connections.remove(key);
+			}
+		}
+
+		connection.close();
+	}
+
+	/**
+	 * @return the lock every session sharing {@code connection} sends global
+	 *         requests under, or null if it is not registered under {@code key}
+	 */
+	public Object getRequestLock(String key, Connection connection) {
+		synchronized (connections) {
+			Shared shared = connections.get(key);
+			return shared != null && shared.connection == connection ? shared.requests : null;
+		}
+	}
+
+	/**
+	 * @return number of sessions using the connection registered under
+	 *         {@code key}, or 0 if there is none
+	 */
+	public int getReferences(String key) {
+		synchronized (connections) {
+			Shared shared = connections.get(key);
+			return shared == null ? 0 : shared.holders.size();
+		}
+	}
+
+	/**
+	 * Stop sharing a lost connection.
+	 * @return the holders it had
+	 */
+	private List<ConnectionMonitor> forget(String key, Connection connection) {
+		synchronized (connections) {
+			Shared shared = connections.get(key);
+			if (shared == null || shared.connection != connection)
+				return new ArrayList<>();
+
+			connections.remove(key);
+			return new ArrayList<>(shared.holders);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+
+/**
+ * A single-threaded NIO event loop. Transports register non-blocking channels
+ * here and get called back on the loop thread when they become connectable,
+ * readable or writable, so many sessions can share one thread instead of each
+ * parking a reader in a blocking read.
+ * <p>
+ * Callbacks run on the loop thread and must never block.
+ */
+public class SelectorLoop implements Runnable {
+	private static final String TAG = "CB.SelectorLoop";
+
+	/**
+	 * Receives readiness events for a registered channel. A listening
+	 * channel with a connection waiting to be accepted counts as readable.
+	 */
+	public interface Handler {
+		void onConnectable(SelectionKey key);
+		void onReadable(SelectionKey key);
+		void onWritable(SelectionKey key);
+	}
+
+	private final Selector selector;
+
+	private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+	private volatile Thread loopThread;
+	private volatile boolean running = true;
+
+	public SelectorLoop() throws IOException {
+		selector = Selector.open();
+	}
+
+	/**
+	 * @return true if called from the loop thread
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == loopThread;
+	}
+
+	/**
+	 * Run {@code task} on the loop thread. Runs it immediately if already there.
+	 */
+	public void execute(Runnable task) {
+		if (inLoop()) {
+			task.run();
+			return;
+		}
+
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Register a channel with the loop. Must be called on the loop thread.
+	 */
+	public SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+			throws ClosedChannelException {
+		return channel.register(selector, ops, handler);
+	}
+
+	/**
+	 * @return number of channels currently registered
+	 */
+	public int getChannelCount() {
+		return selector.keys().size();
+	}
+
+	/**
+	 * Stop the loop and close the selector. Registered channels are closed.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		loopThread = Thread.currentThread();
+
+		try {
+			while (running) {
+				runPendingTasks();
+
+				selector.select();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					dispatch(key);
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Selector failed", e);
+		} finally {
+			closeAll();
+			loopThread = null;
+		}
+	}
+
+	private void runPendingTasks() {
+		Runnable task;
+		while ((task = pendingTasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Error running task on selector loop", e);
+			}
+		}
+	}
+
+	private static void dispatch(SelectionKey key) {
+		Handler handler = (Handler) key.attachment();
+		try {
+			if (key.isValid() && key.isConnectable())
+				handler.onConnectable(key);
+			if (key.isValid() && (key.isReadable() || key.isAcceptable()))
+				handler.onReadable(key);
+			if (key.isValid() && key.isWritable())
+				handler.onWritable(key);
+		} catch (CancelledKeyException ignored) {
+			// Channel was closed from another thread while we were handling it.
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Error handling channel event", e);
+		}
+	}
+
+	private void closeAll() {
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				Log.d(TAG, "Error closing channel", e);
+			}
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Log.d(TAG, "Error closing selector", e);
+		}
+	}
+}
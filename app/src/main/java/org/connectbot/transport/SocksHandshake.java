@@ -0,0 +1,248 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Server side of a SOCKS4, SOCKS4a or SOCKS5 CONNECT handshake, fed bytes as
+ * they arrive from the client. Only the CONNECT command is supported, and
+ * SOCKS5 only without authentication, which is all a local dynamic forward
+ * needs.
+ */
+class SocksHandshake {
+	/** Longest handshake we accept; a SOCKS4a user ID plus host name fit well within this. */
+	private static final int MAX_HANDSHAKE = 1024;
+
+	private static final int SOCKS4_GRANTED = 0x5a;
+	private static final int SOCKS4_REJECTED = 0x5b;
+	private static final int SOCKS5_SUCCEEDED = 0x00;
+	private static final int SOCKS5_GENERAL_FAILURE = 0x01;
+	private static final int SOCKS5_NO_AUTH = 0x00;
+	private static final int SOCKS5_NO_ACCEPTABLE_METHODS = 0xff;
+
+	private final boolean allowSocks5;
+
+	private final byte[] input = new byte[MAX_HANDSHAKE];
+	private int length = 0;
+
+	private final ByteArrayOutputStream reply = new ByteArrayOutputStream();
+
+	private int version = 0;
+	private boolean greeted = false;
+	private boolean complete = false;
+	private String host;
+	private int port;
+
+	/**
+	 * @param allowSocks5 whether to accept SOCKS5 as well as SOCKS4
+	 */
+	SocksHandshake(boolean allowSocks5) {
+		this.allowSocks5 = allowSocks5;
+	}
+
+	/**
+	 * Consume bytes from the client. Anything sent after the request stays
+	 * in {@code in} to be forwarded once the tunnel is open.
+	 *
+	 * @return true once the CONNECT request is complete
+	 * @throws IOException if the client sent something we do not support;
+	 *         {@link #takeReply()} may then hold a refusal to send back
+	 */
+	boolean feed(ByteBuffer in) throws IOException {
+		while (!complete && in.hasRemaining()) {
+			if (length == input.length)
+				throw new IOException("SOCKS handshake too long");
+			input[length++] = in.get();
+			parse();
+		}
+		return complete;
+	}
+
+	/**
+	 * @return bytes to send to the client now, or null if none
+	 */
+	byte[] takeReply() {
+		if (reply.size() == 0)
+			return null;
+		byte[] bytes = reply.toByteArray();
+		reply.reset();
+		return bytes;
+	}
+
+	String getHost() {
+		return host;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return reply telling the client whether its tunnel is open
+	 */
+	byte[] getConnectReply(boolean success) {
+		if (version == 4)
+			return new byte[] { 0, (byte) (success ? SOCKS4_GRANTED : SOCKS4_REJECTED), 0, 0, 0, 0, 0, 0 };
+
+		// We do not know which address the server bound, so report all zeros.
+		return new byte[] { 5, (byte) (success ? SOCKS5_SUCCEEDED : SOCKS5_GENERAL_FAILURE), 0, 1,
+				0, 0, 0, 0, 0, 0 };
+	}
+
+	/**
+	 * Try to parse what has arrived so far, called after each byte. A few
+	 * hundred bytes at most, so re-parsing from the start is cheap.
+	 */
+	private void parse() throws IOException {
+		if (version == 0) {
+			version = input[0];
+			if (version != 4 && (version != 5 || !allowSocks5))
+				throw new IOException("Unsupported SOCKS version " + version);
+		}
+
+		if (version == 4)
+			parseSocks4();
+		else if (!greeted)
+			parseSocks5Greeting();
+		else
+			parseSocks5Request();
+	}
+
+	private void parseSocks4() throws IOException {
+		// VN CD DSTPORT(2) DSTIP(4) USERID NUL [HOST NUL]
+		if (length < 9 || input[length - 1] != 0)
+			return;
+
+		if (input[1] != 1) {
+			reply.write(getConnectReply(false), 0, 8);
+			throw new IOException("Unsupported SOCKS4 command " + input[1]);
+		}
+
+		int userIdEnd = indexOfNul(8);
+		boolean socks4a = input[4] == 0 && input[5] == 0 && input[6] == 0 && input[7] != 0;
+		if (socks4a) {
+			// SOCKS4a: the host name follows the user ID.
+			int hostEnd = indexOfNul(userIdEnd + 1);
+			if (hostEnd < 0)
+				return;
+			host = new String(input, userIdEnd + 1, hostEnd - userIdEnd - 1, StandardCharsets.US_ASCII);
+		} else {
+			host = formatIPv4(4);
+		}
+		port = readPort(2);
+		complete = true;
+	}
+
+	private void parseSocks5Greeting() throws IOException {
+		// VER NMETHODS METHODS...
+		if (length < 2 || length < 2 + (input[1] & 0xff))
+			return;
+
+		int methods = input[1] & 0xff;
+		boolean noAuth = false;
+		for (int i = 0; i < methods; i++) {
+			if ((input[2 + i] & 0xff) == SOCKS5_NO_AUTH)
+				noAuth = true;
+		}
+
+		if (!noAuth) {
+			reply.write(5);
+			reply.write(SOCKS5_NO_ACCEPTABLE_METHODS);
+			throw new IOException("SOCKS5 client requires authentication");
+		}
+
+		reply.write(5);
+		reply.write(SOCKS5_NO_AUTH);
+		greeted = true;
+		length = 0;
+	}
+
+	private void parseSocks5Request() throws IOException {
+		// VER CMD RSV ATYP DST.ADDR DST.PORT(2)
+		if (length < 5)
+			return;
+
+		int addressType = input[3];
+		int addressEnd;
+		if (addressType == 1)
+			addressEnd = 4 + 4;
+		else if (addressType == 3)
+			addressEnd = 5 + (input[4] & 0xff);
+		else if (addressType == 4)
+			addressEnd = 4 + 16;
+		else {
+			reply.write(getConnectReply(false), 0, 10);
+			throw new IOException("Unsupported SOCKS5 address type " + addressType);
+		}
+
+		if (length < addressEnd + 2)
+			return;
+
+		if (input[1] != 1) {
+			reply.write(getConnectReply(false), 0, 10);
+			throw new IOException("Unsupported SOCKS5 command " + input[1]);
+		}
+
+		if (addressType == 1)
+			host = formatIPv4(4);
+		else if (addressType == 3)
+			host = new String(input, 5, input[4] & 0xff, StandardCharsets.US_ASCII);
+		else
+			host = formatIPv6(4);
+		port = readPort(addressEnd);
+		complete = true;
+	}
+
+	private int indexOfNul(int from) {
+		for (int i = from; i < length; i++) {
+			if (input[i] == 0)
+				return i;
+		}
+		return -1;
+	}
+
+	private int readPort(int offset) {
+		return ((input[offset] & 0xff) << 8) | (input[offset + 1] & 0xff);
+	}
+
+	private String formatIPv4(int offset) {
+		return String.format(Locale.US, "%d.%d.%d.%d", input[offset] & 0xff, input[offset + 1] & 0xff,
+				input[offset + 2] & 0xff, input[offset + 3] & 0xff);
+	}
+
+	private String formatIPv6(int offset) {
+		byte[] address = Arrays.copyOfRange(input, offset, offset + 16);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 16; i += 2) {
+			if (i > 0)
+				sb.append(':');
+			sb.append(Integer.toHexString(((address[i] & 0xff) << 8) | (address[i + 1] & 0xff)));
+		}
+		return sb.toString();
+	}
+}
@@ -18,21 +18,21 @@
 package org.connectbot.transport;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.connectbot.R;
 import org.connectbot.bean.HostBean;
+import org.connectbot.service.Relay;
 import org.connectbot.service.TerminalBridge;
 import org.connectbot.service.TerminalManager;
 import org.connectbot.util.HostDatabase;
@@ -46,25 +46,46 @@ import de.mud.telnet.TelnetProtocolHandler;
 /**
  * Telnet transport implementation.<br/>
  * Original idea from the JTA telnet package (de.mud.telnet)
+ * <p>
+ * All telnet connections are served by the shared {@link SelectorLoop}: once
+ * {@link HappyEyeballs} has connected, the socket is switched to non-blocking,
+ * and negotiation and delivery to the {@link Relay} happen when it becomes
+ * readable, so an idle session costs no thread.
  *
  * @author Kenny Root
  *
  */
-public class Telnet extends AbsTransport {
+public class Telnet extends AbsTransport implements SelectorLoop.Handler {
 	private static final String TAG = "CB.Telnet";
 	private static final String PROTOCOL = "telnet";
 
 	private static final int DEFAULT_PORT = 23;
 
+	private static final int CONNECT_TIMEOUT_MS = 10000;
+
+	private static final int BUFFER_SIZE = 8192;
+
 	private TelnetProtocolHandler handler;
-	private Socket socket;
 
-	private InputStream is;
-	private OutputStream os;
+	private SelectorLoop loop;
+	private SocketChannel channel;
+	private SelectionKey key;
+
+	private Relay relay;
+
+	/** raw bytes read from the socket */
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	/** data left over after telnet negotiation */
+	private final byte[] dataBuffer = new byte[BUFFER_SIZE];
+
+	/** data that could not be written without blocking; guarded by itself */
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
 	private int width;
 	private int height;
 
-	private boolean connected = false;
+	private volatile boolean connected = false;
+	private volatile boolean closed = false;
 
 	static final Pattern hostmask;
 	static {
@@ -94,8 +115,7 @@ public class Telnet extends AbsTransport {
 			/** write data to our back end */
 			@Override
 			public void write(byte[] b) throws IOException {
-				if (os != null)
-					os.write(b);
+				queueWrite(Arrays.copyOf(b, b.length));
 			}
 
 			/** sent on IAC EOR (prompt terminator for remote access systems). */
@@ -127,45 +147,201 @@ public class Telnet extends AbsTransport {
 		return PROTOCOL;
 	}
 
-	private static void tryAllAddresses(Socket sock, String host, int port) throws IOException {
-		InetAddress[] addresses = InetAddress.getAllByName(host);
-		for (InetAddress addr : addresses) {
-			try {
-				sock.connect(new InetSocketAddress(addr, port));
-				return;
-			} catch (SocketTimeoutException ignored) {
-			}
+	@Override
+	public void connect() {
+		ConnectTimeline timeline = new ConnectTimeline();
+		try {
+			loop = manager.getSelectorLoop();
+			channel = HappyEyeballs.connect(manager.getExecutors(), host.getHostname(),
+					host.getPort(), CONNECT_TIMEOUT_MS, HappyEyeballs.SOCKET_CHANNEL, timeline);
+			channel.socket().setTcpNoDelay(true);
+			channel.configureBlocking(false);
+		} catch (UnknownHostException e) {
+			Log.d(TAG, "IO Exception connecting to host", e);
+			return;
+		} catch (IOException e) {
+			Log.d(TAG, "IO Exception connecting to host", e);
+			if (!closed)
+				bridge.dispatchDisconnect(false);
+			return;
 		}
-		throw new SocketTimeoutException("Could not connect; socket timed out");
+
+		if (closed) {
+			closeChannel();
+			return;
+		}
+
+		connected = true;
+		reportConnectTimeline(timeline, true);
+		bridge.onConnected();
+
+		// Only start reading once the bridge has attached its relay.
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					key = loop.register(channel, SelectionKey.OP_READ | writeInterest(), Telnet.this);
+				} catch (ClosedChannelException e) {
+					Log.d(TAG, "Channel closed before it could be registered", e);
+				}
+			}
+		});
 	}
 
 	@Override
-	public void connect() {
+	public void onConnectable(SelectionKey key) {
+		// Connecting is done by HappyEyeballs before the channel is registered.
+	}
+
+	@Override
+	public boolean attachRelay(Relay relay) {
+		// The terminal caught up after we stopped reading; start again.
+		relay.setOnDrained(new Runnable() {
+			@Override
+			public void run() {
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (key != null && key.isValid())
+							key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+					}
+				});
+			}
+		});
+		this.relay = relay;
+		return true;
+	}
+
+	@Override
+	public void onReadable(SelectionKey key) {
+		int n;
 		try {
-			socket = new Socket();
+			n = channel.read(readBuffer);
+		} catch (IOException e) {
+			Log.d(TAG, "Error reading from telnet socket", e);
+			n = -1;
+		}
 
-			tryAllAddresses(socket, host.getHostname(), host.getPort());
+		if (n < 0) {
+			Log.d(TAG, "Remote end closed connection.");
+			close();
+			bridge.dispatchDisconnect(false);
+			return;
+		}
 
-			connected = true;
+		if (n == 0)
+			return;
 
-			is = socket.getInputStream();
-			os = socket.getOutputStream();
+		try {
+			handler.inputfeed(readBuffer.array(), 0, n);
+			readBuffer.clear();
+
+			int len;
+			boolean keepReading = true;
+			while ((len = handler.negotiate(dataBuffer, 0)) >= 0) {
+				if (len > 0 && relay != null)
+					keepReading &= relay.onDataReceived(dataBuffer, 0, len);
+			}
 
-			bridge.onConnected();
-		} catch (UnknownHostException e) {
-			Log.d(TAG, "IO Exception connecting to host", e);
+			// Let the relay catch up before taking any more from the socket.
+			if (!keepReading)
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
 		} catch (IOException e) {
-			Log.d(TAG, "IO Exception connecting to host", e);
+			Log.e(TAG, "Error during telnet negotiation", e);
+			close();
+			bridge.dispatchDisconnect(false);
 		}
 	}
 
+	@Override
+	public void onWritable(SelectionKey key) {
+		synchronized (writeQueue) {
+			try {
+				ByteBuffer pending;
+				while ((pending = writeQueue.peek()) != null) {
+					channel.write(pending);
+					if (pending.hasRemaining())
+						return;
+					writeQueue.poll();
+				}
+			} catch (IOException e) {
+				Log.d(TAG, "Error writing to telnet socket", e);
+				writeQueue.clear();
+				bridge.dispatchDisconnect(false);
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+
+	private int writeInterest() {
+		synchronized (writeQueue) {
+			return writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+		}
+	}
+
+	/**
+	 * Write what we can right away and leave the rest for the loop to send
+	 * when the socket becomes writable again. Safe to call from any thread.
+	 */
+	private void queueWrite(byte[] data) throws IOException {
+		if (!connected)
+			return;
+
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		synchronized (writeQueue) {
+			if (writeQueue.isEmpty()) {
+				channel.write(buf);
+				if (!buf.hasRemaining())
+					return;
+			}
+			writeQueue.add(buf);
+		}
+
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (key != null && key.isValid())
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		});
+	}
+
+	private void closeChannel() {
+		if (channel == null)
+			return;
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Log.d(TAG, "Error closing telnet socket.", e);
+		}
+		channel = null;
+		key = null;
+	}
+
 	@Override
 	public void close() {
 		connected = false;
-		if (socket != null)
+		closed = true;
+
+		// Release any MCCP inflater on the thread that uses it.
+		if (loop != null)
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					handler.reset();
+				}
+			});
+
+		synchronized (writeQueue) {
+			writeQueue.clear();
+		}
+
+		// Closing a registered channel from any thread also cancels its key.
+		SocketChannel ch = channel;
+		if (ch != null)
 			try {
-				socket.close();
-				socket = null;
+				ch.close();
 			} catch (IOException e) {
 				Log.d(TAG, "Error closing telnet socket.", e);
 			}
@@ -173,7 +349,7 @@ public class Telnet extends AbsTransport {
 
 	@Override
 	public void flush() throws IOException {
-		os.flush();
+		// Anything not yet written is sent by the selector loop.
 	}
 
 	@Override
@@ -193,51 +369,22 @@ public class Telnet extends AbsTransport {
 
 	@Override
 	public int read(byte[] buffer, int start, int len) throws IOException {
-		/* process all already read bytes */
-		int n = 0;
-
-		do {
-			n = handler.negotiate(buffer, start);
-			if (n > 0)
-				return n;
-		} while (n == 0);
-
-		while (n <= 0) {
-			do {
-				n = handler.negotiate(buffer, start);
-				if (n > 0)
-					return n;
-			} while (n == 0);
-			n = is.read(buffer, start, len);
-			if (n < 0) {
-				bridge.dispatchDisconnect(false);
-				throw new IOException("Remote end closed connection.");
-			}
-
-			handler.inputfeed(buffer, start, n);
-			n = handler.negotiate(buffer, start);
-		}
-		return n;
+		// Incoming data is pushed to the relay from the selector loop.
+		throw new IOException("Telnet data is delivered by the selector loop");
 	}
 
 	@Override
 	public void write(byte[] buffer) throws IOException {
 		try {
-			if (os != null)
-				os.write(buffer);
-		} catch (SocketException e) {
+			queueWrite(Arrays.copyOf(buffer, buffer.length));
+		} catch (IOException e) {
 			bridge.dispatchDisconnect(false);
 		}
 	}
 
 	@Override
 	public void write(int c) throws IOException {
-		try {
-			if (os != null)
-				os.write(c);
-		} catch (SocketException e) {
-			bridge.dispatchDisconnect(false);
-		}
+		write(new byte[] { (byte) c });
 	}
 
 	@Override
@@ -249,6 +396,19 @@ public class Telnet extends AbsTransport {
 		}
 	}
 
+	@Override
+	public String getStatistics() {
+		long compressed = handler.getCompressedBytes();
+		long inflated = handler.getInflatedBytes();
+		if (compressed == 0)
+			return null;
+
+		return manager.res.getString(R.string.stats_mccp,
+				compressed, inflated, (double) inflated / compressed,
+				manager.res.getString(handler.isCompressing()
+						? R.string.stats_mccp_active : R.string.stats_mccp_ended));
+	}
+
 	@SuppressLint("DefaultLocale")
 	@Override
 	public String getDefaultNickname(String username, String hostname, int port) {
@@ -0,0 +1,72 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates link throughput from how fast terminal output arrives. Reads
+ * that follow each other within {@link #BURST_GAP_NANOS} form a burst, such
+ * as the output of {@code cat} on a large file; the fastest burst large
+ * enough to be meaningful is taken as the throughput. Interactive typing
+ * never produces such bursts, so it does not drag the estimate down.
+ * Not thread-safe; meant to be fed from the single reader thread.
+ */
+class ThroughputMeter {
+	static final long BURST_GAP_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+	static final int MIN_BURST_BYTES = 64 * 1024;
+
+	private long burstStart = 0;
+	private long lastRead = 0;
+	private long burstBytes = 0;
+	private long best = 0;
+
+	/**
+	 * @param bytes number of bytes just read
+	 * @param now {@link System#nanoTime()} of the read
+	 */
+	void onRead(int bytes, long now) {
+		if (bytes <= 0)
+			return;
+
+		if (burstStart == 0 || now - lastRead > BURST_GAP_NANOS) {
+			finishBurst();
+			// The first read only marks when data started flowing.
+			burstStart = now;
+			burstBytes = 0;
+		} else {
+			burstBytes += bytes;
+		}
+		lastRead = now;
+	}
+
+	/**
+	 * @return fastest burst seen so far in bytes per second, or 0 if there
+	 *         has not been one large enough to tell
+	 */
+	long getBytesPerSecond() {
+		finishBurst();
+		return best;
+	}
+
+	private void finishBurst() {
+		long elapsed = lastRead - burstStart;
+		if (burstBytes >= MIN_BURST_BYTES && elapsed > 0)
+			best = Math.max(best, burstBytes * TimeUnit.SECONDS.toNanos(1) / elapsed);
+	}
+}
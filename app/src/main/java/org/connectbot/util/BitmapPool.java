@@ -0,0 +1,164 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Terminal backing bitmaps that are no longer drawn into, kept for the next
+ * bridge or size that needs one. Keyboard and inset animations resize the
+ * terminal many times a second, and each size used to cost a new bitmap of
+ * several megabytes.
+ * <p>
+ * New bitmaps are allocated rounded up to a size bucket, so a slightly
+ * bigger size later still fits. Where {@link Bitmap#reconfigure} exists
+ * (API 19) any pooled bitmap with enough memory is resized in place;
+ * before that only one of exactly the right size can be reused.
+ * Thread-safe.
+ */
+public class BitmapPool {
+	private static final String TAG = "CB.BitmapPool";
+
+	private static final int BYTES_PER_PIXEL = 4;
+
+	/** Each power of two is split into this many buckets. */
+	private static final int BUCKET_STEPS = 4;
+
+	private final long maxBytes;
+	private final List<Bitmap> pool = new ArrayList<>();
+	private long pooledBytes = 0;
+
+	/**
+	 * @param maxBytes most memory to hold on to in bitmaps nobody is using
+	 */
+	public BitmapPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return a mutable ARGB_8888 bitmap of exactly this size, with
+	 *         undefined contents
+	 */
+	public Bitmap acquire(int width, int height) {
+		long needed = (long) width * height * BYTES_PER_PIXEL;
+		boolean canReconfigure = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+		synchronized (this) {
+			Bitmap best = null;
+			for (Bitmap candidate : pool) {
+				if (candidate.getWidth() == width && candidate.getHeight() == height) {
+					best = candidate;
+					break;
+				}
+				if (canReconfigure && capacityOf(candidate) >= needed
+						&& (best == null || capacityOf(candidate) < capacityOf(best)))
+					best = candidate;
+			}
+
+			if (best != null) {
+				pool.remove(best);
+				pooledBytes -= capacityOf(best);
+				if (best.getWidth() != width || best.getHeight() != height)
+					best.reconfigure(width, height, Config.ARGB_8888);
+				return best;
+			}
+		}
+
+		if (!canReconfigure)
+			return Bitmap.createBitmap(width, height, Config.ARGB_8888);
+
+		// Leave room to grow into, then shrink to what was asked for.
+		int bucketHeight = (int) Math.min(Integer.MAX_VALUE,
+				(bucketBytes(needed) / BYTES_PER_PIXEL + width - 1) / width);
+		Bitmap bitmap;
+		try {
+			bitmap = Bitmap.createBitmap(width, bucketHeight, Config.ARGB_8888);
+		} catch (OutOfMemoryError e) {
+			Log.w(TAG, "No room for a bucket-sized bitmap; allocating the exact size", e);
+			clear();
+			return Bitmap.createBitmap(width, height, Config.ARGB_8888);
+		}
+		if (bucketHeight != height)
+			bitmap.reconfigure(width, height, Config.ARGB_8888);
+		return bitmap;
+	}
+
+	/**
+	 * Give back a bitmap from {@link #acquire(int, int)} that is no longer
+	 * drawn anywhere. The oldest pooled bitmaps are recycled to stay within
+	 * the size limit.
+	 */
+	public void release(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable())
+			return;
+
+		synchronized (this) {
+			pool.add(bitmap);
+			pooledBytes += capacityOf(bitmap);
+			trimToSize(maxBytes);
+		}
+	}
+
+	/**
+	 * Recycle pooled bitmaps, oldest first, until at most {@code bytes} are
+	 * held.
+	 */
+	public synchronized void trimToSize(long bytes) {
+		while (pooledBytes > bytes && !pool.isEmpty()) {
+			Bitmap evicted = pool.remove(0);
+			pooledBytes -= capacityOf(evicted);
+			evicted.recycle();
+		}
+	}
+
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+
+	public synchronized long getPooledBytes() {
+		return pooledBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return {@code bytes} rounded up to the next of {@link #BUCKET_STEPS}
+	 *         steps between powers of two, so no more than 25% is wasted
+	 */
+	static long bucketBytes(long bytes) {
+		if (bytes <= BUCKET_STEPS)
+			return bytes;
+
+		long step = Long.highestOneBit(bytes) / BUCKET_STEPS;
+		return (bytes + step - 1) / step * step;
+	}
+
+	private static long capacityOf(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+			return bitmap.getAllocationByteCount();
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
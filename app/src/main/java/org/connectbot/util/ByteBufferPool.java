@@ -0,0 +1,88 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Recycles heap byte buffers of one size, so socket I/O that would
+ * otherwise allocate one per read borrows them from here instead. They are
+ * heap buffers so their {@link ByteBuffer#array() arrays} can go straight to
+ * stream APIs without a copy. Thread-safe.
+ */
+public class ByteBufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+
+	private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+	private int allocated = 0;
+
+	/**
+	 * @param bufferSize capacity of each buffer in bytes
+	 * @param maxPooled most idle buffers to keep; extra released buffers are
+	 *        left to the garbage collector
+	 */
+	public ByteBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a cleared buffer, reused if one is idle
+	 */
+	public synchronized ByteBuffer acquire() {
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(bufferSize);
+			allocated++;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer from {@link #acquire()}. The caller must not use it
+	 * afterwards.
+	 */
+	public synchronized void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize)
+			throw new IllegalArgumentException("Buffer is not from this pool");
+
+		buffer.clear();
+		if (pool.size() < maxPooled)
+			pool.push(buffer);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return number of idle buffers waiting to be reused
+	 */
+	public synchronized int getPooledCount() {
+		return pool.size();
+	}
+
+	/**
+	 * @return number of buffers allocated since creation
+	 */
+	public synchronized int getAllocatedCount() {
+		return allocated;
+	}
+}
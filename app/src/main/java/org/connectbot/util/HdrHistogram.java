@@ -0,0 +1,170 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Latencies in microseconds counted in log-linear buckets, as HdrHistogram
+ * does: each power of two is split into {@link #SUB_BUCKETS} equal parts, so
+ * any value is known to within about 3% however small or large it is, and
+ * memory stays fixed however many samples are recorded. Unlike
+ * {@link LatencyHistogram} it keeps every sample since it was last cleared.
+ * Thread-safe.
+ */
+public class HdrHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Percentiles listed by {@link #formatDistribution()}. */
+	private static final double[] PERCENTILES = { 50, 75, 90, 95, 99, 99.9, 100 };
+
+	private final long highest;
+	private final long[] counts;
+
+	private long total = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/**
+	 * @param highestMicros largest value to tell apart; anything above is
+	 *        counted as this
+	 */
+	public HdrHistogram(long highestMicros) {
+		highest = highestMicros;
+		counts = new long[indexOf(highestMicros) + 1];
+	}
+
+	public synchronized void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		else if (micros > highest)
+			micros = highest;
+
+		counts[indexOf(micros)]++;
+		total++;
+		sum += micros;
+		min = Math.min(min, micros);
+		max = Math.max(max, micros);
+	}
+
+	public synchronized long getTotalCount() {
+		return total;
+	}
+
+	public synchronized void clear() {
+		Arrays.fill(counts, 0);
+		total = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the highest value in the bucket holding {@code percentile}, no
+	 *         more than the largest sample, or -1 if there are none
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (total == 0)
+			return -1;
+
+		long wanted = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= wanted)
+				return Math.max(min, Math.min(max, highestInBucket(i)));
+		}
+		return max;
+	}
+
+	/**
+	 * @return one line such as "p50 1.20 / p90 3.41 / p99 10.1 / max 25.0
+	 *         ms (120 samples)", or null if there are no samples
+	 */
+	public synchronized String summarize() {
+		if (total == 0)
+			return null;
+
+		return String.format(Locale.US, "p50 %s / p90 %s / p99 %s / max %s ms (%d samples)",
+				millis(getPercentile(50)), millis(getPercentile(90)), millis(getPercentile(99)),
+				millis(max), total);
+	}
+
+	/**
+	 * @return a table of percentiles with the count of samples at or below
+	 *         each, followed by the mean, for exporting as text
+	 */
+	public synchronized String formatDistribution() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%12s %10s %10s%n", "Value (ms)", "Percentile", "Count"));
+		if (total == 0)
+			return sb.toString();
+
+		for (double percentile : PERCENTILES) {
+			long wanted = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+			sb.append(String.format(Locale.US, "%12s %10s %10d%n",
+					millis(getPercentile(percentile)), formatPercentile(percentile), wanted));
+		}
+		sb.append(String.format(Locale.US, "Mean %s ms, min %s ms, %d samples%n",
+				millis(sum / total), millis(min), total));
+		return sb.toString();
+	}
+
+	/**
+	 * Values below 2 * {@link #SUB_BUCKETS} get a bucket each; above that,
+	 * every power of two gets {@link #SUB_BUCKETS} of them.
+	 */
+	static int indexOf(long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	static long lowestInBucket(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+
+		int shift = index / SUB_BUCKETS - 1;
+		return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+
+	static long highestInBucket(int index) {
+		return lowestInBucket(index + 1) - 1;
+	}
+
+	private static String millis(long micros) {
+		double ms = micros / 1000.0;
+		if (ms < 10)
+			return String.format(Locale.US, "%.2f", ms);
+		if (ms < 100)
+			return String.format(Locale.US, "%.1f", ms);
+		return String.format(Locale.US, "%.0f", ms);
+	}
+
+	private static String formatPercentile(double percentile) {
+		if (percentile == Math.floor(percentile))
+			return String.format(Locale.US, "%.0f%%", percentile);
+		return String.format(Locale.US, "%s%%", percentile);
+	}
+}
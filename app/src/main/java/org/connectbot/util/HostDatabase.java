@@ -21,6 +21,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -31,6 +32,7 @@ import org.connectbot.bean.HostBean;
 import org.connectbot.bean.PortForwardBean;
 import org.connectbot.data.ColorStorage;
 import org.connectbot.data.HostStorage;
+import org.connectbot.transport.ConnectTimeline;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -52,7 +54,7 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 	public final static String TAG = "CB.HostDatabase";
 
 	public final static String DB_NAME = "hosts";
-	public final static int DB_VERSION = 27;
+	public final static int DB_VERSION = 34;
 
 	public final static String TABLE_HOSTS = "hosts";
 	public final static String FIELD_HOST_NICKNAME = "nickname";
@@ -74,6 +76,12 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 	public final static String FIELD_HOST_ENCODING = "encoding";
 	public final static String FIELD_HOST_STAYCONNECTED = "stayconnected";
 	public final static String FIELD_HOST_QUICKDISCONNECT = "quickdisconnect";
+	public final static String FIELD_HOST_AUTHMETHODS = "authmethods";
+	public final static String FIELD_HOST_LASTPUBKEYID = "lastpubkeyid";
+	public final static String FIELD_HOST_KEEPALIVE = "keepalive";
+	public final static String FIELD_HOST_CIPHER = "cipher";
+	public final static String FIELD_HOST_AUTOCOMPRESSION = "autocompression";
+	public final static String FIELD_HOST_JUMPHOSTID = "jumphostid";
 
 	public final static String TABLE_KNOWNHOSTS = "knownhosts";
 	public final static String FIELD_KNOWNHOSTS_HOSTID = "hostid";
@@ -88,6 +96,13 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 	public final static String FIELD_PORTFORWARD_DESTADDR = "destaddr";
 	public final static String FIELD_PORTFORWARD_DESTPORT = "destport";
 
+	public final static String TABLE_CONNECTSTATS = "connectstats";
+	public final static String FIELD_CONNECTSTATS_HOSTID = "hostid";
+	public final static String FIELD_CONNECTSTATS_PHASE = "phase";
+	public final static String FIELD_CONNECTSTATS_SAMPLES = "samples";
+	public final static String FIELD_CONNECTSTATS_AVERAGE = "average";
+	public final static String FIELD_CONNECTSTATS_LAST = "last";
+
 	public final static String TABLE_COLORS = "colors";
 	public final static String FIELD_COLOR_SCHEME = "scheme";
 	public final static String FIELD_COLOR_NUMBER = "number";
@@ -122,6 +137,8 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 	public final static long PUBKEYID_NEVER = -2;
 	public final static long PUBKEYID_ANY = -1;
 
+	public final static long JUMPHOSTID_NONE = -1;
+
 	public static final int DEFAULT_COLOR_SCHEME = 0;
 
 	// Table creation strings
@@ -144,11 +161,27 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 			+ FIELD_HOST_COMPRESSION + " TEXT DEFAULT '" + false + "', "
 			+ FIELD_HOST_ENCODING + " TEXT DEFAULT '" + ENCODING_DEFAULT + "', "
 			+ FIELD_HOST_STAYCONNECTED + " TEXT DEFAULT '" + false + "', "
-			+ FIELD_HOST_QUICKDISCONNECT + " TEXT DEFAULT '" + false + "'";
+			+ FIELD_HOST_QUICKDISCONNECT + " TEXT DEFAULT '" + false + "', "
+			+ FIELD_HOST_AUTHMETHODS + " TEXT, "
+			+ FIELD_HOST_LASTPUBKEYID + " INTEGER DEFAULT -1, "
+			+ FIELD_HOST_KEEPALIVE + " INTEGER DEFAULT 0, "
+			+ FIELD_HOST_CIPHER + " TEXT, "
+			+ FIELD_HOST_AUTOCOMPRESSION + " TEXT DEFAULT '" + false + "', "
+			+ FIELD_HOST_JUMPHOSTID + " INTEGER DEFAULT " + JUMPHOSTID_NONE;
 
 	public static final String CREATE_TABLE_HOSTS = "CREATE TABLE " + TABLE_HOSTS
 			+ " (" + TABLE_HOSTS_COLUMNS + ")";
 
+	public static final String CREATE_TABLE_CONNECTSTATS = "CREATE TABLE " + TABLE_CONNECTSTATS
+			+ " (_id INTEGER PRIMARY KEY, "
+			+ FIELD_CONNECTSTATS_HOSTID + " INTEGER, "
+			+ FIELD_CONNECTSTATS_PHASE + " TEXT, "
+			+ FIELD_CONNECTSTATS_SAMPLES + " INTEGER DEFAULT 0, "
+			+ FIELD_CONNECTSTATS_AVERAGE + " REAL DEFAULT 0, "
+			+ FIELD_CONNECTSTATS_LAST + " INTEGER DEFAULT 0, "
+			+ "UNIQUE (" + FIELD_CONNECTSTATS_HOSTID + ", " + FIELD_CONNECTSTATS_PHASE + "), "
+			+ "FOREIGN KEY (" + FIELD_CONNECTSTATS_HOSTID + ") REFERENCES " + TABLE_HOSTS + "(_id) ON DELETE CASCADE)";
+
 	public static final String CREATE_TABLE_COLOR_DEFAULTS =
 		"CREATE TABLE " + TABLE_COLOR_DEFAULTS
 		+ " (" + FIELD_COLOR_SCHEME + " INTEGER NOT NULL, "
@@ -168,6 +201,7 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 		addIndexName(TABLE_KNOWNHOSTS + FIELD_KNOWNHOSTS_HOSTID + "index");
 		addTableName(TABLE_PORTFORWARDS);
 		addIndexName(TABLE_PORTFORWARDS + FIELD_PORTFORWARD_HOSTID + "index");
+		addTableName(TABLE_CONNECTSTATS);
 		addTableName(TABLE_COLORS);
 		addIndexName(TABLE_COLORS + FIELD_COLOR_SCHEME + "index");
 		addTableName(TABLE_COLOR_DEFAULTS);
@@ -262,6 +296,8 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 
 		db.execSQL(CREATE_TABLE_COLOR_DEFAULTS);
 		db.execSQL(CREATE_TABLE_COLOR_DEFAULTS_INDEX);
+
+		db.execSQL(CREATE_TABLE_CONNECTSTATS);
 	}
 
 	@Override
@@ -275,6 +311,7 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 			mDb.execSQL("DROP TABLE IF EXISTS " + TABLE_PORTFORWARDS);
 			mDb.execSQL("DROP TABLE IF EXISTS " + TABLE_COLORS);
 			mDb.execSQL("DROP TABLE IF EXISTS " + TABLE_COLOR_DEFAULTS);
+			mDb.execSQL("DROP TABLE IF EXISTS " + TABLE_CONNECTSTATS);
 
 			createTables(mDb);
 
@@ -496,6 +533,33 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 		case 26:
 			db.execSQL("ALTER TABLE " + TABLE_HOSTS
 					+ " ADD COLUMN " + FIELD_HOST_POSTLOGIN_ENTER + " TEXT DEFAULT '" + false + "'");
+			// fall through
+		case 27:
+			db.execSQL("ALTER TABLE " + TABLE_HOSTS
+					+ " ADD COLUMN " + FIELD_HOST_AUTHMETHODS + " TEXT");
+			// fall through
+		case 28:
+			db.execSQL("ALTER TABLE " + TABLE_HOSTS
+					+ " ADD COLUMN " + FIELD_HOST_LASTPUBKEYID + " INTEGER DEFAULT -1");
+			// fall through
+		case 29:
+			db.execSQL("ALTER TABLE " + TABLE_HOSTS
+					+ " ADD COLUMN " + FIELD_HOST_KEEPALIVE + " INTEGER DEFAULT 0");
+			// fall through
+		case 30:
+			db.execSQL("ALTER TABLE " + TABLE_HOSTS
+					+ " ADD COLUMN " + FIELD_HOST_CIPHER + " TEXT");
+			// fall through
+		case 31:
+			db.execSQL("ALTER TABLE " + TABLE_HOSTS
+					+ " ADD COLUMN " + FIELD_HOST_AUTOCOMPRESSION + " TEXT DEFAULT '" + false + "'");
+			// fall through
+		case 32:
+			db.execSQL("ALTER TABLE " + TABLE_HOSTS
+					+ " ADD COLUMN " + FIELD_HOST_JUMPHOSTID + " INTEGER DEFAULT " + JUMPHOSTID_NONE);
+			// fall through
+		case 33:
+			db.execSQL(CREATE_TABLE_CONNECTSTATS);
 		}
 	}
 
@@ -511,6 +575,91 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 		ContentValues values = new ContentValues();
 		values.put(FIELD_HOST_LASTCONNECT, now);
 
+		updateHost(host, values);
+	}
+
+	/**
+	 * Record which authentication methods {@code host} accepted.
+	 * @param host host to update
+	 */
+	@Override
+	public void saveAuthMethods(HostBean host) {
+		ContentValues values = new ContentValues();
+		values.put(FIELD_HOST_AUTHMETHODS, host.getAuthMethods());
+
+		updateHost(host, values);
+	}
+
+	/**
+	 * Record which public key {@code host} last accepted.
+	 * @param host host to update
+	 */
+	@Override
+	public void saveLastPubkeyId(HostBean host) {
+		ContentValues values = new ContentValues();
+		values.put(FIELD_HOST_LASTPUBKEYID, host.getLastPubkeyId());
+
+		updateHost(host, values);
+	}
+
+	/**
+	 * Fold each phase's time into this host's rolling averages, as
+	 * described by {@link ConnectTimeline#blend(double, long, long)}.
+	 */
+	@Override
+	public void saveConnectTimes(HostBean host, Map<String, Long> phaseMillis) {
+		if (host.getId() < 0)
+			return;
+
+		String hostId = String.valueOf(host.getId());
+		mDb.beginTransaction();
+		try {
+			for (Entry<String, Long> phase : phaseMillis.entrySet()) {
+				long samples = 0;
+				double average = 0;
+				Cursor c = mDb.query(TABLE_CONNECTSTATS,
+						new String[] {FIELD_CONNECTSTATS_SAMPLES, FIELD_CONNECTSTATS_AVERAGE},
+						FIELD_CONNECTSTATS_HOSTID + " = ? AND " + FIELD_CONNECTSTATS_PHASE + " = ?",
+						new String[] {hostId, phase.getKey()}, null, null, null);
+				if (c.moveToFirst()) {
+					samples = c.getLong(0);
+					average = c.getDouble(1);
+				}
+				c.close();
+
+				ContentValues values = new ContentValues();
+				values.put(FIELD_CONNECTSTATS_HOSTID, host.getId());
+				values.put(FIELD_CONNECTSTATS_PHASE, phase.getKey());
+				values.put(FIELD_CONNECTSTATS_SAMPLES, samples + 1);
+				values.put(FIELD_CONNECTSTATS_AVERAGE,
+						ConnectTimeline.blend(average, samples, phase.getValue()));
+				values.put(FIELD_CONNECTSTATS_LAST, phase.getValue());
+				mDb.insertWithOnConflict(TABLE_CONNECTSTATS, null, values,
+						SQLiteDatabase.CONFLICT_REPLACE);
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+	}
+
+	@Override
+	public Map<String, Long> getConnectTimes(HostBean host) {
+		Map<String, Long> times = new LinkedHashMap<>();
+		Cursor c = mDb.query(TABLE_CONNECTSTATS,
+				new String[] {FIELD_CONNECTSTATS_PHASE, FIELD_CONNECTSTATS_AVERAGE},
+				FIELD_CONNECTSTATS_HOSTID + " = ?", new String[] {String.valueOf(host.getId())},
+				null, null, "_id ASC");
+		while (c.moveToNext())
+			times.put(c.getString(0), Math.round(c.getDouble(1)));
+		c.close();
+		return times;
+	}
+
+	/**
+	 * Update only the given columns of an existing {@code host}.
+	 */
+	private void updateHost(HostBean host, ContentValues values) {
 		mDb.beginTransaction();
 		try {
 			mDb.update(TABLE_HOSTS, values, "_id = ?", new String[] {String.valueOf(host.getId())});
@@ -559,6 +708,11 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 			// Note: Both known hosts and port forwards will be automatically deleted
 			// by foreign key cascade constraints after migration to DB version 26
 			mDb.delete(TABLE_HOSTS, "_id = ?", hostIdArg);
+
+			// Hosts that went through this one now connect directly.
+			ContentValues direct = new ContentValues();
+			direct.put(FIELD_HOST_JUMPHOSTID, JUMPHOSTID_NONE);
+			mDb.update(TABLE_HOSTS, direct, FIELD_HOST_JUMPHOSTID + " = ?", hostIdArg);
 			mDb.setTransactionSuccessful();
 		} finally {
 			mDb.endTransaction();
@@ -608,7 +762,13 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 			COL_COMPRESSION = c.getColumnIndexOrThrow(FIELD_HOST_COMPRESSION),
 			COL_ENCODING = c.getColumnIndexOrThrow(FIELD_HOST_ENCODING),
 			COL_STAYCONNECTED = c.getColumnIndexOrThrow(FIELD_HOST_STAYCONNECTED),
-			COL_QUICKDISCONNECT = c.getColumnIndexOrThrow(FIELD_HOST_QUICKDISCONNECT);
+			COL_QUICKDISCONNECT = c.getColumnIndexOrThrow(FIELD_HOST_QUICKDISCONNECT),
+			COL_AUTHMETHODS = c.getColumnIndexOrThrow(FIELD_HOST_AUTHMETHODS),
+			COL_LASTPUBKEYID = c.getColumnIndexOrThrow(FIELD_HOST_LASTPUBKEYID),
+			COL_KEEPALIVE = c.getColumnIndexOrThrow(FIELD_HOST_KEEPALIVE),
+			COL_CIPHER = c.getColumnIndexOrThrow(FIELD_HOST_CIPHER),
+			COL_AUTOCOMPRESSION = c.getColumnIndexOrThrow(FIELD_HOST_AUTOCOMPRESSION),
+			COL_JUMPHOSTID = c.getColumnIndexOrThrow(FIELD_HOST_JUMPHOSTID);
 
 		while (c.moveToNext()) {
 			HostBean host = new HostBean();
@@ -633,6 +793,12 @@ public class HostDatabase extends RobustSQLiteOpenHelper implements HostStorage,
 			host.setEncoding(c.getString(COL_ENCODING));
 			host.setStayConnected(Boolean.parseBoolean(c.getString(COL_STAYCONNECTED)));
 			host.setQuickDisconnect(Boolean.parseBoolean(c.getString(COL_QUICKDISCONNECT)));
+			host.setAuthMethods(c.getString(COL_AUTHMETHODS));
+			host.setLastPubkeyId(c.getLong(COL_LASTPUBKEYID));
+			host.setKeepAlive(c.getInt(COL_KEEPALIVE));
+			host.setCipher(c.getString(COL_CIPHER));
+			host.setAutoCompression(Boolean.parseBoolean(c.getString(COL_AUTOCOMPRESSION)));
+			host.setJumpHostId(c.getLong(COL_JUMPHOSTID));
 
 			hosts.add(host);
 		}
@@ -0,0 +1,150 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Latency samples over a rolling window of the most recent measurements,
+ * summarized as percentiles and as counts in fixed millisecond buckets.
+ * Thread-safe.
+ */
+public class LatencyHistogram {
+	/** Upper bounds of each bucket in milliseconds; the last bucket is open. */
+	static final long[] BUCKET_LIMITS_MS = { 10, 20, 50, 100, 200, 500, 1000, 2000 };
+
+	private static final int BAR_WIDTH = 20;
+
+	private final long[] samples;
+	private int next = 0;
+	private int count = 0;
+	private long total = 0;
+
+	/**
+	 * @param window number of most recent samples to keep
+	 */
+	public LatencyHistogram(int window) {
+		samples = new long[window];
+	}
+
+	public synchronized void record(long millis) {
+		samples[next] = millis;
+		next = (next + 1) % samples.length;
+		if (count < samples.length)
+			count++;
+		total++;
+	}
+
+	/**
+	 * @return number of samples in the window
+	 */
+	public synchronized int getSampleCount() {
+		return count;
+	}
+
+	/**
+	 * @return number of samples recorded since creation
+	 */
+	public synchronized long getTotalCount() {
+		return total;
+	}
+
+	public synchronized void clear() {
+		next = 0;
+		count = 0;
+		total = 0;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the sample at {@code percentile} within the window, or -1 if
+	 *         there are none
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (count == 0)
+			return -1;
+
+		long[] sorted = sortedSamples();
+		int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * @return sample counts for each of {@link #BUCKET_LIMITS_MS} plus one
+	 *         for everything above the last limit
+	 */
+	public synchronized int[] getBucketCounts() {
+		int[] buckets = new int[BUCKET_LIMITS_MS.length + 1];
+		for (int i = 0; i < count; i++) {
+			int bucket = 0;
+			while (bucket < BUCKET_LIMITS_MS.length && samples[i] >= BUCKET_LIMITS_MS[bucket])
+				bucket++;
+			buckets[bucket]++;
+		}
+		return buckets;
+	}
+
+	/**
+	 * @return one line such as "min 21 / median 40 / p90 75 / max 130 ms
+	 *         (12 samples)", or null if there are no samples
+	 */
+	public synchronized String summarize() {
+		if (count == 0)
+			return null;
+
+		long[] sorted = sortedSamples();
+		return String.format(Locale.US, "min %d / median %d / p90 %d / max %d ms (%d samples)",
+				sorted[0], getPercentile(50), getPercentile(90), sorted[count - 1], count);
+	}
+
+	/**
+	 * @return one text line per non-empty bucket with a bar scaled to the
+	 *         largest bucket
+	 */
+	public synchronized String formatBuckets() {
+		int[] buckets = getBucketCounts();
+		int largest = 0;
+		for (int bucketCount : buckets)
+			largest = Math.max(largest, bucketCount);
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < buckets.length; i++) {
+			if (buckets[i] == 0)
+				continue;
+
+			String label = i < BUCKET_LIMITS_MS.length
+					? String.format(Locale.US, "<%d ms", BUCKET_LIMITS_MS[i])
+					: String.format(Locale.US, ">=%d ms", BUCKET_LIMITS_MS[BUCKET_LIMITS_MS.length - 1]);
+
+			char[] bar = new char[Math.max(1, buckets[i] * BAR_WIDTH / largest)];
+			Arrays.fill(bar, '#');
+
+			if (sb.length() > 0)
+				sb.append('\n');
+			sb.append(String.format(Locale.US, "%9s %s %d", label, new String(bar), buckets[i]));
+		}
+		return sb.toString();
+	}
+
+	private long[] sortedSamples() {
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+}
@@ -84,6 +84,19 @@ public final class PreferenceConstants {
 
 	public static final String APP_THEME_COLOR = "appThemeColor";
 
+	public static final String ECHO_PREDICTION = "echoprediction";
+	public static final String ECHO_PREDICTION_ADAPTIVE = "adaptive";
+	public static final String ECHO_PREDICTION_ALWAYS = "always";
+	public static final String ECHO_PREDICTION_NEVER = "never";
+
+	public static final String METRICS_HUD = "metricshud";
+
+	public static final String ROW_NODES = "rownodes";
+
+	/* Cipher order measured by CipherPreference */
+	public static final String CIPHER_ORDER = "cipherOrder";
+	public static final String CIPHER_ORDER_VERSION = "cipherOrderVersion";
+
 	/* Backup identifiers */
 	public static final String BACKUP_PREF_KEY = "prefs";
 }
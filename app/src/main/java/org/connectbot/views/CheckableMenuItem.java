@@ -191,4 +191,12 @@ public class CheckableMenuItem extends RelativeLayout {
 	public void setOnCheckedChangeListener(CompoundButton.OnCheckedChangeListener listener) {
 		mSwitch.setOnCheckedChangeListener(listener);
 	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		super.setEnabled(enabled);
+		mTitle.setEnabled(enabled);
+		mSummary.setEnabled(enabled);
+		mSwitch.setEnabled(enabled);
+	}
 }
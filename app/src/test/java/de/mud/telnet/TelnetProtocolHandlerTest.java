@@ -0,0 +1,276 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.telnet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TelnetProtocolHandlerTest {
+	private static final byte IAC = (byte) 255;
+	private static final byte WILL = (byte) 251;
+	private static final byte DO = (byte) 253;
+	private static final byte SB = (byte) 250;
+	private static final byte SE = (byte) 240;
+	private static final byte ECHO = 1;
+	private static final byte COMPRESS2 = 86;
+
+	private static final int PACKET_SIZE = 1460;
+
+	private static class TestHandler extends TelnetProtocolHandler {
+		final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+		@Override
+		protected String getTerminalType() {
+			return "xterm";
+		}
+
+		@Override
+		protected int[] getWindowSize() {
+			return new int[] { 80, 24 };
+		}
+
+		@Override
+		protected void setLocalEcho(boolean echo) {
+		}
+
+		@Override
+		protected void notifyEndOfRecord() {
+		}
+
+		@Override
+		protected void write(byte[] b) {
+			sent.write(b, 0, b.length);
+		}
+
+		@Override
+		protected String getCharsetName() {
+			return "UTF-8";
+		}
+	}
+
+	/**
+	 * Builds a stream of printable data with escaped IAC bytes and the
+	 * occasional IAC WILL ECHO, along with the data the terminal should see.
+	 */
+	private static byte[][] buildStream(int size, long seed) {
+		Random random = new Random(seed);
+		ByteArrayOutputStream wire = new ByteArrayOutputStream(size + size / 50);
+		ByteArrayOutputStream data = new ByteArrayOutputStream(size);
+
+		while (data.size() < size) {
+			int r = random.nextInt(1000);
+			if (r < 10) {
+				wire.write(IAC);
+				wire.write(IAC);
+				data.write(IAC);
+			} else if (r < 11) {
+				wire.write(IAC);
+				wire.write(WILL);
+				wire.write(ECHO);
+			} else {
+				byte b = (byte) (' ' + random.nextInt(95));
+				wire.write(b);
+				data.write(b);
+			}
+		}
+
+		return new byte[][] { wire.toByteArray(), data.toByteArray() };
+	}
+
+	private static byte[] runHandler(TelnetProtocolHandler handler, byte[] wire, int packetSize)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(wire.length);
+		byte[] nbuf = new byte[4096];
+		for (int pos = 0; pos < wire.length; pos += packetSize) {
+			handler.inputfeed(wire, pos, Math.min(packetSize, wire.length - pos));
+			int n;
+			while ((n = handler.negotiate(nbuf, 0)) >= 0)
+				out.write(nbuf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void negotiate_UnescapesIacAcrossFeeds() throws Exception {
+		TestHandler handler = new TestHandler();
+		byte[] nbuf = new byte[16];
+
+		handler.inputfeed(new byte[] { 'a', IAC }, 0, 2);
+		assertArrayEquals(new byte[] { 'a' }, drain(handler, nbuf));
+
+		handler.inputfeed(new byte[] { IAC, 'b' }, 0, 2);
+		assertArrayEquals(new byte[] { IAC, 'b' }, drain(handler, nbuf));
+	}
+
+	@Test
+	public void negotiate_RepliesToWill() throws Exception {
+		TestHandler handler = new TestHandler();
+
+		handler.inputfeed(new byte[] { IAC, WILL, ECHO, 'x' }, 0, 4);
+		assertArrayEquals(new byte[] { 'x' }, drain(handler, new byte[16]));
+		assertArrayEquals(new byte[] { IAC, DO, ECHO }, handler.sent.toByteArray());
+	}
+
+	@Test
+	public void inputfeed_WrapsAndGrowsRingBuffer() throws Exception {
+		byte[][] stream = buildStream(64 * 1024, 1);
+		byte[] wire = stream[0];
+
+		// Feed much more than the ring holds before negotiating any of it.
+		TestHandler handler = new TestHandler();
+		handler.inputfeed(wire, 0, wire.length);
+		assertArrayEquals(stream[1], drain(handler, new byte[1000]));
+
+		// Odd packet sizes so the ring wraps at many different offsets.
+		assertArrayEquals(stream[1], runHandler(new TestHandler(), wire, 777));
+	}
+
+	@Test
+	public void inputfeed_InflatesMccp2StreamUntilItEnds() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < 32 * 1024; i++)
+			sb.append("You are standing in room ").append(i).append(". Exits: north, south.\r\n");
+		byte[] text = sb.toString().getBytes("US-ASCII");
+
+		Deflater deflater = new Deflater();
+		deflater.setInput(text);
+		deflater.finish();
+		byte[] compressed = new byte[text.length];
+		int compressedLength = deflater.deflate(compressed);
+		deflater.end();
+
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		wire.write(new byte[] { 'a', IAC, WILL, COMPRESS2, IAC, SB, COMPRESS2, IAC, SE });
+		wire.write(compressed, 0, compressedLength);
+		wire.write(new byte[] { 'z' });
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write('a');
+		expected.write(text);
+		expected.write('z');
+
+		TestHandler handler = new TestHandler();
+		assertArrayEquals(expected.toByteArray(), runHandler(handler, wire.toByteArray(), 333));
+		assertArrayEquals(new byte[] { IAC, DO, COMPRESS2 }, handler.sent.toByteArray());
+		assertFalse("compression should end with the zlib stream", handler.isCompressing());
+		assertEquals(compressedLength, handler.getCompressedBytes());
+		assertEquals(text.length, handler.getInflatedBytes());
+		assertTrue(handler.getInflatedBytes() > handler.getCompressedBytes());
+	}
+
+	@Test
+	public void inputfeed_BoundsInflatedInput() throws Exception {
+		// 16 MB of zeros deflates to a few kilobytes.
+		byte[] zeros = new byte[16 * 1024 * 1024];
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		deflater.setInput(zeros);
+		deflater.finish();
+		byte[] compressed = new byte[64 * 1024];
+		int compressedLength = deflater.deflate(compressed);
+		assertTrue(deflater.finished());
+		deflater.end();
+
+		TestHandler handler = new TestHandler();
+		handler.inputfeed(new byte[] { IAC, SB, COMPRESS2, IAC, SE }, 0, 5);
+		assertEquals(0, drain(handler, new byte[16]).length);
+		handler.inputfeed(compressed, 0, compressedLength);
+		handler.inputfeed(new byte[] { 'z' }, 0, 1);
+
+		// Nothing is inflated beyond what fits until it has been negotiated.
+		assertTrue("inflated " + handler.getInflatedBytes() + " bytes before negotiating",
+				handler.getInflatedBytes() <= 32 * 1024);
+
+		byte[] nbuf = new byte[4096];
+		long total = 0;
+		int last = -1;
+		int n;
+		while ((n = handler.negotiate(nbuf, 0)) >= 0) {
+			for (int i = 0; i < n; i++) {
+				if (nbuf[i] != 0)
+					last = nbuf[i];
+			}
+			total += n;
+		}
+		assertEquals(zeros.length + 1, total);
+		assertEquals('z', last);
+		assertFalse(handler.isCompressing());
+		assertEquals(compressedLength, handler.getCompressedBytes());
+		assertEquals(zeros.length, handler.getInflatedBytes());
+	}
+
+	@Test
+	public void negotiate_DoesNotAllocatePerFeed() throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported()
+				&& allocations.isThreadAllocatedMemoryEnabled());
+
+		byte[] wire = buildStream(4 * 1024 * 1024, 42)[0];
+		int feeds = (wire.length + PACKET_SIZE - 1) / PACKET_SIZE;
+		TestHandler handler = new TestHandler() {
+			@Override
+			protected void write(byte[] b) {
+			}
+		};
+		byte[] nbuf = new byte[4096];
+		long thread = Thread.currentThread().getId();
+
+		feedAll(handler, wire, nbuf);
+		long before = allocations.getThreadAllocatedBytes(thread);
+		feedAll(handler, wire, nbuf);
+		long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+
+		// Copying the pending input on every feed, as the handler used to, would be far more.
+		assertTrue("allocated " + allocated + " bytes in " + feeds + " feeds", allocated < feeds);
+	}
+
+	private static void feedAll(TelnetProtocolHandler handler, byte[] wire, byte[] nbuf)
+			throws IOException {
+		for (int pos = 0; pos < wire.length; pos += PACKET_SIZE) {
+			handler.inputfeed(wire, pos, Math.min(PACKET_SIZE, wire.length - pos));
+			while (handler.negotiate(nbuf, 0) >= 0) {
+				// discard the data; only the buffering is measured
+			}
+		}
+	}
+
+	private static byte[] drain(TelnetProtocolHandler handler, byte[] nbuf) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int n;
+		while ((n = handler.negotiate(nbuf, 0)) >= 0)
+			out.write(nbuf, 0, n);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.connectbot.service.TerminalKeyListener;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class CursorRendererTest {
+	private static final int FRAMES = 10000;
+
+	private static final int[] META_STATES = {
+			0,
+			TerminalKeyListener.OUR_SHIFT_ON,
+			TerminalKeyListener.OUR_SHIFT_LOCK | TerminalKeyListener.OUR_ALT_ON,
+			TerminalKeyListener.OUR_ALT_LOCK | TerminalKeyListener.OUR_CTRL_ON,
+			TerminalKeyListener.OUR_CTRL_LOCK,
+	};
+
+	/**
+	 * Counts what is drawn without drawing it, so the only allocations
+	 * while drawing are the renderer's own.
+	 */
+	private static class CountingCanvas extends Canvas {
+		int saves;
+		int bitmaps;
+		int paints;
+		int paths;
+		Bitmap lastBitmap;
+		final Rect lastSource = new Rect();
+
+		@Override
+		public int save() {
+			return ++saves;
+		}
+
+		@Override
+		public void restore() {
+			saves--;
+		}
+
+		@Override
+		public void translate(float dx, float dy) {
+		}
+
+		@Override
+		public boolean clipRect(int left, int top, int right, int bottom) {
+			return true;
+		}
+
+		@Override
+		public void concat(Matrix matrix) {
+		}
+
+		@Override
+		public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+			bitmaps++;
+			lastBitmap = bitmap;
+			lastSource.set(src);
+		}
+
+		@Override
+		public void drawPaint(Paint paint) {
+			paints++;
+		}
+
+		@Override
+		public void drawText(char[] text, int index, int count, float x, float y, Paint paint) {
+		}
+
+		@Override
+		public void drawPath(Path path, Paint paint) {
+			paths++;
+		}
+	}
+
+	@Test
+	public void draw_InvertsCellOfTerminalBitmap() {
+		Bitmap terminal = Bitmap.createBitmap(80, 48, Bitmap.Config.ARGB_8888);
+		CursorRenderer renderer = new CursorRenderer(Color.WHITE);
+		renderer.setCellSize(8, 16);
+		CountingCanvas canvas = new CountingCanvas();
+
+		renderer.draw(canvas, terminal, 16, 32, 16, 16, 0, 0);
+
+		assertEquals(1, canvas.bitmaps);
+		assertSame(terminal, canvas.lastBitmap);
+		assertEquals(new Rect(16, 32, 32, 48), canvas.lastSource);
+		assertEquals(0, canvas.saves);
+	}
+
+	@Test
+	public void draw_FillsCellBelowTerminalBitmap() {
+		Bitmap terminal = Bitmap.createBitmap(80, 40, Bitmap.Config.ARGB_8888);
+		CursorRenderer renderer = new CursorRenderer(Color.WHITE);
+		CountingCanvas canvas = new CountingCanvas();
+
+		renderer.draw(canvas, terminal, 0, 32, 8, 16, 0, 0);
+
+		assertEquals(0, canvas.bitmaps);
+		assertEquals(1, canvas.paints);
+	}
+
+	@Test
+	public void draw_MarksModifiers() {
+		Bitmap terminal = Bitmap.createBitmap(80, 48, Bitmap.Config.ARGB_8888);
+		CursorRenderer renderer = new CursorRenderer(Color.WHITE);
+		CountingCanvas canvas = new CountingCanvas();
+
+		renderer.draw(canvas, terminal, 0, 0, 8, 16, TerminalKeyListener.OUR_SHIFT_ON
+				| TerminalKeyListener.OUR_ALT_LOCK | TerminalKeyListener.OUR_CTRL_ON, 0);
+
+		assertEquals(3, canvas.paths);
+	}
+
+	@Test
+	public void draw_DoesNotAllocate() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported()
+				&& allocations.isThreadAllocatedMemoryEnabled());
+
+		Bitmap terminal = Bitmap.createBitmap(80, 48, Bitmap.Config.ARGB_8888);
+		CursorRenderer renderer = new CursorRenderer(Color.WHITE);
+		renderer.setCellSize(8, 16);
+		CountingCanvas canvas = new CountingCanvas();
+		long thread = Thread.currentThread().getId();
+
+		drawFrames(renderer, canvas, terminal);
+		long before = allocations.getThreadAllocatedBytes(thread);
+		drawFrames(renderer, canvas, terminal);
+		long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+
+		// Even one small object per frame would be many times this.
+		assertTrue("allocated " + allocated + " bytes in " + FRAMES + " frames", allocated < FRAMES);
+		assertEquals(FRAMES, canvas.bitmaps);
+	}
+
+	private static void drawFrames(CursorRenderer renderer, CountingCanvas canvas, Bitmap terminal) {
+		canvas.bitmaps = 0;
+		for (int i = 0; i < FRAMES; i++) {
+			int metaState = META_STATES[i % META_STATES.length];
+			int deadKey = (i & 1) == 0 ? 0 : '^';
+			renderer.draw(canvas, terminal, (i % 10) * 8, (i % 3) * 16, 8, 16, metaState, deadKey);
+		}
+	}
+}
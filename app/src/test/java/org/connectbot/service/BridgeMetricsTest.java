@@ -0,0 +1,74 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class BridgeMetricsTest {
+	private static final long SECOND = 1000000000L;
+
+	private final BridgeMetrics metrics = new BridgeMetrics();
+
+	@Test
+	public void timer_KeepsCountTotalAndMax() {
+		metrics.draw.record(3000);
+		metrics.draw.record(9000);
+		metrics.draw.record(1000);
+
+		assertEquals(3, metrics.draw.getCount());
+		assertEquals(13000, metrics.draw.getTotalNanos());
+		assertEquals(9000, metrics.draw.getMaxNanos());
+	}
+
+	@Test
+	public void hud_ShowsRatesSinceLastRefresh() {
+		assertEquals("", metrics.getHudText(SECOND));
+
+		for (int i = 0; i < 30; i++) {
+			metrics.framesRendered.increment();
+			metrics.draw.record(2000000);
+		}
+		metrics.bytesRead.add(2048);
+
+		assertEquals("", metrics.getHudText(SECOND + SECOND / 2));
+		assertEquals("30 fps  2.0 KiB/s  draw 2.00 ms  lock 0.00 ms/s",
+				metrics.getHudText(2 * SECOND));
+	}
+
+	@Test
+	public void dump_ListsEverything() {
+		metrics.bytesRead.add(4096);
+		metrics.lockWait.record(500000);
+
+		String dump = metrics.dump("ssh");
+		assertTrue(dump.contains("transport ssh"));
+		assertTrue(dump.contains("4096"));
+		assertTrue(dump.contains("buffer lock wait"));
+
+		metrics.reset();
+		assertEquals(0, metrics.bytesRead.get());
+		assertEquals(0, metrics.lockWait.getCount());
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import de.mud.terminal.VDUBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class CellStyleCacheTest {
+	private static final int DEFAULT_FG = 7;
+	private static final int DEFAULT_BG = 0;
+
+	private static int[] palette() {
+		int[] palette = new int[256];
+		for (int i = 0; i < palette.length; i++)
+			palette[i] = 0xff000000 | i;
+		return palette;
+	}
+
+	private static long fg(int index) {
+		return (long) (index + 1) << VDUBuffer.COLOR_FG_SHIFT;
+	}
+
+	private static long bg(int index) {
+		return (long) (index + 1) << VDUBuffer.COLOR_BG_SHIFT;
+	}
+
+	@Test
+	public void resolve_DefaultColors() {
+		CellStyleCache cache = new CellStyleCache();
+		int[] palette = palette();
+
+		int slot = cache.resolve(0, palette, DEFAULT_FG, DEFAULT_BG);
+		assertEquals(palette[DEFAULT_FG], cache.getForeground(slot));
+		assertEquals(palette[DEFAULT_BG], cache.getBackground(slot));
+		assertFalse(cache.isUnderlined(slot));
+	}
+
+	@Test
+	public void resolve_BoldBrightensLowColors() {
+		CellStyleCache cache = new CellStyleCache();
+		int[] palette = palette();
+
+		int slot = cache.resolve(fg(1) | VDUBuffer.BOLD, palette, DEFAULT_FG, DEFAULT_BG);
+		assertEquals(palette[9], cache.getForeground(slot));
+
+		slot = cache.resolve(fg(100) | VDUBuffer.BOLD, palette, DEFAULT_FG, DEFAULT_BG);
+		assertEquals(palette[100], cache.getForeground(slot));
+	}
+
+	@Test
+	public void resolve_TruecolorAndInvert() {
+		CellStyleCache cache = new CellStyleCache();
+		long attr = fg(256 + 0x123456) | bg(256 + 0x654321) | VDUBuffer.INVERT | VDUBuffer.UNDERLINE;
+
+		int slot = cache.resolve(attr, palette(), DEFAULT_FG, DEFAULT_BG);
+		assertEquals(0xff654321, cache.getForeground(slot));
+		assertEquals(0xff123456, cache.getBackground(slot));
+		assertTrue(cache.isUnderlined(slot));
+	}
+
+	@Test
+	public void resolve_IgnoresBitsThatDoNotChangeColors() {
+		CellStyleCache cache = new CellStyleCache();
+		int[] palette = palette();
+
+		cache.resolve(fg(2), palette, DEFAULT_FG, DEFAULT_BG);
+		cache.resolve(fg(2) | VDUBuffer.FULLWIDTH, palette, DEFAULT_FG, DEFAULT_BG);
+		cache.resolve(fg(2) | VDUBuffer.INVISIBLE, palette, DEFAULT_FG, DEFAULT_BG);
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void resolve_HitsForRepeatedStyles() {
+		CellStyleCache cache = new CellStyleCache();
+		int[] palette = palette();
+		long[] styles = { 0, fg(1), fg(2) | VDUBuffer.BOLD, bg(4), VDUBuffer.INVERT };
+
+		for (int i = 0; i < 1000; i++)
+			cache.resolve(styles[i % styles.length], palette, DEFAULT_FG, DEFAULT_BG);
+
+		assertTrue(cache.getMisses() < 20);
+	}
+
+	@Test
+	public void clear_PicksUpNewPalette() {
+		CellStyleCache cache = new CellStyleCache();
+		int[] palette = palette();
+		cache.resolve(fg(3), palette, DEFAULT_FG, DEFAULT_BG);
+
+		palette[3] = 0xffabcdef;
+		cache.clear();
+		int slot = cache.resolve(fg(3), palette, DEFAULT_FG, DEFAULT_BG);
+		assertEquals(0xffabcdef, cache.getForeground(slot));
+	}
+}
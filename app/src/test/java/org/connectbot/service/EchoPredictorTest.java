@@ -0,0 +1,174 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.nio.charset.StandardCharsets;
+
+import org.connectbot.util.PreferenceConstants;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import de.mud.terminal.vt320;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class EchoPredictorTest {
+	private vt320 buffer;
+	private EchoPredictor predictor;
+	private long now;
+
+	@Before
+	public void setUp() {
+		buffer = new vt320() {
+			@Override
+			public void write(byte[] b) {}
+			@Override
+			public void write(int b) {}
+			@Override
+			public void sendTelnetCommand(byte cmd) {}
+			@Override
+			public void setWindowSize(int c, int r) {}
+			@Override
+			public void debug(String s) {}
+		};
+		predictor = new EchoPredictor(buffer);
+		predictor.setMode(PreferenceConstants.ECHO_PREDICTION_ALWAYS);
+		now = 1000;
+	}
+
+	@Test
+	public void shownOnceEpochConfirmed() {
+		host("$ ");
+		type("l");
+		assertFalse(predictor.isShown(predictor.getPredictions().get(0)));
+
+		now += 100;
+		host("l");
+		assertEquals(1, predictor.getHits());
+		assertTrue(predictor.getPredictions().isEmpty());
+
+		type("s");
+		assertTrue(predictor.isShown(predictor.getPredictions().get(0)));
+		assertEquals(4, predictor.getCursorColumn());
+
+		now += 100;
+		host("s");
+		assertEquals(2, predictor.getHits());
+		assertEquals(100, predictor.getEchoMillis());
+	}
+
+	@Test
+	public void contradictionDiscardsAll() {
+		host("$ ");
+		type("a");
+		host("a");
+		type("bc");
+		assertEquals(2, predictor.getPredictions().size());
+
+		host("X");
+		assertEquals(1, predictor.getMisses());
+		assertTrue(predictor.getPredictions().isEmpty());
+	}
+
+	@Test
+	public void enterStartsHiddenEpoch() {
+		host("$ ");
+		type("a");
+		host("a");
+		type("\r");
+		host("\r\n$ ");
+
+		type("b");
+		assertFalse(predictor.isShown(predictor.getPredictions().get(0)));
+	}
+
+	@Test
+	public void backspaceAndCursorKeys() {
+		host("$ ");
+		type("a");
+		host("a");
+
+		type("bc\u007f");
+		assertEquals(4, predictor.getCursorColumn());
+		type("\u001b[D");
+		assertEquals(3, predictor.getCursorColumn());
+
+		host("bc\b \b\b");
+		assertTrue(predictor.getPredictions().isEmpty());
+		assertEquals(0, predictor.getMisses());
+	}
+
+	@Test
+	public void noPredictionAtPasswordPrompt() {
+		host("[sudo] password for user: ");
+		type("secret");
+		assertTrue(predictor.getPredictions().isEmpty());
+	}
+
+	@Test
+	public void noPredictionInFullScreenPrograms() {
+		host("\u001b[?1h\u001b=");
+		type("j");
+		assertTrue(predictor.getPredictions().isEmpty());
+	}
+
+	@Test
+	public void unechoedInputExpires() {
+		host("Code: ");
+		type("1234");
+		now += 5000;
+		host("");
+		assertEquals(1, predictor.getMisses());
+		assertTrue(predictor.getPredictions().isEmpty());
+	}
+
+	@Test
+	public void adaptiveHidesOnFastLinks() {
+		predictor.setMode(PreferenceConstants.ECHO_PREDICTION_ADAPTIVE);
+		host("$ ");
+		for (char c = 'a'; c < 'f'; c++) {
+			type(String.valueOf(c));
+			now += 5;
+			host(String.valueOf(c));
+		}
+		type("f");
+		assertFalse(predictor.isShowing());
+
+		for (char c = 'f'; c < 'z'; c++) {
+			now += 200;
+			host(String.valueOf(c));
+			type(String.valueOf((char) (c + 1)));
+		}
+		assertTrue(predictor.isShowing());
+	}
+
+	private void type(String keys) {
+		byte[] data = keys.getBytes(StandardCharsets.UTF_8);
+		predictor.onInput(data, 0, data.length, now);
+	}
+
+	private void host(String output) {
+		buffer.putString(output);
+		predictor.onHostOutput(now);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class InputLatencyTest {
+	private static final long MS = 1000000;
+
+	private final InputLatency latency = new InputLatency();
+
+	@Test
+	public void followsKeystrokeThroughEachStage() {
+		latency.onInputEvent(0);
+		latency.onSent(1 * MS, 2 * MS);
+		latency.onHostBytes(42 * MS);
+		latency.onFrameDrawn(50 * MS);
+
+		assertEquals(2000, latency.getInputToSend().getPercentile(100));
+		assertEquals(40000, latency.getSendToFirstByte().getPercentile(100));
+		assertEquals(8000, latency.getFirstByteToFrame().getPercentile(100));
+	}
+
+	@Test
+	public void timesFromOldestUnansweredKeystroke() {
+		latency.onSent(0, 1 * MS);
+		latency.onSent(10 * MS, 11 * MS);
+		latency.onHostBytes(31 * MS);
+		latency.onHostBytes(32 * MS);
+
+		assertEquals(2, latency.getInputToSend().getTotalCount());
+		assertEquals(1, latency.getSendToFirstByte().getTotalCount());
+		assertEquals(30000, latency.getSendToFirstByte().getPercentile(100));
+	}
+
+	@Test
+	public void ignoresUnpromptedOutput() {
+		latency.onHostBytes(5 * MS);
+		latency.onFrameDrawn(6 * MS);
+
+		latency.onSent(10 * MS, 11 * MS);
+		latency.onHostBytes(11 * MS + InputLatency.REPLY_TIMEOUT_NANOS + 1);
+		latency.onFrameDrawn(20 * MS + InputLatency.REPLY_TIMEOUT_NANOS);
+
+		assertEquals(0, latency.getSendToFirstByte().getTotalCount());
+		assertEquals(0, latency.getFirstByteToFrame().getTotalCount());
+	}
+
+	@Test
+	public void staleInputEventNotCharged() {
+		latency.onInputEvent(0);
+		latency.onSent(InputLatency.INPUT_TIMEOUT_NANOS, InputLatency.INPUT_TIMEOUT_NANOS + MS);
+
+		assertEquals(1000, latency.getInputToSend().getPercentile(100));
+	}
+}
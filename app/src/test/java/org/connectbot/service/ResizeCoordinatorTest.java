@@ -0,0 +1,70 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ResizeCoordinatorTest {
+	@Test
+	public void offer_RestartsOnlyForNewSizes() {
+		ResizeCoordinator coordinator = new ResizeCoordinator();
+		assertFalse(coordinator.isPending());
+
+		assertTrue(coordinator.offer(800, 600));
+		assertFalse(coordinator.offer(800, 600));
+		assertTrue(coordinator.offer(800, 580));
+		assertTrue(coordinator.isPending());
+	}
+
+	@Test
+	public void clear_EndsPendingResize() {
+		ResizeCoordinator coordinator = new ResizeCoordinator();
+		coordinator.offer(800, 600);
+		coordinator.clear();
+
+		assertFalse(coordinator.isPending());
+		assertTrue(coordinator.offer(800, 600));
+	}
+
+	@Test
+	public void windowChange_SentOncePerGrid() {
+		ResizeCoordinator coordinator = new ResizeCoordinator();
+		Object transport = new Object();
+
+		assertTrue(coordinator.isWindowChangeNeeded(transport, 80, 24));
+		coordinator.windowChanged(transport, 80, 24);
+		assertFalse(coordinator.isWindowChangeNeeded(transport, 80, 24));
+		assertTrue(coordinator.isWindowChangeNeeded(transport, 80, 25));
+		assertTrue(coordinator.isWindowChangeNeeded(transport, 81, 24));
+	}
+
+	@Test
+	public void windowChange_SentAgainToNewTransport() {
+		ResizeCoordinator coordinator = new ResizeCoordinator();
+		coordinator.windowChanged(new Object(), 80, 24);
+
+		assertTrue(coordinator.isWindowChangeNeeded(new Object(), 80, 24));
+	}
+}
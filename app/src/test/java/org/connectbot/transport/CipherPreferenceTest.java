@@ -0,0 +1,77 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(AndroidJUnit4.class)
+public class CipherPreferenceTest {
+	private static final String[] AVAILABLE = {
+		"chacha20-poly1305@openssh.com", "aes128-ctr", "aes256-ctr", "3des-cbc"
+	};
+
+	@Test
+	public void withPreferred_MovesPreferredFirst() {
+		assertArrayEquals(new String[] { "aes256-ctr", "chacha20-poly1305@openssh.com", "aes128-ctr", "3des-cbc" },
+				CipherPreference.withPreferred(AVAILABLE, "aes256-ctr"));
+	}
+
+	@Test
+	public void withPreferred_KeepsLibraryDefaultWithoutPreference() {
+		assertNull(CipherPreference.withPreferred(AVAILABLE, null));
+		assertNull(CipherPreference.withPreferred(AVAILABLE, ""));
+	}
+
+	@Test
+	public void withPreferred_IgnoresUnavailableCipher() {
+		assertNull(CipherPreference.withPreferred(AVAILABLE, "blowfish-cbc"));
+	}
+
+	@Test
+	public void orderByThroughput_FastestFirstUnmeasuredLast() {
+		Map<String, Double> throughput = new HashMap<>();
+		throughput.put("aes128-ctr", 300.0);
+		throughput.put("chacha20-poly1305@openssh.com", 500.0);
+		throughput.put("aes256-ctr", 250.0);
+
+		assertArrayEquals(new String[] { "chacha20-poly1305@openssh.com", "aes128-ctr", "aes256-ctr", "3des-cbc" },
+				CipherPreference.orderByThroughput(AVAILABLE, throughput));
+	}
+
+	@Test
+	public void withMacCost_OnlyChargesCiphersWithoutAuthentication() {
+		Map<String, Double> ciphers = new HashMap<>();
+		ciphers.put("aes128-ctr", 600.0);
+		ciphers.put("aes128-gcm@openssh.com", 400.0);
+
+		Map<String, Double> combined = CipherPreference.withMacCost(ciphers, 300.0);
+
+		assertEquals(200.0, combined.get("aes128-ctr"), 0.001);
+		assertEquals(400.0, combined.get("aes128-gcm@openssh.com"), 0.001);
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ConnectTimelineTest {
+	@Test
+	public void format_KeepsPhaseOrder() {
+		ConnectTimeline timeline = new ConnectTimeline();
+		timeline.add(ConnectTimeline.DNS, 12);
+		timeline.add(ConnectTimeline.TCP, 48);
+		timeline.add(ConnectTimeline.KEX, 130);
+		timeline.add(ConnectTimeline.TCP, 2);
+
+		assertEquals("DNS 12 ms, TCP 50 ms, KEX 130 ms", timeline.format());
+		assertEquals(192, timeline.getTotalMillis());
+		assertEquals(0, timeline.getMillis(ConnectTimeline.AUTH));
+	}
+
+	@Test
+	public void blend_MeanThenMovingAverage() {
+		double average = 0;
+		for (int i = 0; i < ConnectTimeline.AVERAGE_WINDOW; i++)
+			average = ConnectTimeline.blend(average, i, i % 2 == 0 ? 100 : 200);
+		assertEquals(150, average, 0.001);
+
+		// A slower host shows up within a few connections.
+		for (int i = 0; i < 8; i++)
+			average = ConnectTimeline.blend(average, ConnectTimeline.AVERAGE_WINDOW + i, 1000);
+		assertTrue(average > 600);
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class DnsCacheTest {
+	private static final InetAddress[] ADDRESSES;
+	static {
+		try {
+			ADDRESSES = new InetAddress[] {
+					InetAddress.getByAddress("example", new byte[] { (byte) 192, 0, 2, 1 }),
+			};
+		} catch (UnknownHostException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static class CountingResolver implements DnsCache.Resolver {
+		int lookups = 0;
+		boolean fail = false;
+
+		@Override
+		public InetAddress[] resolve(String hostname) throws UnknownHostException {
+			lookups++;
+			if (fail)
+				throw new UnknownHostException(hostname);
+			return ADDRESSES;
+		}
+	}
+
+	@Test
+	public void resolve_CachesAnswerCaseInsensitively() throws Exception {
+		CountingResolver resolver = new CountingResolver();
+		DnsCache cache = new DnsCache(resolver, 60, 60);
+
+		assertArrayEquals(ADDRESSES, cache.resolve("example.com"));
+		assertArrayEquals(ADDRESSES, cache.resolve("EXAMPLE.com"));
+		assertEquals(1, resolver.lookups);
+	}
+
+	@Test
+	public void resolve_CachesFailures() throws Exception {
+		CountingResolver resolver = new CountingResolver();
+		resolver.fail = true;
+		DnsCache cache = new DnsCache(resolver, 60, 60);
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.resolve("nx.example.com");
+				fail("Lookup should fail");
+			} catch (UnknownHostException expected) {
+			}
+		}
+		assertEquals(1, resolver.lookups);
+	}
+
+	@Test
+	public void resolve_ExpiredEntryIsResolvedAgain() throws Exception {
+		CountingResolver resolver = new CountingResolver();
+		DnsCache cache = new DnsCache(resolver, 0, 0);
+
+		cache.resolve("example.com");
+		cache.resolve("example.com");
+		assertEquals(2, resolver.lookups);
+	}
+
+	@Test
+	public void clearAndInvalidate_ForgetAnswers() throws Exception {
+		CountingResolver resolver = new CountingResolver();
+		DnsCache cache = new DnsCache(resolver, 60, 60);
+
+		cache.resolve("example.com");
+		cache.invalidate("example.com");
+		cache.resolve("example.com");
+		cache.clear();
+		cache.resolve("example.com");
+		assertEquals(3, resolver.lookups);
+	}
+}
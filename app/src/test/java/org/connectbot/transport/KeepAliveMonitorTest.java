@@ -0,0 +1,131 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.connectbot.util.LatencyHistogram;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class KeepAliveMonitorTest {
+	/** Holds probes until the test lets them run, like a server that has not answered yet. */
+	private static class HeldExecutor implements Executor {
+		final List<Runnable> held = new ArrayList<>();
+
+		@Override
+		public void execute(Runnable command) {
+			held.add(command);
+		}
+
+		void runAll() {
+			for (Runnable r : held)
+				r.run();
+			held.clear();
+		}
+	}
+
+	private static class FakePeer implements KeepAliveMonitor.Peer {
+		int pings = 0;
+		int deadCalls = 0;
+		boolean replies = true;
+
+		@Override
+		public boolean ping() throws IOException {
+			pings++;
+			return replies;
+		}
+
+		@Override
+		public void onPeerDead(int missed) {
+			deadCalls++;
+		}
+	}
+
+	@Test
+	public void answeredProbes_RecordRoundTrips() {
+		FakePeer peer = new FakePeer();
+		HeldExecutor executor = new HeldExecutor();
+		LatencyHistogram rtt = new LatencyHistogram(8);
+		KeepAliveMonitor monitor = new KeepAliveMonitor(peer, executor, 3, rtt);
+
+		for (int i = 0; i < 5; i++) {
+			monitor.run();
+			executor.runAll();
+		}
+
+		assertEquals(5, peer.pings);
+		assertEquals(5, rtt.getSampleCount());
+		assertEquals(0, monitor.getMissed());
+		assertEquals(0, peer.deadCalls);
+	}
+
+	@Test
+	public void unansweredProbes_ReportDeadPeerOnce() {
+		FakePeer peer = new FakePeer();
+		HeldExecutor executor = new HeldExecutor();
+		KeepAliveMonitor monitor = new KeepAliveMonitor(peer, executor, 3, new LatencyHistogram(8));
+
+		// The first probe never completes.
+		monitor.run();
+		monitor.run();
+		monitor.run();
+		assertEquals(0, peer.deadCalls);
+
+		monitor.run();
+		monitor.run();
+		assertEquals(1, peer.deadCalls);
+		assertEquals(1, executor.held.size());
+	}
+
+	@Test
+	public void lateReply_ResetsMissedCount() {
+		FakePeer peer = new FakePeer();
+		HeldExecutor executor = new HeldExecutor();
+		KeepAliveMonitor monitor = new KeepAliveMonitor(peer, executor, 3, new LatencyHistogram(8));
+
+		monitor.run();
+		monitor.run();
+		assertEquals(1, monitor.getMissed());
+
+		executor.runAll();
+		assertEquals(0, monitor.getMissed());
+	}
+
+	@Test
+	public void sendOnlyProbes_RecordNothing() {
+		FakePeer peer = new FakePeer();
+		peer.replies = false;
+		HeldExecutor executor = new HeldExecutor();
+		LatencyHistogram rtt = new LatencyHistogram(8);
+		KeepAliveMonitor monitor = new KeepAliveMonitor(peer, executor, 3, rtt);
+
+		monitor.run();
+		executor.runAll();
+		assertEquals(1, peer.pings);
+		assertEquals(0, rtt.getSampleCount());
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.util.Random;
+
+import javax.crypto.BadPaddingException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class MoshCryptoTest {
+	private static final byte[] KEY = hex("000102030405060708090A0B0C0D0E0F");
+
+	/** Sample results from RFC 7253, appendix A, without associated data. */
+	@Test
+	public void emptyPlaintext() throws Exception {
+		assertSeals("BBAA99887766554433221100", "",
+				"785407BFFFC8AD9EDCC5520AC9111EE6");
+	}
+
+	@Test
+	public void partialBlock() throws Exception {
+		assertSeals("BBAA99887766554433221103", "0001020304050607",
+				"45DD69F8F5AAE72414054CD1F35D82760B2CD00D2F99BFA9");
+	}
+
+	@Test
+	public void fullBlock() throws Exception {
+		assertSeals("BBAA99887766554433221106", "000102030405060708090A0B0C0D0E0F",
+				"5CE88EC2E0692706A915C00AEB8B2396F40E1C743F52436BDF06D8FA1ECA343D");
+	}
+
+	@Test
+	public void roundTripsLongMessage() throws Exception {
+		MoshCrypto crypto = new MoshCrypto(KEY);
+		byte[] nonce = hex("000000000000000000000001");
+		byte[] plain = new byte[1000];
+		new Random(1).nextBytes(plain);
+
+		byte[] sealed = crypto.encrypt(nonce, plain, 0, plain.length);
+		assertArrayEquals(plain, crypto.decrypt(nonce, sealed, 0, sealed.length));
+	}
+
+	@Test(expected = BadPaddingException.class)
+	public void rejectsTamperedCiphertext() throws Exception {
+		MoshCrypto crypto = new MoshCrypto(KEY);
+		byte[] nonce = hex("000000000000000000000001");
+		byte[] plain = new byte[100];
+
+		byte[] sealed = crypto.encrypt(nonce, plain, 0, plain.length);
+		sealed[5] ^= 1;
+		crypto.decrypt(nonce, sealed, 0, sealed.length);
+	}
+
+	private static void assertSeals(String nonce, String plain, String sealed) throws Exception {
+		MoshCrypto crypto = new MoshCrypto(KEY);
+		byte[] p = hex(plain);
+		byte[] c = crypto.encrypt(hex(nonce), p, 0, p.length);
+		assertArrayEquals(hex(sealed), c);
+		assertArrayEquals(p, crypto.decrypt(hex(nonce), c, 0, c.length));
+	}
+
+	private static byte[] hex(String s) {
+		byte[] out = new byte[s.length() / 2];
+		for (int i = 0; i < out.length; i++)
+			out[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		return out;
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.connectbot.service.TerminalExecutors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class MoshSessionTest {
+	private static final byte[] KEY = new byte[] {
+			1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+
+	private static final long TIMEOUT_MS = 5000;
+
+	private SelectorLoop loop;
+	private TerminalExecutors executors;
+	private StandInServer server;
+	private MoshSession session;
+
+	private final ByteArrayOutputStream screen = new ByteArrayOutputStream();
+
+	@Before
+	public void setUp() throws Exception {
+		loop = new SelectorLoop();
+		new Thread(loop, "SelectorLoop").start();
+		executors = new TerminalExecutors();
+		server = new StandInServer();
+		server.start();
+
+		session = new MoshSession(KEY, server.getAddress(), loop, executors, new MoshSession.Listener() {
+			@Override
+			public void onHostBytes(byte[] data) {
+				synchronized (screen) {
+					screen.write(data, 0, data.length);
+					screen.notifyAll();
+				}
+			}
+
+			@Override
+			public void onEchoAck(long num) {
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		session.close();
+		server.stop();
+		executors.shutdown();
+		loop.shutdown();
+	}
+
+	@Test
+	public void keystrokesAreEchoedThroughServer() throws Exception {
+		session.resize(100, 30);
+		session.start();
+		session.sendKeys("ls\r".getBytes(StandardCharsets.UTF_8));
+
+		awaitScreen("ls\r");
+		assertEquals("100x30", server.getSize());
+		assertEquals(server.getUserNum(), session.getAckedNum());
+	}
+
+	@Test
+	public void roamingMovesToNewSocket() throws Exception {
+		session.start();
+		session.sendKeys("a".getBytes(StandardCharsets.UTF_8));
+		awaitScreen("a");
+		SocketAddress before = server.getClient();
+
+		session.roam();
+		session.sendKeys("b".getBytes(StandardCharsets.UTF_8));
+		awaitScreen("ab");
+
+		assertNotEquals(before, server.getClient());
+	}
+
+	@Test
+	public void retransmitsUntilAcknowledged() throws Exception {
+		server.setDropping(true);
+		session.start();
+		session.sendKeys("x".getBytes(StandardCharsets.UTF_8));
+		Thread.sleep(300);
+		assertTrue(session.getSentNum() > session.getAckedNum());
+
+		server.setDropping(false);
+		awaitScreen("x");
+		assertEquals(session.getSentNum(), session.getAckedNum());
+	}
+
+	private void awaitScreen(String expected) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+		synchronized (screen) {
+			while (!expected.equals(screen.toString())) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0)
+					break;
+				screen.wait(remaining);
+			}
+			assertEquals(expected, screen.toString());
+		}
+	}
+
+	/**
+	 * Just enough of mosh-server: applies the user's keystrokes and echoes
+	 * each batch back as one new screen state, replying to wherever the
+	 * latest datagram came from.
+	 */
+	private static class StandInServer implements Runnable {
+		private final DatagramSocket socket;
+		private final MoshCrypto crypto;
+		private final MoshProtocol.FragmentAssembly assembly = new MoshProtocol.FragmentAssembly();
+		private Thread thread;
+
+		private volatile boolean dropping = false;
+		private volatile SocketAddress client;
+		private volatile String size = "";
+		private volatile long userNum = 0;
+
+		private long hostNum = 0;
+		private long seq = 0;
+		private long instructionId = 0;
+
+		StandInServer() throws Exception {
+			socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+			socket.setSoTimeout(100);
+			crypto = new MoshCrypto(KEY);
+		}
+
+		InetSocketAddress getAddress() {
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+		}
+
+		SocketAddress getClient() {
+			return client;
+		}
+
+		String getSize() {
+			return size;
+		}
+
+		long getUserNum() {
+			return userNum;
+		}
+
+		void setDropping(boolean dropping) {
+			this.dropping = dropping;
+		}
+
+		void start() {
+			thread = new Thread(this, "StandInServer");
+			thread.start();
+		}
+
+		void stop() throws InterruptedException {
+			socket.close();
+			thread.join();
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = new byte[65536];
+			while (!socket.isClosed()) {
+				DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+				try {
+					socket.receive(datagram);
+				} catch (SocketTimeoutException e) {
+					continue;
+				} catch (Exception e) {
+					return;
+				}
+
+				if (dropping)
+					continue;
+
+				try {
+					handle(datagram);
+				} catch (GeneralSecurityException e) {
+					// Like mosh-server, drop anything that does not open.
+				} catch (IOException e) {
+					if (socket.isClosed())
+						return;
+					throw new AssertionError(e);
+				}
+			}
+		}
+
+		private void handle(DatagramPacket datagram) throws IOException, GeneralSecurityException {
+			MoshProtocol.Packet packet = MoshProtocol.open(crypto, datagram.getData(),
+					datagram.getLength(), false);
+			client = datagram.getSocketAddress();
+
+			byte[] compressed = assembly.add(packet.payload);
+			if (compressed == null)
+				return;
+			MoshProtocol.Instruction inst = MoshProtocol.Instruction.decode(
+					MoshProtocol.decompress(compressed));
+
+			final ByteArrayOutputStream keys = new ByteArrayOutputStream();
+			if (inst.newNum != userNum && inst.oldNum == userNum) {
+				MoshProtocol.parseEvents(inst.diff, new MoshProtocol.EventHandler() {
+					@Override
+					public void onBytes(byte[] data) {
+						keys.write(data, 0, data.length);
+					}
+
+					@Override
+					public void onResize(int columns, int rows) {
+						size = columns + "x" + rows;
+					}
+
+					@Override
+					public void onEchoAck(long num) {
+					}
+				});
+				userNum = inst.newNum;
+			}
+
+			MoshProtocol.Instruction reply = new MoshProtocol.Instruction();
+			reply.ackNum = userNum;
+			reply.oldNum = hostNum;
+			if (keys.size() > 0) {
+				reply.newNum = ++hostNum;
+				reply.diff = MoshProtocol.bytesEvent(keys.toByteArray());
+			} else {
+				reply.newNum = hostNum;
+			}
+
+			byte[] payload = MoshProtocol.fragment(instructionId++,
+					MoshProtocol.compress(reply.encode()), 1000).get(0);
+			byte[] out = MoshProtocol.seal(crypto, seq++, true, MoshProtocol.TIMESTAMP_NONE,
+					packet.timestamp, payload);
+			socket.send(new DatagramPacket(Arrays.copyOf(out, out.length), out.length, client));
+		}
+	}
+}
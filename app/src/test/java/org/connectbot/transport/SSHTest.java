@@ -0,0 +1,119 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.connectbot.bean.PubkeyBean;
+import org.connectbot.service.TerminalManager.KeyHolder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class SSHTest {
+	@Test
+	public void getAuthMethodOrder_DefaultsWithoutHistory() {
+		assertEquals(Arrays.asList("publickey", "keyboard-interactive", "password"),
+				SSH.getAuthMethodOrder(null));
+	}
+
+	@Test
+	public void getAuthMethodOrder_RememberedMethodsFirst() {
+		assertEquals(Arrays.asList("password", "publickey", "keyboard-interactive"),
+				SSH.getAuthMethodOrder("password"));
+		assertEquals(Arrays.asList("keyboard-interactive", "password", "publickey"),
+				SSH.getAuthMethodOrder("keyboard-interactive,password"));
+	}
+
+	@Test
+	public void getAuthMethodOrder_IgnoresUnknownMethods() {
+		assertEquals(Arrays.asList("password", "publickey", "keyboard-interactive"),
+				SSH.getAuthMethodOrder("gssapi-with-mic,,password,password"));
+	}
+
+	@Test
+	public void nextAuthMethod_FollowsServerList() {
+		List<String> order = SSH.getAuthMethodOrder(null);
+		Set<String> exhausted = new HashSet<>();
+		String[] remaining = { "password", "keyboard-interactive" };
+
+		assertEquals("keyboard-interactive", SSH.nextAuthMethod(order, remaining, exhausted));
+
+		exhausted.add("keyboard-interactive");
+		assertEquals("password", SSH.nextAuthMethod(order, remaining, exhausted));
+
+		exhausted.add("password");
+		assertNull(SSH.nextAuthMethod(order, remaining, exhausted));
+	}
+
+	@Test
+	public void nextAuthMethod_NothingSupported() {
+		assertNull(SSH.nextAuthMethod(SSH.getAuthMethodOrder(null),
+				new String[] { "hostbased" }, Collections.<String>emptySet()));
+	}
+
+	@Test
+	public void orderPubkeyCandidates_RememberedKeyFirstThenByNickname() {
+		List<KeyHolder> loaded = new ArrayList<>();
+		loaded.add(keyHolder(1, "work"));
+		loaded.add(keyHolder(2, "home"));
+		loaded.add(keyHolder(3, "backup"));
+
+		assertEquals(Arrays.asList("home", "backup", "work"),
+				nicknames(SSH.orderPubkeyCandidates(loaded, 2)));
+		assertEquals(Arrays.asList("backup", "home", "work"),
+				nicknames(SSH.orderPubkeyCandidates(loaded, -1)));
+	}
+
+	@Test
+	public void shouldCompress_MeasurementBeatsNetworkType() {
+		assertTrue(SSH.shouldCompress(64 * 1024, false));
+		assertFalse(SSH.shouldCompress(4 * 1024 * 1024, true));
+		assertTrue(SSH.shouldCompress(0, true));
+		assertFalse(SSH.shouldCompress(0, false));
+	}
+
+	private static KeyHolder keyHolder(long id, String nickname) {
+		PubkeyBean bean = new PubkeyBean();
+		bean.setId(id);
+		bean.setNickname(nickname);
+
+		KeyHolder holder = new KeyHolder();
+		holder.bean = bean;
+		return holder;
+	}
+
+	private static List<String> nicknames(List<KeyHolder> holders) {
+		List<String> nicknames = new ArrayList<>();
+		for (KeyHolder holder : holders)
+			nicknames.add(holder.bean.getNickname());
+		return nicknames;
+	}
+}
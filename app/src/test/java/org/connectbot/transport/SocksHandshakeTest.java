@@ -0,0 +1,108 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class SocksHandshakeTest {
+	@Test
+	public void socks4_IPv4Address() throws Exception {
+		SocksHandshake socks = new SocksHandshake(false);
+		assertTrue(socks.feed(ByteBuffer.wrap(new byte[] { 4, 1, 0, 80, 10, 0, 0, 1, 'u', 0 })));
+		assertEquals("10.0.0.1", socks.getHost());
+		assertEquals(80, socks.getPort());
+		assertNull(socks.takeReply());
+		assertArrayEquals(new byte[] { 0, 0x5a, 0, 0, 0, 0, 0, 0 }, socks.getConnectReply(true));
+	}
+
+	@Test
+	public void socks4a_HostNameInPieces() throws Exception {
+		SocksHandshake socks = new SocksHandshake(false);
+		assertFalse(socks.feed(ByteBuffer.wrap(new byte[] { 4, 1, 0x1f, (byte) 0x90, 0, 0, 0, 1, 0 })));
+		assertTrue(socks.feed(ByteBuffer.wrap(new byte[] { 'h', 'o', 's', 't', 0 })));
+		assertEquals("host", socks.getHost());
+		assertEquals(8080, socks.getPort());
+	}
+
+	@Test
+	public void socks5_DomainNameWithEarlyData() throws Exception {
+		SocksHandshake socks = new SocksHandshake(true);
+		assertFalse(socks.feed(ByteBuffer.wrap(new byte[] { 5, 2, 2, 0 })));
+		assertArrayEquals(new byte[] { 5, 0 }, socks.takeReply());
+
+		ByteBuffer request = ByteBuffer.wrap(new byte[] {
+				5, 1, 0, 3, 4, 'h', 'o', 's', 't', 1, (byte) 0xbb, 'G', 'E', 'T' });
+		assertTrue(socks.feed(request));
+		assertEquals("host", socks.getHost());
+		assertEquals(443, socks.getPort());
+		assertEquals(3, request.remaining());
+	}
+
+	@Test
+	public void socks5_IPv6Address() throws Exception {
+		SocksHandshake socks = new SocksHandshake(true);
+		socks.feed(ByteBuffer.wrap(new byte[] { 5, 1, 0 }));
+
+		byte[] request = new byte[4 + 16 + 2];
+		request[0] = 5;
+		request[1] = 1;
+		request[3] = 4;
+		request[4] = 0x20;
+		request[5] = 0x01;
+		request[4 + 15] = 1;
+		request[21] = 22;
+		assertTrue(socks.feed(ByteBuffer.wrap(request)));
+		assertEquals("2001:0:0:0:0:0:0:1", socks.getHost());
+		assertEquals(22, socks.getPort());
+	}
+
+	@Test
+	public void socks5_RefusedWhenOnlySocks4Allowed() {
+		SocksHandshake socks = new SocksHandshake(false);
+		try {
+			socks.feed(ByteBuffer.wrap(new byte[] { 5, 1, 0 }));
+			fail("SOCKS5 accepted");
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void socks5_AuthenticationRequired() {
+		SocksHandshake socks = new SocksHandshake(true);
+		try {
+			socks.feed(ByteBuffer.wrap(new byte[] { 5, 1, 2 }));
+			fail("Handshake without a shared method accepted");
+		} catch (IOException expected) {
+			assertArrayEquals(new byte[] { 5, (byte) 0xff }, socks.takeReply());
+		}
+	}
+}
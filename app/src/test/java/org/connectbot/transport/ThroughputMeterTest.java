@@ -0,0 +1,72 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class ThroughputMeterTest {
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void burstMeasuredAfterFirstRead() {
+		ThroughputMeter meter = new ThroughputMeter();
+		long now = 1000 * MS;
+		meter.onRead(4096, now);
+		// 128 KiB more over the next 500 ms
+		for (int i = 1; i <= 32; i++)
+			meter.onRead(4096, now + i * 500 * MS / 32);
+
+		assertEquals(256 * 1024, meter.getBytesPerSecond());
+	}
+
+	@Test
+	public void smallBurstsIgnored() {
+		ThroughputMeter meter = new ThroughputMeter();
+		long now = 1000 * MS;
+		for (int i = 0; i < 100; i++) {
+			// keystroke echoes, far apart
+			now += 300 * MS;
+			meter.onRead(1, now);
+		}
+
+		assertEquals(0, meter.getBytesPerSecond());
+	}
+
+	@Test
+	public void fastestBurstWins() {
+		ThroughputMeter meter = new ThroughputMeter();
+		long now = 1000 * MS;
+		burst(meter, now, 100 * MS);
+		burst(meter, now + 5000 * MS, 50 * MS);
+
+		assertEquals(ThroughputMeter.MIN_BURST_BYTES * 20L, meter.getBytesPerSecond());
+	}
+
+	private static void burst(ThroughputMeter meter, long start, long duration) {
+		meter.onRead(1, start);
+		meter.onRead(ThroughputMeter.MIN_BURST_BYTES, start + duration);
+	}
+}
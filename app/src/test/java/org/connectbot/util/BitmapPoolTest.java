@@ -0,0 +1,82 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.graphics.Bitmap;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class BitmapPoolTest {
+	@Test
+	public void bucketBytes_RoundsUpToQuarterSteps() {
+		assertEquals(1024, BitmapPool.bucketBytes(1024));
+		assertEquals(1280, BitmapPool.bucketBytes(1025));
+		assertEquals(1792, BitmapPool.bucketBytes(1700));
+		assertEquals(2048, BitmapPool.bucketBytes(1900));
+	}
+
+	@Test
+	public void acquire_ReusesReleasedBitmapForNewSize() {
+		BitmapPool pool = new BitmapPool(100 * 1024 * 1024);
+		Bitmap first = pool.acquire(1000, 800);
+		assertEquals(1000, first.getWidth());
+		assertEquals(800, first.getHeight());
+		pool.release(first);
+
+		// Smaller, as when the keyboard slides up.
+		Bitmap second = pool.acquire(1000, 500);
+		assertSame(first, second);
+		assertEquals(500, second.getHeight());
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	@Test
+	public void acquire_AllocatesWhenNothingFits() {
+		BitmapPool pool = new BitmapPool(100 * 1024 * 1024);
+		Bitmap small = pool.acquire(100, 100);
+		pool.release(small);
+
+		Bitmap large = pool.acquire(2000, 2000);
+		assertNotSame(small, large);
+		assertTrue(pool.getPooledBytes() > 0);
+	}
+
+	@Test
+	public void release_StaysWithinLimit() {
+		BitmapPool pool = new BitmapPool(1000 * 1000 * 4);
+		Bitmap a = pool.acquire(1000, 600);
+		Bitmap b = pool.acquire(1000, 600);
+		pool.release(a);
+		pool.release(b);
+
+		assertTrue(pool.getPooledBytes() <= pool.getMaxBytes());
+		assertTrue(a.isRecycled());
+
+		pool.clear();
+		assertEquals(0, pool.getPooledBytes());
+		assertTrue(b.isRecycled());
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class HdrHistogramTest {
+	@Test
+	public void empty_HasNoSummary() {
+		HdrHistogram histogram = new HdrHistogram(1000000);
+		assertEquals(0, histogram.getTotalCount());
+		assertEquals(-1, histogram.getPercentile(50));
+		assertNull(histogram.summarize());
+	}
+
+	@Test
+	public void buckets_CoverEveryValueOnce() {
+		for (int i = 0; i < 600; i++) {
+			assertEquals(i, HdrHistogram.indexOf(HdrHistogram.lowestInBucket(i)));
+			assertEquals(i, HdrHistogram.indexOf(HdrHistogram.highestInBucket(i)));
+			assertEquals(HdrHistogram.highestInBucket(i) + 1, HdrHistogram.lowestInBucket(i + 1));
+		}
+	}
+
+	@Test
+	public void buckets_StayWithinResolution() {
+		for (long value = 1; value < 100000000L; value = value * 3 + 1) {
+			int index = HdrHistogram.indexOf(value);
+			long width = HdrHistogram.highestInBucket(index) - HdrHistogram.lowestInBucket(index);
+			assertTrue(width <= value / HdrHistogram.SUB_BUCKETS);
+		}
+	}
+
+	@Test
+	public void percentiles_AcrossDecades() {
+		HdrHistogram histogram = new HdrHistogram(60000000);
+		for (int i = 0; i < 90; i++)
+			histogram.record(199);
+		for (int i = 0; i < 9; i++)
+			histogram.record(5119);
+		histogram.record(40000);
+
+		assertEquals(199, histogram.getPercentile(50));
+		assertEquals(199, histogram.getPercentile(90));
+		assertEquals(5119, histogram.getPercentile(99));
+		assertEquals(40000, histogram.getPercentile(100));
+		assertEquals("p50 0.20 / p90 0.20 / p99 5.12 / max 40.0 ms (100 samples)", histogram.summarize());
+	}
+
+	@Test
+	public void percentiles_ReportTopOfBucket() {
+		HdrHistogram histogram = new HdrHistogram(60000000);
+		histogram.record(5000);
+		histogram.record(6000);
+
+		long p50 = histogram.getPercentile(50);
+		assertTrue(p50 >= 5000 && p50 <= 5000 + 5000 / HdrHistogram.SUB_BUCKETS);
+	}
+
+	@Test
+	public void record_ClampsOutOfRange() {
+		HdrHistogram histogram = new HdrHistogram(1000);
+		histogram.record(-5);
+		histogram.record(50000);
+
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals(1000, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void clear_ForgetsSamples() {
+		HdrHistogram histogram = new HdrHistogram(1000);
+		histogram.record(10);
+		histogram.clear();
+		assertEquals(0, histogram.getTotalCount());
+		assertNull(histogram.summarize());
+	}
+}
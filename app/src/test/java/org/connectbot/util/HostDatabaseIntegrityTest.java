@@ -31,7 +31,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -134,6 +136,31 @@ public class HostDatabaseIntegrityTest {
 		assertEquals("Known host should be cascade deleted", 0, knownHostCount);
 	}
 
+	@Test
+	public void connectTimes_RollingAverage_CascadeDeleted() {
+		HostBean host = new HostBean();
+		host.setNickname("Timed Host");
+		host.setUsername("user");
+		host.setHostname("timed.example.com");
+		host.setPort(22);
+		host = database.saveHost(host);
+
+		Map<String, Long> phases = new LinkedHashMap<>();
+		phases.put("DNS", 10L);
+		phases.put("TCP", 40L);
+		database.saveConnectTimes(host, phases);
+		phases.put("DNS", 30L);
+		database.saveConnectTimes(host, phases);
+
+		Map<String, Long> usual = database.getConnectTimes(host);
+		assertEquals("Should average each phase", Long.valueOf(20), usual.get("DNS"));
+		assertEquals(Long.valueOf(40), usual.get("TCP"));
+
+		database.deleteHost(host);
+		assertTrue("Connect times should be cascade deleted",
+			database.getConnectTimes(host).isEmpty());
+	}
+
 	@Test
 	public void multiplePortForwardsCascadeDelete_HostDeleted_AllForwardsDeleted() {
 		HostBean host = new HostBean();
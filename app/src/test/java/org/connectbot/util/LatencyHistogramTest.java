@@ -0,0 +1,77 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(AndroidJUnit4.class)
+public class LatencyHistogramTest {
+	@Test
+	public void empty_HasNoSummary() {
+		LatencyHistogram histogram = new LatencyHistogram(4);
+		assertEquals(0, histogram.getSampleCount());
+		assertEquals(-1, histogram.getPercentile(50));
+		assertNull(histogram.summarize());
+		assertEquals("", histogram.formatBuckets());
+	}
+
+	@Test
+	public void percentiles_OverWindow() {
+		LatencyHistogram histogram = new LatencyHistogram(10);
+		for (int i = 1; i <= 10; i++)
+			histogram.record(i * 10);
+
+		assertEquals(50, histogram.getPercentile(50));
+		assertEquals(90, histogram.getPercentile(90));
+		assertEquals(100, histogram.getPercentile(100));
+		assertEquals("min 10 / median 50 / p90 90 / max 100 ms (10 samples)", histogram.summarize());
+	}
+
+	@Test
+	public void record_KeepsOnlyMostRecentSamples() {
+		LatencyHistogram histogram = new LatencyHistogram(3);
+		histogram.record(5000);
+		histogram.record(1);
+		histogram.record(2);
+		histogram.record(3);
+
+		assertEquals(3, histogram.getSampleCount());
+		assertEquals(4, histogram.getTotalCount());
+		assertEquals(3, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void getBucketCounts_SplitsAtLimits() {
+		LatencyHistogram histogram = new LatencyHistogram(8);
+		histogram.record(0);
+		histogram.record(9);
+		histogram.record(10);
+		histogram.record(150);
+		histogram.record(2000);
+		histogram.record(60000);
+
+		assertArrayEquals(new int[] { 2, 1, 0, 0, 1, 0, 0, 0, 2 }, histogram.getBucketCounts());
+	}
+}